@@ -0,0 +1,122 @@
+package play.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.MemcachedNode;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import play.Play;
+
+/**
+ * Throughput and latency of get, set and incr on each cache implementation. memcached is
+ * an in-JVM {@link LocalMemcachedServer}: the figures include the client and the protocol,
+ * not the network. Run with 1..N threads by {@link CacheBenchmarks}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CacheBenchmark {
+
+    /** Keys read and written. */
+    private static final int KEYS = 1024;
+
+    /** memcached-pool: the keys are striped over 4 clients. */
+    @Param({"ehcache", "memcached", "memcached-pool", "offheap", "tinylfu"})
+    public String impl;
+
+    private CacheImpl cache;
+
+    private String[] keys;
+
+    private final List<Object> value = new ArrayList<Object>();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        if (impl.startsWith("memcached")) {
+            final Properties configuration = new Properties();
+            configuration.setProperty("memcached.local.nodes", "1");
+            configuration.setProperty("memcached.pool.size", "memcached-pool".equals(impl) ? "4" : "1");
+            Play.configuration = configuration;
+            final MemcachedImpl memcached = MemcachedImpl.getInstance(true);
+            for (final MemcachedClient client : memcached.clients) {
+                for (final MemcachedNode node : client.getNodeLocator().getAll()) {
+                    while (!node.isActive()) {
+                        Thread.sleep(10);
+                    }
+                }
+            }
+            cache = memcached;
+        } else if ("offheap".equals(impl)) {
+            cache = new OffHeapCacheImpl(64 * 1024 * 1024, 256, CacheCodecs.current(), null);
+        } else if ("tinylfu".equals(impl)) {
+            cache = new TinyLfuCacheImpl(64 * 1024 * 1024, KEYS, CacheCodecs.current());
+        } else {
+            cache = EhCacheImpl.newInstance();
+        }
+        for (int i = 0; i < 10; i++) {
+            value.add("element " + i);
+        }
+        keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "benchmark:" + i;
+            cache.set(keys[i], value, 0);
+        }
+        if (cache instanceof MemcachedImpl) {
+            // a counter must be stored as a plain number, which set with the codec doesn't do
+            cache.delete("benchmark:counter");
+            ((MemcachedImpl) cache).incr("benchmark:counter", 0, 0);
+        } else {
+            cache.set("benchmark:counter", 0L, 0);
+        }
+        final long first = cache.incr("benchmark:counter", 1);
+        if (first < 0 || cache.incr("benchmark:counter", 1) <= first) {
+            throw new IllegalStateException("incr doesn't increment benchmark:counter on " + impl);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        cache.stop();
+        Play.configuration = null;
+    }
+
+    private String randomKey() {
+        return keys[ThreadLocalRandom.current().nextInt(KEYS)];
+    }
+
+    @Benchmark
+    public Object get() {
+        return cache.get(randomKey());
+    }
+
+    @Benchmark
+    public void set() {
+        cache.set(randomKey(), value, 0);
+    }
+
+    @Benchmark
+    public long incr() {
+        return cache.incr("benchmark:counter", 1);
+    }
+}
@@ -0,0 +1,37 @@
+package play.cache;
+
+import java.io.File;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks (cache, scheduler, cron) once per thread count.
+ *
+ * <p><code>gradle jmh -Pjmh.include=CacheBenchmark.get -Pjmh.threads=1,4,16</code>: include is
+ * a regular expression on the benchmark names (every benchmark by default), threads the
+ * thread counts (1,2,4,8 by default). Results are also written as JSON to
+ * build/reports/jmh/threads-N.json.</p>
+ */
+public final class CacheBenchmarks {
+
+    private CacheBenchmarks() {
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        final String include = System.getProperty("jmh.include", ".*Benchmark");
+        final String reports = System.getProperty("jmh.reports", "build/reports/jmh");
+        new File(reports).mkdirs();
+        for (final String threads : System.getProperty("jmh.threads", "1,2,4,8").split(",")) {
+            final ChainedOptionsBuilder options = new OptionsBuilder()
+                    .include(include)
+                    .threads(Integer.parseInt(threads.trim()))
+                    .result(reports + "/threads-" + threads.trim() + ".json")
+                    .resultFormat(ResultFormatType.JSON);
+            new Runner(options.build()).run();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package play.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Overhead of Cache.checkSerializable, run before every write.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CheckSerializableBenchmark {
+
+    private String string;
+
+    private Map<String, Object> map;
+
+    @Setup
+    public void setUp() {
+        string = "user:42 session attributes";
+        map = new HashMap<String, Object>();
+        for (int i = 0; i < 20; i++) {
+            map.put("key" + i, "value " + i);
+        }
+    }
+
+    @Benchmark
+    public void baseline(final Blackhole blackhole) {
+        blackhole.consume(map);
+    }
+
+    @Benchmark
+    public void string() {
+        Cache.checkSerializable(string);
+    }
+
+    @Benchmark
+    public void map() {
+        Cache.checkSerializable(map);
+    }
+}
@@ -0,0 +1,165 @@
+package play.cache;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Replay of a key trace through EhCacheImpl (LRU) and TinyLfuCacheImpl of the same capacity,
+ * setting the value on a miss. The hits and misses counters give the hit ratio of each cache.
+ * A recorded trace, one key per line, is read from the file given by the system property
+ * <code>cache.trace</code>; the default synthetic trace mixes Zipf distributed reads of a hot
+ * set with keys read only once (crawlers, scans).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TinyLfuReplayBenchmark {
+
+    /** capacity of both caches, in entries. */
+    private static final int CAPACITY = 2000;
+
+    /** length of the synthetic trace. */
+    private static final int REQUESTS = 200000;
+
+    /** keys of the hot set. */
+    private static final int HOT_KEYS = 20000;
+
+    /** cached value, the same for every key so that weight and count match. */
+    private static final String VALUE = "0123456789012345678901234567890123456789";
+
+    @Param({"ehcache", "tinylfu"})
+    public String impl;
+
+    private List<String> trace;
+
+    private CacheImpl cache;
+
+    private long maxEntries;
+
+    /**
+     * Requests which found the key and which had to set it.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        public long hits;
+        public long misses;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            hits = 0;
+            misses = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        final String traceFile = System.getProperty("cache.trace");
+        trace = traceFile == null ? syntheticTrace() : readTrace(new File(traceFile));
+        if ("ehcache".equals(impl)) {
+            final EhCacheImpl ehCache = EhCacheImpl.getInstance() != null ? EhCacheImpl.getInstance() : EhCacheImpl.newInstance();
+            maxEntries = ehCache.cache.getCacheConfiguration().getMaxEntriesLocalHeap();
+            ehCache.cache.getCacheConfiguration().setMaxEntriesLocalHeap(CAPACITY);
+            cache = ehCache;
+        } else {
+            cache = new TinyLfuCacheImpl(CAPACITY * TinyLfuCacheImpl.estimate(VALUE, 0), CAPACITY,
+                    new BinaryCodec(Integer.MAX_VALUE));
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void clear() {
+        cache.clear();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        cache.clear();
+        if (cache instanceof EhCacheImpl) {
+            ((EhCacheImpl) cache).cache.getCacheConfiguration().setMaxEntriesLocalHeap(maxEntries);
+        }
+    }
+
+    @Benchmark
+    public void replay(final Counters counters) {
+        for (final String key : trace) {
+            if (cache.get(key) != null) {
+                counters.hits++;
+            } else {
+                counters.misses++;
+                cache.set(key, VALUE, 0);
+            }
+        }
+    }
+
+    /**
+     * @return 70% of Zipf distributed hot keys, 30% of keys read once
+     */
+    private static List<String> syntheticTrace() {
+        final Random random = new Random(42);
+        final double[] cumulative = new double[HOT_KEYS];
+        double sum = 0;
+        for (int i = 0; i < HOT_KEYS; i++) {
+            sum += 1d / Math.pow(i + 1, 0.9);
+            cumulative[i] = sum;
+        }
+        final List<String> trace = new ArrayList<String>(REQUESTS);
+        int scan = 0;
+        for (int i = 0; i < REQUESTS; i++) {
+            if (random.nextDouble() < 0.3) {
+                trace.add("scan" + scan++);
+                continue;
+            }
+            int rank = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+            if (rank < 0) {
+                rank = -rank - 1;
+            }
+            trace.add("hot" + Math.min(rank, HOT_KEYS - 1));
+        }
+        return trace;
+    }
+
+    private static List<String> readTrace(final File file) throws IOException {
+        final List<String> trace = new ArrayList<String>();
+        final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    trace.add(line.trim());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return trace;
+    }
+}
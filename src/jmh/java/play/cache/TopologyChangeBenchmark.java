@@ -0,0 +1,119 @@
+package play.cache;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.transcoders.Transcoder;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Bulk read of the keys written on 4 memcached nodes once a 5th node is added, with the
+ * default (array) and the consistent (ketama) key distribution. The hits and misses
+ * counters give the share of keys still found (ketama only moves about 1/5 of them).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TopologyChangeBenchmark {
+
+    /** number of keys. */
+    private static final int KEYS = 5000;
+
+    /** nodes before the change. */
+    private static final int NODES = 4;
+
+    @Param({"array", "ketama"})
+    public String locator;
+
+    private final List<LocalMemcachedServer> servers = new ArrayList<LocalMemcachedServer>();
+
+    private final Transcoder<Object> tc = new CodecTranscoder(CacheCodecs.current());
+
+    private MemcachedClient after;
+
+    private String[] keys;
+
+    /**
+     * Keys found and missed by the bulk reads.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        public long hits;
+        public long misses;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            hits = 0;
+            misses = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        for (int i = 0; i <= NODES; i++) {
+            servers.add(LocalMemcachedServer.start(0));
+        }
+        final Properties configuration = new Properties();
+        configuration.setProperty("memcached.locator", locator);
+
+        final MemcachedClient before = new MemcachedClient(
+                MemcachedImpl.connectionFactory(configuration), addresses(NODES));
+        keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = locator + i;
+            before.set(keys[i], 0, i, tc);
+        }
+        // wait for the pipelined writes
+        before.set("done", 0, "", tc).get(10, TimeUnit.SECONDS);
+        before.shutdown();
+
+        after = new MemcachedClient(MemcachedImpl.connectionFactory(configuration), addresses(NODES + 1));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        after.shutdown();
+        for (final LocalMemcachedServer server : servers) {
+            server.stop();
+        }
+    }
+
+    @Benchmark
+    public Map<String, Object> readBack(final Counters counters) {
+        final Map<String, Object> found = after.getBulk(tc, keys);
+        counters.hits += found.size();
+        counters.misses += KEYS - found.size();
+        return found;
+    }
+
+    private List<InetSocketAddress> addresses(final int count) {
+        final List<InetSocketAddress> addrs = new ArrayList<InetSocketAddress>(count);
+        for (int i = 0; i < count; i++) {
+            addrs.add(servers.get(i).getAddress());
+        }
+        return addrs;
+    }
+}
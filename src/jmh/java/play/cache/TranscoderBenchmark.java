@@ -0,0 +1,77 @@
+package play.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.CachedData;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serialization cost of the memcached transcoder, by codec and value shape.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TranscoderBenchmark {
+
+    @Param({"java", "binary"})
+    public String codec;
+
+    /** string: a short text, map: 20 entries, list: 1000 longs. */
+    @Param({"string", "map", "list"})
+    public String shape;
+
+    private CodecTranscoder transcoder;
+
+    private Object value;
+
+    private CachedData encoded;
+
+    @Setup
+    public void setUp() {
+        transcoder = new CodecTranscoder(CacheCodecs.forName(codec, Integer.MAX_VALUE));
+        if ("map".equals(shape)) {
+            final Map<String, Object> map = new HashMap<String, Object>();
+            for (int i = 0; i < 20; i++) {
+                map.put("key" + i, i % 2 == 0 ? (Object) ("value " + i) : (Object) (long) i);
+            }
+            value = map;
+        } else if ("list".equals(shape)) {
+            final List<Long> list = new ArrayList<Long>();
+            for (long i = 0; i < 1000; i++) {
+                list.add(i);
+            }
+            value = list;
+        } else {
+            value = "user:42 session attributes";
+        }
+        encoded = transcoder.encode(value);
+    }
+
+    @Benchmark
+    public CachedData encode() {
+        return transcoder.encode(value);
+    }
+
+    @Benchmark
+    public Object decode() {
+        return transcoder.decode(encoded);
+    }
+}
@@ -0,0 +1,131 @@
+package play.jobs;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JobScheduler backends with many scheduled jobs: the ScheduledThreadPoolExecutor and the
+ * TimingWheelScheduler (10ms tick), both with 10 threads.
+ *
+ * <p><code>gradle jmh -Pjmh.include=SchedulerBenchmark</code></p>
+ *
+ * <ul>
+ * <li>scheduleCancel: schedule the jobs over the next hour, then cancel them all.</li>
+ * <li>fire: schedule the jobs over the next second and wait for all of them; lateMillis is
+ * the maximum delay between the planned time and the run.</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SchedulerBenchmark {
+
+    @Param({"executor", "wheel"})
+    public String backend;
+
+    @Param({"10000", "100000", "1000000"})
+    public int jobs;
+
+    private ScheduledExecutorService scheduler;
+
+    private ScheduledFuture<?>[] futures;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        if ("wheel".equals(backend)) {
+            scheduler = new TimingWheelScheduler(10, TimeUnit.MILLISECONDS, 10);
+        } else {
+            scheduler = new ScheduledThreadPoolExecutor(
+                    10,
+                    new JobThreadFactory("jobs"),
+                    new ThreadPoolExecutor.AbortPolicy()
+                    );
+        }
+        futures = new ScheduledFuture<?>[jobs];
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws InterruptedException {
+        scheduler.shutdownNow();
+        scheduler.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Maximum lateness of a fire run.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Lateness {
+
+        public long lateMillis;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            lateMillis = 0;
+        }
+    }
+
+    @Benchmark
+    public void scheduleCancel() {
+        final Runnable noop = new Runnable() {
+
+            @Override
+            public void run() {
+            }
+        };
+        final long hour = TimeUnit.HOURS.toMillis(1);
+        for (int i = 0; i < jobs; i++) {
+            futures[i] = scheduler.schedule(noop, 1000 + (long) i * hour / jobs, TimeUnit.MILLISECONDS);
+        }
+        for (int i = 0; i < jobs; i++) {
+            futures[i].cancel(false);
+        }
+    }
+
+    @Benchmark
+    public void fire(final Lateness lateness) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(jobs);
+        final AtomicLong maxLate = new AtomicLong();
+        final long start = System.nanoTime();
+        for (int i = 0; i < jobs; i++) {
+            final long delay = TimeUnit.SECONDS.toNanos(1) * i / jobs;
+            scheduler.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    final long late = System.nanoTime() - start - delay;
+                    long max;
+                    while (late > (max = maxLate.get()) && !maxLate.compareAndSet(max, late)) {
+                        // retry
+                    }
+                    latch.countDown();
+                }
+            }, delay, TimeUnit.NANOSECONDS);
+        }
+        latch.await();
+        lateness.lateMillis = TimeUnit.NANOSECONDS.toMillis(maxLate.get());
+    }
+}
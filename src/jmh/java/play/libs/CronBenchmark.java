@@ -0,0 +1,70 @@
+package play.libs;
+
+import java.text.ParseException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import play.libs.Time.CronExpression;
+
+/**
+ * Next fire time of a cron job: CronExpression parsed on every schedule as the scheduler did,
+ * CronExpression parsed once, and CompiledCron.
+ *
+ * <p><code>gradle jmh -Pjmh.include=CronBenchmark</code></p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CronBenchmark {
+
+    @Param({"0 0 12 * * ?", "0 0/5 14,18 * * ?", "*/10 * * * * ?", "0 15 10 ? * MON-FRI", "0 0 0 29 2 ?"})
+    public String expression;
+
+    private CronExpression parsed;
+
+    private CompiledCron compiled;
+
+    private Date date;
+
+    @Setup
+    public void setUp() throws ParseException {
+        parsed = new CronExpression(expression);
+        compiled = CompiledCron.compile(expression);
+        date = new Date(1500000000000L);
+    }
+
+    @Benchmark
+    public Date parseEveryTime() throws ParseException {
+        return new CronExpression(expression).getNextValidTimeAfter(date);
+    }
+
+    @Benchmark
+    public Date parsedOnce() {
+        return parsed.getNextValidTimeAfter(date);
+    }
+
+    @Benchmark
+    public Date compiled() throws ParseException {
+        return CompiledCron.compile(expression).getNextValidTimeAfter(date);
+    }
+
+    @Benchmark
+    public long compiledMillis() {
+        return compiled.nextValidTimeAfter(date.getTime());
+    }
+}
@@ -0,0 +1,33 @@
+package play.cache;
+
+import java.util.Map;
+
+import play.libs.ws.F;
+
+/**
+ * A cache implementation able to run operations without blocking the caller.
+ * expiration is specified in seconds
+ *
+ * <p>Promises are redeemed with the same values the blocking operations would return
+ * (null, false or -1 on failure) and never with an exception.</p>
+ *
+ * @see play.cache.Cache#getAsync(String)
+ */
+public interface AsyncCacheImpl {
+
+    public F.Promise<Boolean> addAsync(String key, Object value, int expiration);
+
+    public F.Promise<Boolean> setAsync(String key, Object value, int expiration);
+
+    public F.Promise<Boolean> replaceAsync(String key, Object value, int expiration);
+
+    public F.Promise<Object> getAsync(String key);
+
+    public F.Promise<Map<String, Object>> getAsync(String[] keys);
+
+    public F.Promise<Long> incrAsync(String key, int by);
+
+    public F.Promise<Long> decrAsync(String key, int by);
+
+    public F.Promise<Boolean> deleteAsync(String key);
+}
@@ -0,0 +1,616 @@
+package play.cache;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact binary codec.
+ *
+ * <p>Strings, boxed primitives, byte arrays, dates and the common collections
+ * (ArrayList, HashSet, LinkedHashSet, HashMap, LinkedHashMap) are written with a
+ * one byte tag followed by a varint or raw encoding. Application classes get the same
+ * compact encoding once a {@link Serializer} is registered for them with
+ * {@link #register(int, Class, Serializer)}. Any other {@link Serializable}
+ * value falls back to the Java serialization. Note that a LinkedHashMap always
+ * comes back insertion ordered.</p>
+ *
+ * <p>Payloads larger than the compression threshold are deflated.</p>
+ */
+public class BinaryCodec implements CacheCodec {
+
+    public static final String NAME = "binary";
+
+    /** Header: payload stored as is. */
+    private static final byte PLAIN = 0;
+    /** Header: deflated payload, preceded by its raw length. */
+    private static final byte DEFLATED = 1;
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INT = 2;
+    private static final byte LONG = 3;
+    private static final byte TRUE = 4;
+    private static final byte FALSE = 5;
+    private static final byte DOUBLE = 6;
+    private static final byte FLOAT = 7;
+    private static final byte SHORT = 8;
+    private static final byte BYTE = 9;
+    private static final byte CHAR = 10;
+    private static final byte BYTES = 11;
+    private static final byte DATE = 12;
+    private static final byte ARRAY_LIST = 13;
+    private static final byte HASH_SET = 14;
+    private static final byte LINKED_HASH_SET = 15;
+    private static final byte HASH_MAP = 16;
+    private static final byte LINKED_HASH_MAP = 17;
+    private static final byte SERIALIZED = 18;
+    private static final byte REGISTERED = 19;
+
+    /** Deflate can't compress more than about 1032:1: a larger raw length is corrupt. */
+    private static final int MAX_DEFLATE_RATIO = 1032;
+
+    /** Registered serializers, by exact class. */
+    private static final ConcurrentMap<Class<?>, Registration<?>> byClass
+            = new ConcurrentHashMap<Class<?>, Registration<?>>();
+    /** Registered serializers, by id. */
+    private static final ConcurrentMap<Integer, Registration<?>> byId
+            = new ConcurrentHashMap<Integer, Registration<?>>();
+
+    private final JavaSerializationCodec fallback = new JavaSerializationCodec();
+
+    private final int compressionThreshold;
+
+    /**
+     * @param compressionThreshold Payloads of at least this size (in bytes) are deflated, 0 or less disables compression
+     */
+    public BinaryCodec(final int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public BinaryCodec() {
+        this(16384);
+    }
+
+    /**
+     * Encode the instances of a class (not its subclasses) with a serializer instead of the
+     * Java serialization. Every node sharing the cache must register the same classes with
+     * the same ids, before reading or writing them.
+     * @param id Identifier written in the payloads, 0 or more
+     * @param type The class
+     * @param serializer Writes and reads the instances
+     * @throws IllegalArgumentException When the id or the class is already registered
+     */
+    public static <T> void register(final int id, final Class<T> type, final Serializer<T> serializer) {
+        if (id < 0) {
+            throw new IllegalArgumentException("Negative serializer id " + id);
+        }
+        final Registration<T> registration = new Registration<T>(id, type, serializer);
+        if (byId.putIfAbsent(id, registration) != null) {
+            throw new IllegalArgumentException("Serializer id " + id + " is already registered");
+        }
+        if (byClass.putIfAbsent(type, registration) != null) {
+            byId.remove(id, registration);
+            throw new IllegalArgumentException(type.getName() + " is already registered");
+        }
+    }
+
+    /**
+     * Remove the serializer of a class.
+     * @param type The class
+     */
+    public static void unregister(final Class<?> type) {
+        final Registration<?> registration = byClass.remove(type);
+        if (registration != null) {
+            byId.remove(registration.id, registration);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean canEncode(final Object value) {
+        return value instanceof Serializable || value != null && byClass.containsKey(value.getClass());
+    }
+
+    @Override
+    public byte[] encode(final Object value) throws IOException {
+        final Output out = new Output(64);
+        out.writeByte(PLAIN);
+        write(out, value);
+        if (compressionThreshold <= 0 || out.size - 1 < compressionThreshold) {
+            return out.toByteArray();
+        }
+        return deflate(out.buffer, 1, out.size - 1);
+    }
+
+    @Override
+    public Object decode(final byte[] data) throws IOException {
+        if (data.length == 0) {
+            throw new IOException("Empty payload");
+        }
+        if (data[0] == PLAIN) {
+            return read(new Input(data, 1));
+        }
+        if (data[0] == DEFLATED) {
+            return read(new Input(inflate(data), 0));
+        }
+        throw new IOException("Unknown payload header " + data[0]);
+    }
+
+    private void write(final Output out, final Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+            return;
+        }
+        final Class<?> type = value.getClass();
+        if (type == String.class) {
+            out.writeByte(STRING);
+            out.writeBytes(((String) value).getBytes(StandardCharsets.UTF_8));
+        } else if (type == Integer.class) {
+            out.writeByte(INT);
+            out.writeVarLong(zigZag((Integer) value));
+        } else if (type == Long.class) {
+            out.writeByte(LONG);
+            out.writeVarLong(zigZag((Long) value));
+        } else if (type == Boolean.class) {
+            out.writeByte((Boolean) value ? TRUE : FALSE);
+        } else if (type == Double.class) {
+            out.writeByte(DOUBLE);
+            out.writeFixedLong(Double.doubleToRawLongBits((Double) value));
+        } else if (type == Float.class) {
+            out.writeByte(FLOAT);
+            out.writeVarLong(Float.floatToRawIntBits((Float) value) & 0xffffffffL);
+        } else if (type == Short.class) {
+            out.writeByte(SHORT);
+            out.writeVarLong(zigZag((Short) value));
+        } else if (type == Byte.class) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte) value);
+        } else if (type == Character.class) {
+            out.writeByte(CHAR);
+            out.writeVarLong((Character) value);
+        } else if (type == byte[].class) {
+            out.writeByte(BYTES);
+            out.writeBytes((byte[]) value);
+        } else if (type == Date.class) {
+            out.writeByte(DATE);
+            out.writeVarLong(zigZag(((Date) value).getTime()));
+        } else if (type == ArrayList.class) {
+            writeCollection(out, ARRAY_LIST, (Collection<?>) value);
+        } else if (type == HashSet.class) {
+            writeCollection(out, HASH_SET, (Collection<?>) value);
+        } else if (type == LinkedHashSet.class) {
+            writeCollection(out, LINKED_HASH_SET, (Collection<?>) value);
+        } else if (type == HashMap.class) {
+            writeMap(out, HASH_MAP, (Map<?, ?>) value);
+        } else if (type == LinkedHashMap.class) {
+            writeMap(out, LINKED_HASH_MAP, (Map<?, ?>) value);
+        } else {
+            final Registration<?> registration = byClass.get(type);
+            if (registration != null) {
+                out.writeByte(REGISTERED);
+                out.writeVarLong(registration.id);
+                registration.write(new Writer(this, out), value);
+            } else {
+                out.writeByte(SERIALIZED);
+                out.writeBytes(fallback.encode(value));
+            }
+        }
+    }
+
+    private void writeCollection(final Output out, final byte tag, final Collection<?> values) throws IOException {
+        out.writeByte(tag);
+        out.writeVarLong(values.size());
+        for (final Object value : values) {
+            write(out, value);
+        }
+    }
+
+    private void writeMap(final Output out, final byte tag, final Map<?, ?> values) throws IOException {
+        out.writeByte(tag);
+        out.writeVarLong(values.size());
+        for (final Map.Entry<?, ?> entry : values.entrySet()) {
+            write(out, entry.getKey());
+            write(out, entry.getValue());
+        }
+    }
+
+    private Object read(final Input in) throws IOException {
+        final byte tag = in.readByte();
+        switch (tag) {
+        case NULL:
+            return null;
+        case STRING:
+            return new String(in.readBytes(), StandardCharsets.UTF_8);
+        case INT:
+            return Integer.valueOf((int) unZigZag(in.readVarLong()));
+        case LONG:
+            return Long.valueOf(unZigZag(in.readVarLong()));
+        case TRUE:
+            return Boolean.TRUE;
+        case FALSE:
+            return Boolean.FALSE;
+        case DOUBLE:
+            return Double.valueOf(Double.longBitsToDouble(in.readFixedLong()));
+        case FLOAT:
+            return Float.valueOf(Float.intBitsToFloat((int) in.readVarLong()));
+        case SHORT:
+            return Short.valueOf((short) unZigZag(in.readVarLong()));
+        case BYTE:
+            return Byte.valueOf(in.readByte());
+        case CHAR:
+            return Character.valueOf((char) in.readVarLong());
+        case BYTES:
+            return in.readBytes();
+        case DATE:
+            return new Date(unZigZag(in.readVarLong()));
+        case ARRAY_LIST: {
+            final int size = in.readCount();
+            return readCollection(in, new ArrayList<Object>(size), size);
+        }
+        case HASH_SET: {
+            final int size = in.readCount();
+            return readCollection(in, new HashSet<Object>(capacity(size)), size);
+        }
+        case LINKED_HASH_SET: {
+            final int size = in.readCount();
+            return readCollection(in, new LinkedHashSet<Object>(capacity(size)), size);
+        }
+        case HASH_MAP: {
+            final int size = in.readCount();
+            return readMap(in, new HashMap<Object, Object>(capacity(size)), size);
+        }
+        case LINKED_HASH_MAP: {
+            final int size = in.readCount();
+            return readMap(in, new LinkedHashMap<Object, Object>(capacity(size)), size);
+        }
+        case SERIALIZED:
+            return fallback.decode(in.readBytes());
+        case REGISTERED: {
+            final long id = in.readVarLong();
+            final Registration<?> registration = id > Integer.MAX_VALUE ? null : byId.get((int) id);
+            if (registration == null) {
+                throw new IOException("No serializer registered for id " + id);
+            }
+            return registration.serializer.read(new Reader(this, in));
+        }
+        default:
+            throw new IOException("Unknown type tag " + tag);
+        }
+    }
+
+    private Collection<Object> readCollection(final Input in, final Collection<Object> values, final int size)
+            throws IOException {
+        for (int i = 0; i < size; i++) {
+            values.add(read(in));
+        }
+        return values;
+    }
+
+    private Map<Object, Object> readMap(final Input in, final Map<Object, Object> values, final int size)
+            throws IOException {
+        for (int i = 0; i < size; i++) {
+            final Object key = read(in);
+            values.put(key, read(in));
+        }
+        return values;
+    }
+
+    private static int capacity(final int size) {
+        return Math.max(16, (int) (size / 0.75f) + 1);
+    }
+
+    private static long zigZag(final long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(final long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static byte[] deflate(final byte[] data, final int offset, final int length) {
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            final Output out = new Output(length / 2 + 16);
+            out.writeByte(DEFLATED);
+            out.writeVarLong(length);
+            final byte[] chunk = new byte[4096];
+            while (!deflater.finished()) {
+                final int n = deflater.deflate(chunk);
+                out.write(chunk, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(final byte[] data) throws IOException {
+        final Input in = new Input(data, 1);
+        final int length = in.readSize();
+        if (length > (long) (data.length - in.position) * MAX_DEFLATE_RATIO + 64) {
+            throw new IOException("Invalid deflated length " + length + " for " + data.length + " bytes");
+        }
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, in.position, data.length - in.position);
+            final byte[] result = new byte[length];
+            int read = 0;
+            while (read < length) {
+                final int n = inflater.inflate(result, read, length - read);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("Truncated deflated payload");
+                }
+                read += n;
+            }
+            return result;
+        } catch (final DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Writes and reads the instances of an application class.
+     * @param <T> The class
+     */
+    public interface Serializer<T> {
+
+        /**
+         * @param out Where to write the fields
+         * @param value The instance (not null)
+         * @throws IOException
+         */
+        public void write(Writer out, T value) throws IOException;
+
+        /**
+         * Read the fields in the order they were written.
+         * @param in Where to read the fields
+         * @return The instance
+         * @throws IOException
+         */
+        public T read(Reader in) throws IOException;
+    }
+
+    /**
+     * Field output of a {@link Serializer}.
+     */
+    public static final class Writer {
+        private final BinaryCodec codec;
+        private final Output out;
+
+        Writer(final BinaryCodec codec, final Output out) {
+            this.codec = codec;
+            this.out = out;
+        }
+
+        public void writeLong(final long value) {
+            out.writeVarLong(zigZag(value));
+        }
+
+        public void writeInt(final int value) {
+            out.writeVarLong(zigZag(value));
+        }
+
+        public void writeDouble(final double value) {
+            out.writeFixedLong(Double.doubleToRawLongBits(value));
+        }
+
+        public void writeBoolean(final boolean value) {
+            out.writeByte(value ? 1 : 0);
+        }
+
+        /**
+         * @param value Not null, use {@link #writeObject(Object)} for a nullable string
+         */
+        public void writeString(final String value) {
+            out.writeBytes(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * @param value Any value the codec can encode, including null and registered classes
+         * @throws IOException
+         */
+        public void writeObject(final Object value) throws IOException {
+            codec.write(out, value);
+        }
+    }
+
+    /**
+     * Field input of a {@link Serializer}.
+     */
+    public static final class Reader {
+        private final BinaryCodec codec;
+        private final Input in;
+
+        Reader(final BinaryCodec codec, final Input in) {
+            this.codec = codec;
+            this.in = in;
+        }
+
+        public long readLong() throws IOException {
+            return unZigZag(in.readVarLong());
+        }
+
+        public int readInt() throws IOException {
+            return (int) unZigZag(in.readVarLong());
+        }
+
+        public double readDouble() throws IOException {
+            return Double.longBitsToDouble(in.readFixedLong());
+        }
+
+        public boolean readBoolean() throws IOException {
+            return in.readByte() != 0;
+        }
+
+        public String readString() throws IOException {
+            return new String(in.readBytes(), StandardCharsets.UTF_8);
+        }
+
+        public Object readObject() throws IOException {
+            return codec.read(in);
+        }
+    }
+
+    private static final class Registration<T> {
+        final int id;
+        final Class<T> type;
+        final Serializer<T> serializer;
+
+        Registration(final int id, final Class<T> type, final Serializer<T> serializer) {
+            this.id = id;
+            this.type = type;
+            this.serializer = serializer;
+        }
+
+        void write(final Writer out, final Object value) throws IOException {
+            serializer.write(out, type.cast(value));
+        }
+    }
+
+    /**
+     * Growable byte buffer, without the synchronization of ByteArrayOutputStream.
+     */
+    private static final class Output {
+        byte[] buffer;
+        int size;
+
+        Output(final int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        private void ensure(final int extra) {
+            if (size + extra > buffer.length) {
+                final byte[] grown = new byte[Math.max(buffer.length * 2, size + extra)];
+                System.arraycopy(buffer, 0, grown, 0, size);
+                buffer = grown;
+            }
+        }
+
+        void writeByte(final int b) {
+            ensure(1);
+            buffer[size++] = (byte) b;
+        }
+
+        void write(final byte[] data, final int offset, final int length) {
+            ensure(length);
+            System.arraycopy(data, offset, buffer, size, length);
+            size += length;
+        }
+
+        void writeBytes(final byte[] data) {
+            writeVarLong(data.length);
+            write(data, 0, data.length);
+        }
+
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[size++] = (byte) value;
+        }
+
+        void writeFixedLong(final long value) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[size++] = (byte) (value >>> shift);
+            }
+        }
+
+        byte[] toByteArray() {
+            final byte[] result = new byte[size];
+            System.arraycopy(buffer, 0, result, 0, size);
+            return result;
+        }
+    }
+
+    private static final class Input {
+        final byte[] data;
+        int position;
+
+        Input(final byte[] data, final int position) {
+            this.data = data;
+            this.position = position;
+        }
+
+        byte readByte() throws IOException {
+            if (position >= data.length) {
+                throw new IOException("Truncated payload");
+            }
+            return data[position++];
+        }
+
+        long readVarLong() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final byte b = readByte();
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        int readSize() throws IOException {
+            final long size = readVarLong();
+            if (size < 0 || size > Integer.MAX_VALUE) {
+                throw new IOException("Invalid size " + size);
+            }
+            return (int) size;
+        }
+
+        /**
+         * Element count of a collection: each element takes at least one byte.
+         */
+        int readCount() throws IOException {
+            final int count = readSize();
+            if (count > data.length - position) {
+                throw new IOException("Invalid element count " + count);
+            }
+            return count;
+        }
+
+        long readFixedLong() throws IOException {
+            long result = 0;
+            for (int i = 0; i < 8; i++) {
+                result = (result << 8) | (readByte() & 0xFF);
+            }
+            return result;
+        }
+
+        byte[] readBytes() throws IOException {
+            final int length = readSize();
+            if (length > data.length - position) {
+                throw new IOException("Truncated payload");
+            }
+            final byte[] result = new byte[length];
+            System.arraycopy(data, position, result, 0, length);
+            position += length;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package play.cache;
+
+import java.util.Map;
+
+import play.libs.ws.F;
+
+/**
+ * Runs the operations of a blocking cache implementation (as EhCacheImpl) on the
+ * calling thread and returns already redeemed promises.
+ */
+class BlockingAsyncCacheImpl implements AsyncCacheImpl {
+
+    private final CacheImpl cache;
+
+    BlockingAsyncCacheImpl(final CacheImpl cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @param cache A cache implementation
+     * @return The implementation itself when it supports asynchronous operations, a blocking adapter otherwise
+     */
+    static AsyncCacheImpl of(final CacheImpl cache) {
+        if (cache instanceof AsyncCacheImpl) {
+            return (AsyncCacheImpl) cache;
+        }
+        return new BlockingAsyncCacheImpl(cache);
+    }
+
+    static <T> F.Promise<T> redeemed(final T value) {
+        final F.Promise<T> promise = new F.Promise<T>();
+        promise.invoke(value);
+        return promise;
+    }
+
+    @Override
+    public F.Promise<Boolean> addAsync(final String key, final Object value, final int expiration) {
+        return redeemed(cache.safeAdd(key, value, expiration));
+    }
+
+    @Override
+    public F.Promise<Boolean> setAsync(final String key, final Object value, final int expiration) {
+        return redeemed(cache.safeSet(key, value, expiration));
+    }
+
+    @Override
+    public F.Promise<Boolean> replaceAsync(final String key, final Object value, final int expiration) {
+        return redeemed(cache.safeReplace(key, value, expiration));
+    }
+
+    @Override
+    public F.Promise<Object> getAsync(final String key) {
+        return redeemed(cache.get(key));
+    }
+
+    @Override
+    public F.Promise<Map<String, Object>> getAsync(final String[] keys) {
+        return redeemed(cache.get(keys));
+    }
+
+    @Override
+    public F.Promise<Long> incrAsync(final String key, final int by) {
+        return redeemed(cache.incr(key, by));
+    }
+
+    @Override
+    public F.Promise<Long> decrAsync(final String key, final int by) {
+        return redeemed(cache.decr(key, by));
+    }
+
+    @Override
+    public F.Promise<Boolean> deleteAsync(final String key) {
+        return redeemed(cache.safeDelete(key));
+    }
+}
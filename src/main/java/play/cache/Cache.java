@@ -1,11 +1,19 @@
 package play.cache;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.NotSerializableException;
-import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 import play.Logger;
+import play.Play;
+import play.jobs.JobThreadFactory;
 import play.libs.Time;
+import play.libs.ws.F;
 
 /**
  * The Cache. Mainly an interface to memcached or EhCache.
@@ -17,13 +25,28 @@ public abstract class Cache {
     /**
      * The underlying cache implementation
      */
-    public static CacheImpl cacheImpl;
+    public static volatile CacheImpl cacheImpl;
 
     /**
      * Sometime we REALLY need to change the implementation :)
      */
     public static CacheImpl forcedCacheImpl;
 
+    /**
+     * Computations in progress for getOrCompute
+     */
+    static final InFlightLoads loads = new InFlightLoads();
+
+    /**
+     * Refresh-ahead of the values read through getOrCompute
+     */
+    public static final RefreshAhead refreshAhead = new RefreshAhead();
+
+    /**
+     * Operation counters and latencies of the underlying implementation
+     */
+    public static final CacheMetrics metrics = new CacheMetrics();
+
     /**
      * Add an element only if it doesn't exist.
      * @param key Element key
@@ -66,7 +89,9 @@ public abstract class Cache {
      */
     public static void set(final String key, final Object value, final String expiration) {
         checkSerializable(value);
-        cacheImpl.set(key, value, Time.parseDuration(expiration));
+        final int seconds = Time.parseDuration(expiration);
+        cacheImpl.set(key, value, seconds);
+        refreshAhead.recordSet(key, seconds);
     }
 
     /**
@@ -78,7 +103,12 @@ public abstract class Cache {
      */
     public static boolean safeSet(final String key, final Object value, final String expiration) {
         checkSerializable(value);
-        return cacheImpl.safeSet(key, value, Time.parseDuration(expiration));
+        final int seconds = Time.parseDuration(expiration);
+        final boolean set = cacheImpl.safeSet(key, value, seconds);
+        if (set) {
+            refreshAhead.recordSet(key, seconds);
+        }
+        return set;
     }
 
     /**
@@ -186,6 +216,7 @@ public abstract class Cache {
      * @param key The element key
      */
     public static void delete(final String key) {
+        refreshAhead.recordDelete(key);
         cacheImpl.delete(key);
     }
 
@@ -196,16 +227,175 @@ public abstract class Cache {
      * @return If the element an eventually been deleted
      */
     public static boolean safeDelete(final String key) {
+        refreshAhead.recordDelete(key);
         return cacheImpl.safeDelete(key);
     }
 
+    /**
+     * Set several elements in a single batch.
+     * @param values Elements by key
+     * @param expiration Ex: 10s, 3mn, 8h
+     * @return Redeemed with true once every element is effectively cached
+     */
+    public static F.Promise<Boolean> setAll(final Map<String, Object> values, final String expiration) {
+        for (final Object value : values.values()) {
+            checkSerializable(value);
+        }
+        final int seconds = Time.parseDuration(expiration);
+        final F.Promise<Boolean> done = cacheImpl.setAll(values, seconds);
+        for (final String key : values.keySet()) {
+            refreshAhead.recordSet(key, seconds);
+        }
+        return done;
+    }
+
+    /**
+     * Delete several elements in a single batch.
+     * @param keys The element keys
+     * @return Redeemed with true once every element is effectively removed
+     */
+    public static F.Promise<Boolean> deleteAll(final Collection<String> keys) {
+        for (final String key : keys) {
+            refreshAhead.recordDelete(key);
+        }
+        return cacheImpl.deleteAll(keys);
+    }
+
+    /**
+     * Delete several elements in a single batch.
+     * @param keys The element keys
+     * @return Redeemed with true once every element is effectively removed
+     */
+    public static F.Promise<Boolean> deleteAll(final String... keys) {
+        return deleteAll(Arrays.asList(keys));
+    }
+
     /**
      * Clear all data from cache.
      */
     public static void clear() {
+        refreshAhead.recordClear();
         cacheImpl.clear();
     }
 
+    /**
+     * Delete every element whose key starts with a prefix.
+     *
+     * <p>Only local caches (EhCache, off-heap cache) can find their keys: with memcached,
+     * use a {@link #namespace(String)}.</p>
+     * @param prefix The key prefix
+     * @return The number of deleted elements
+     * @throws UnsupportedOperationException When the implementation can't enumerate its keys
+     */
+    public static int deleteByPrefix(final String prefix) {
+        final PrefixDeletion prefixDeletion = prefixDeletion(cacheImpl, true);
+        if (prefixDeletion == null) {
+            throw new UnsupportedOperationException("The cache can't delete by prefix, use a namespace");
+        }
+        refreshAhead.recordDeletePrefix(prefix);
+        return prefixDeletion.deleteByPrefix(prefix);
+    }
+
+    /**
+     * A group of keys invalidated together.
+     * @param name The namespace name, ex: tenant:42
+     * @return The namespace
+     */
+    public static CacheNamespace namespace(final String name) {
+        return new CacheNamespace(name);
+    }
+
+    /**
+     * Move to another implementation without restarting nor starting cold, ex: from EhCache to
+     * <code>MemcachedImpl.newInstance(settings)</code>. During the window, writes go to both
+     * implementations and reads fall back to the current one, whose entries are copied in
+     * background. The current implementation is then stopped.
+     * <code>cache.migration.copyExpiration</code> (10mn by default) is the expiration of the
+     * values copied after a read.
+     * @param target The new implementation
+     * @param window Duration of the migration, in seconds
+     * @return The migration, to follow its progress
+     */
+    public static synchronized MigratingCacheImpl migrate(final CacheImpl target, final int window) {
+        if (unwrap(cacheImpl, MigratingCacheImpl.class, false) != null) {
+            throw new IllegalStateException("A cache migration is already running");
+        }
+        final CacheImpl current = cacheImpl instanceof InstrumentedCacheImpl
+                ? ((InstrumentedCacheImpl) cacheImpl).getDelegate() : cacheImpl;
+        final MigratingCacheImpl[] migration = new MigratingCacheImpl[1];
+        migration[0] = new MigratingCacheImpl(current, target, window,
+                Time.parseDuration(configuration("cache.migration.copyExpiration", "10mn")), new Runnable() {
+
+                    @Override
+                    public void run() {
+                        completeMigration(migration[0]);
+                    }
+                });
+        cacheImpl = instrumented(migration[0]);
+        migration[0].start();
+        Logger.info("Cache migration started, for %ss", window);
+        return migration[0];
+    }
+
+    /**
+     * End of a migration window: only the target is used from now.
+     */
+    private static synchronized void completeMigration(final MigratingCacheImpl migration) {
+        if (unwrap(cacheImpl, MigratingCacheImpl.class, false) != migration) {
+            return;
+        }
+        cacheImpl = instrumented(migration.getTarget());
+        migration.getSource().stop();
+    }
+
+    /**
+     * @return Whether the nodes share the cache: memcached is used, behind the decorators.
+     *         false before the initialization and on the local cache used when memcached is unreachable
+     */
+    public static boolean isShared() {
+        final CacheImpl cache = cacheImpl;
+        return cache != null && unwrap(cache, MemcachedImpl.class, false) != null;
+    }
+
+    /**
+     * The implementation able to delete by prefix, under the decorators.
+     * @param cache A cache implementation
+     * @param flush Apply the writes pending in a write-behind decorator first
+     * @return null if the implementation can't
+     */
+    static PrefixDeletion prefixDeletion(final CacheImpl cache, final boolean flush) {
+        if (unwrap(cache, NearCacheImpl.class, false) != null || unwrap(cache, ResilientCacheImpl.class, false) != null) {
+            // their local copies can't be found by prefix: a namespace uses generations instead
+            return null;
+        }
+        final MigratingCacheImpl migration = unwrap(cache, MigratingCacheImpl.class, flush);
+        if (migration != null) {
+            // both implementations are read during the window
+            return migration.prefixDeletion(flush);
+        }
+        return unwrap(cache, PrefixDeletion.class, flush);
+    }
+
+    /**
+     * Find an implementation of a type under the decorators.
+     * @param cache A cache implementation
+     * @param type The needed type
+     * @param flush Apply the writes pending in a write-behind decorator first
+     * @return null if not found
+     */
+    static <T> T unwrap(final CacheImpl cache, final Class<T> type, final boolean flush) {
+        if (type.isInstance(cache)) {
+            return type.cast(cache);
+        }
+        if (flush && cache instanceof WriteBehindCacheImpl) {
+            ((WriteBehindCacheImpl) cache).flush();
+        }
+        if (cache instanceof CacheDecorator) {
+            return unwrap(((CacheDecorator) cache).getDelegate(), type, flush);
+        }
+        return null;
+    }
+
     /**
      * Convenient clazz to get a value a class type;
      * @param <T> The needed type
@@ -218,36 +408,339 @@ public abstract class Cache {
         return (T) cacheImpl.get(key);
     }
 
+    /**
+     * Retrieve an object, computing and caching it on a miss.
+     *
+     * <p>Concurrent misses on the same key wait for a single computation. When
+     * <code>cache.getOrCompute.distributedLock=true</code>, a single node of the cluster
+     * computes the value (requires memcached), the lock being held for at most
+     * <code>cache.getOrCompute.lockTimeout</code> (10s by default).</p>
+     *
+     * <p>With <code>cache.refreshAhead=true</code>, the value is recomputed in background
+     * shortly before its expiration, see {@link RefreshAhead}.</p>
+     *
+     * @param <T> The needed type
+     * @param key Element key
+     * @param expiration Ex: 10s, 3mn, 8h
+     * @param loader Computes the value on a miss (a null value isn't cached)
+     * @return The element value
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T getOrCompute(final String key, final String expiration, final Callable<T> loader) {
+        final int seconds = Time.parseDuration(expiration);
+        if (refreshAhead.enabled) {
+            return (T) refreshAhead.getOrCompute(loads, cacheImpl, key, seconds, loader);
+        }
+        return (T) loads.getOrCompute(cacheImpl, key, seconds, loader);
+    }
+
+    /**
+     * Add an element only if it doesn't exist, without blocking.
+     * @param key Element key
+     * @param value Element value
+     * @param expiration Ex: 10s, 3mn, 8h
+     * @return If the element has been cached
+     */
+    public static F.Promise<Boolean> addAsync(final String key, final Object value, final String expiration) {
+        checkSerializable(value);
+        return async().addAsync(key, value, Time.parseDuration(expiration));
+    }
+
+    /**
+     * Set an element, without blocking.
+     * @param key Element key
+     * @param value Element value
+     * @param expiration Ex: 10s, 3mn, 8h
+     * @return If the element has been cached
+     */
+    public static F.Promise<Boolean> setAsync(final String key, final Object value, final String expiration) {
+        checkSerializable(value);
+        return async().setAsync(key, value, Time.parseDuration(expiration));
+    }
+
+    /**
+     * Set an element and store it indefinitely, without blocking.
+     * @param key Element key
+     * @param value Element value
+     * @return If the element has been cached
+     */
+    public static F.Promise<Boolean> setAsync(final String key, final Object value) {
+        checkSerializable(value);
+        return async().setAsync(key, value, Time.parseDuration(null));
+    }
+
+    /**
+     * Replace an element only if it already exists, without blocking.
+     * @param key Element key
+     * @param value Element value
+     * @param expiration Ex: 10s, 3mn, 8h
+     * @return If the element has been replaced
+     */
+    public static F.Promise<Boolean> replaceAsync(final String key, final Object value, final String expiration) {
+        checkSerializable(value);
+        return async().replaceAsync(key, value, Time.parseDuration(expiration));
+    }
+
+    /**
+     * Increment the element value (must be a Number), without blocking.
+     * @param key Element key
+     * @param by The incr value
+     * @return The new value
+     */
+    public static F.Promise<Long> incrAsync(final String key, final int by) {
+        return async().incrAsync(key, by);
+    }
+
+    /**
+     * Increment the element value (must be a Number) by 1, without blocking.
+     * @param key Element key
+     * @return The new value
+     */
+    public static F.Promise<Long> incrAsync(final String key) {
+        return async().incrAsync(key, 1);
+    }
+
+    /**
+     * Decrement the element value (must be a Number), without blocking.
+     * @param key Element key
+     * @param by The decr value
+     * @return The new value
+     */
+    public static F.Promise<Long> decrAsync(final String key, final int by) {
+        return async().decrAsync(key, by);
+    }
+
+    /**
+     * Decrement the element value (must be a Number) by 1, without blocking.
+     * @param key Element key
+     * @return The new value
+     */
+    public static F.Promise<Long> decrAsync(final String key) {
+        return async().decrAsync(key, 1);
+    }
+
+    /**
+     * Retrieve an object, without blocking.
+     * @param key The element key
+     * @return The element value or null
+     */
+    public static F.Promise<Object> getAsync(final String key) {
+        return async().getAsync(key);
+    }
+
+    /**
+     * Bulk retrieve, without blocking.
+     * @param key List of keys
+     * @return Map of keys &amp; values
+     */
+    public static F.Promise<Map<String, Object>> getAsync(final String... key) {
+        return async().getAsync(key);
+    }
+
+    /**
+     * Delete an element from the cache, without blocking.
+     * @param key The element key
+     * @return If the element has been deleted
+     */
+    public static F.Promise<Boolean> deleteAsync(final String key) {
+        return async().deleteAsync(key);
+    }
+
+    /**
+     * The asynchronous view of the underlying implementation: implementations which
+     * can't run operations asynchronously (as EhCacheImpl) run them on the calling thread.
+     */
+    static AsyncCacheImpl async() {
+        return BlockingAsyncCacheImpl.of(cacheImpl);
+    }
+
     /**
      * Initialize the cache system.
      */
     public static void init() {
+        CacheCodecs.init();
+        loads.distributedLock = Boolean.parseBoolean(configuration("cache.getOrCompute.distributedLock", "false"));
+        loads.lockTimeout = Time.parseDuration(configuration("cache.getOrCompute.lockTimeout", "10s"));
+        refreshAhead.init();
+        metrics.init();
+        CacheNamespace.generationTtl = TimeUnit.SECONDS.toMillis(
+                Time.parseDuration(configuration("cache.namespace.generationTtl", "0s")));
+        CacheNamespace.clearGenerations();
         if(forcedCacheImpl != null) {
-            cacheImpl = forcedCacheImpl;
+            cacheImpl = instrumented(forcedCacheImpl);
+            warmUp();
             return;
         }
         try {
             cacheImpl = MemcachedImpl.getInstance(true);
             Logger.info("Connected to memcached");
+            if ("enabled".equals(configuration("cache.resilience", null))) {
+                final int failureThreshold = Integer.parseInt(
+                        configuration("cache.resilience.failureThreshold", "5"));
+                final int openFor = Time.parseDuration(configuration("cache.resilience.openFor", "10s"));
+                cacheImpl = new ResilientCacheImpl(cacheImpl,
+                        Integer.parseInt(configuration("cache.resilience.maxEntries", "10000")),
+                        failureThreshold, openFor,
+                        Time.parseDuration(configuration("cache.resilience.maxStale", "1h")));
+                Logger.info("Cache resilience enabled (circuit opens after %s failures for %ss)",
+                        failureThreshold, openFor);
+            }
+            if ("enabled".equals(configuration("memcached.nearcache", null))) {
+                final int maxEntries = Integer.parseInt(
+                        configuration("memcached.nearcache.maxEntries", "10000"));
+                final int staleness = Time.parseDuration(
+                        configuration("memcached.nearcache.staleness", "1s"));
+                cacheImpl = new NearCacheImpl(cacheImpl, maxEntries, staleness);
+                Logger.info("Near cache enabled (%s entries, %ss staleness)", maxEntries, staleness);
+            }
         } catch (final Exception e) {
             Logger.error(e, "Error while connecting to memcached");
             Logger.warn("Fallback to local cache");
-            cacheImpl = EhCacheImpl.newInstance();
+            cacheImpl = localCacheImpl();
+        }
+        if ("enabled".equals(configuration("cache.writeBehind", null))) {
+            cacheImpl = new WriteBehindCacheImpl(cacheImpl,
+                    Integer.parseInt(configuration("cache.writeBehind.queueSize", "10000")),
+                    Integer.parseInt(configuration("cache.writeBehind.batchSize", "100")),
+                    Long.parseLong(configuration("cache.writeBehind.flushInterval", "10")),
+                    Long.parseLong(configuration("cache.writeBehind.offerTimeout", "100")));
+            Logger.info("Cache write-behind enabled");
+        }
+        cacheImpl = instrumented(cacheImpl);
+        warmUp();
+    }
+
+    /**
+     * Load the snapshot of the local cache written by the last stop, if any.
+     */
+    private static void warmUp() {
+        final String path = configuration("cache.snapshot.file", null);
+        final CacheSnapshot.Source source = unwrap(cacheImpl, CacheSnapshot.Source.class, false);
+        if (path == null || source == null || !file(path).exists()) {
+            return;
+        }
+        final File file = file(path);
+        final CacheImpl target = (CacheImpl) source;
+        final Runnable load = new Runnable() {
+
+            @Override
+            public void run() {
+                final long start = System.currentTimeMillis();
+                try {
+                    final int loaded = CacheSnapshot.load(file, target);
+                    Logger.info("Loaded %s cache entries from %s in %sms", loaded, file,
+                            System.currentTimeMillis() - start);
+                } catch (final IOException e) {
+                    Logger.warn(e, "Could not load the cache snapshot %s", file);
+                }
+            }
+        };
+        if ("background".equals(configuration("cache.snapshot.warmup", "sync"))) {
+            final Thread thread = new JobThreadFactory("cache-warmup").newThread(load);
+            thread.setDaemon(true);
+            thread.start();
+        } else {
+            load.run();
+        }
+    }
+
+    /**
+     * Write the snapshot of the local cache.
+     */
+    private static void writeSnapshot() {
+        final String path = configuration("cache.snapshot.file", null);
+        if (path == null) {
+            return;
+        }
+        final CacheSnapshot.Source source = unwrap(cacheImpl, CacheSnapshot.Source.class, true);
+        if (source == null) {
+            return;
+        }
+        final long start = System.currentTimeMillis();
+        try {
+            final int written = CacheSnapshot.write(source, file(path));
+            Logger.info("Wrote %s cache entries to %s in %sms", written, path, System.currentTimeMillis() - start);
+        } catch (final IOException e) {
+            Logger.error(e, "Could not write the cache snapshot %s", path);
+        }
+    }
+
+    /**
+     * @return The file of a path, relative to the application
+     */
+    private static File file(final String path) {
+        final File file = new File(path);
+        return file.isAbsolute() ? file : Play.getFile(path);
+    }
+
+    /**
+     * Feed the metrics, unless cache.metrics=disabled.
+     */
+    private static CacheImpl instrumented(final CacheImpl cache) {
+        if ("disabled".equals(configuration("cache.metrics", "enabled"))) {
+            return cache;
+        }
+        return new InstrumentedCacheImpl(cache, metrics);
+    }
+
+    /**
+     * The local cache used without memcached: EhCache, the off-heap cache with
+     * <code>cache.local=offheap</code>, or the TinyLFU cache with <code>cache.local=tinylfu</code>.
+     */
+    static CacheImpl localCacheImpl() {
+        if ("tinylfu".equals(configuration("cache.local", "ehcache"))) {
+            Logger.info("Using the TinyLFU local cache");
+            return new TinyLfuCacheImpl(
+                    OffHeapCacheImpl.parseSize(configuration("cache.tinylfu.size", "64mb")),
+                    Integer.parseInt(configuration("cache.tinylfu.expectedEntries", "100000")),
+                    CacheCodecs.current());
+        }
+        if ("offheap".equals(configuration("cache.local", "ehcache"))) {
+            final String file = configuration("cache.offheap.file", null);
+            try {
+                final OffHeapCacheImpl offHeapCacheImpl = new OffHeapCacheImpl(
+                        OffHeapCacheImpl.parseSize(configuration("cache.offheap.size", "64mb")),
+                        Integer.parseInt(configuration("cache.offheap.blockSize", "256")),
+                        CacheCodecs.current(),
+                        file == null ? null : file(file));
+                Logger.info("Using the off-heap local cache");
+                return offHeapCacheImpl;
+            } catch (final IOException e) {
+                Logger.error(e, "Error while mapping the off-heap cache on %s, using EhCache", file);
+            }
+        }
+        final EhCacheImpl ehCacheImpl = EhCacheImpl.newInstance();
+        if ("adder".equals(configuration("ehcache.counters", null))) {
+            ehCacheImpl.setCounterMode(EhCacheImpl.CounterMode.ADDER);
+        }
+        return ehCacheImpl;
+    }
+
+    /**
+     * Read a cache setting, tolerating a missing application configuration.
+     */
+    static String configuration(final String key, final String defaultValue) {
+        if (Play.configuration == null) {
+            return defaultValue;
         }
+        return Play.configuration.getProperty(key, defaultValue);
     }
 
     /**
-     * Stop the cache system.
+     * Stop the cache system, after writing the snapshot of the local cache if
+     * <code>cache.snapshot.file</code> is set.
      */
     public static void stop() {
+        writeSnapshot();
+        refreshAhead.stop();
         cacheImpl.stop();
     }
 
     /**
-     * Utility that check that an object is serializable.
+     * Utility that check that an object can be encoded by the active codec.
      */
     static void checkSerializable(final Object value) {
-        if(value != null && !(value instanceof Serializable)) {
+        if(value != null && !CacheCodecs.current().canEncode(value)) {
             throw new RuntimeException(
                     "Cannot cache a non-serializable value of type " + value.getClass().getName(),
                     new NotSerializableException(value.getClass().getName())
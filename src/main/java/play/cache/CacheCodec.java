@@ -0,0 +1,30 @@
+package play.cache;
+
+import java.io.IOException;
+
+/**
+ * Turns cached values into bytes and back.
+ *
+ * <p>Used by the implementations storing values outside of the Java heap
+ * (memcached, off-heap stores...). The active codec is selected with the
+ * <code>cache.codec</code> configuration key.</p>
+ *
+ * @see play.cache.CacheCodecs
+ */
+public interface CacheCodec {
+
+    /**
+     * @return The codec name, used in configuration and statistics
+     */
+    public String getName();
+
+    /**
+     * @param value The value to cache (not null)
+     * @return If this codec is able to encode the value
+     */
+    public boolean canEncode(Object value);
+
+    public byte[] encode(Object value) throws IOException;
+
+    public Object decode(byte[] data) throws IOException;
+}
@@ -0,0 +1,243 @@
+package play.cache;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import play.Logger;
+
+/**
+ * Selection of the active {@link CacheCodec} and per codec statistics.
+ *
+ * <p>Configuration:</p>
+ * <pre>
+ * cache.codec=java|binary|my.package.MyCodec
+ * cache.codec.compressionThreshold=16384
+ * </pre>
+ */
+public final class CacheCodecs {
+
+    private static final ConcurrentMap<String, Statistics> statistics = new ConcurrentHashMap<String, Statistics>();
+
+    private static volatile CacheCodec current = measured(new JavaSerializationCodec());
+
+    private CacheCodecs() {
+    }
+
+    /**
+     * Select the codec from the application configuration.
+     */
+    public static void init() {
+        final String name = Cache.configuration("cache.codec", JavaSerializationCodec.NAME);
+        final int threshold = Integer.parseInt(Cache.configuration("cache.codec.compressionThreshold", "16384"));
+        current = forName(name, threshold);
+        Logger.info("Cache codec: %s", current.getName());
+    }
+
+    /**
+     * @return The active codec, its usage is recorded in the statistics
+     */
+    public static CacheCodec current() {
+        return current;
+    }
+
+    /**
+     * Instantiate a codec, its usage is recorded in the statistics.
+     * @param name java, binary or a class name implementing CacheCodec
+     * @param compressionThreshold Compression threshold in bytes for the binary codec
+     * @return The codec
+     */
+    public static CacheCodec forName(final String name, final int compressionThreshold) {
+        if (JavaSerializationCodec.NAME.equals(name)) {
+            return measured(new JavaSerializationCodec());
+        }
+        if (BinaryCodec.NAME.equals(name)) {
+            return measured(new BinaryCodec(compressionThreshold));
+        }
+        try {
+            return measured((CacheCodec) Class.forName(name).newInstance());
+        } catch (final Exception e) {
+            throw new IllegalArgumentException("Bad configuration for cache.codec: " + name, e);
+        }
+    }
+
+    /**
+     * Wrap a codec so that its usage is recorded in the statistics.
+     * @param codec The codec
+     * @return The measured codec
+     */
+    public static CacheCodec measured(final CacheCodec codec) {
+        if (codec instanceof MeasuredCodec) {
+            return codec;
+        }
+        return new MeasuredCodec(codec, statistics(codec.getName()));
+    }
+
+    /**
+     * @param name A codec name
+     * @return The statistics of this codec
+     */
+    public static Statistics statistics(final String name) {
+        Statistics stats = statistics.get(name);
+        if (stats == null) {
+            final Statistics created = new Statistics();
+            stats = statistics.putIfAbsent(name, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * @return The statistics of every codec used so far, by codec name
+     */
+    public static Map<String, Statistics> statistics() {
+        return new TreeMap<String, Statistics>(statistics);
+    }
+
+    /**
+     * Display payload sizes and encode/decode times of every codec.
+     * @return A text report
+     */
+    public static String getStatus() {
+        final StringWriter sw = new StringWriter();
+        final PrintWriter out = new PrintWriter(sw);
+        out.println("Cache codecs:");
+        out.println("~~~~~~~~~~~~~");
+        out.println("Active codec: " + current.getName());
+        for (final Map.Entry<String, Statistics> entry : statistics().entrySet()) {
+            out.println(entry.getKey() + ": " + entry.getValue());
+        }
+        return sw.toString();
+    }
+
+    /**
+     * Encode/decode counters of a codec.
+     */
+    public static final class Statistics {
+
+        private final LongAdder encodeCount = new LongAdder();
+        private final LongAdder encodedBytes = new LongAdder();
+        private final LongAdder encodeNanos = new LongAdder();
+        private final LongAdder decodeCount = new LongAdder();
+        private final LongAdder decodedBytes = new LongAdder();
+        private final LongAdder decodeNanos = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+
+        public void recordEncode(final int bytes, final long nanos) {
+            encodeCount.increment();
+            encodedBytes.add(bytes);
+            encodeNanos.add(nanos);
+        }
+
+        public void recordDecode(final int bytes, final long nanos) {
+            decodeCount.increment();
+            decodedBytes.add(bytes);
+            decodeNanos.add(nanos);
+        }
+
+        public void recordError() {
+            errors.increment();
+        }
+
+        public long getEncodeCount() {
+            return encodeCount.sum();
+        }
+
+        public long getEncodedBytes() {
+            return encodedBytes.sum();
+        }
+
+        public long getEncodeNanos() {
+            return encodeNanos.sum();
+        }
+
+        public long getDecodeCount() {
+            return decodeCount.sum();
+        }
+
+        public long getDecodedBytes() {
+            return decodedBytes.sum();
+        }
+
+        public long getDecodeNanos() {
+            return decodeNanos.sum();
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        @Override
+        public String toString() {
+            final long encodes = getEncodeCount();
+            final long decodes = getDecodeCount();
+            return String.format(
+                    "%d encode(s), avg %d bytes in %d ns; %d decode(s), avg %d bytes in %d ns; %d error(s)",
+                    encodes,
+                    encodes == 0 ? 0 : getEncodedBytes() / encodes,
+                    encodes == 0 ? 0 : getEncodeNanos() / encodes,
+                    decodes,
+                    decodes == 0 ? 0 : getDecodedBytes() / decodes,
+                    decodes == 0 ? 0 : getDecodeNanos() / decodes,
+                    getErrors());
+        }
+    }
+
+    /**
+     * Records payload sizes and timings of a codec.
+     */
+    private static final class MeasuredCodec implements CacheCodec {
+
+        private final CacheCodec codec;
+
+        private final Statistics stats;
+
+        MeasuredCodec(final CacheCodec codec, final Statistics stats) {
+            this.codec = codec;
+            this.stats = stats;
+        }
+
+        @Override
+        public String getName() {
+            return codec.getName();
+        }
+
+        @Override
+        public boolean canEncode(final Object value) {
+            return codec.canEncode(value);
+        }
+
+        @Override
+        public byte[] encode(final Object value) throws IOException {
+            final long start = System.nanoTime();
+            try {
+                final byte[] data = codec.encode(value);
+                stats.recordEncode(data.length, System.nanoTime() - start);
+                return data;
+            } catch (final IOException | RuntimeException e) {
+                stats.recordError();
+                throw e;
+            }
+        }
+
+        @Override
+        public Object decode(final byte[] data) throws IOException {
+            final long start = System.nanoTime();
+            try {
+                final Object value = codec.decode(data);
+                stats.recordDecode(data.length, System.nanoTime() - start);
+                return value;
+            } catch (final IOException | RuntimeException e) {
+                stats.recordError();
+                throw e;
+            }
+        }
+    }
+}
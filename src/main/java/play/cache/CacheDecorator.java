@@ -0,0 +1,16 @@
+package play.cache;
+
+/**
+ * A cache implementation adding a behavior to another one: metrics, write-behind, near cache,
+ * resilience or migration.
+ *
+ * <p>The lookups of the underlying implementation (memcached client, prefix deletion, snapshot,
+ * evictions) go through every decorator.</p>
+ */
+public interface CacheDecorator {
+
+    /**
+     * @return The decorated implementation, which holds the values
+     */
+    public CacheImpl getDelegate();
+}
@@ -1,7 +1,10 @@
 package play.cache;
 
+import java.util.Collection;
 import java.util.Map;
 
+import play.libs.ws.F;
+
 /**
  * A cache implementation.
  * expiration is specified in seconds
@@ -35,5 +38,30 @@ public interface CacheImpl {
 
     public boolean safeDelete(String key);
 
+    /**
+     * Set several elements in a single batch.
+     * Sets them one by one by default, implementations able to batch override it.
+     * @return Redeemed with true once every element is effectively cached
+     */
+    public default F.Promise<Boolean> setAll(final Map<String, Object> values, final int expiration) {
+        boolean done = true;
+        for (final Map.Entry<String, Object> entry : values.entrySet()) {
+            done &= safeSet(entry.getKey(), entry.getValue(), expiration);
+        }
+        return BlockingAsyncCacheImpl.redeemed(done);
+    }
+
+    /**
+     * Delete several elements in a single batch.
+     * Deletes them one by one by default, implementations able to batch override it.
+     * @return Redeemed with true once every element is effectively removed
+     */
+    public default F.Promise<Boolean> deleteAll(final Collection<String> keys) {
+        for (final String key : keys) {
+            delete(key);
+        }
+        return BlockingAsyncCacheImpl.redeemed(true);
+    }
+
     public void stop();
 }
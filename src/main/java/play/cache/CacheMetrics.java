@@ -0,0 +1,428 @@
+package play.cache;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Operation counters, latency histograms and hit ratio of the Cache.
+ *
+ * <p>Fed by {@link InstrumentedCacheImpl}. Recording only updates LongAdders (no lock,
+ * no allocation on the hot path), so the metrics can stay enabled under load.
+ * Bytes in and out are the sizes of the values serialized by the active cache codec:
+ * they stay at 0 with EhCache, which keeps the values as objects.</p>
+ *
+ * <p>Configuration:</p>
+ * <pre>
+ * cache.metrics=enabled|disabled
+ * # per key prefix breakdown: the prefix is the part of the key before the first delimiter
+ * cache.metrics.prefixDelimiter=:
+ * cache.metrics.maxPrefixes=64
+ * </pre>
+ */
+public final class CacheMetrics {
+
+    /**
+     * Measured operations.
+     */
+    public enum Operation {
+        GET, GET_MULTI, ADD, SET, REPLACE, INCR, DECR, DELETE, CLEAR, SET_ALL, DELETE_ALL
+    }
+
+    /** Prefix of the keys without delimiter, or once maxPrefixes is reached. */
+    public static final String OTHER_PREFIX = "*";
+
+    private final Map<Operation, Latency> latencies = new EnumMap<Operation, Latency>(Operation.class);
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final ConcurrentMap<String, PrefixCounters> prefixes = new ConcurrentHashMap<String, PrefixCounters>();
+
+    private volatile String prefixDelimiter;
+
+    private volatile int maxPrefixes = 64;
+
+    CacheMetrics() {
+        for (final Operation operation : Operation.values()) {
+            latencies.put(operation, new Latency());
+        }
+    }
+
+    /**
+     * Read the configuration and reset the counters.
+     */
+    void init() {
+        prefixDelimiter = Cache.configuration("cache.metrics.prefixDelimiter", null);
+        maxPrefixes = Integer.parseInt(Cache.configuration("cache.metrics.maxPrefixes", "64"));
+        reset();
+    }
+
+    /**
+     * Reset every counter.
+     */
+    public void reset() {
+        for (final Latency latency : latencies.values()) {
+            latency.reset();
+        }
+        hits.reset();
+        misses.reset();
+        prefixes.clear();
+    }
+
+    void record(final Operation operation, final long nanos, final boolean error) {
+        latencies.get(operation).record(nanos, error);
+    }
+
+    void recordRead(final String key, final boolean hit) {
+        (hit ? hits : misses).increment();
+        final PrefixCounters counters = prefix(key);
+        if (counters != null) {
+            (hit ? counters.hits : counters.misses).increment();
+        }
+    }
+
+    void recordWrite(final String key) {
+        final PrefixCounters counters = prefix(key);
+        if (counters != null) {
+            counters.writes.increment();
+        }
+    }
+
+    private PrefixCounters prefix(final String key) {
+        final String delimiter = prefixDelimiter;
+        if (delimiter == null) {
+            return null;
+        }
+        final int end = key.indexOf(delimiter);
+        String prefix = end < 0 ? OTHER_PREFIX : key.substring(0, end);
+        PrefixCounters counters = prefixes.get(prefix);
+        if (counters == null) {
+            if (prefixes.size() >= maxPrefixes) {
+                // bound the memory: the other prefixes share a counter
+                prefix = OTHER_PREFIX;
+                counters = prefixes.get(prefix);
+                if (counters != null) {
+                    return counters;
+                }
+            }
+            final PrefixCounters created = new PrefixCounters();
+            counters = prefixes.putIfAbsent(prefix, created);
+            if (counters == null) {
+                counters = created;
+            }
+        }
+        return counters;
+    }
+
+    /**
+     * @return A copy of the current values
+     */
+    public Snapshot snapshot() {
+        final Map<Operation, OperationSnapshot> operations = new EnumMap<Operation, OperationSnapshot>(Operation.class);
+        for (final Map.Entry<Operation, Latency> entry : latencies.entrySet()) {
+            operations.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        final Map<String, PrefixSnapshot> prefixSnapshots = new TreeMap<String, PrefixSnapshot>();
+        for (final Map.Entry<String, PrefixCounters> entry : prefixes.entrySet()) {
+            final PrefixCounters counters = entry.getValue();
+            prefixSnapshots.put(entry.getKey(),
+                    new PrefixSnapshot(counters.hits.sum(), counters.misses.sum(), counters.writes.sum()));
+        }
+        final CacheCodecs.Statistics codec = CacheCodecs.statistics(CacheCodecs.current().getName());
+        return new Snapshot(operations, hits.sum(), misses.sum(), codec.getDecodedBytes(), codec.getEncodedBytes(),
+                evictions(Cache.cacheImpl), prefixSnapshots);
+    }
+
+    /**
+     * @param cache A cache implementation
+     * @return The number of entries evicted to make room, -1 if unknown
+     */
+    static long evictions(final CacheImpl cache) {
+        final EhCacheImpl ehCache = Cache.unwrap(cache, EhCacheImpl.class, false);
+        if (ehCache != null) {
+            return ehCache.getEvictions();
+        }
+        final OffHeapCacheImpl offHeap = Cache.unwrap(cache, OffHeapCacheImpl.class, false);
+        if (offHeap != null) {
+            return offHeap.getEvictions();
+        }
+        final TinyLfuCacheImpl tinyLfu = Cache.unwrap(cache, TinyLfuCacheImpl.class, false);
+        if (tinyLfu != null) {
+            // a rejected new entry is dropped to make room as well
+            return tinyLfu.getEvictions() + tinyLfu.getRejections();
+        }
+        final MemcachedImpl memcached = Cache.unwrap(cache, MemcachedImpl.class, false);
+        return memcached == null ? -1 : memcached.getEvictions();
+    }
+
+    /**
+     * Display the metrics.
+     * @return A text report
+     */
+    public String getStatus() {
+        final Snapshot snapshot = snapshot();
+        final StringWriter sw = new StringWriter();
+        final PrintWriter out = new PrintWriter(sw);
+        out.println("Cache metrics:");
+        out.println("~~~~~~~~~~~~~~");
+        out.println(String.format("%d hit(s), %d miss(es), hit ratio %.2f, %d evicted, %d bytes in, %d bytes out",
+                snapshot.getHits(), snapshot.getMisses(), snapshot.getHitRatio(), snapshot.getEvictions(),
+                snapshot.getBytesIn(), snapshot.getBytesOut()));
+        final MemcachedImpl memcached = Cache.unwrap(Cache.cacheImpl, MemcachedImpl.class, false);
+        if (memcached != null && memcached.getQueueDepth() != null) {
+            out.println("memcached queues: " + memcached.getQueueDepth());
+        }
+        for (final Map.Entry<Operation, OperationSnapshot> entry : snapshot.getOperations().entrySet()) {
+            if (entry.getValue().getCount() > 0) {
+                out.println(entry.getKey() + ": " + entry.getValue());
+            }
+        }
+        for (final Map.Entry<String, PrefixSnapshot> entry : snapshot.getPrefixes().entrySet()) {
+            out.println("prefix " + entry.getKey() + ": " + entry.getValue());
+        }
+        return sw.toString();
+    }
+
+    /**
+     * Count and latency histogram of an operation: power of 2 buckets in nanoseconds.
+     */
+    private static final class Latency {
+
+        private static final int BUCKETS = 64;
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+        Latency() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(final long nanos, final boolean error) {
+            count.increment();
+            if (error) {
+                errors.increment();
+            }
+            totalNanos.add(nanos);
+            buckets[BUCKETS - Long.numberOfLeadingZeros(Math.max(nanos, 1L))].increment();
+        }
+
+        void reset() {
+            count.reset();
+            errors.reset();
+            totalNanos.reset();
+            for (final LongAdder bucket : buckets) {
+                bucket.reset();
+            }
+        }
+
+        OperationSnapshot snapshot() {
+            final long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            return new OperationSnapshot(count.sum(), errors.sum(), totalNanos.sum(),
+                    percentile(counts, total, 0.5d), percentile(counts, total, 0.99d));
+        }
+
+        /**
+         * @return The upper bound of the bucket holding the percentile
+         */
+        private static long percentile(final long[] counts, final long total, final double percentile) {
+            if (total == 0) {
+                return 0;
+            }
+            final long rank = (long) Math.ceil(total * percentile);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return i >= 63 ? Long.MAX_VALUE : (1L << i) - 1;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private static final class PrefixCounters {
+        final LongAdder hits = new LongAdder();
+        final LongAdder misses = new LongAdder();
+        final LongAdder writes = new LongAdder();
+    }
+
+    /**
+     * Values of the metrics at a given time.
+     */
+    public static final class Snapshot {
+
+        private final Map<Operation, OperationSnapshot> operations;
+        private final long hits;
+        private final long misses;
+        private final long bytesIn;
+        private final long bytesOut;
+        private final long evictions;
+        private final Map<String, PrefixSnapshot> prefixes;
+
+        Snapshot(final Map<Operation, OperationSnapshot> operations, final long hits, final long misses,
+                final long bytesIn, final long bytesOut, final long evictions, final Map<String, PrefixSnapshot> prefixes) {
+            this.operations = Collections.unmodifiableMap(operations);
+            this.hits = hits;
+            this.misses = misses;
+            this.bytesIn = bytesIn;
+            this.bytesOut = bytesOut;
+            this.evictions = evictions;
+            this.prefixes = Collections.unmodifiableMap(prefixes);
+        }
+
+        /** @return Count and latencies per operation */
+        public Map<Operation, OperationSnapshot> getOperations() {
+            return operations;
+        }
+
+        /** @param operation An operation @return Its count and latencies */
+        public OperationSnapshot getOperation(final Operation operation) {
+            return operations.get(operation);
+        }
+
+        /** @return Keys read and found */
+        public long getHits() {
+            return hits;
+        }
+
+        /** @return Keys read and not found */
+        public long getMisses() {
+            return misses;
+        }
+
+        /** @return Hits over reads, 0 without read */
+        public double getHitRatio() {
+            final long reads = hits + misses;
+            return reads == 0 ? 0d : (double) hits / reads;
+        }
+
+        /** @return Serialized bytes decoded (read from the cache) */
+        public long getBytesIn() {
+            return bytesIn;
+        }
+
+        /** @return Serialized bytes encoded (written to the cache) */
+        public long getBytesOut() {
+            return bytesOut;
+        }
+
+        /** @return Entries evicted by the cache implementation, -1 if unknown */
+        public long getEvictions() {
+            return evictions;
+        }
+
+        /** @return Hits, misses and writes per key prefix, empty without cache.metrics.prefixDelimiter */
+        public Map<String, PrefixSnapshot> getPrefixes() {
+            return prefixes;
+        }
+    }
+
+    /**
+     * Count and latencies of an operation.
+     */
+    public static final class OperationSnapshot {
+
+        private final long count;
+        private final long errors;
+        private final long totalNanos;
+        private final long p50Nanos;
+        private final long p99Nanos;
+
+        OperationSnapshot(final long count, final long errors, final long totalNanos, final long p50Nanos,
+                final long p99Nanos) {
+            this.count = count;
+            this.errors = errors;
+            this.totalNanos = totalNanos;
+            this.p50Nanos = p50Nanos;
+            this.p99Nanos = p99Nanos;
+        }
+
+        /** @return Number of calls */
+        public long getCount() {
+            return count;
+        }
+
+        /** @return Number of calls which threw an exception */
+        public long getErrors() {
+            return errors;
+        }
+
+        /** @return Mean latency in nanoseconds */
+        public long getMeanNanos() {
+            return count == 0 ? 0 : totalNanos / count;
+        }
+
+        /** @return Median latency in nanoseconds (upper bound of its power of 2 bucket) */
+        public long getP50Nanos() {
+            return p50Nanos;
+        }
+
+        /** @return 99th percentile latency in nanoseconds (upper bound of its power of 2 bucket) */
+        public long getP99Nanos() {
+            return p99Nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d call(s), %d error(s), mean %d us, p50 < %d us, p99 < %d us",
+                    count, errors,
+                    TimeUnit.NANOSECONDS.toMicros(getMeanNanos()),
+                    TimeUnit.NANOSECONDS.toMicros(p50Nanos) + 1,
+                    TimeUnit.NANOSECONDS.toMicros(p99Nanos) + 1);
+        }
+    }
+
+    /**
+     * Hits, misses and writes of the keys sharing a prefix.
+     */
+    public static final class PrefixSnapshot {
+
+        private final long hits;
+        private final long misses;
+        private final long writes;
+
+        PrefixSnapshot(final long hits, final long misses, final long writes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.writes = writes;
+        }
+
+        /** @return Keys read and found */
+        public long getHits() {
+            return hits;
+        }
+
+        /** @return Keys read and not found */
+        public long getMisses() {
+            return misses;
+        }
+
+        /** @return Keys written */
+        public long getWrites() {
+            return writes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d hit(s), %d miss(es), %d write(s)", hits, misses, writes);
+        }
+    }
+}
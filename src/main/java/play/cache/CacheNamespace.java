@@ -0,0 +1,197 @@
+package play.cache;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A group of keys invalidated together, ex: the data of a tenant.
+ *
+ * <pre>
+ * CacheNamespace tenant = Cache.namespace("tenant:" + tenantId);
+ * tenant.set("settings", settings, "1h");
+ * ...
+ * tenant.invalidate();
+ * </pre>
+ *
+ * <p>With a local cache able to find its keys by prefix (EhCache, off-heap cache), the keys
+ * of the namespace share a prefix and invalidation deletes them. Otherwise (memcached) the
+ * keys embed the generation of the namespace, a counter stored with incr: invalidation
+ * increments it in O(1), the former keys are never read again and expire on their own. A
+ * missing counter (never created, evicted, or lost in a memcached restart) starts from the
+ * current time in milliseconds, so that a generation is never used twice. Don't mix
+ * namespaced and plain keys operations on the same data: use {@link #key(String)} to get the
+ * actual key.</p>
+ *
+ * <p>Each access reads the generation first: one more round trip. With
+ * <code>cache.namespace.generationTtl=1s</code>, the generation read is kept locally for this
+ * time, at the price of an invalidation made by another node being seen up to that much later
+ * (an invalidation made by this node is seen at once). Disabled (0s) by default.</p>
+ */
+public final class CacheNamespace {
+
+    /** First part of every namespaced key. */
+    static final String KEY_PREFIX = "ns|";
+
+    private final String name;
+
+    /** Prefix of the keys: the length avoids a namespace being the prefix of another one. */
+    private final String prefix;
+
+    private final String generationKey;
+
+    /** How long a generation read is used without reading it again, in ms. 0 disables. */
+    static volatile long generationTtl = 0L;
+
+    /** Most namespaces whose generation is kept locally. */
+    private static final int MAX_GENERATIONS = 10000;
+
+    /** Generations read recently, by generation key. */
+    private static final ConcurrentMap<String, Generation> generations = new ConcurrentHashMap<String, Generation>();
+
+    CacheNamespace(final String name) {
+        this.name = name;
+        this.prefix = KEY_PREFIX + name.length() + "|" + name + "|";
+        this.generationKey = KEY_PREFIX + "generation|" + name;
+    }
+
+    /**
+     * @return The namespace name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The actual key of an element of the namespace, valid until the next invalidation.
+     * @param key The key in the namespace
+     * @return The key in the cache
+     */
+    public String key(final String key) {
+        if (Cache.prefixDeletion(Cache.cacheImpl, false) != null) {
+            return prefix + key;
+        }
+        return prefix + generation() + "|" + key;
+    }
+
+    /**
+     * @return The current generation of the namespace
+     */
+    private long generation() {
+        final long ttl = generationTtl;
+        if (ttl > 0) {
+            final Generation cached = generations.get(generationKey);
+            if (cached != null && System.currentTimeMillis() - cached.readAt < ttl) {
+                return cached.value;
+            }
+        }
+        return remember(increment(0));
+    }
+
+    /**
+     * Delete every element of the namespace.
+     */
+    public void invalidate() {
+        final PrefixDeletion prefixDeletion = Cache.prefixDeletion(Cache.cacheImpl, true);
+        if (prefixDeletion != null) {
+            Cache.refreshAhead.recordDeletePrefix(prefix);
+            prefixDeletion.deleteByPrefix(prefix);
+            return;
+        }
+        remember(increment(1));
+    }
+
+    /**
+     * Increment the generation counter, creating it from the current time when missing.
+     * @param by 0 to read it
+     * @return The new generation
+     */
+    private long increment(final int by) {
+        final MemcachedImpl memcached = Cache.unwrap(Cache.cacheImpl, MemcachedImpl.class, false);
+        if (memcached != null) {
+            return memcached.incr(generationKey, by, System.currentTimeMillis());
+        }
+        long generation = Cache.cacheImpl.incr(generationKey, by);
+        if (generation < 0) {
+            // implementations which don't create missing counters
+            Cache.cacheImpl.safeAdd(generationKey, System.currentTimeMillis(), 0);
+            generation = Cache.cacheImpl.incr(generationKey, by);
+        } else if (generation == 0) {
+            // created from 0 by the implementation (memcached under a decorator): move past the former generations
+            generation = Cache.cacheImpl.incr(
+                    generationKey, (int) Math.min(TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()),
+                            Integer.MAX_VALUE));
+        }
+        return generation;
+    }
+
+    /**
+     * Keep a generation locally, when enabled.
+     * @return The generation
+     */
+    private long remember(final long generation) {
+        if (generationTtl > 0) {
+            if (generations.size() >= MAX_GENERATIONS) {
+                generations.clear();
+            }
+            generations.put(generationKey, new Generation(generation, System.currentTimeMillis()));
+        }
+        return generation;
+    }
+
+    /**
+     * Forget the generations kept locally.
+     */
+    static void clearGenerations() {
+        generations.clear();
+    }
+
+    /**
+     * @see Cache#get(String)
+     */
+    public Object get(final String key) {
+        return Cache.get(key(key));
+    }
+
+    /**
+     * @see Cache#set(String, Object, String)
+     */
+    public void set(final String key, final Object value, final String expiration) {
+        Cache.set(key(key), value, expiration);
+    }
+
+    /**
+     * @see Cache#add(String, Object, String)
+     */
+    public void add(final String key, final Object value, final String expiration) {
+        Cache.add(key(key), value, expiration);
+    }
+
+    /**
+     * @see Cache#delete(String)
+     */
+    public void delete(final String key) {
+        Cache.delete(key(key));
+    }
+
+    /**
+     * @see Cache#getOrCompute(String, String, Callable)
+     */
+    public <T> T getOrCompute(final String key, final String expiration, final Callable<T> loader) {
+        return Cache.getOrCompute(key(key), expiration, loader);
+    }
+
+    /**
+     * A generation read from the cache.
+     */
+    private static final class Generation {
+        final long value;
+        final long readAt;
+
+        Generation(final long value, final long readAt) {
+            this.value = value;
+            this.readAt = readAt;
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package play.cache;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import play.Logger;
+
+/**
+ * Snapshot of a local cache in a file, to start warm after a restart.
+ *
+ * <p>Written on Cache.stop() and loaded on Cache.init() when <code>cache.snapshot.file</code>
+ * is set, with <code>cache.snapshot.warmup=background</code> to load it without blocking the
+ * startup. The entries are streamed through a FileChannel in a compact binary format: the
+ * values encoded by a {@link CacheCodec}, each with its absolute expiration date. Loading
+ * uses add: a value set since the startup is never overwritten, and entries expired in
+ * between are skipped.</p>
+ *
+ * <pre>
+ * magic (int) version (byte) codec name (short length + UTF-8)
+ * entries: key (int length + UTF-8) expiration date in ms, 0 for none (long) value (int length + bytes)
+ * end: -1 (int)
+ * </pre>
+ */
+public final class CacheSnapshot {
+
+    /** "PLCS". */
+    private static final int MAGIC = 0x504C4353;
+
+    private static final byte VERSION = 1;
+
+    private static final int END = -1;
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private CacheSnapshot() {
+    }
+
+    /**
+     * A local cache able to write its entries.
+     */
+    public interface Source {
+
+        /**
+         * @return The name of the codec of the written values
+         */
+        public String getSnapshotCodec();
+
+        /**
+         * Write every live entry.
+         * @param writer Receives the entries
+         * @throws IOException When the file can't be written
+         */
+        public void writeSnapshot(Writer writer) throws IOException;
+    }
+
+    /**
+     * Write a snapshot, replacing the file only once complete.
+     * @param source The cache
+     * @param file The snapshot file
+     * @return The number of entries written
+     * @throws IOException When the file can't be written
+     */
+    public static int write(final Source source, final File file) throws IOException {
+        final File temp = new File(file.getPath() + ".tmp");
+        final RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+        final Writer writer;
+        try {
+            raf.setLength(0);
+            writer = new Writer(raf.getChannel());
+            writer.header(source.getSnapshotCodec());
+            source.writeSnapshot(writer);
+            writer.end();
+            raf.getChannel().force(false);
+        } finally {
+            raf.close();
+        }
+        if (writer.skipped > 0) {
+            Logger.warn("%s cache entries could not be encoded and were left out of %s", writer.skipped, file);
+        }
+        if (!temp.renameTo(file)) {
+            file.delete();
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not rename " + temp + " to " + file);
+            }
+        }
+        return writer.count;
+    }
+
+    /**
+     * Add the live entries of a snapshot to a cache.
+     * @param file The snapshot file
+     * @param target The cache
+     * @return The number of entries added
+     * @throws IOException When the file can't be read or isn't a snapshot
+     */
+    public static int load(final File file, final CacheImpl target) throws IOException {
+        return load(file, target, null);
+    }
+
+    /**
+     * @param skip Keys not to add, may be null
+     */
+    static int load(final File file, final CacheImpl target, final Predicate<String> skip) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final Reader reader = new Reader(raf.getChannel());
+            if (reader.readInt() != MAGIC || reader.readByte() != VERSION) {
+                throw new IOException(file + " isn't a cache snapshot");
+            }
+            final CacheCodec codec = CacheCodecs.forName(
+                    new String(reader.readBytes(reader.readShort()), StandardCharsets.UTF_8),
+                    Integer.MAX_VALUE);
+            int loaded = 0;
+            int keyLength;
+            while ((keyLength = reader.readInt()) != END) {
+                final String key = new String(reader.readBytes(keyLength), StandardCharsets.UTF_8);
+                final long expiresAt = reader.readLong();
+                final byte[] value = reader.readBytes(reader.readInt());
+                final int expiration = expiration(expiresAt);
+                if (expiration < 0 || skip != null && skip.test(key)) {
+                    continue;
+                }
+                try {
+                    if (target.safeAdd(key, codec.decode(value), expiration)) {
+                        loaded++;
+                    }
+                } catch (final IOException e) {
+                    Logger.warn(e, "Could not decode %s from the cache snapshot", key);
+                }
+            }
+            return loaded;
+        } catch (final EOFException e) {
+            throw new IOException("Truncated cache snapshot " + file, e);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return The remaining time to live in seconds (0 for none), -1 when expired
+     */
+    private static int expiration(final long expiresAt) {
+        if (expiresAt == 0) {
+            return 0;
+        }
+        final long remaining = expiresAt - System.currentTimeMillis();
+        if (remaining <= 0) {
+            return -1;
+        }
+        // rounded up: 0 would mean no expiration
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(1, TimeUnit.MILLISECONDS.toSeconds(remaining + 999)));
+    }
+
+    /**
+     * Buffered entry writer.
+     */
+    public static final class Writer {
+
+        private final FileChannel channel;
+
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        int count;
+
+        int skipped;
+
+        Writer(final FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void header(final String codec) throws IOException {
+            final byte[] name = codec.getBytes(StandardCharsets.UTF_8);
+            ensure(7 + name.length);
+            buffer.putInt(MAGIC).put(VERSION).putShort((short) name.length).put(name);
+        }
+
+        /**
+         * Write an entry.
+         * @param key Element key
+         * @param expiresAt Expiration date in milliseconds, 0 for none
+         * @param value Value encoded with the codec of the source
+         * @throws IOException When the file can't be written
+         */
+        public void write(final String key, final long expiresAt, final byte[] value) throws IOException {
+            final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            ensure(16 + keyBytes.length);
+            buffer.putInt(keyBytes.length).put(keyBytes).putLong(expiresAt).putInt(value.length);
+            if (value.length > buffer.remaining()) {
+                flush();
+                if (value.length > buffer.capacity()) {
+                    final ByteBuffer large = ByteBuffer.wrap(value);
+                    while (large.hasRemaining()) {
+                        channel.write(large);
+                    }
+                    count++;
+                    return;
+                }
+            }
+            buffer.put(value);
+            count++;
+        }
+
+        /**
+         * Leave out an entry whose value can't be encoded.
+         * @param key Element key
+         * @param cause The encoding failure, null when the codec refused the value upfront
+         */
+        public void skip(final String key, final Exception cause) {
+            skipped++;
+            if (cause != null) {
+                Logger.debug(cause, "Could not encode %s for the cache snapshot", key);
+            }
+        }
+
+        void end() throws IOException {
+            ensure(4);
+            buffer.putInt(END);
+            flush();
+        }
+
+        private void ensure(final int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Buffered reader.
+     */
+    private static final class Reader {
+
+        private final FileChannel channel;
+
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        Reader(final FileChannel channel) {
+            this.channel = channel;
+            buffer.flip();
+        }
+
+        int readInt() throws IOException {
+            ensure(4);
+            return buffer.getInt();
+        }
+
+        short readShort() throws IOException {
+            ensure(2);
+            return buffer.getShort();
+        }
+
+        long readLong() throws IOException {
+            ensure(8);
+            return buffer.getLong();
+        }
+
+        byte readByte() throws IOException {
+            ensure(1);
+            return buffer.get();
+        }
+
+        byte[] readBytes(final int length) throws IOException {
+            if (length < 0) {
+                throw new IOException("Corrupted cache snapshot");
+            }
+            final byte[] data = new byte[length];
+            if (length <= buffer.capacity()) {
+                ensure(length);
+                buffer.get(data);
+                return data;
+            }
+            // larger than the buffer: what's buffered, then straight from the channel
+            final int buffered = buffer.remaining();
+            buffer.get(data, 0, buffered);
+            final ByteBuffer rest = ByteBuffer.wrap(data, buffered, length - buffered);
+            while (rest.hasRemaining()) {
+                if (channel.read(rest) < 0) {
+                    throw new EOFException();
+                }
+            }
+            return data;
+        }
+
+        private void ensure(final int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) {
+                return;
+            }
+            buffer.compact();
+            while (buffer.position() < bytes) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException();
+                }
+            }
+            buffer.flip();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package play.cache;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+import play.Logger;
+
+/**
+ * spymemcached transcoder delegating to a {@link CacheCodec}.
+ *
+ * <p>With the java codec, values are stored exactly as the former SerializingTranscoder did.
+ * With any other codec, values are flagged with {@link #CODEC_FLAG}; values without
+ * this flag (written by nodes still using the java codec, or by incr/decr) are
+ * still decoded the former way. The reverse isn't true: a node using the java codec (or a
+ * former version) can't decode the flagged values. On a live cluster, the codec can only be
+ * switched once every node is able to read the new flag and codec.</p>
+ */
+class CodecTranscoder implements Transcoder<Object> {
+
+    /** Flag not used by SerializingTranscoder (which uses bits 0, 1 and 8 to 15). */
+    static final int CODEC_FLAG = 0x10;
+
+    private final CacheCodec codec;
+
+    private final boolean javaCodec;
+
+    private final SerializingTranscoder legacy;
+
+    CodecTranscoder(final CacheCodec codec) {
+        this.codec = codec;
+        this.javaCodec = JavaSerializationCodec.NAME.equals(codec.getName());
+        final CacheCodec serialization = javaCodec ? codec : CacheCodecs.measured(new JavaSerializationCodec());
+        // Kept for the values written with the java serialization
+        this.legacy = new SerializingTranscoder() {
+
+            @Override
+            protected Object deserialize(final byte[] data) {
+                try {
+                    return serialization.decode(data);
+                } catch (final Exception e) {
+                    Logger.error(e, "Could not deserialize");
+                }
+                return null;
+            }
+
+            @Override
+            protected byte[] serialize(final Object object) {
+                try {
+                    return serialization.encode(object);
+                } catch (final Exception e) {
+                    Logger.error(e, "Could not serialize");
+                }
+                return null;
+            }
+        };
+    }
+
+    @Override
+    public boolean asyncDecode(final CachedData d) {
+        return false;
+    }
+
+    @Override
+    public CachedData encode(final Object o) {
+        if (javaCodec) {
+            return legacy.encode(o);
+        }
+        try {
+            return new CachedData(CODEC_FLAG, codec.encode(o), getMaxSize());
+        } catch (final Exception e) {
+            Logger.error(e, "Could not serialize with codec %s", codec.getName());
+            throw new IllegalArgumentException("Could not serialize with codec " + codec.getName(), e);
+        }
+    }
+
+    @Override
+    public Object decode(final CachedData d) {
+        if ((d.getFlags() & CODEC_FLAG) == 0) {
+            return legacy.decode(d);
+        }
+        try {
+            return codec.decode(d.getData());
+        } catch (final Exception e) {
+            Logger.error(e, "Could not deserialize with codec %s", codec.getName());
+        }
+        return null;
+    }
+
+    @Override
+    public int getMaxSize() {
+        return CachedData.MAX_SIZE;
+    }
+}
@@ -1,10 +1,21 @@
 package play.cache;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.LongAdder;
+
 import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
 import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListenerAdapter;
 import play.Logger;
+import play.libs.ws.F;
 
 /**
  * EhCache implementation.
@@ -18,7 +29,7 @@ import play.Logger;
  * @see <a href="http://ehcache.org/">http://ehcache.org/</a>
  *
  */
-public class EhCacheImpl implements CacheImpl {
+public class EhCacheImpl implements CacheImpl, PrefixDeletion, CacheSnapshot.Source {
 
     private static EhCacheImpl uniqueInstance;
 
@@ -28,10 +39,64 @@ public class EhCacheImpl implements CacheImpl {
 
     private static final String cacheName = "play";
 
+    /**
+     * How incr/decr store counters.
+     */
+    public enum CounterMode {
+        /** The element holds a Long, updated with a compare-and-swap. */
+        ATOMIC,
+        /**
+         * The element holds a LongAdder updated in place: cheaper for counters
+         * written often and read rarely, but the returned value is only exact
+         * when there is no concurrent update of the same key.
+         */
+        ADDER
+    }
+
+    private volatile CounterMode counterMode = CounterMode.ATOMIC;
+
+    private final LongAdder evictions = new LongAdder();
+
+    /** Sorted keys, to find the keys of a prefix without scanning the cache. */
+    private final NavigableSet<String> keys = new ConcurrentSkipListSet<String>();
+
     private EhCacheImpl() {
         this.cacheManager = CacheManager.create();
         this.cacheManager.addCache(cacheName);
         this.cache = cacheManager.getCache(cacheName);
+        this.cache.getCacheEventNotificationService().registerListener(new CacheEventListenerAdapter() {
+
+            @Override
+            public void notifyElementPut(Ehcache cache, Element element) {
+                keys.add((String) element.getObjectKey());
+            }
+
+            @Override
+            public void notifyElementUpdated(Ehcache cache, Element element) {
+                keys.add((String) element.getObjectKey());
+            }
+
+            @Override
+            public void notifyElementRemoved(Ehcache cache, Element element) {
+                keys.remove(element.getObjectKey());
+            }
+
+            @Override
+            public void notifyElementExpired(Ehcache cache, Element element) {
+                keys.remove(element.getObjectKey());
+            }
+
+            @Override
+            public void notifyElementEvicted(Ehcache cache, Element element) {
+                keys.remove(element.getObjectKey());
+                evictions.increment();
+            }
+
+            @Override
+            public void notifyRemoveAll(Ehcache cache) {
+                keys.clear();
+            }
+        });
     }
 
     public static EhCacheImpl getInstance() {
@@ -43,6 +108,74 @@ public class EhCacheImpl implements CacheImpl {
         return uniqueInstance;
     }
 
+    public CounterMode getCounterMode() {
+        return counterMode;
+    }
+
+    public void setCounterMode(CounterMode counterMode) {
+        this.counterMode = counterMode;
+    }
+
+    /**
+     * @return The number of elements evicted to make room
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Delete the keys of a prefix, found in a sorted index of the keys.
+     */
+    public int deleteByPrefix(String prefix) {
+        List<String> matching = new ArrayList<String>();
+        for (String key : keys.tailSet(prefix)) {
+            if (!key.startsWith(prefix)) {
+                break;
+            }
+            matching.add(key);
+        }
+        if (!matching.isEmpty()) {
+            cache.removeAll(matching);
+        }
+        return matching.size();
+    }
+
+    public String getSnapshotCodec() {
+        return CacheCodecs.current().getName();
+    }
+
+    /**
+     * Write the live elements, encoded with the active codec. Values it can't encode are skipped
+     * and counted by the writer.
+     */
+    public void writeSnapshot(CacheSnapshot.Writer writer) throws IOException {
+        CacheCodec codec = CacheCodecs.current();
+        for (Object key : cache.getKeys()) {
+            Element e = cache.getQuiet(key);
+            if (e == null || e.isExpired()) {
+                continue;
+            }
+            Object value = e.getObjectValue();
+            if (value instanceof LongAdder) {
+                value = Long.valueOf(((LongAdder) value).sum());
+            }
+            if (!codec.canEncode(value)) {
+                writer.skip((String) key, null);
+                continue;
+            }
+            // canEncode only checks the top-level value, a nested field may still fail
+            byte[] encoded;
+            try {
+                encoded = codec.encode(value);
+            } catch (IOException | RuntimeException ex) {
+                writer.skip((String) key, ex);
+                continue;
+            }
+            long expiresAt = e.getExpirationTime();
+            writer.write((String) key, expiresAt == Long.MAX_VALUE ? 0 : expiresAt, encoded);
+        }
+    }
+
     public void add(String key, Object value, int expiration) {
         if (cache.get(key) != null) {
             return;
@@ -56,16 +189,8 @@ public class EhCacheImpl implements CacheImpl {
         cache.removeAll();
     }
 
-    public synchronized long decr(String key, int by) {
-        Element e = cache.get(key);
-        if (e == null) {
-            return -1;
-        }
-        long newValue = ((Number) e.getValue()).longValue() - by;
-        Element newE = new Element(key, newValue);
-        newE.setTimeToLive(e.getTimeToLive());
-        cache.put(newE);
-        return newValue;
+    public long decr(String key, int by) {
+        return counterMode == CounterMode.ADDER ? addToAdder(key, -(long) by) : compareAndSet(key, -(long) by);
     }
 
     public void delete(String key) {
@@ -74,7 +199,11 @@ public class EhCacheImpl implements CacheImpl {
 
     public Object get(String key) {
         Element e = cache.get(key);
-        return (e == null) ? null : e.getValue();
+        if (e == null) {
+            return null;
+        }
+        Object value = e.getObjectValue();
+        return (value instanceof LongAdder) ? Long.valueOf(((LongAdder) value).sum()) : value;
     }
 
     public Map<String, Object> get(String[] keys) {
@@ -85,17 +214,67 @@ public class EhCacheImpl implements CacheImpl {
         return result;
     }
 
-    public synchronized long incr(String key, int by) {
-        Element e = cache.get(key);
-        if (e == null) {
-            return -1;
+    public long incr(String key, int by) {
+        return counterMode == CounterMode.ADDER ? addToAdder(key, by) : compareAndSet(key, by);
+    }
+
+    /**
+     * Lock-free counter update: the new value is published with a compare-and-swap on the
+     * element, so concurrent updates of different keys never contend on a shared monitor.
+     * As before, the updated element keeps the time to live of the previous one.
+     */
+    private long compareAndSet(String key, long delta) {
+        while (true) {
+            Element e = cache.get(key);
+            if (e == null) {
+                return -1;
+            }
+            Object value = e.getObjectValue();
+            if (value instanceof LongAdder) {
+                // switched from the ADDER mode
+                return addToAdder(key, delta);
+            }
+            long newValue = ((Number) value).longValue() + delta;
+            Element newE = new Element(key, newValue);
+            newE.setTimeToLive(e.getTimeToLive());
+            if (cache.replace(e, newE)) {
+                return newValue;
+            }
         }
-        long newValue = ((Number) e.getValue()).longValue() + by;
-        Element newE = new Element(key, newValue);
-        newE.setTimeToLive(e.getTimeToLive());
-        cache.put(newE);
-        return newValue;
+    }
 
+    /**
+     * Counter update for write-mostly counters: the element holds a {@link LongAdder} which
+     * is updated in place. The element itself is re-published at most once per second to
+     * renew its time to live, as expirations are expressed in seconds anyway.
+     */
+    private long addToAdder(String key, long delta) {
+        while (true) {
+            Element e = cache.get(key);
+            if (e == null) {
+                return -1;
+            }
+            Object value = e.getObjectValue();
+            if (value instanceof LongAdder) {
+                LongAdder adder = (LongAdder) value;
+                if (System.currentTimeMillis() - e.getCreationTime() >= 1000L) {
+                    Element newE = new Element(key, adder);
+                    newE.setTimeToLive(e.getTimeToLive());
+                    if (!cache.replace(e, newE)) {
+                        continue;
+                    }
+                }
+                adder.add(delta);
+                return adder.sum();
+            }
+            LongAdder adder = new LongAdder();
+            adder.add(((Number) value).longValue() + delta);
+            Element newE = new Element(key, adder);
+            newE.setTimeToLive(e.getTimeToLive());
+            if (cache.replace(e, newE)) {
+                return adder.sum();
+            }
+        }
     }
 
     public void replace(String key, Object value, int expiration) {
@@ -152,6 +331,34 @@ public class EhCacheImpl implements CacheImpl {
         cache.put(element);
     }
 
+    public F.Promise<Boolean> setAll(Map<String, Object> values, int expiration) {
+        List<Element> elements = new ArrayList<Element>(values.size());
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            Element element = new Element(entry.getKey(), entry.getValue());
+            element.setTimeToLive(expiration);
+            elements.add(element);
+        }
+        boolean done = true;
+        try {
+            cache.putAll(elements);
+        } catch (Exception e) {
+            Logger.error(e.toString());
+            done = false;
+        }
+        return BlockingAsyncCacheImpl.redeemed(done);
+    }
+
+    public F.Promise<Boolean> deleteAll(Collection<String> keys) {
+        boolean done = true;
+        try {
+            cache.removeAll(keys);
+        } catch (Exception e) {
+            Logger.error(e.toString());
+            done = false;
+        }
+        return BlockingAsyncCacheImpl.redeemed(done);
+    }
+
     public void stop() {
         cacheManager.shutdown();
     }
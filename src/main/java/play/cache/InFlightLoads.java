@@ -0,0 +1,128 @@
+package play.cache;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import play.Logger;
+import play.exceptions.UnexpectedException;
+
+/**
+ * Get-or-compute with cache stampede protection.
+ *
+ * <p>Concurrent misses on the same key in this JVM wait for a single computation.
+ * With the distributed lock enabled, the nodes also agree (through an atomic
+ * <code>safeAdd</code> of a lock element, which requires memcached) on the one computing
+ * the value; the others poll the cache until the value shows up or the lock expires.</p>
+ */
+final class InFlightLoads {
+
+    /** Suffix of the lock elements. */
+    static final String LOCK_SUFFIX = ".__loading";
+
+    private final ConcurrentMap<String, FutureTask<Object>> inFlight = new ConcurrentHashMap<String, FutureTask<Object>>();
+
+    /** Use a lock element in the cache to compute a value once per cluster. */
+    volatile boolean distributedLock = false;
+
+    /** Lock validity in seconds, the longest expected computation. */
+    volatile int lockTimeout = 10;
+
+    /**
+     * @param cache The cache implementation
+     * @param key Element key
+     * @param expiration Expiration of the computed value, in seconds
+     * @param loader Computes the value on a miss (a null value isn't cached)
+     * @return The cached or computed value
+     */
+    Object getOrCompute(final CacheImpl cache, final String key, final int expiration, final Callable<?> loader) {
+        final Object cached = cache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        final FutureTask<Object> task = new FutureTask<Object>(new Callable<Object>() {
+
+            @Override
+            public Object call() throws Exception {
+                // another thread may have finished loading between our miss and now
+                final Object value = cache.get(key);
+                if (value != null) {
+                    return value;
+                }
+                return distributedLock ? loadWithLock(cache, key, expiration, loader) : load(cache, key, expiration, loader);
+            }
+        });
+        FutureTask<Object> running = inFlight.putIfAbsent(key, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+        }
+        try {
+            return running.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnexpectedException("Interrupted while loading " + key, e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new UnexpectedException("Error while loading " + key, e.getCause());
+        }
+    }
+
+    /**
+     * @return The number of keys being computed right now
+     */
+    int size() {
+        return inFlight.size();
+    }
+
+    private static Object load(final CacheImpl cache, final String key, final int expiration, final Callable<?> loader)
+            throws Exception {
+        final Object value = loader.call();
+        if (value != null) {
+            Cache.checkSerializable(value);
+            cache.set(key, value, expiration);
+        }
+        return value;
+    }
+
+    private Object loadWithLock(final CacheImpl cache, final String key, final int expiration, final Callable<?> loader)
+            throws Exception {
+        final String lock = key + LOCK_SUFFIX;
+        if (cache.safeAdd(lock, Boolean.TRUE, lockTimeout)) {
+            try {
+                return load(cache, key, expiration, loader);
+            } finally {
+                cache.delete(lock);
+            }
+        }
+        // another node is computing: wait for its value
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(lockTimeout);
+        long pause = 10;
+        while (System.nanoTime() < deadline) {
+            Thread.sleep(pause);
+            final Object value = cache.get(key);
+            if (value != null) {
+                return value;
+            }
+            if (cache.get(lock) == null) {
+                break;
+            }
+            pause = Math.min(pause * 2, 200);
+        }
+        final Object value = cache.get(key);
+        if (value != null) {
+            return value;
+        }
+        Logger.warn("No value for %s after waiting for the lock, computing it", key);
+        return load(cache, key, expiration, loader);
+    }
+}
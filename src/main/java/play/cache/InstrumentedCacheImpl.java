@@ -0,0 +1,320 @@
+package play.cache;
+
+import java.util.Collection;
+import java.util.Map;
+
+import play.libs.ws.F;
+
+/**
+ * Records the metrics of any cache implementation in a {@link CacheMetrics}.
+ *
+ * <p>Cache.init() wraps the selected implementation with it, unless
+ * <code>cache.metrics=disabled</code>.</p>
+ */
+public class InstrumentedCacheImpl implements CacheImpl, AsyncCacheImpl, CacheDecorator {
+
+    private final CacheImpl delegate;
+
+    private final CacheMetrics metrics;
+
+    /**
+     * @param delegate The measured implementation
+     * @param metrics Receives the measures
+     */
+    public InstrumentedCacheImpl(final CacheImpl delegate, final CacheMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return The measured implementation
+     */
+    @Override
+    public CacheImpl getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public void add(final String key, final Object value, final int expiration) {
+        final long start = System.nanoTime();
+        boolean error = true;
+        try {
+            delegate.add(key, value, expiration);
+            error = false;
+        } finally {
+            metrics.record(CacheMetrics.Operation.ADD, System.nanoTime() - start, error);
+            metrics.recordWrite(key);
+        }
+    }
+
+    @Override
+    public boolean safeAdd(final String key, final Object value, final int expiration) {
+        final long start = System.nanoTime();
+        boolean error = true;
+        try {
+            final boolean added = delegate.safeAdd(key, value, expiration);
+            error = false;
+            return added;
+        } finally {
+            metrics.record(CacheMetrics.Operation.ADD, System.nanoTime() - start, error);
+            metrics.recordWrite(key);
+        }
+    }
+
+    @Override
+    public void set(final String key, final Object value, final int expiration) {
+        final long start = System.nanoTime();
+        boolean error = true;
+        try {
+            delegate.set(key, value, expiration);
+            error = false;
+        } finally {
+            metrics.record(CacheMetrics.Operation.SET, System.nanoTime() - start, error);
+            metrics.recordWrite(key);
+        }
+    }
+
+    @Override
+    public boolean safeSet(final String key, final Object value, final int expiration) {
+        final long start = System.nanoTime();
+        boolean error = true;
+        try {
+            final boolean set = delegate.safeSet(key, value, expiration);
+            error = false;
+            return set;
+        } finally {
+            metrics.record(CacheMetrics.Operation.SET, System.nanoTime() - start, error);
+            metrics.recordWrite(key);
+        }
+    }
+
+    @Override
+    public void replace(final String key, final Object value, final int expiration) {
+        final long start = System.nanoTime();
+        boolean error = true;
+        try {
+            delegate.replace(key, value, expiration);
+            error = false;
+        } finally {
+            metrics.record(CacheMetrics.Operation.REPLACE, System.nanoTime() - start, error);
+            metrics.recordWrite(key);
+        }
+    }
+
+    @Override
+    public boolean safeReplace(final String key, final Object value, final int expiration) {
+        final long start = System.nanoTime();
+        boolean error = true;
+        try {
+            final boolean replaced = delegate.safeReplace(key, value, expiration);
+            error = false;
+            return replaced;
+        } finally {
+            metrics.record(CacheMetrics.Operation.REPLACE, System.nanoTime() - start, error);
+            metrics.recordWrite(key);
+        }
+    }
+
+    @Override
+    public Object get(final String key) {
+        final long start = System.nanoTime();
+        boolean error = true;
+        try {
+            final Object value = delegate.get(key);
+            error = false;
+            metrics.recordRead(key, value != null);
+            return value;
+        } finally {
+            metrics.record(CacheMetrics.Operation.GET, System.nanoTime() - start, error);
+        }
+    }
+
+    @Override
+    public Map<String, Object> get(final String[] keys) {
+        final long start = System.nanoTime();
+        boolean error = true;
+        try {
+            final Map<String, Object> values = delegate.get(keys);
+            error = false;
+            recordReads(keys, values);
+            return values;
+        } finally {
+            metrics.record(CacheMetrics.Operation.GET_MULTI, System.nanoTime() - start, error);
+        }
+    }
+
+    private void recordReads(final String[] keys, final Map<String, Object> values) {
+        for (final String key : keys) {
+            metrics.recordRead(key, values != null && values.get(key) != null);
+        }
+    }
+
+    @Override
+    public long incr(final String key, final int by) {
+        final long start = System.nanoTime();
+        boolean error = true;
+        try {
+            final long value = delegate.incr(key, by);
+            error = false;
+            return value;
+        } finally {
+            metrics.record(CacheMetrics.Operation.INCR, System.nanoTime() - start, error);
+            metrics.recordWrite(key);
+        }
+    }
+
+    @Override
+    public long decr(final String key, final int by) {
+        final long start = System.nanoTime();
+        boolean error = true;
+        try {
+            final long value = delegate.decr(key, by);
+            error = false;
+            return value;
+        } finally {
+            metrics.record(CacheMetrics.Operation.DECR, System.nanoTime() - start, error);
+            metrics.recordWrite(key);
+        }
+    }
+
+    @Override
+    public void clear() {
+        final long start = System.nanoTime();
+        boolean error = true;
+        try {
+            delegate.clear();
+            error = false;
+        } finally {
+            metrics.record(CacheMetrics.Operation.CLEAR, System.nanoTime() - start, error);
+        }
+    }
+
+    @Override
+    public void delete(final String key) {
+        final long start = System.nanoTime();
+        boolean error = true;
+        try {
+            delegate.delete(key);
+            error = false;
+        } finally {
+            metrics.record(CacheMetrics.Operation.DELETE, System.nanoTime() - start, error);
+            metrics.recordWrite(key);
+        }
+    }
+
+    @Override
+    public boolean safeDelete(final String key) {
+        final long start = System.nanoTime();
+        boolean error = true;
+        try {
+            final boolean deleted = delegate.safeDelete(key);
+            error = false;
+            return deleted;
+        } finally {
+            metrics.record(CacheMetrics.Operation.DELETE, System.nanoTime() - start, error);
+            metrics.recordWrite(key);
+        }
+    }
+
+    @Override
+    public F.Promise<Boolean> setAll(final Map<String, Object> values, final int expiration) {
+        for (final String key : values.keySet()) {
+            metrics.recordWrite(key);
+        }
+        return timed(CacheMetrics.Operation.SET_ALL, System.nanoTime(), delegate.setAll(values, expiration));
+    }
+
+    @Override
+    public F.Promise<Boolean> deleteAll(final Collection<String> keys) {
+        for (final String key : keys) {
+            metrics.recordWrite(key);
+        }
+        return timed(CacheMetrics.Operation.DELETE_ALL, System.nanoTime(), delegate.deleteAll(keys));
+    }
+
+    @Override
+    public void stop() {
+        delegate.stop();
+    }
+
+    @Override
+    public F.Promise<Boolean> addAsync(final String key, final Object value, final int expiration) {
+        metrics.recordWrite(key);
+        return timed(CacheMetrics.Operation.ADD, System.nanoTime(), async().addAsync(key, value, expiration));
+    }
+
+    @Override
+    public F.Promise<Boolean> setAsync(final String key, final Object value, final int expiration) {
+        metrics.recordWrite(key);
+        return timed(CacheMetrics.Operation.SET, System.nanoTime(), async().setAsync(key, value, expiration));
+    }
+
+    @Override
+    public F.Promise<Boolean> replaceAsync(final String key, final Object value, final int expiration) {
+        metrics.recordWrite(key);
+        return timed(CacheMetrics.Operation.REPLACE, System.nanoTime(), async().replaceAsync(key, value, expiration));
+    }
+
+    @Override
+    public F.Promise<Object> getAsync(final String key) {
+        final F.Promise<Object> promise = timed(CacheMetrics.Operation.GET, System.nanoTime(), async().getAsync(key));
+        promise.onRedeem(new F.Action<F.Promise<Object>>() {
+
+            @Override
+            public void invoke(final F.Promise<Object> completed) {
+                metrics.recordRead(key, completed.getOrNull() != null);
+            }
+        });
+        return promise;
+    }
+
+    @Override
+    public F.Promise<Map<String, Object>> getAsync(final String[] keys) {
+        final F.Promise<Map<String, Object>> promise = timed(CacheMetrics.Operation.GET_MULTI, System.nanoTime(),
+                async().getAsync(keys));
+        promise.onRedeem(new F.Action<F.Promise<Map<String, Object>>>() {
+
+            @Override
+            public void invoke(final F.Promise<Map<String, Object>> completed) {
+                recordReads(keys, completed.getOrNull());
+            }
+        });
+        return promise;
+    }
+
+    @Override
+    public F.Promise<Long> incrAsync(final String key, final int by) {
+        metrics.recordWrite(key);
+        return timed(CacheMetrics.Operation.INCR, System.nanoTime(), async().incrAsync(key, by));
+    }
+
+    @Override
+    public F.Promise<Long> decrAsync(final String key, final int by) {
+        metrics.recordWrite(key);
+        return timed(CacheMetrics.Operation.DECR, System.nanoTime(), async().decrAsync(key, by));
+    }
+
+    @Override
+    public F.Promise<Boolean> deleteAsync(final String key) {
+        metrics.recordWrite(key);
+        return timed(CacheMetrics.Operation.DELETE, System.nanoTime(), async().deleteAsync(key));
+    }
+
+    private AsyncCacheImpl async() {
+        return BlockingAsyncCacheImpl.of(delegate);
+    }
+
+    /**
+     * Record the latency of an asynchronous operation when its promise is redeemed.
+     */
+    private <T> F.Promise<T> timed(final CacheMetrics.Operation operation, final long start, final F.Promise<T> promise) {
+        promise.onRedeem(new F.Action<F.Promise<T>>() {
+
+            @Override
+            public void invoke(final F.Promise<T> completed) {
+                metrics.record(operation, System.nanoTime() - start, false);
+            }
+        });
+        return promise;
+    }
+}
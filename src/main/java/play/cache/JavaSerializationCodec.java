@@ -0,0 +1,54 @@
+package play.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+
+/**
+ * Codec based on the standard Java serialization.
+ *
+ * <p>Every value must be {@link java.io.Serializable}. This is the default codec.</p>
+ */
+public class JavaSerializationCodec implements CacheCodec {
+
+    public static final String NAME = "java";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean canEncode(final Object value) {
+        return value instanceof Serializable;
+    }
+
+    @Override
+    public byte[] encode(final Object value) throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bos);
+        out.writeObject(value);
+        out.close();
+        return bos.toByteArray();
+    }
+
+    @Override
+    public Object decode(final byte[] data) throws IOException {
+        try {
+            return new ObjectInputStream(new ByteArrayInputStream(data)) {
+
+                @Override
+                protected Class<?> resolveClass(final ObjectStreamClass desc)
+                        throws IOException, ClassNotFoundException {
+                    return Class.forName(desc.getName(), false, JavaSerializationCodec.class.getClassLoader());
+                }
+            }.readObject();
+        } catch (final ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+}
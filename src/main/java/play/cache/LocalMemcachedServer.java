@@ -0,0 +1,368 @@
+package play.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import play.Logger;
+
+/**
+ * In-JVM stand-in for a memcached node, speaking the text protocol.
+ *
+ * <p>Meant for tests, benchmarks and local development: start a few nodes and point
+ * the memcached client at them (<code>memcached.local.nodes=3</code> does that in
+ * {@link MemcachedImpl}). Supports get, gets, set, add, replace, append, prepend, cas,
+ * delete, incr, decr, touch, flush_all, stats, version and quit. Data lives on the heap and
+ * there is no eviction.</p>
+ */
+public class LocalMemcachedServer {
+
+    private static final AtomicInteger serverNumber = new AtomicInteger(1);
+
+    private final ServerSocket serverSocket;
+
+    private final Map<String, Item> items = new HashMap<String, Item>();
+
+    private final AtomicLong casUnique = new AtomicLong();
+
+    /** Operation count, to observe the load of a node. */
+    private final AtomicLong operations = new AtomicLong();
+
+    private volatile boolean running = true;
+
+    private LocalMemcachedServer(final ServerSocket serverSocket) {
+        this.serverSocket = serverSocket;
+    }
+
+    /**
+     * Start a node on the loopback interface.
+     * @param port The port, 0 for any free port
+     * @return The running node
+     * @throws IOException When the port can't be bound
+     */
+    public static LocalMemcachedServer start(final int port) throws IOException {
+        final ServerSocket socket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        final LocalMemcachedServer server = new LocalMemcachedServer(socket);
+        final Thread acceptor = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                server.accept();
+            }
+        }, "local-memcached-" + serverNumber.getAndIncrement());
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server;
+    }
+
+    /**
+     * @return The address to give to the memcached client
+     */
+    public InetSocketAddress getAddress() {
+        return new InetSocketAddress(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+    }
+
+    /**
+     * @return The number of commands served so far
+     */
+    public long getOperations() {
+        return operations.get();
+    }
+
+    /**
+     * @return The number of items stored (expired ones included)
+     */
+    public int size() {
+        synchronized (items) {
+            return items.size();
+        }
+    }
+
+    /**
+     * Stop accepting and serving connections, the node behaves as a dead server.
+     */
+    public void stop() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (final IOException e) {
+            Logger.warn(e, "Error while closing the local memcached node");
+        }
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                final Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                final Thread connection = new Thread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                }, Thread.currentThread().getName() + "-connection");
+                connection.setDaemon(true);
+                connection.start();
+            } catch (final IOException e) {
+                if (running) {
+                    Logger.warn(e, "Local memcached node stopped accepting connections");
+                }
+                return;
+            }
+        }
+    }
+
+    private void serve(final Socket socket) {
+        try {
+            final InputStream in = new BufferedInputStream(socket.getInputStream());
+            final OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            String line;
+            while (running && (line = readLine(in)) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                operations.incrementAndGet();
+                if (!execute(line.split(" +"), in, out)) {
+                    break;
+                }
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+            out.flush();
+        } catch (final SocketException e) {
+            // client went away
+        } catch (final IOException e) {
+            Logger.debug(e, "Local memcached connection closed");
+        } finally {
+            try {
+                socket.close();
+            } catch (final IOException e) {
+                // ignored
+            }
+        }
+    }
+
+    /**
+     * @return false to close the connection
+     */
+    private boolean execute(final String[] args, final InputStream in, final OutputStream out) throws IOException {
+        final String command = args[0];
+        if ("get".equals(command) || "gets".equals(command)) {
+            for (int i = 1; i < args.length; i++) {
+                final Item item = get(args[i]);
+                if (item != null) {
+                    write(out, "VALUE " + args[i] + " " + item.flags + " " + item.data.length
+                            + ("gets".equals(command) ? " " + item.cas : ""));
+                    out.write(item.data);
+                    write(out, "");
+                }
+            }
+            write(out, "END");
+        } else if ("set".equals(command) || "add".equals(command) || "replace".equals(command)
+                || "append".equals(command) || "prepend".equals(command) || "cas".equals(command)) {
+            final int length = Integer.parseInt(args[4]);
+            final byte[] data = readData(in, length);
+            final boolean cas = "cas".equals(command);
+            final boolean noreply = args.length > (cas ? 6 : 5) && "noreply".equals(args[args.length - 1]);
+            final String result = store(command, args[1], Integer.parseInt(args[2]),
+                    expiresAt(Long.parseLong(args[3])), data, cas ? Long.parseLong(args[5]) : 0L);
+            if (!noreply) {
+                write(out, result);
+            }
+        } else if ("delete".equals(command)) {
+            final boolean deleted;
+            synchronized (items) {
+                deleted = get(args[1]) != null && items.remove(args[1]) != null;
+            }
+            reply(out, args, deleted ? "DELETED" : "NOT_FOUND");
+        } else if ("incr".equals(command) || "decr".equals(command)) {
+            reply(out, args, mutate(args[1], Long.parseLong(args[2]), "incr".equals(command)));
+        } else if ("touch".equals(command)) {
+            final boolean touched;
+            synchronized (items) {
+                final Item item = get(args[1]);
+                touched = item != null;
+                if (touched) {
+                    items.put(args[1], new Item(item.flags, item.data, expiresAt(Long.parseLong(args[2])), item.cas));
+                }
+            }
+            reply(out, args, touched ? "TOUCHED" : "NOT_FOUND");
+        } else if ("flush_all".equals(command)) {
+            synchronized (items) {
+                items.clear();
+            }
+            reply(out, args, "OK");
+        } else if ("stats".equals(command)) {
+            write(out, "STAT curr_items " + size());
+            write(out, "STAT cmd_total " + operations.get());
+            write(out, "STAT evictions 0");
+            write(out, "END");
+        } else if ("version".equals(command)) {
+            write(out, "VERSION 1.4.0-local");
+        } else if ("quit".equals(command)) {
+            return false;
+        } else {
+            write(out, "ERROR");
+        }
+        return true;
+    }
+
+    private String store(final String command, final String key, final int flags, final long expiresAt,
+            final byte[] data, final long expectedCas) {
+        synchronized (items) {
+            final Item existing = get(key);
+            if ("add".equals(command) && existing != null) {
+                return "NOT_STORED";
+            }
+            if (("replace".equals(command) || "append".equals(command) || "prepend".equals(command))
+                    && existing == null) {
+                return "NOT_STORED";
+            }
+            if ("cas".equals(command)) {
+                if (existing == null) {
+                    return "NOT_FOUND";
+                }
+                if (existing.cas != expectedCas) {
+                    return "EXISTS";
+                }
+            }
+            Item item = new Item(flags, data, expiresAt, casUnique.incrementAndGet());
+            if ("append".equals(command) || "prepend".equals(command)) {
+                final ByteArrayOutputStream merged = new ByteArrayOutputStream();
+                final byte[] first = "append".equals(command) ? existing.data : data;
+                final byte[] second = "append".equals(command) ? data : existing.data;
+                merged.write(first, 0, first.length);
+                merged.write(second, 0, second.length);
+                item = new Item(existing.flags, merged.toByteArray(), existing.expiresAt, item.cas);
+            }
+            items.put(key, item);
+            return "STORED";
+        }
+    }
+
+    private String mutate(final String key, final long delta, final boolean incr) {
+        synchronized (items) {
+            final Item item = get(key);
+            if (item == null) {
+                return "NOT_FOUND";
+            }
+            final long current;
+            try {
+                current = Long.parseLong(new String(item.data, StandardCharsets.US_ASCII).trim());
+            } catch (final NumberFormatException e) {
+                return "CLIENT_ERROR cannot increment or decrement non-numeric value";
+            }
+            final long value = incr ? current + delta : Math.max(0, current - delta);
+            items.put(key, new Item(item.flags, Long.toString(value).getBytes(StandardCharsets.US_ASCII),
+                    item.expiresAt, casUnique.incrementAndGet()));
+            return Long.toString(value);
+        }
+    }
+
+    /**
+     * Expired items are removed lazily, when read.
+     */
+    private Item get(final String key) {
+        synchronized (items) {
+            final Item item = items.get(key);
+            if (item == null) {
+                return null;
+            }
+            if (item.expiresAt != 0 && item.expiresAt <= System.currentTimeMillis()) {
+                items.remove(key);
+                return null;
+            }
+            return item;
+        }
+    }
+
+    /**
+     * memcached semantics: 0 never expires, up to 30 days is relative, above is a unix time.
+     */
+    private static long expiresAt(final long exptime) {
+        if (exptime == 0) {
+            return 0;
+        }
+        if (exptime < 0) {
+            return 1;
+        }
+        if (exptime <= TimeUnit.DAYS.toSeconds(30)) {
+            return System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(exptime);
+        }
+        return TimeUnit.SECONDS.toMillis(exptime);
+    }
+
+    private static void reply(final OutputStream out, final String[] args, final String result) throws IOException {
+        if (!"noreply".equals(args[args.length - 1])) {
+            write(out, result);
+        }
+    }
+
+    private static void write(final OutputStream out, final String line) throws IOException {
+        out.write(line.getBytes(StandardCharsets.US_ASCII));
+        out.write('\r');
+        out.write('\n');
+    }
+
+    private static String readLine(final InputStream in) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                final int length = sb.length();
+                if (length > 0 && sb.charAt(length - 1) == '\r') {
+                    sb.setLength(length - 1);
+                }
+                return sb.toString();
+            }
+            sb.append((char) c);
+        }
+        return null;
+    }
+
+    private static byte[] readData(final InputStream in, final int length) throws IOException {
+        final byte[] data = new byte[length];
+        int read = 0;
+        while (read < length) {
+            final int n = in.read(data, read, length - read);
+            if (n < 0) {
+                throw new IOException("Connection closed while reading data");
+            }
+            read += n;
+        }
+        // trailing \r\n
+        in.read();
+        in.read();
+        return data;
+    }
+
+    private static final class Item {
+        final int flags;
+        final byte[] data;
+        final long expiresAt;
+        final long cas;
+
+        Item(final int flags, final byte[] data, final long expiresAt, final long cas) {
+            this.flags = flags;
+            this.data = data;
+            this.expiresAt = expiresAt;
+            this.cas = cas;
+        }
+    }
+}
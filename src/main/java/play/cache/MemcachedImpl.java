@@ -1,40 +1,75 @@
 package play.cache;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.ObjectStreamClass;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.spy.memcached.AddrUtil;
 import net.spy.memcached.ConnectionFactory;
 import net.spy.memcached.ConnectionFactoryBuilder;
+import net.spy.memcached.DefaultHashAlgorithm;
+import net.spy.memcached.FailureMode;
 import net.spy.memcached.MemcachedClient;
 import net.spy.memcached.auth.AuthDescriptor;
 import net.spy.memcached.auth.PlainCallbackHandler;
-import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.internal.BulkGetCompletionListener;
+import net.spy.memcached.internal.BulkGetFuture;
+import net.spy.memcached.internal.GetCompletionListener;
+import net.spy.memcached.internal.GetFuture;
+import net.spy.memcached.internal.OperationCompletionListener;
+import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.ops.ArrayOperationQueueFactory;
+import net.spy.memcached.ops.LinkedOperationQueueFactory;
+import net.spy.memcached.ops.Operation;
+import net.spy.memcached.ops.OperationQueueFactory;
+import net.spy.memcached.ops.StatusCode;
+import net.spy.memcached.transcoders.Transcoder;
 import play.Logger;
 import play.Play;
+import play.libs.ws.F;
 
 /**
  * Memcached implementation (using http://code.google.com/p/spymemcached/)
  *
+ * <p>A client has a single I/O thread and operation queue per node. With
+ * <code>memcached.pool.size</code> greater than 1, the keys are striped over several clients:
+ * a key always goes through the same client, so that its operations stay ordered.</p>
+ *
  * expiration is specified in seconds
  */
-public class MemcachedImpl implements CacheImpl {
+public class MemcachedImpl implements CacheImpl, AsyncCacheImpl {
 
     private static MemcachedImpl uniqueInstance;
 
+    /** In-JVM nodes started for memcached.local.nodes. */
+    private static final List<LocalMemcachedServer> localNodes = new ArrayList<LocalMemcachedServer>();
+
+    /** The first client of the pool, used for the operations on every key. */
     MemcachedClient client;
 
-    SerializingTranscoder tc;
+    /** The pool: keys are striped over these clients. */
+    MemcachedClient[] clients;
+
+    Transcoder<Object> tc;
+
+    /** How long the synchronous operations wait for a reply, in milliseconds. */
+    private long timeout = 1000;
+
+    private volatile QueueDepth queueDepth;
 
     public static MemcachedImpl getInstance() throws IOException {
       return getInstance(false);
@@ -53,62 +88,182 @@ public class MemcachedImpl implements CacheImpl {
 
     }
 
-    private MemcachedImpl() throws IOException {
-        tc = new SerializingTranscoder() {
-
-            @Override
-            protected Object deserialize(final byte[] data) {
-                try {
-                    return new ObjectInputStream(new ByteArrayInputStream(data)) {
-
-                        @Override
-                        protected Class<?> resolveClass(final ObjectStreamClass desc)
-                                throws IOException, ClassNotFoundException {
-                            return Class.forName(desc.getName(), false, getClass().getClassLoader());
-                        }
-                    }.readObject();
-                } catch (final Exception e) {
-                    Logger.error(e, "Could not deserialize");
-                }
-                return null;
-            }
+    /**
+     * A client independent of the shared instance, ex: to migrate to another cluster
+     * with {@link Cache#migrate(CacheImpl, int)}.
+     * @param configuration The memcached.* settings of the cluster
+     * @return A new client
+     * @throws IOException When the nodes can't be resolved
+     */
+    public static MemcachedImpl newInstance(final Properties configuration) throws IOException {
+        return new MemcachedImpl(configuration);
+    }
 
-            @Override
-            protected byte[] serialize(final Object object) {
-                try {
-                    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                    new ObjectOutputStream(bos).writeObject(object);
-                    return bos.toByteArray();
-                } catch (final IOException e) {
-                    Logger.error(e, "Could not serialize");
-                }
-                return null;
-            }
-        };
+    private MemcachedImpl() throws IOException {
         initClient();
     }
 
+    private MemcachedImpl(final Properties configuration) throws IOException {
+        initClient(configuration);
+    }
+
     public void initClient() throws IOException {
+        initClient(Play.configuration);
+    }
+
+    private void initClient(final Properties configuration) throws IOException {
         System.setProperty("net.spy.log.LoggerImpl", "net.spy.memcached.compat.log.Log4JLogger");
 
-        List<InetSocketAddress> addrs;
-        if (Play.configuration.containsKey("memcached.host")) {
-            addrs = AddrUtil.getAddresses(Play.configuration.getProperty("memcached.host"));
-        } else if (Play.configuration.containsKey("memcached.1.host")) {
+        tc = new CodecTranscoder(CacheCodecs.current());
+        timeout = Long.parseLong(configuration.getProperty("memcached.timeout", "1000"));
+        final int poolSize = Integer.parseInt(configuration.getProperty("memcached.pool.size", "1"));
+        if (poolSize < 1) {
+            throw new RuntimeException("Bad configuration for memcached: pool size " + poolSize);
+        }
+        final QueueDepth depth = new QueueDepth(
+                Integer.parseInt(configuration.getProperty("memcached.queueSize", "16384")));
+        final List<InetSocketAddress> addresses = addresses(configuration);
+        final MemcachedClient[] pool = new MemcachedClient[poolSize];
+        for (int i = 0; i < poolSize; i++) {
+            pool[i] = new MemcachedClient(connectionFactory(configuration, depth), addresses);
+        }
+        queueDepth = depth;
+        clients = pool;
+        client = pool[0];
+    }
+
+    /**
+     * @return The client of a key
+     */
+    MemcachedClient client(final String key) {
+        final MemcachedClient[] pool = clients;
+        return pool.length == 1 ? pool[0] : pool[(key.hashCode() & Integer.MAX_VALUE) % pool.length];
+    }
+
+    /**
+     * Group keys by client.
+     */
+    private Map<MemcachedClient, List<String>> stripes(final String[] keys) {
+        final Map<MemcachedClient, List<String>> stripes = new LinkedHashMap<MemcachedClient, List<String>>();
+        for (final String key : keys) {
+            final MemcachedClient stripe = client(key);
+            List<String> stripeKeys = stripes.get(stripe);
+            if (stripeKeys == null) {
+                stripeKeys = new ArrayList<String>();
+                stripes.put(stripe, stripeKeys);
+            }
+            stripeKeys.add(key);
+        }
+        return stripes;
+    }
+
+    /**
+     * The memcached nodes: memcached.host, memcached.1.host, memcached.2.host... or
+     * memcached.local.nodes to start in-JVM stand-ins.
+     */
+    static List<InetSocketAddress> addresses(final Properties configuration) throws IOException {
+        if (configuration.containsKey("memcached.host")) {
+            return AddrUtil.getAddresses(configuration.getProperty("memcached.host"));
+        } else if (configuration.containsKey("memcached.1.host")) {
             int nb = 1;
             String addresses = "";
-            while (Play.configuration.containsKey("memcached." + nb + ".host")) {
-                addresses += Play.configuration.get("memcached." + nb + ".host") + " ";
+            while (configuration.containsKey("memcached." + nb + ".host")) {
+                addresses += configuration.get("memcached." + nb + ".host") + " ";
                 nb++;
             }
-            addrs = AddrUtil.getAddresses(addresses);
+            return AddrUtil.getAddresses(addresses);
+        } else if (configuration.containsKey("memcached.local.nodes")) {
+            return localNodes(Integer.parseInt(configuration.getProperty("memcached.local.nodes")));
+        }
+        throw new RuntimeException("Bad configuration for memcached: missing host(s)");
+    }
+
+    /**
+     * Start (once) the in-JVM memcached nodes.
+     */
+    private static synchronized List<InetSocketAddress> localNodes(final int count) throws IOException {
+        while (localNodes.size() < count) {
+            localNodes.add(LocalMemcachedServer.start(0));
+        }
+        final List<InetSocketAddress> addrs = new ArrayList<InetSocketAddress>(count);
+        for (int i = 0; i < count; i++) {
+            addrs.add(localNodes.get(i).getAddress());
+        }
+        Logger.warn("Using %s in-JVM memcached node(s): %s", count, addrs);
+        return addrs;
+    }
+
+    static ConnectionFactory connectionFactory(final Properties configuration) {
+        return connectionFactory(configuration, null);
+    }
+
+    /**
+     * Client settings.
+     *
+     * <pre>
+     * # key distribution: array (hash modulo the number of nodes, default) or ketama (consistent hashing)
+     * memcached.locator=ketama
+     * # when a node is down: redistribute (default), retry or cancel
+     * memcached.failureMode=redistribute
+     * # number of clients (I/O threads) the keys are striped over
+     * memcached.pool.size=1
+     * # text (default) or binary, always binary with SASL
+     * memcached.protocol=text
+     * # operations waiting to be sent, per node
+     * memcached.queueSize=16384
+     * # how long to wait for room in a full queue, in milliseconds
+     * memcached.queueBlockTime=10000
+     * # how long to wait for a reply, in milliseconds
+     * memcached.timeout=1000
+     * </pre>
+     * @param depth Tracks the operation queues, may be null
+     */
+    static ConnectionFactory connectionFactory(final Properties configuration, final QueueDepth depth) {
+        final ConnectionFactoryBuilder builder = new ConnectionFactoryBuilder();
+
+        if (depth != null) {
+            builder.setOpQueueFactory(depth.input)
+                   .setWriteOpQueueFactory(depth.write)
+                   .setReadOpQueueFactory(depth.read);
+        }
+        if (configuration.containsKey("memcached.queueBlockTime")) {
+            builder.setOpQueueMaxBlockTime(Long.parseLong(configuration.getProperty("memcached.queueBlockTime")));
+        }
+        if (configuration.containsKey("memcached.timeout")) {
+            builder.setOpTimeout(Long.parseLong(configuration.getProperty("memcached.timeout")));
+        }
+
+        final String protocol = configuration.getProperty("memcached.protocol", "text");
+        if ("binary".equalsIgnoreCase(protocol)) {
+            builder.setProtocol(ConnectionFactoryBuilder.Protocol.BINARY);
+        } else if (!"text".equalsIgnoreCase(protocol)) {
+            throw new RuntimeException("Bad configuration for memcached: unknown protocol " + protocol);
+        }
+
+        final String locator = configuration.getProperty("memcached.locator", "array");
+        if ("ketama".equalsIgnoreCase(locator)) {
+            builder.setLocatorType(ConnectionFactoryBuilder.Locator.CONSISTENT)
+                   .setHashAlg(DefaultHashAlgorithm.KETAMA_HASH);
+        } else if ("array".equalsIgnoreCase(locator)) {
+            builder.setLocatorType(ConnectionFactoryBuilder.Locator.ARRAY_MOD);
         } else {
-            throw new RuntimeException("Bad configuration for memcached: missing host(s)");
+            throw new RuntimeException("Bad configuration for memcached: unknown locator " + locator);
         }
 
-        if (Play.configuration.containsKey("memcached.user")) {
-            final String memcacheUser = Play.configuration.getProperty("memcached.user");
-            final String memcachePassword = Play.configuration.getProperty("memcached.password");
+        final String failureMode = configuration.getProperty("memcached.failureMode", "redistribute");
+        if ("redistribute".equalsIgnoreCase(failureMode)) {
+            builder.setFailureMode(FailureMode.Redistribute);
+        } else if ("retry".equalsIgnoreCase(failureMode)) {
+            builder.setFailureMode(FailureMode.Retry);
+        } else if ("cancel".equalsIgnoreCase(failureMode)) {
+            builder.setFailureMode(FailureMode.Cancel);
+        } else {
+            throw new RuntimeException("Bad configuration for memcached: unknown failure mode " + failureMode);
+        }
+
+        if (configuration.containsKey("memcached.user")) {
+            final String memcacheUser = configuration.getProperty("memcached.user");
+            final String memcachePassword = configuration.getProperty("memcached.password");
             if (memcachePassword == null) {
                 throw new RuntimeException("Bad configuration for memcached: missing password");
             }
@@ -116,31 +271,37 @@ public class MemcachedImpl implements CacheImpl {
             // Use plain SASL to connect to memcached
             final AuthDescriptor ad = new AuthDescriptor(new String[]{"PLAIN"},
                                     new PlainCallbackHandler(memcacheUser, memcachePassword));
-            final ConnectionFactory cf = new ConnectionFactoryBuilder()
-                                        .setProtocol(ConnectionFactoryBuilder.Protocol.BINARY)
-                                        .setAuthDescriptor(ad)
-                                        .build();
-
-            client = new MemcachedClient(cf, addrs);
-        } else {
-            client = new MemcachedClient(addrs);
+            builder.setProtocol(ConnectionFactoryBuilder.Protocol.BINARY)
+                   .setAuthDescriptor(ad);
         }
+        return builder.build();
     }
 
     @Override
     public void add(final String key, final Object value, final int expiration) {
-        client.add(key, expiration, value, tc);
+        client(key).add(key, expiration, value, tc);
     }
 
     @Override
     public Object get(final String key) {
-        final Future<Object> future = client.asyncGet(key, tc);
         try {
-            return future.get(1, TimeUnit.SECONDS);
+            return getOrFail(key);
+        } catch (final Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Same as get, but a failure or a timeout is thrown instead of being a miss.
+     */
+    Object getOrFail(final String key) throws Exception {
+        final Future<Object> future = client(key).asyncGet(key, tc);
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
         } catch (final Exception e) {
             future.cancel(false);
+            throw e;
         }
-        return null;
     }
 
     @Override
@@ -150,40 +311,92 @@ public class MemcachedImpl implements CacheImpl {
 
     @Override
     public void delete(final String key) {
-        client.delete(key);
+        client(key).delete(key);
     }
 
     @Override
     public Map<String, Object> get(final String[] keys) {
-        final Future<Map<String, Object>> future = client.asyncGetBulk(tc, keys);
         try {
-            return future.get(1, TimeUnit.SECONDS);
+            return get(keys, false);
         } catch (final Exception e) {
-            future.cancel(false);
+            return Collections.<String, Object>emptyMap();
         }
-        return Collections.<String, Object>emptyMap();
+    }
+
+    /**
+     * Same as get, but a failure or a timeout is thrown instead of being a miss.
+     */
+    Map<String, Object> getOrFail(final String[] keys) throws Exception {
+        return get(keys, true);
+    }
+
+    /**
+     * @param strict Throw the first failure, otherwise the keys of a failed client are missing
+     */
+    private Map<String, Object> get(final String[] keys, final boolean strict) throws Exception {
+        if (clients.length == 1) {
+            final Future<Map<String, Object>> future = client.asyncGetBulk(tc, keys);
+            try {
+                return future.get(timeout, TimeUnit.MILLISECONDS);
+            } catch (final Exception e) {
+                future.cancel(false);
+                if (strict) {
+                    throw e;
+                }
+            }
+            return Collections.<String, Object>emptyMap();
+        }
+        // every stripe is sent before waiting for any
+        final List<Future<Map<String, Object>>> futures = new ArrayList<Future<Map<String, Object>>>();
+        for (final Map.Entry<MemcachedClient, List<String>> stripe : stripes(keys).entrySet()) {
+            futures.add(stripe.getKey().asyncGetBulk(stripe.getValue(), tc));
+        }
+        final Map<String, Object> result = new HashMap<String, Object>();
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        for (final Future<Map<String, Object>> future : futures) {
+            try {
+                result.putAll(future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+            } catch (final Exception e) {
+                future.cancel(false);
+                if (strict) {
+                    throw e;
+                }
+            }
+        }
+        return result;
     }
 
     @Override
     public long incr(final String key, final int by) {
-        return client.incr(key, by, 0);
+        return client(key).incr(key, by, 0);
+    }
+
+    /**
+     * Increment a counter, creating it with an initial value when missing.
+     * @param key Element key
+     * @param by The incr value
+     * @param initial Value of a missing counter (by isn't added to it)
+     * @return The new value
+     */
+    long incr(final String key, final int by, final long initial) {
+        return client(key).incr(key, by, initial);
     }
 
     @Override
     public long decr(final String key, final int by) {
-        return client.decr(key, by, 0);
+        return client(key).decr(key, by, 0);
     }
 
     @Override
     public void replace(final String key, final Object value, final int expiration) {
-        client.replace(key, expiration, value, tc);
+        client(key).replace(key, expiration, value, tc);
     }
 
     @Override
     public boolean safeAdd(final String key, final Object value, final int expiration) {
-        final Future<Boolean> future = client.add(key, expiration, value, tc);
+        final Future<Boolean> future = client(key).add(key, expiration, value, tc);
         try {
-            return future.get(1, TimeUnit.SECONDS);
+            return future.get(timeout, TimeUnit.MILLISECONDS);
         } catch (final Exception e) {
             future.cancel(false);
         }
@@ -192,9 +405,9 @@ public class MemcachedImpl implements CacheImpl {
 
     @Override
     public boolean safeDelete(final String key) {
-        final Future<Boolean> future = client.delete(key);
+        final Future<Boolean> future = client(key).delete(key);
         try {
-            return future.get(1, TimeUnit.SECONDS);
+            return future.get(timeout, TimeUnit.MILLISECONDS);
         } catch (final Exception e) {
             future.cancel(false);
         }
@@ -203,9 +416,9 @@ public class MemcachedImpl implements CacheImpl {
 
     @Override
     public boolean safeReplace(final String key, final Object value, final int expiration) {
-        final Future<Boolean> future = client.replace(key, expiration, value, tc);
+        final Future<Boolean> future = client(key).replace(key, expiration, value, tc);
         try {
-            return future.get(1, TimeUnit.SECONDS);
+            return future.get(timeout, TimeUnit.MILLISECONDS);
         } catch (final Exception e) {
             future.cancel(false);
         }
@@ -214,9 +427,9 @@ public class MemcachedImpl implements CacheImpl {
 
     @Override
     public boolean safeSet(final String key, final Object value, final int expiration) {
-        final Future<Boolean> future = client.set(key, expiration, value, tc);
+        final Future<Boolean> future = client(key).set(key, expiration, value, tc);
         try {
-            return future.get(1, TimeUnit.SECONDS);
+            return future.get(timeout, TimeUnit.MILLISECONDS);
         } catch (final Exception e) {
             future.cancel(false);
         }
@@ -225,11 +438,303 @@ public class MemcachedImpl implements CacheImpl {
 
     @Override
     public void set(final String key, final Object value, final int expiration) {
-        client.set(key, expiration, value, tc);
+        client(key).set(key, expiration, value, tc);
+    }
+
+    @Override
+    public F.Promise<Boolean> addAsync(final String key, final Object value, final int expiration) {
+        return promise(client(key).add(key, expiration, value, tc), Boolean.FALSE);
+    }
+
+    @Override
+    public F.Promise<Boolean> setAsync(final String key, final Object value, final int expiration) {
+        return promise(client(key).set(key, expiration, value, tc), Boolean.FALSE);
+    }
+
+    @Override
+    public F.Promise<Boolean> replaceAsync(final String key, final Object value, final int expiration) {
+        return promise(client(key).replace(key, expiration, value, tc), Boolean.FALSE);
+    }
+
+    @Override
+    public F.Promise<Object> getAsync(final String key) {
+        final F.Promise<Object> promise = new F.Promise<Object>();
+        client(key).asyncGet(key, tc).addListener(new GetCompletionListener() {
+
+            @Override
+            public void onComplete(final GetFuture<?> future) {
+                Object result = null;
+                try {
+                    result = future.get();
+                } catch (final Exception e) {
+                    // same as get(): a failure is a miss
+                }
+                promise.invoke(result);
+            }
+        });
+        return promise;
+    }
+
+    @Override
+    public F.Promise<Map<String, Object>> getAsync(final String[] keys) {
+        final F.Promise<Map<String, Object>> promise = new F.Promise<Map<String, Object>>();
+        final Map<MemcachedClient, List<String>> stripes = stripes(keys);
+        if (stripes.isEmpty()) {
+            promise.invoke(Collections.<String, Object>emptyMap());
+            return promise;
+        }
+        final Map<String, Object> results = new ConcurrentHashMap<String, Object>();
+        final AtomicInteger remaining = new AtomicInteger(stripes.size());
+        for (final Map.Entry<MemcachedClient, List<String>> stripe : stripes.entrySet()) {
+            stripe.getKey().asyncGetBulk(stripe.getValue(), tc).addListener(new BulkGetCompletionListener() {
+
+                @Override
+                @SuppressWarnings("unchecked")
+                public void onComplete(final BulkGetFuture<?> future) {
+                    try {
+                        results.putAll((Map<String, Object>) future.get());
+                    } catch (final Exception e) {
+                        // same as get(String[]): a failure is a miss
+                    }
+                    if (remaining.decrementAndGet() == 0) {
+                        promise.invoke(new HashMap<String, Object>(results));
+                    }
+                }
+            });
+        }
+        return promise;
+    }
+
+    @Override
+    public F.Promise<Long> incrAsync(final String key, final int by) {
+        return promise(client(key).asyncIncr(key, (long) by, 0L, 0), Long.valueOf(-1));
+    }
+
+    @Override
+    public F.Promise<Long> decrAsync(final String key, final int by) {
+        return promise(client(key).asyncDecr(key, (long) by, 0L, 0), Long.valueOf(-1));
+    }
+
+    @Override
+    public F.Promise<Boolean> deleteAsync(final String key) {
+        return promise(client(key).delete(key), Boolean.FALSE);
+    }
+
+    /**
+     * Pipelines the sets: every operation is queued before waiting for any reply.
+     */
+    @Override
+    public F.Promise<Boolean> setAll(final Map<String, Object> values, final int expiration) {
+        final List<OperationFuture<Boolean>> futures = new ArrayList<OperationFuture<Boolean>>(values.size());
+        for (final Map.Entry<String, Object> entry : values.entrySet()) {
+            futures.add(client(entry.getKey()).set(entry.getKey(), expiration, entry.getValue(), tc));
+        }
+        return all(futures, false);
+    }
+
+    /**
+     * Pipelines the deletes: every operation is queued before waiting for any reply.
+     * A key already absent counts as deleted, as with the other implementations.
+     */
+    @Override
+    public F.Promise<Boolean> deleteAll(final Collection<String> keys) {
+        final List<OperationFuture<Boolean>> futures = new ArrayList<OperationFuture<Boolean>>(keys.size());
+        for (final String key : keys) {
+            futures.add(client(key).delete(key));
+        }
+        return all(futures, true);
+    }
+
+    /**
+     * Aggregate memcached operations in a single promise.
+     * @param futures The operations
+     * @param notFoundSucceeds Whether an operation on a missing key succeeded (delete)
+     * @return Redeemed with true when every operation succeeded, once the last one completes
+     */
+    private static F.Promise<Boolean> all(final List<OperationFuture<Boolean>> futures,
+            final boolean notFoundSucceeds) {
+        final F.Promise<Boolean> promise = new F.Promise<Boolean>();
+        if (futures.isEmpty()) {
+            promise.invoke(Boolean.TRUE);
+            return promise;
+        }
+        final AtomicInteger remaining = new AtomicInteger(futures.size());
+        final AtomicBoolean succeeded = new AtomicBoolean(true);
+        for (final OperationFuture<Boolean> future : futures) {
+            future.addListener(new OperationCompletionListener() {
+
+                @Override
+                public void onComplete(final OperationFuture<?> completed) {
+                    try {
+                        if (!Boolean.TRUE.equals(completed.get())
+                                && !(notFoundSucceeds && completed.getStatus().getStatusCode() == StatusCode.ERR_NOT_FOUND)) {
+                            succeeded.set(false);
+                        }
+                    } catch (final Exception e) {
+                        succeeded.set(false);
+                    }
+                    if (remaining.decrementAndGet() == 0) {
+                        promise.invoke(succeeded.get());
+                    }
+                }
+            });
+        }
+        return promise;
+    }
+
+    /**
+     * Redeem a promise when a memcached operation completes.
+     * @param future The operation
+     * @param onError Value used when the operation fails
+     */
+    private static <T> F.Promise<T> promise(final OperationFuture<T> future, final T onError) {
+        final F.Promise<T> promise = new F.Promise<T>();
+        future.addListener(new OperationCompletionListener() {
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public void onComplete(final OperationFuture<?> completed) {
+                T result = onError;
+                try {
+                    final T value = (T) completed.get();
+                    if (value != null) {
+                        result = value;
+                    }
+                } catch (final Exception e) {
+                    Logger.debug(e, "Memcached operation failed on %s", completed.getKey());
+                }
+                promise.invoke(result);
+            }
+        });
+        return promise;
+    }
+
+    /**
+     * Ask every node for its eviction count (a network round trip).
+     * @return The number of items evicted to make room on all the nodes, -1 if unknown
+     */
+    public long getEvictions() {
+        try {
+            long evictions = 0;
+            for (final Map<String, String> stats : client.getStats().values()) {
+                final String nodeEvictions = stats.get("evictions");
+                if (nodeEvictions != null) {
+                    evictions += Long.parseLong(nodeEvictions);
+                }
+            }
+            return evictions;
+        } catch (final Exception e) {
+            Logger.warn(e, "Could not read the memcached statistics");
+        }
+        return -1;
+    }
+
+    /**
+     * @return The current depth of the operation queues of every client
+     */
+    public QueueDepth getQueueDepth() {
+        return queueDepth;
     }
 
     @Override
     public void stop() {
-        client.shutdown();
+        for (final MemcachedClient pooled : clients) {
+            pooled.shutdown();
+        }
+    }
+
+    /**
+     * Operation queues of the clients, to see when they saturate. Each node of each client has
+     * an input queue (operations waiting for the I/O thread, bounded by
+     * <code>memcached.queueSize</code>), a write queue (being sent) and a read queue (sent,
+     * waiting for the reply).
+     */
+    public static final class QueueDepth {
+
+        private final int capacity;
+
+        final TrackedQueueFactory input;
+
+        final TrackedQueueFactory write = new TrackedQueueFactory(new LinkedOperationQueueFactory());
+
+        final TrackedQueueFactory read = new TrackedQueueFactory(new LinkedOperationQueueFactory());
+
+        QueueDepth(final int capacity) {
+            this.capacity = capacity;
+            this.input = new TrackedQueueFactory(new ArrayOperationQueueFactory(capacity));
+        }
+
+        /** @return The capacity of each input queue */
+        public int getCapacity() {
+            return capacity;
+        }
+
+        /** @return Operations waiting to be sent, on every node */
+        public int getInput() {
+            return input.total();
+        }
+
+        /** @return Operations waiting to be sent on the most loaded node */
+        public int getMaxInput() {
+            return input.max();
+        }
+
+        /** @return Operations being sent */
+        public int getWrite() {
+            return write.total();
+        }
+
+        /** @return Operations sent, waiting for their reply */
+        public int getRead() {
+            return read.total();
+        }
+
+        /** @return Fill ratio of the fullest input queue: when close to 1, operations block then time out */
+        public double getSaturation() {
+            return capacity == 0 ? 0d : (double) getMaxInput() / capacity;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d queued (max %d/%d per node), %d writing, %d awaiting reply",
+                    getInput(), getMaxInput(), capacity, getWrite(), getRead());
+        }
+    }
+
+    /**
+     * Keeps the queues it creates, to measure them.
+     */
+    static final class TrackedQueueFactory implements OperationQueueFactory {
+
+        private final OperationQueueFactory delegate;
+
+        private final List<BlockingQueue<Operation>> queues = new CopyOnWriteArrayList<BlockingQueue<Operation>>();
+
+        TrackedQueueFactory(final OperationQueueFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public BlockingQueue<Operation> create() {
+            final BlockingQueue<Operation> queue = delegate.create();
+            queues.add(queue);
+            return queue;
+        }
+
+        int total() {
+            int total = 0;
+            for (final BlockingQueue<Operation> queue : queues) {
+                total += queue.size();
+            }
+            return total;
+        }
+
+        int max() {
+            int max = 0;
+            for (final BlockingQueue<Operation> queue : queues) {
+                max = Math.max(max, queue.size());
+            }
+            return max;
+        }
     }
 }
@@ -0,0 +1,336 @@
+package play.cache;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import play.Logger;
+import play.exceptions.UnexpectedException;
+import play.libs.Codec;
+
+/**
+ * Caches method results as declared by {@link CacheFor}.
+ *
+ * <p>Through a proxy:</p>
+ * <pre>
+ * public interface Rates {
+ *     &#64;CacheFor("10mn")
+ *     BigDecimal rate(String from, String to);
+ * }
+ * Rates rates = Memoizer.memoize(Rates.class, new HttpRates());
+ * </pre>
+ *
+ * <p>or explicitly: <code>Memoizer.call("rates", "10mn", loader, from, to)</code>.</p>
+ *
+ * <p>The key is the id of the annotation (the method signature by default) followed by the
+ * arguments. Strings, numbers, booleans, characters and enums are written as is, other
+ * arguments are serialized with a private {@link BinaryCodec} (not counted in the codec
+ * statistics, and independent of <code>cache.codec</code>) and hashed. Keys too long or not valid
+ * for memcached are hashed. Values are loaded with {@link Cache#getOrCompute}: concurrent
+ * misses run the method once, and a null result isn't cached.</p>
+ */
+public final class Memoizer {
+
+    /** Longest key stored as is. */
+    private static final int MAX_KEY_LENGTH = 200;
+
+    private static final ConcurrentMap<String, Statistics> statistics = new ConcurrentHashMap<String, Statistics>();
+
+    /** Serializes the arguments to hash, without compression. */
+    private static final CacheCodec argumentCodec = new BinaryCodec(0);
+
+    private static final ConcurrentMap<Method, Memoized> methods = new ConcurrentHashMap<Method, Memoized>();
+
+    private Memoizer() {
+    }
+
+    /**
+     * Wrap an object so that its methods annotated with {@link CacheFor} (on the interface
+     * or on the implementation) are cached.
+     * @param <T> The interface type
+     * @param type The interface of the object
+     * @param target The object
+     * @return A proxy implementing type
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T memoize(final Class<T> type, final T target) {
+        if (!type.isInterface()) {
+            throw new IllegalArgumentException(type.getName() + " is not an interface");
+        }
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, new InvocationHandler() {
+
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                final Memoized memoized = memoized(method, target);
+                if (memoized == null) {
+                    try {
+                        return method.invoke(target, args);
+                    } catch (final InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                }
+                try {
+                    return call(memoized.id, memoized.expiration, new Callable<Object>() {
+
+                        @Override
+                        public Object call() throws Exception {
+                            try {
+                                return method.invoke(target, args);
+                            } catch (final InvocationTargetException e) {
+                                if (e.getCause() instanceof Exception) {
+                                    throw (Exception) e.getCause();
+                                }
+                                throw e;
+                            }
+                        }
+                    }, args == null ? new Object[0] : args);
+                } catch (final UnexpectedException e) {
+                    // checked exceptions declared by the method are thrown as is
+                    for (final Class<?> declared : method.getExceptionTypes()) {
+                        if (declared.isInstance(e.getCause())) {
+                            throw e.getCause();
+                        }
+                    }
+                    throw e;
+                }
+            }
+        });
+    }
+
+    /**
+     * Get a cached result, computing it on a miss.
+     * @param <T> The result type
+     * @param id Identifies the computation, first part of the key
+     * @param expiration Ex: 10s, 3mn, 8h
+     * @param loader Computes the result on a miss
+     * @param args The arguments of the computation, last part of the key
+     * @return The cached or computed result
+     */
+    public static <T> T call(final String id, final String expiration, final Callable<T> loader,
+            final Object... args) {
+        final Statistics stats = statistics(id);
+        stats.calls.increment();
+        final String key;
+        try {
+            key = key(id, args);
+        } catch (final IOException e) {
+            stats.uncached.increment();
+            Logger.warn(e, "Could not build the cache key of %s, calling it without cache", id);
+            try {
+                return loader.call();
+            } catch (final RuntimeException e2) {
+                throw e2;
+            } catch (final Exception e2) {
+                throw new UnexpectedException(e2);
+            }
+        }
+        return Cache.getOrCompute(key, expiration, new Callable<T>() {
+
+            @Override
+            public T call() throws Exception {
+                stats.misses.increment();
+                return loader.call();
+            }
+        });
+    }
+
+    /**
+     * Build the cache key of a computation.
+     * @param id Identifies the computation
+     * @param args The arguments of the computation
+     * @return The key
+     * @throws IOException When an argument can't be serialized
+     */
+    public static String key(final String id, final Object... args) throws IOException {
+        final StringBuilder key = new StringBuilder(id.length() + 16 * args.length).append(id);
+        for (final Object arg : args) {
+            key.append('|');
+            if (arg == null) {
+                key.append('n');
+            } else if (arg instanceof String) {
+                // the length avoids any ambiguity with the separator
+                final String s = (String) arg;
+                key.append('s').append(s.length()).append(':').append(s);
+            } else if (arg instanceof Number || arg instanceof Boolean || arg instanceof Character) {
+                key.append(arg.getClass().getSimpleName()).append(arg);
+            } else if (arg instanceof Enum) {
+                key.append('e').append(((Enum<?>) arg).name());
+            } else {
+                key.append('h').append(hash(argumentCodec.encode(arg)));
+            }
+        }
+        if (key.length() > MAX_KEY_LENGTH || !isValid(key)) {
+            final String hash = hash(key.toString().getBytes(StandardCharsets.UTF_8));
+            return id.length() + hash.length() < MAX_KEY_LENGTH && isValid(id) ? id + "#" + hash : hash;
+        }
+        return key.toString();
+    }
+
+    /**
+     * memcached keys can't hold spaces or control characters.
+     */
+    private static boolean isValid(final CharSequence key) {
+        for (int i = 0; i < key.length(); i++) {
+            final char c = key.charAt(i);
+            if (c <= ' ' || c == 0x7f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String hash(final byte[] data) {
+        try {
+            return Codec.byteToHexString(MessageDigest.getInstance("SHA-1").digest(data));
+        } catch (final NoSuchAlgorithmException e) {
+            throw new UnexpectedException(e);
+        }
+    }
+
+    /**
+     * @return The annotation settings of a method, null when it isn't cached
+     */
+    private static Memoized memoized(final Method method, final Object target) {
+        Memoized memoized = methods.get(method);
+        if (memoized == null) {
+            CacheFor cacheFor = method.getAnnotation(CacheFor.class);
+            if (cacheFor == null) {
+                try {
+                    cacheFor = target.getClass().getMethod(method.getName(), method.getParameterTypes())
+                            .getAnnotation(CacheFor.class);
+                } catch (final NoSuchMethodException e) {
+                    // not public in the implementation
+                }
+            }
+            memoized = cacheFor == null ? Memoized.NONE : new Memoized(id(method, cacheFor), cacheFor.value());
+            methods.putIfAbsent(method, memoized);
+        }
+        return memoized == Memoized.NONE ? null : memoized;
+    }
+
+    private static String id(final Method method, final CacheFor cacheFor) {
+        if (!cacheFor.id().isEmpty()) {
+            return cacheFor.id();
+        }
+        final StringBuilder id = new StringBuilder(method.getDeclaringClass().getName())
+                .append('.').append(method.getName()).append('(');
+        final Class<?>[] parameterTypes = method.getParameterTypes();
+        for (int i = 0; i < parameterTypes.length; i++) {
+            if (i > 0) {
+                id.append(',');
+            }
+            id.append(parameterTypes[i].getTypeName());
+        }
+        return id.append(')').toString();
+    }
+
+    /**
+     * @param id A computation id
+     * @return The statistics of this computation
+     */
+    public static Statistics statistics(final String id) {
+        Statistics stats = statistics.get(id);
+        if (stats == null) {
+            final Statistics created = new Statistics();
+            stats = statistics.putIfAbsent(id, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * @return The statistics of every computation called so far, by id
+     */
+    public static Map<String, Statistics> statistics() {
+        return new TreeMap<String, Statistics>(statistics);
+    }
+
+    /**
+     * Display the hit ratio of every cached computation.
+     * @return A text report
+     */
+    public static String getStatus() {
+        final StringWriter sw = new StringWriter();
+        final PrintWriter out = new PrintWriter(sw);
+        out.println("Memoized methods:");
+        out.println("~~~~~~~~~~~~~~~~~");
+        for (final Map.Entry<String, Statistics> entry : statistics().entrySet()) {
+            out.println(entry.getKey() + ": " + entry.getValue());
+        }
+        return sw.toString();
+    }
+
+    /**
+     * Settings of a method annotated with CacheFor.
+     */
+    private static final class Memoized {
+
+        /** Marks methods without annotation. */
+        static final Memoized NONE = new Memoized(null, null);
+
+        final String id;
+        final String expiration;
+
+        Memoized(final String id, final String expiration) {
+            this.id = id;
+            this.expiration = expiration;
+        }
+    }
+
+    /**
+     * Calls and misses of a cached computation.
+     */
+    public static final class Statistics {
+
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder uncached = new LongAdder();
+
+        /** @return Number of calls */
+        public long getCalls() {
+            return calls.sum();
+        }
+
+        /** @return Calls which computed the result */
+        public long getMisses() {
+            return misses.sum();
+        }
+
+        /** @return Calls served from the cache */
+        public long getHits() {
+            return Math.max(0, getCalls() - getMisses() - getUncached());
+        }
+
+        /** @return Calls computed without cache, their key couldn't be built */
+        public long getUncached() {
+            return uncached.sum();
+        }
+
+        /** @return Hits over calls, 0 without call */
+        public double getHitRatio() {
+            final long calls = getCalls();
+            return calls == 0 ? 0d : (double) getHits() / calls;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d call(s), %d hit(s), %d miss(es), %d uncached, hit ratio %.2f",
+                    getCalls(), getHits(), getMisses(), getUncached(), getHitRatio());
+        }
+    }
+}
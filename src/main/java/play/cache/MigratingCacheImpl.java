@@ -0,0 +1,432 @@
+package play.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import play.Logger;
+import play.jobs.JobThreadFactory;
+import play.libs.ws.F;
+
+/**
+ * Migration window between two implementations, see {@link Cache#migrate(CacheImpl, int)}.
+ *
+ * <p>Every write goes to both implementations, so that the source stays up to date. Reads go
+ * to the target first and fall back to the source; the keys found in the source are copied
+ * to the target in background, hottest first as they are the ones read. A source able to
+ * list its entries (EhCache, off-heap cache) is also copied entirely at the start, with the
+ * actual expirations. The keys copied after a read keep <code>copyExpiration</code> seconds,
+ * their expiration being unknown. Copies never overwrite a value written meanwhile, and a
+ * copy racing with a delete of its key is undone. Deletes are synchronous on the source.</p>
+ *
+ * <p>Counters missing on the target start from their value on the source, unless the target
+ * creates them on incr (memcached).</p>
+ *
+ * expiration is specified in seconds
+ */
+public class MigratingCacheImpl implements CacheImpl, CacheDecorator {
+
+    /** Keys waiting to be copied. */
+    private static final int COPY_QUEUE_SIZE = 10000;
+
+    private final CacheImpl source;
+
+    private final CacheImpl target;
+
+    private final long windowNanos;
+
+    private final int copyExpiration;
+
+    private final Runnable onComplete;
+
+    private final BlockingQueue<String> copyQueue = new ArrayBlockingQueue<String>(COPY_QUEUE_SIZE);
+
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+
+    /** Keys written during the copy of the source entries: not overwritten by the copy. */
+    private volatile Set<String> touched;
+
+    private volatile boolean clearedDuringCopy;
+
+    /** Key being copied after a read. */
+    private volatile String copying;
+
+    /** Whether the key being copied was deleted meanwhile: the copy is undone. */
+    private volatile boolean copyDeleted;
+
+    private final Thread copier;
+
+    private volatile boolean stopped;
+
+    private final LongAdder sourceHits = new LongAdder();
+
+    private final LongAdder copied = new LongAdder();
+
+    private volatile int copiedEntries;
+
+    /**
+     * @param source The current implementation
+     * @param target The new implementation
+     * @param window Duration of the migration, in seconds
+     * @param copyExpiration Expiration of the values copied after a read, in seconds
+     * @param onComplete Called by the copy thread at the end of the window
+     */
+    public MigratingCacheImpl(final CacheImpl source, final CacheImpl target, final int window,
+            final int copyExpiration, final Runnable onComplete) {
+        this.source = source;
+        this.target = target;
+        this.windowNanos = TimeUnit.SECONDS.toNanos(window);
+        this.copyExpiration = copyExpiration;
+        this.onComplete = onComplete;
+        this.copier = new JobThreadFactory("cache-migration").newThread(new Runnable() {
+
+            @Override
+            public void run() {
+                copyLoop();
+            }
+        });
+        this.copier.setDaemon(true);
+    }
+
+    /**
+     * Start the window: copy the source entries, then the keys read, until the end.
+     */
+    void start() {
+        if (Cache.unwrap(source, CacheSnapshot.Source.class, false) != null) {
+            touched = ConcurrentHashMap.newKeySet();
+        }
+        copier.start();
+    }
+
+    /** @return The current implementation */
+    public CacheImpl getSource() {
+        return source;
+    }
+
+    /** @return The new implementation */
+    public CacheImpl getTarget() {
+        return target;
+    }
+
+    /** @return The new implementation, the source being only read until the end of the window */
+    @Override
+    public CacheImpl getDelegate() {
+        return target;
+    }
+
+    private void copyLoop() {
+        final long deadline = System.nanoTime() + windowNanos;
+        if (touched != null) {
+            copyEntries();
+            touched = null;
+        }
+        try {
+            long remaining;
+            while (!stopped && (remaining = deadline - System.nanoTime()) > 0) {
+                final String key = copyQueue.poll(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(100)),
+                        TimeUnit.NANOSECONDS);
+                if (key != null) {
+                    queued.remove(key);
+                    copy(key);
+                }
+            }
+        } catch (final InterruptedException e) {
+            return;
+        }
+        if (!stopped) {
+            Logger.info("Cache migration complete: %s", this);
+            onComplete.run();
+        }
+    }
+
+    /**
+     * Copy every entry of the source through a snapshot, with their expiration.
+     */
+    private void copyEntries() {
+        File file = null;
+        try {
+            file = File.createTempFile("cache-migration", ".snapshot");
+            CacheSnapshot.write(Cache.unwrap(source, CacheSnapshot.Source.class, true), file);
+            copiedEntries = CacheSnapshot.load(file, target, new Predicate<String>() {
+
+                @Override
+                public boolean test(final String key) {
+                    final Set<String> keys = touched;
+                    return clearedDuringCopy || keys != null && keys.contains(key);
+                }
+            });
+            Logger.info("Cache migration: %s entries copied", copiedEntries);
+        } catch (final IOException e) {
+            Logger.error(e, "Could not copy the cache entries, only the keys read will be");
+        } finally {
+            if (file != null) {
+                file.delete();
+            }
+        }
+    }
+
+    private void copy(final String key) {
+        copyDeleted = false;
+        copying = key;
+        try {
+            final Object value = source.get(key);
+            if (value != null && target.safeAdd(key, value, copyExpiration)) {
+                if (copyDeleted) {
+                    target.delete(key);
+                } else {
+                    copied.increment();
+                }
+            }
+        } catch (final RuntimeException e) {
+            Logger.warn(e, "Could not copy %s to the new cache", key);
+        } finally {
+            copying = null;
+        }
+    }
+
+    /**
+     * Deletion by prefix on both implementations, the source first as delete.
+     * @param flush Apply the writes pending in a write-behind decorator first
+     * @return null when one of them can't delete by prefix
+     */
+    PrefixDeletion prefixDeletion(final boolean flush) {
+        final PrefixDeletion sourceDeletion = Cache.prefixDeletion(source, flush);
+        final PrefixDeletion targetDeletion = Cache.prefixDeletion(target, flush);
+        if (sourceDeletion == null || targetDeletion == null) {
+            return null;
+        }
+        return new PrefixDeletion() {
+
+            @Override
+            public int deleteByPrefix(final String prefix) {
+                sourceDeletion.deleteByPrefix(prefix);
+                final String key = copying;
+                if (key != null && key.startsWith(prefix)) {
+                    copyDeleted = true;
+                }
+                return targetDeletion.deleteByPrefix(prefix);
+            }
+        };
+    }
+
+    /**
+     * Called once a key is deleted from the source, before it is deleted from the target:
+     * a copy which read the value before is undone.
+     */
+    private void deleted(final String key) {
+        if (key.equals(copying)) {
+            copyDeleted = true;
+        }
+    }
+
+    private void enqueueCopy(final String key) {
+        if (queued.add(key) && !copyQueue.offer(key)) {
+            queued.remove(key);
+        }
+    }
+
+    private void touch(final String key) {
+        final Set<String> keys = touched;
+        if (keys != null) {
+            keys.add(key);
+        }
+    }
+
+    @Override
+    public Object get(final String key) {
+        final Object value = target.get(key);
+        if (value != null) {
+            return value;
+        }
+        final Object previous = source.get(key);
+        if (previous != null) {
+            sourceHits.increment();
+            enqueueCopy(key);
+        }
+        return previous;
+    }
+
+    @Override
+    public Map<String, Object> get(final String[] keys) {
+        final Map<String, Object> values = new HashMap<String, Object>(target.get(keys));
+        final List<String> missing = new ArrayList<String>();
+        for (final String key : keys) {
+            if (values.get(key) == null) {
+                missing.add(key);
+            }
+        }
+        if (!missing.isEmpty()) {
+            for (final Map.Entry<String, Object> entry : source.get(missing.toArray(new String[missing.size()])).entrySet()) {
+                if (entry.getValue() != null) {
+                    sourceHits.increment();
+                    enqueueCopy(entry.getKey());
+                    values.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public void add(final String key, final Object value, final int expiration) {
+        touch(key);
+        target.add(key, value, expiration);
+        source.add(key, value, expiration);
+    }
+
+    @Override
+    public boolean safeAdd(final String key, final Object value, final int expiration) {
+        touch(key);
+        source.add(key, value, expiration);
+        return target.safeAdd(key, value, expiration);
+    }
+
+    @Override
+    public void set(final String key, final Object value, final int expiration) {
+        touch(key);
+        target.set(key, value, expiration);
+        source.set(key, value, expiration);
+    }
+
+    @Override
+    public boolean safeSet(final String key, final Object value, final int expiration) {
+        touch(key);
+        source.set(key, value, expiration);
+        return target.safeSet(key, value, expiration);
+    }
+
+    @Override
+    public void replace(final String key, final Object value, final int expiration) {
+        touch(key);
+        target.replace(key, value, expiration);
+        source.replace(key, value, expiration);
+    }
+
+    @Override
+    public boolean safeReplace(final String key, final Object value, final int expiration) {
+        touch(key);
+        source.replace(key, value, expiration);
+        return target.safeReplace(key, value, expiration);
+    }
+
+    @Override
+    public long incr(final String key, final int by) {
+        touch(key);
+        return counter(key, source.incr(key, by), target.incr(key, by));
+    }
+
+    @Override
+    public long decr(final String key, final int by) {
+        touch(key);
+        return counter(key, source.decr(key, by), target.decr(key, by));
+    }
+
+    /**
+     * @return The target value, seeded from the source when missing
+     */
+    private long counter(final String key, final long sourceValue, final long targetValue) {
+        if (targetValue >= 0 || sourceValue < 0) {
+            return targetValue;
+        }
+        target.safeAdd(key, sourceValue, copyExpiration);
+        return sourceValue;
+    }
+
+    @Override
+    public void delete(final String key) {
+        touch(key);
+        // the source first, synchronously: a copy can't read the value once the target is deleted
+        source.safeDelete(key);
+        deleted(key);
+        target.delete(key);
+    }
+
+    @Override
+    public boolean safeDelete(final String key) {
+        touch(key);
+        final boolean deleted = source.safeDelete(key);
+        deleted(key);
+        return target.safeDelete(key) || deleted;
+    }
+
+    @Override
+    public void clear() {
+        clearedDuringCopy = touched != null;
+        source.clear();
+        copyDeleted = true;
+        target.clear();
+    }
+
+    @Override
+    public F.Promise<Boolean> setAll(final Map<String, Object> values, final int expiration) {
+        for (final String key : values.keySet()) {
+            touch(key);
+        }
+        source.setAll(values, expiration);
+        return target.setAll(values, expiration);
+    }
+
+    @Override
+    public F.Promise<Boolean> deleteAll(final Collection<String> keys) {
+        for (final String key : keys) {
+            touch(key);
+        }
+        // synchronous on the source, as delete
+        try {
+            source.deleteAll(keys).get(1, TimeUnit.MINUTES);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final ExecutionException | TimeoutException e) {
+            Logger.warn(e, "Could not delete %s keys from the previous cache, deleting them one by one", keys.size());
+            for (final String key : keys) {
+                source.safeDelete(key);
+            }
+        }
+        for (final String key : keys) {
+            deleted(key);
+        }
+        return target.deleteAll(keys);
+    }
+
+    @Override
+    public void stop() {
+        stopped = true;
+        copier.interrupt();
+        target.stop();
+        source.stop();
+    }
+
+    /** @return Reads served by the source */
+    public long getSourceHits() {
+        return sourceHits.sum();
+    }
+
+    /** @return Keys copied after a read */
+    public long getCopied() {
+        return copied.sum();
+    }
+
+    /** @return Entries copied from the listing of the source */
+    public int getCopiedEntries() {
+        return copiedEntries;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s entries copied, %d read from the source, %d copied after a read",
+                getCopiedEntries(), getSourceHits(), getCopied());
+    }
+}
@@ -0,0 +1,458 @@
+package play.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import play.libs.ws.F;
+
+/**
+ * Two-level cache: a bounded in-process tier in front of a remote implementation
+ * (usually memcached).
+ *
+ * <p>Values read from the remote tier are kept locally for at most <code>staleness</code>
+ * seconds, so the hottest keys are served without a network round-trip nor a
+ * deserialization. The local tier is bounded by entry count and evicts the least
+ * recently used entries first.</p>
+ *
+ * <p>Every mutation made through this instance (set, add, replace, delete, incr, decr...)
+ * invalidates the local copy before reaching the remote tier, and again once the remote
+ * write completes so that a concurrent read can't keep the former value. Mutations made
+ * by other nodes are visible after at most <code>staleness</code> seconds.</p>
+ *
+ * expiration is specified in seconds
+ */
+public class NearCacheImpl implements CacheImpl, AsyncCacheImpl, CacheDecorator {
+
+    /** Number of independently locked segments of the local tier. */
+    private static final int SEGMENTS = 16;
+
+    final CacheImpl remote;
+
+    final long stalenessNanos;
+
+    private final Segment[] segments;
+
+    /**
+     * @param remote The cache implementation fronted by the local tier
+     * @param maxEntries Maximum number of entries kept locally
+     * @param staleness Maximum time (in seconds) a local copy may be served
+     */
+    public NearCacheImpl(final CacheImpl remote, final int maxEntries, final int staleness) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+        }
+        this.remote = remote;
+        this.stalenessNanos = TimeUnit.SECONDS.toNanos(staleness);
+        this.segments = new Segment[SEGMENTS];
+        final int perSegment = Math.max(1, (maxEntries + SEGMENTS - 1) / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+    }
+
+    /**
+     * @return The remote (second level) cache implementation
+     */
+    public CacheImpl getRemote() {
+        return remote;
+    }
+
+    /**
+     * @return The remote cache implementation
+     */
+    @Override
+    public CacheImpl getDelegate() {
+        return remote;
+    }
+
+    private Segment segmentFor(final String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (SEGMENTS - 1)];
+    }
+
+    @Override
+    public Object get(final String key) {
+        final Segment segment = segmentFor(key);
+        final Object local = segment.get(key);
+        if (local != null) {
+            return local;
+        }
+        final long generation = segment.generation();
+        final Object value = remote.get(key);
+        if (value != null) {
+            segment.putIfGeneration(key, value, System.nanoTime() + stalenessNanos, generation);
+        }
+        return value;
+    }
+
+    @Override
+    public Map<String, Object> get(final String[] keys) {
+        final Map<String, Object> result = new HashMap<String, Object>(keys.length);
+        final Map<String, Long> missing = new HashMap<String, Long>(keys.length);
+        for (final String key : keys) {
+            final Segment segment = segmentFor(key);
+            final Object local = segment.get(key);
+            if (local != null) {
+                result.put(key, local);
+            } else {
+                missing.put(key, segment.generation());
+            }
+        }
+        if (missing.isEmpty()) {
+            return result;
+        }
+        final Map<String, Object> fetched = remote.get(missing.keySet().toArray(new String[missing.size()]));
+        final long expiresAt = System.nanoTime() + stalenessNanos;
+        for (final Map.Entry<String, Object> entry : fetched.entrySet()) {
+            if (entry.getValue() == null) {
+                continue;
+            }
+            final Long generation = missing.get(entry.getKey());
+            if (generation != null) {
+                segmentFor(entry.getKey()).putIfGeneration(entry.getKey(), entry.getValue(), expiresAt, generation);
+            }
+            result.put(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    @Override
+    public void add(final String key, final Object value, final int expiration) {
+        invalidate(key);
+        // not awaited: the local copy is dropped again once the remote write completes
+        invalidateOnRedeem(key, BlockingAsyncCacheImpl.of(remote).addAsync(key, value, expiration));
+    }
+
+    @Override
+    public boolean safeAdd(final String key, final Object value, final int expiration) {
+        invalidate(key);
+        try {
+            return remote.safeAdd(key, value, expiration);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public void set(final String key, final Object value, final int expiration) {
+        invalidate(key);
+        invalidateOnRedeem(key, BlockingAsyncCacheImpl.of(remote).setAsync(key, value, expiration));
+    }
+
+    @Override
+    public boolean safeSet(final String key, final Object value, final int expiration) {
+        invalidate(key);
+        try {
+            return remote.safeSet(key, value, expiration);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public void replace(final String key, final Object value, final int expiration) {
+        invalidate(key);
+        invalidateOnRedeem(key, BlockingAsyncCacheImpl.of(remote).replaceAsync(key, value, expiration));
+    }
+
+    @Override
+    public boolean safeReplace(final String key, final Object value, final int expiration) {
+        invalidate(key);
+        try {
+            return remote.safeReplace(key, value, expiration);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public long incr(final String key, final int by) {
+        invalidate(key);
+        try {
+            return remote.incr(key, by);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public long decr(final String key, final int by) {
+        invalidate(key);
+        try {
+            return remote.decr(key, by);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public void delete(final String key) {
+        invalidate(key);
+        invalidateOnRedeem(key, BlockingAsyncCacheImpl.of(remote).deleteAsync(key));
+    }
+
+    @Override
+    public boolean safeDelete(final String key) {
+        invalidate(key);
+        try {
+            return remote.safeDelete(key);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public void clear() {
+        invalidateAll();
+        remote.clear();
+    }
+
+    @Override
+    public void stop() {
+        invalidateAll();
+        remote.stop();
+    }
+
+    @Override
+    public F.Promise<Boolean> setAll(final Map<String, Object> values, final int expiration) {
+        for (final String key : values.keySet()) {
+            invalidate(key);
+        }
+        return invalidateOnRedeem(new ArrayList<String>(values.keySet()), remote.setAll(values, expiration));
+    }
+
+    @Override
+    public F.Promise<Boolean> deleteAll(final Collection<String> keys) {
+        for (final String key : keys) {
+            invalidate(key);
+        }
+        return invalidateOnRedeem(keys, remote.deleteAll(keys));
+    }
+
+    @Override
+    public F.Promise<Boolean> addAsync(final String key, final Object value, final int expiration) {
+        invalidate(key);
+        return invalidateOnRedeem(key, BlockingAsyncCacheImpl.of(remote).addAsync(key, value, expiration));
+    }
+
+    @Override
+    public F.Promise<Boolean> setAsync(final String key, final Object value, final int expiration) {
+        invalidate(key);
+        return invalidateOnRedeem(key, BlockingAsyncCacheImpl.of(remote).setAsync(key, value, expiration));
+    }
+
+    @Override
+    public F.Promise<Boolean> replaceAsync(final String key, final Object value, final int expiration) {
+        invalidate(key);
+        return invalidateOnRedeem(key, BlockingAsyncCacheImpl.of(remote).replaceAsync(key, value, expiration));
+    }
+
+    @Override
+    public F.Promise<Object> getAsync(final String key) {
+        final Segment segment = segmentFor(key);
+        final Object local = segment.get(key);
+        if (local != null) {
+            return BlockingAsyncCacheImpl.redeemed(local);
+        }
+        final long generation = segment.generation();
+        final F.Promise<Object> remoteValue = BlockingAsyncCacheImpl.of(remote).getAsync(key);
+        remoteValue.onRedeem(new F.Action<F.Promise<Object>>() {
+
+            @Override
+            public void invoke(final F.Promise<Object> completed) {
+                final Object value = completed.getOrNull();
+                if (value != null) {
+                    segment.putIfGeneration(key, value, System.nanoTime() + stalenessNanos, generation);
+                }
+            }
+        });
+        return remoteValue;
+    }
+
+    @Override
+    public F.Promise<Map<String, Object>> getAsync(final String[] keys) {
+        final Map<String, Object> result = new HashMap<String, Object>(keys.length);
+        final Map<String, Long> missing = new HashMap<String, Long>(keys.length);
+        for (final String key : keys) {
+            final Segment segment = segmentFor(key);
+            final Object local = segment.get(key);
+            if (local != null) {
+                result.put(key, local);
+            } else {
+                missing.put(key, segment.generation());
+            }
+        }
+        if (missing.isEmpty()) {
+            return BlockingAsyncCacheImpl.redeemed(result);
+        }
+        final F.Promise<Map<String, Object>> promise = new F.Promise<Map<String, Object>>();
+        BlockingAsyncCacheImpl.of(remote).getAsync(missing.keySet().toArray(new String[missing.size()]))
+                .onRedeem(new F.Action<F.Promise<Map<String, Object>>>() {
+
+            @Override
+            public void invoke(final F.Promise<Map<String, Object>> completed) {
+                final long expiresAt = System.nanoTime() + stalenessNanos;
+                for (final Map.Entry<String, Object> entry : completed.getOrNull().entrySet()) {
+                    if (entry.getValue() == null) {
+                        continue;
+                    }
+                    final Long generation = missing.get(entry.getKey());
+                    if (generation != null) {
+                        segmentFor(entry.getKey()).putIfGeneration(
+                                entry.getKey(), entry.getValue(), expiresAt, generation);
+                    }
+                    result.put(entry.getKey(), entry.getValue());
+                }
+                promise.invoke(result);
+            }
+        });
+        return promise;
+    }
+
+    @Override
+    public F.Promise<Long> incrAsync(final String key, final int by) {
+        invalidate(key);
+        return invalidateOnRedeem(key, BlockingAsyncCacheImpl.of(remote).incrAsync(key, by));
+    }
+
+    @Override
+    public F.Promise<Long> decrAsync(final String key, final int by) {
+        invalidate(key);
+        return invalidateOnRedeem(key, BlockingAsyncCacheImpl.of(remote).decrAsync(key, by));
+    }
+
+    @Override
+    public F.Promise<Boolean> deleteAsync(final String key) {
+        invalidate(key);
+        return invalidateOnRedeem(key, BlockingAsyncCacheImpl.of(remote).deleteAsync(key));
+    }
+
+    /**
+     * Drop the local copy again once a remote write completes: a read made while the write
+     * was in flight may have kept the former value.
+     */
+    private <T> F.Promise<T> invalidateOnRedeem(final String key, final F.Promise<T> write) {
+        return invalidateOnRedeem(Collections.singleton(key), write);
+    }
+
+    private <T> F.Promise<T> invalidateOnRedeem(final Collection<String> keys, final F.Promise<T> write) {
+        write.onRedeem(new F.Action<F.Promise<T>>() {
+
+            @Override
+            public void invoke(final F.Promise<T> completed) {
+                for (final String key : keys) {
+                    invalidate(key);
+                }
+            }
+        });
+        return write;
+    }
+
+    /**
+     * Drop the local copy of an element, the remote tier is left untouched.
+     * @param key The element key
+     */
+    public void invalidate(final String key) {
+        segmentFor(key).remove(key);
+    }
+
+    /**
+     * Drop every local copy, the remote tier is left untouched.
+     */
+    public void invalidateAll() {
+        for (final Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * @return The number of elements currently held by the local tier (expired ones included)
+     */
+    public int localSize() {
+        int size = 0;
+        for (final Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * A local copy and the time (System.nanoTime) after which it must not be served.
+     */
+    private static final class LocalEntry {
+        final Object value;
+        final long expiresAt;
+
+        LocalEntry(final Object value, final long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * LRU segment of the local tier.
+     *
+     * <p>The generation is bumped on every invalidation, so a value fetched from the remote
+     * tier while a concurrent write was in flight is never published locally.</p>
+     */
+    private static final class Segment {
+
+        private final LinkedHashMap<String, LocalEntry> entries;
+
+        private long generation = 0;
+
+        Segment(final int capacity) {
+            this.entries = new LinkedHashMap<String, LocalEntry>(16, 0.75f, true) {
+
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, LocalEntry> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        synchronized Object get(final String key) {
+            final LocalEntry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expiresAt - System.nanoTime() <= 0) {
+                entries.remove(key);
+                return null;
+            }
+            return entry.value;
+        }
+
+        synchronized long generation() {
+            return generation;
+        }
+
+        synchronized void putIfGeneration(final String key, final Object value, final long expiresAt, final long expected) {
+            if (generation == expected) {
+                entries.put(key, new LocalEntry(value, expiresAt));
+            }
+        }
+
+        synchronized void remove(final String key) {
+            generation++;
+            entries.remove(key);
+        }
+
+        synchronized void clear() {
+            generation++;
+            entries.clear();
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+    }
+}
@@ -0,0 +1,595 @@
+package play.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import play.Logger;
+
+/**
+ * Local cache keeping the values out of the Java heap.
+ *
+ * <p>Values are encoded with a {@link CacheCodec} and stored in direct (or memory-mapped)
+ * ByteBuffer segments, so a large cache doesn't lengthen the GC pauses. Only the index
+ * (keys and block numbers) stays on the heap.</p>
+ *
+ * <p>Each segment is split in fixed size blocks, a value taking as many chained blocks as
+ * needed. When a segment is full, its expired entries are dropped first (a sweep of the
+ * index, only run once an entry may have expired); if that is not enough, entries are
+ * evicted with the CLOCK algorithm: recently read entries get a second chance.</p>
+ *
+ * <p>{@link #stop()} frees the storage; the cache is empty and refuses the writes afterwards.</p>
+ *
+ * <p>As EhCacheImpl, incr and decr return -1 on a missing key. An incremented element
+ * keeps its expiration date. An expiration of 0 second or less means no expiration.</p>
+ *
+ * expiration is specified in seconds
+ */
+public class OffHeapCacheImpl implements CacheImpl, PrefixDeletion, CacheSnapshot.Source {
+
+    /** Number of independently locked segments. */
+    private static final int SEGMENTS = 16;
+
+    private final CacheCodec codec;
+
+    private final Segment[] segments;
+
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param capacity Total size of the value storage, in bytes
+     * @param blockSize Allocation unit, in bytes: about the size of the smallest values
+     * @param codec Encodes the values
+     * @param file When not null, the storage is memory-mapped on this file instead of direct memory
+     * @throws IOException When the file can't be mapped
+     */
+    public OffHeapCacheImpl(final long capacity, final int blockSize, final CacheCodec codec, final File file)
+            throws IOException {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("blockSize must be positive: " + blockSize);
+        }
+        final long segmentCapacity = capacity / SEGMENTS / blockSize * blockSize;
+        if (segmentCapacity < blockSize || segmentCapacity > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Bad off-heap cache capacity: " + capacity);
+        }
+        this.codec = codec;
+        this.segments = new Segment[SEGMENTS];
+        if (file == null) {
+            for (int i = 0; i < SEGMENTS; i++) {
+                segments[i] = new Segment(ByteBuffer.allocateDirect((int) segmentCapacity), blockSize);
+            }
+        } else {
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(segmentCapacity * SEGMENTS);
+                final FileChannel channel = raf.getChannel();
+                for (int i = 0; i < SEGMENTS; i++) {
+                    segments[i] = new Segment(
+                            channel.map(FileChannel.MapMode.READ_WRITE, i * segmentCapacity, segmentCapacity),
+                            blockSize);
+                }
+            } finally {
+                // the mappings stay valid once the file is closed
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * Parse a size: 1024, 64kb, 512mb, 2gb...
+     * @param size The size
+     * @return The number of bytes
+     */
+    public static long parseSize(final String size) {
+        final String s = size.trim().toLowerCase();
+        final String number = s.replaceAll("[^0-9]", "");
+        final String unit = s.replaceAll("[0-9\\s]", "");
+        final long value = Long.parseLong(number);
+        if (unit.isEmpty() || "b".equals(unit)) {
+            return value;
+        } else if ("k".equals(unit) || "kb".equals(unit)) {
+            return value * 1024L;
+        } else if ("m".equals(unit) || "mb".equals(unit)) {
+            return value * 1024L * 1024L;
+        } else if ("g".equals(unit) || "gb".equals(unit)) {
+            return value * 1024L * 1024L * 1024L;
+        }
+        throw new IllegalArgumentException("Invalid size : " + size);
+    }
+
+    private Segment segmentFor(final String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (SEGMENTS - 1)];
+    }
+
+    private static long expiresAt(final int expiration) {
+        return expiration <= 0 ? Long.MAX_VALUE : System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(expiration);
+    }
+
+    private byte[] encode(final Object value) {
+        try {
+            return codec.encode(value);
+        } catch (final IOException e) {
+            throw new IllegalArgumentException("Could not serialize with codec " + codec.getName(), e);
+        }
+    }
+
+    private Object decode(final String key, final byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        try {
+            return codec.decode(data);
+        } catch (final IOException e) {
+            Logger.error(e, "Could not deserialize %s with codec %s", key, codec.getName());
+        }
+        return null;
+    }
+
+    @Override
+    public void add(final String key, final Object value, final int expiration) {
+        safeAdd(key, value, expiration);
+    }
+
+    @Override
+    public boolean safeAdd(final String key, final Object value, final int expiration) {
+        return segmentFor(key).put(key, encode(value), expiresAt(expiration), Segment.IF_ABSENT);
+    }
+
+    @Override
+    public void set(final String key, final Object value, final int expiration) {
+        safeSet(key, value, expiration);
+    }
+
+    @Override
+    public boolean safeSet(final String key, final Object value, final int expiration) {
+        return segmentFor(key).put(key, encode(value), expiresAt(expiration), Segment.ALWAYS);
+    }
+
+    @Override
+    public void replace(final String key, final Object value, final int expiration) {
+        safeReplace(key, value, expiration);
+    }
+
+    @Override
+    public boolean safeReplace(final String key, final Object value, final int expiration) {
+        return segmentFor(key).put(key, encode(value), expiresAt(expiration), Segment.IF_PRESENT);
+    }
+
+    @Override
+    public Object get(final String key) {
+        return decode(key, segmentFor(key).get(key));
+    }
+
+    @Override
+    public Map<String, Object> get(final String[] keys) {
+        final Map<String, Object> result = new HashMap<String, Object>(keys.length);
+        for (final String key : keys) {
+            result.put(key, get(key));
+        }
+        return result;
+    }
+
+    @Override
+    public long incr(final String key, final int by) {
+        return mutate(key, by);
+    }
+
+    @Override
+    public long decr(final String key, final int by) {
+        return mutate(key, -(long) by);
+    }
+
+    private long mutate(final String key, final long delta) {
+        final Segment segment = segmentFor(key);
+        synchronized (segment) {
+            final Segment.Entry entry = segment.entry(key);
+            if (entry == null) {
+                return -1;
+            }
+            final long newValue = ((Number) decode(key, segment.read(entry))).longValue() + delta;
+            segment.put(key, encode(newValue), entry.expiresAt, Segment.ALWAYS);
+            return newValue;
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (final Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    @Override
+    public void delete(final String key) {
+        segmentFor(key).remove(key);
+    }
+
+    @Override
+    public boolean safeDelete(final String key) {
+        return segmentFor(key).remove(key);
+    }
+
+    /**
+     * Delete the keys of a prefix: scans the on-heap index of every segment.
+     */
+    @Override
+    public int deleteByPrefix(final String prefix) {
+        int deleted = 0;
+        for (final Segment segment : segments) {
+            deleted += segment.removeByPrefix(prefix);
+        }
+        return deleted;
+    }
+
+    @Override
+    public String getSnapshotCodec() {
+        return codec.getName();
+    }
+
+    /**
+     * Write the live entries as stored, segment after segment.
+     */
+    @Override
+    public void writeSnapshot(final CacheSnapshot.Writer writer) throws IOException {
+        final List<String> keys = new ArrayList<String>();
+        final List<Long> expirations = new ArrayList<Long>();
+        final List<byte[]> values = new ArrayList<byte[]>();
+        for (final Segment segment : segments) {
+            segment.copyLiveEntries(keys, expirations, values);
+            for (int i = 0; i < keys.size(); i++) {
+                final long expiresAt = expirations.get(i);
+                writer.write(keys.get(i), expiresAt == Long.MAX_VALUE ? 0 : expiresAt, values.get(i));
+            }
+            keys.clear();
+            expirations.clear();
+            values.clear();
+        }
+    }
+
+    @Override
+    public void stop() {
+        for (final Segment segment : segments) {
+            segment.release();
+        }
+    }
+
+    /**
+     * Free the memory (or the mapping) of a buffer now instead of when it's garbage collected.
+     * The buffer must not be used afterwards.
+     */
+    private static void free(final ByteBuffer buffer) {
+        try {
+            // Java 9+
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (final NoSuchMethodException e) {
+            // Java 8
+            try {
+                final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                final Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            } catch (final Exception e8) {
+                Logger.debug("Off-heap buffer left to the garbage collector: %s", e8);
+            }
+        } catch (final Exception e) {
+            Logger.debug("Off-heap buffer left to the garbage collector: %s", e);
+        }
+    }
+
+    /**
+     * @return The number of entries (expired ones included)
+     */
+    public int size() {
+        int size = 0;
+        for (final Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return The number of entries evicted to make room
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * A part of the storage, with its own lock, index and CLOCK hand.
+     */
+    private final class Segment {
+
+        static final int ALWAYS = 0;
+        static final int IF_ABSENT = 1;
+        static final int IF_PRESENT = 2;
+
+        /** null once released. */
+        private ByteBuffer buffer;
+
+        private final int blockSize;
+
+        private final int blockCount;
+
+        /** Next block of the same value, or of the free list. */
+        private final int[] nextBlock;
+
+        private int freeHead;
+
+        private int freeCount;
+
+        private final Map<String, Entry> index = new HashMap<String, Entry>();
+
+        /** CLOCK hand, in a circular list of the entries. */
+        private Entry hand;
+
+        /** No entry expires before this time (it may be earlier than the actual first expiration). */
+        private long earliestExpiration = Long.MAX_VALUE;
+
+        Segment(final ByteBuffer buffer, final int blockSize) {
+            this.buffer = buffer;
+            this.blockSize = blockSize;
+            this.blockCount = buffer.capacity() / blockSize;
+            this.nextBlock = new int[blockCount];
+            reset();
+        }
+
+        private void reset() {
+            for (int i = 0; i < blockCount; i++) {
+                nextBlock[i] = i + 1 < blockCount ? i + 1 : -1;
+            }
+            freeHead = blockCount > 0 ? 0 : -1;
+            freeCount = blockCount;
+            index.clear();
+            hand = null;
+            earliestExpiration = Long.MAX_VALUE;
+        }
+
+        synchronized void clear() {
+            reset();
+        }
+
+        synchronized void release() {
+            reset();
+            if (buffer != null) {
+                free(buffer);
+                buffer = null;
+            }
+        }
+
+        synchronized int size() {
+            return index.size();
+        }
+
+        /**
+         * @return The live entry, null when missing or expired
+         */
+        synchronized Entry entry(final String key) {
+            final Entry entry = index.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expiresAt <= System.currentTimeMillis()) {
+                unlink(entry);
+                return null;
+            }
+            return entry;
+        }
+
+        synchronized byte[] get(final String key) {
+            final Entry entry = entry(key);
+            if (entry == null) {
+                return null;
+            }
+            entry.referenced = true;
+            return read(entry);
+        }
+
+        synchronized byte[] read(final Entry entry) {
+            final byte[] data = new byte[entry.length];
+            int block = entry.firstBlock;
+            int offset = 0;
+            while (offset < data.length) {
+                final int chunk = Math.min(blockSize, data.length - offset);
+                buffer.position(block * blockSize);
+                buffer.get(data, offset, chunk);
+                offset += chunk;
+                block = nextBlock[block];
+            }
+            return data;
+        }
+
+        synchronized boolean put(final String key, final byte[] data, final long expiresAt, final int condition) {
+            if (buffer == null) {
+                return false;
+            }
+            final Entry existing = entry(key);
+            if (condition == IF_ABSENT && existing != null || condition == IF_PRESENT && existing == null) {
+                return false;
+            }
+            final int needed = (data.length + blockSize - 1) / blockSize;
+            if (needed > blockCount) {
+                Logger.warn("Value of %s too large for the off-heap cache (%s bytes)", key, data.length);
+                return false;
+            }
+            if (existing != null) {
+                unlink(existing);
+            }
+            if (freeCount < needed) {
+                removeExpired();
+            }
+            while (freeCount < needed) {
+                evict();
+            }
+            final Entry entry = new Entry(key, expiresAt, data.length);
+            int previous = -1;
+            for (int offset = 0; offset < data.length; offset += blockSize) {
+                final int block = freeHead;
+                freeHead = nextBlock[block];
+                freeCount--;
+                if (previous == -1) {
+                    entry.firstBlock = block;
+                } else {
+                    nextBlock[previous] = block;
+                }
+                nextBlock[block] = -1;
+                buffer.position(block * blockSize);
+                buffer.put(data, offset, Math.min(blockSize, data.length - offset));
+                previous = block;
+            }
+            index.put(key, entry);
+            link(entry);
+            earliestExpiration = Math.min(earliestExpiration, expiresAt);
+            return true;
+        }
+
+        synchronized boolean remove(final String key) {
+            final Entry entry = index.get(key);
+            if (entry == null) {
+                return false;
+            }
+            unlink(entry);
+            return true;
+        }
+
+        synchronized void copyLiveEntries(final List<String> keys, final List<Long> expirations,
+                final List<byte[]> values) {
+            final long now = System.currentTimeMillis();
+            for (final Entry entry : index.values()) {
+                if (entry.expiresAt > now) {
+                    keys.add(entry.key);
+                    expirations.add(entry.expiresAt);
+                    values.add(read(entry));
+                }
+            }
+        }
+
+        synchronized int removeByPrefix(final String prefix) {
+            final List<Entry> matching = new ArrayList<Entry>();
+            for (final Entry entry : index.values()) {
+                if (entry.key.startsWith(prefix)) {
+                    matching.add(entry);
+                }
+            }
+            for (final Entry entry : matching) {
+                unlink(entry);
+            }
+            return matching.size();
+        }
+
+        /**
+         * Drop the expired entries, if an entry may have expired.
+         */
+        private void removeExpired() {
+            final long now = System.currentTimeMillis();
+            if (earliestExpiration > now) {
+                return;
+            }
+            final List<Entry> expired = new ArrayList<Entry>();
+            long earliest = Long.MAX_VALUE;
+            for (final Entry entry : index.values()) {
+                if (entry.expiresAt <= now) {
+                    expired.add(entry);
+                } else {
+                    earliest = Math.min(earliest, entry.expiresAt);
+                }
+            }
+            for (final Entry entry : expired) {
+                unlink(entry);
+            }
+            earliestExpiration = earliest;
+        }
+
+        /**
+         * Move the hand until an expired or not recently read entry is found, and drop it.
+         */
+        private void evict() {
+            final long now = System.currentTimeMillis();
+            while (true) {
+                final Entry candidate = hand;
+                hand = hand.next;
+                if (candidate.expiresAt <= now || !candidate.referenced) {
+                    if (candidate.expiresAt > now) {
+                        evictions.increment();
+                    }
+                    unlink(candidate);
+                    return;
+                }
+                candidate.referenced = false;
+            }
+        }
+
+        /**
+         * Insert just behind the hand: a new entry is the last one to be examined.
+         */
+        private void link(final Entry entry) {
+            if (hand == null) {
+                entry.next = entry;
+                entry.previous = entry;
+                hand = entry;
+                return;
+            }
+            entry.next = hand;
+            entry.previous = hand.previous;
+            hand.previous.next = entry;
+            hand.previous = entry;
+        }
+
+        /**
+         * Remove from the index and the clock, and free the blocks.
+         */
+        private void unlink(final Entry entry) {
+            index.remove(entry.key);
+            if (entry.next == entry) {
+                hand = null;
+            } else {
+                entry.previous.next = entry.next;
+                entry.next.previous = entry.previous;
+                if (hand == entry) {
+                    hand = entry.next;
+                }
+            }
+            int block = entry.firstBlock;
+            while (block != -1) {
+                final int next = nextBlock[block];
+                nextBlock[block] = freeHead;
+                freeHead = block;
+                freeCount++;
+                block = next;
+            }
+        }
+
+        final class Entry {
+            final String key;
+            final long expiresAt;
+            final int length;
+            int firstBlock = -1;
+            boolean referenced;
+            Entry next;
+            Entry previous;
+
+            Entry(final String key, final long expiresAt, final int length) {
+                this.key = key;
+                this.expiresAt = expiresAt;
+                this.length = length;
+            }
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package play.cache;
+
+/**
+ * A cache implementation able to enumerate its keys by prefix.
+ *
+ * <p>memcached can't: namespaces rely on generation counters there, see {@link CacheNamespace}.</p>
+ */
+public interface PrefixDeletion {
+
+    /**
+     * Delete every element whose key starts with a prefix.
+     * @param prefix The key prefix
+     * @return The number of deleted elements
+     */
+    public int deleteByPrefix(String prefix);
+}
@@ -0,0 +1,349 @@
+package play.cache;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import play.Logger;
+import play.jobs.JobThreadFactory;
+
+/**
+ * Refresh-ahead for values read through {@link Cache#getOrCompute}.
+ *
+ * <p>The expiration time of the values set through the Cache (and the time it took to
+ * compute them) is remembered locally. A read close to the expiration triggers, with a
+ * growing probability, a recomputation on a bounded background executor while the
+ * current value is still served ("probabilistic early expiration": a value computed in
+ * <code>delta</code> ms is refreshed when
+ * <code>now - delta * beta * ln(random) &gt;= expiration</code>).</p>
+ *
+ * <p>The remembered expirations are forgotten once past: on the next read of the key, or
+ * by a sweep of the whole map when it reaches <code>maxEntries</code> (at most once per
+ * second).</p>
+ *
+ * <p>Configuration:</p>
+ * <pre>
+ * cache.refreshAhead=true
+ * cache.refreshAhead.beta=1.0
+ * cache.refreshAhead.threads=2
+ * cache.refreshAhead.queueSize=1000
+ * cache.refreshAhead.maxEntries=100000
+ * </pre>
+ */
+public final class RefreshAhead {
+
+    volatile boolean enabled = false;
+
+    /** Above 1 favors earlier refreshes, below 1 later ones. */
+    volatile double beta = 1.0d;
+
+    volatile int maxEntries = 100000;
+
+    private int threads = 2;
+
+    private int queueSize = 1000;
+
+    /** Minimum time between two sweeps of the expired entries, in ms. */
+    private static final long SWEEP_INTERVAL = 1000L;
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /** Time of the last sweep of the expired entries. */
+    private final AtomicLong lastSweep = new AtomicLong();
+
+    private ThreadPoolExecutor executor;
+
+    private final Statistics statistics = new Statistics();
+
+    RefreshAhead() {
+    }
+
+    /**
+     * Read the configuration.
+     */
+    synchronized void init() {
+        enabled = Boolean.parseBoolean(Cache.configuration("cache.refreshAhead", "false"));
+        beta = Double.parseDouble(Cache.configuration("cache.refreshAhead.beta", "1.0"));
+        maxEntries = Integer.parseInt(Cache.configuration("cache.refreshAhead.maxEntries", "100000"));
+        final int newThreads = Integer.parseInt(Cache.configuration("cache.refreshAhead.threads", "2"));
+        final int newQueueSize = Integer.parseInt(Cache.configuration("cache.refreshAhead.queueSize", "1000"));
+        if (executor != null && (newThreads != threads || newQueueSize != queueSize)) {
+            executor.shutdown();
+            executor = null;
+        }
+        threads = newThreads;
+        queueSize = newQueueSize;
+        entries.clear();
+    }
+
+    /**
+     * Stop the background refreshes.
+     */
+    synchronized void stop() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+        entries.clear();
+    }
+
+    /**
+     * @return The number of remembered expirations
+     */
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return The refresh statistics
+     */
+    public Statistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Remember the expiration of a value set through the Cache.
+     * @param key Element key
+     * @param expiration Expiration in seconds
+     */
+    void recordSet(final String key, final int expiration) {
+        if (enabled) {
+            record(key, expiration, -1L);
+        }
+    }
+
+    /**
+     * Forget a deleted value.
+     * @param key Element key
+     */
+    void recordDelete(final String key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Forget the deleted values of a prefix.
+     * @param prefix Key prefix
+     */
+    void recordDeletePrefix(final String prefix) {
+        for (final String key : entries.keySet()) {
+            if (key.startsWith(prefix)) {
+                entries.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Forget every value.
+     */
+    void recordClear() {
+        entries.clear();
+    }
+
+    private void record(final String key, final int expiration, final long deltaMillis) {
+        final long now = System.currentTimeMillis();
+        final long expiresAt = now + TimeUnit.SECONDS.toMillis(expiration);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            if (entries.size() >= maxEntries && (!sweep(now) || entries.size() >= maxEntries)) {
+                statistics.untracked.increment();
+                return;
+            }
+            final Entry created = new Entry();
+            entry = entries.putIfAbsent(key, created);
+            if (entry == null) {
+                entry = created;
+            }
+        }
+        entry.expiresAt = expiresAt;
+        if (deltaMillis >= 0) {
+            entry.deltaMillis = deltaMillis;
+        } else if (entry.deltaMillis < 0) {
+            // never computed here, assume 1% of the time to live
+            entry.deltaMillis = TimeUnit.SECONDS.toMillis(expiration) / 100;
+        }
+    }
+
+    /**
+     * Forget the expirations already past.
+     * @param now Current time
+     * @return false if another sweep ran less than a second ago
+     */
+    private boolean sweep(final long now) {
+        final long last = lastSweep.get();
+        if (now - last < SWEEP_INTERVAL || !lastSweep.compareAndSet(last, now)) {
+            return false;
+        }
+        for (final Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (entry.getValue().expiresAt < now) {
+                entries.remove(entry.getKey(), entry.getValue());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @see Cache#getOrCompute(String, String, Callable)
+     */
+    Object getOrCompute(final InFlightLoads loads, final CacheImpl cache, final String key, final int expiration,
+            final Callable<?> loader) {
+        final Object cached = cache.get(key);
+        if (cached != null) {
+            statistics.hits.increment();
+            final Entry entry = entries.get(key);
+            if (entry != null && entry.expiresAt < System.currentTimeMillis()) {
+                // the value outlived the expiration we know of: it was set elsewhere
+                entries.remove(key, entry);
+            } else if (entry != null && entry.shouldRefresh(beta) && entry.refreshing.compareAndSet(false, true)) {
+                scheduleRefresh(cache, key, expiration, loader, entry);
+            }
+            return cached;
+        }
+        statistics.misses.increment();
+        entries.remove(key);
+        return loads.getOrCompute(cache, key, expiration, timed(key, expiration, loader));
+    }
+
+    /**
+     * Measure the computation and remember the expiration of the computed value.
+     */
+    private Callable<Object> timed(final String key, final int expiration, final Callable<?> loader) {
+        return new Callable<Object>() {
+
+            @Override
+            public Object call() throws Exception {
+                final long start = System.currentTimeMillis();
+                final Object value = loader.call();
+                if (value != null) {
+                    record(key, expiration, System.currentTimeMillis() - start);
+                }
+                return value;
+            }
+        };
+    }
+
+    private void scheduleRefresh(final CacheImpl cache, final String key, final int expiration,
+            final Callable<?> loader, final Entry entry) {
+        try {
+            executor().execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        final Object value = timed(key, expiration, loader).call();
+                        if (value != null) {
+                            Cache.checkSerializable(value);
+                            cache.set(key, value, expiration);
+                        }
+                        statistics.refreshes.increment();
+                    } catch (final Exception e) {
+                        statistics.failures.increment();
+                        Logger.warn(e, "Could not refresh %s ahead of its expiration", key);
+                    } finally {
+                        entry.refreshing.set(false);
+                    }
+                }
+            });
+            statistics.scheduled.increment();
+        } catch (final RejectedExecutionException e) {
+            statistics.rejected.increment();
+            entry.refreshing.set(false);
+        }
+    }
+
+    private synchronized ThreadPoolExecutor executor() {
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(
+                    threads,
+                    threads,
+                    60L,
+                    TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueSize),
+                    new JobThreadFactory("cache-refresh"),
+                    new ThreadPoolExecutor.AbortPolicy()
+                    );
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    /**
+     * Expiration and computation time of a value.
+     */
+    private static final class Entry {
+        volatile long expiresAt;
+        volatile long deltaMillis = -1;
+        final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+        boolean shouldRefresh(final double beta) {
+            final double random = ThreadLocalRandom.current().nextDouble();
+            // -ln(random) is exponentially distributed: most reads refresh only close to the expiration
+            final double early = -deltaMillis * beta * Math.log(random == 0 ? Double.MIN_VALUE : random);
+            return System.currentTimeMillis() + early >= expiresAt;
+        }
+    }
+
+    /**
+     * Refresh-ahead counters.
+     */
+    public static final class Statistics {
+        final LongAdder hits = new LongAdder();
+        final LongAdder misses = new LongAdder();
+        final LongAdder scheduled = new LongAdder();
+        final LongAdder refreshes = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder untracked = new LongAdder();
+
+        /** @return Reads served from the cache */
+        public long getHits() {
+            return hits.sum();
+        }
+
+        /** @return Reads which had to compute the value */
+        public long getMisses() {
+            return misses.sum();
+        }
+
+        /** @return Background refreshes submitted */
+        public long getScheduled() {
+            return scheduled.sum();
+        }
+
+        /** @return Background refreshes completed */
+        public long getRefreshes() {
+            return refreshes.sum();
+        }
+
+        /** @return Background refreshes failed */
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        /** @return Background refreshes dropped because the executor was full */
+        public long getRejected() {
+            return rejected.sum();
+        }
+
+        /** @return Values not tracked because maxEntries was reached */
+        public long getUntracked() {
+            return untracked.sum();
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "%d hit(s), %d miss(es), %d refresh(es) scheduled, %d done, %d failed, %d rejected, %d untracked",
+                    getHits(), getMisses(), getScheduled(), getRefreshes(), getFailures(), getRejected(),
+                    getUntracked());
+        }
+    }
+}
@@ -0,0 +1,640 @@
+package play.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import play.Logger;
+import play.libs.ws.F;
+
+/**
+ * Keeps serving when the remote cache (memcached) fails, instead of sending every request
+ * to the databases at once.
+ *
+ * <p>The values read or written recently are kept in a bounded local shadow copy. When a
+ * remote read fails or times out, the shadow copy is served, even if it's stale (up to
+ * <code>maxStale</code> seconds old). After <code>failureThreshold</code> consecutive
+ * failures the circuit opens: the remote cache isn't called any more, reads are served by
+ * the shadow copy and writes only update it. After <code>openFor</code> seconds a single
+ * read probes the remote cache: the circuit closes when it succeeds. The keys written while
+ * open are then deleted from the remote cache, so that it doesn't serve values older than
+ * the ones written meanwhile.</p>
+ *
+ * <p>Only the synchronous reads change the state of the circuit: memcached doesn't report the
+ * failures of the writes (sent without waiting, or false on a timeout) nor of the asynchronous
+ * operations (reported as misses). Those are short-circuited until the circuit closes.</p>
+ *
+ * expiration is specified in seconds
+ */
+public class ResilientCacheImpl implements CacheImpl, AsyncCacheImpl, CacheDecorator {
+
+    /** Circuit states. */
+    private static final int CLOSED = 0;
+    private static final int OPEN = 1;
+    private static final int HALF_OPEN = 2;
+
+    /** Number of independently locked segments of the shadow copy. */
+    private static final int SEGMENTS = 16;
+
+    final CacheImpl remote;
+
+    private final int maxEntries;
+
+    private final int failureThreshold;
+
+    private final long openNanos;
+
+    private final long maxStaleNanos;
+
+    private final Segment[] segments;
+
+    private final AtomicInteger state = new AtomicInteger(CLOSED);
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    private volatile long openedAt;
+
+    /** Keys written while open, deleted from the remote cache once it recovers. */
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean dirtyOverflow;
+
+    private final LongAdder failures = new LongAdder();
+
+    private final LongAdder shadowHits = new LongAdder();
+
+    private final LongAdder shortCircuited = new LongAdder();
+
+    private final LongAdder opened = new LongAdder();
+
+    /**
+     * @param remote The remote cache
+     * @param maxEntries Maximum number of entries of the shadow copy
+     * @param failureThreshold Consecutive failures opening the circuit
+     * @param openFor Seconds before probing the remote cache again
+     * @param maxStale Maximum age in seconds of a shadow value
+     */
+    public ResilientCacheImpl(final CacheImpl remote, final int maxEntries, final int failureThreshold,
+            final int openFor, final int maxStale) {
+        if (maxEntries <= 0 || failureThreshold <= 0) {
+            throw new IllegalArgumentException("maxEntries and failureThreshold must be positive");
+        }
+        this.remote = remote;
+        this.maxEntries = maxEntries;
+        this.failureThreshold = failureThreshold;
+        this.openNanos = TimeUnit.SECONDS.toNanos(openFor);
+        this.maxStaleNanos = TimeUnit.SECONDS.toNanos(maxStale);
+        this.segments = new Segment[SEGMENTS];
+        final int perSegment = Math.max(1, (maxEntries + SEGMENTS - 1) / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+    }
+
+    /**
+     * @return The remote cache implementation
+     */
+    public CacheImpl getRemote() {
+        return remote;
+    }
+
+    /**
+     * @return The remote cache implementation
+     */
+    @Override
+    public CacheImpl getDelegate() {
+        return remote;
+    }
+
+    /**
+     * @return true while the remote cache isn't called
+     */
+    public boolean isOpen() {
+        return state.get() != CLOSED;
+    }
+
+    private Segment segmentFor(final String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (SEGMENTS - 1)];
+    }
+
+    /**
+     * @return true when a read may call the remote cache: circuit closed, or this read is the probe
+     */
+    private boolean allowRemote() {
+        final int current = state.get();
+        if (current == CLOSED) {
+            return true;
+        }
+        if (current == OPEN && System.nanoTime() - openedAt >= openNanos
+                && state.compareAndSet(OPEN, HALF_OPEN)) {
+            return true;
+        }
+        shortCircuited.increment();
+        return false;
+    }
+
+    /**
+     * @return true when the circuit is closed, for the calls which don't report their failures
+     */
+    private boolean closed() {
+        if (state.get() == CLOSED) {
+            return true;
+        }
+        shortCircuited.increment();
+        return false;
+    }
+
+    private void onSuccess() {
+        consecutiveFailures.set(0);
+        if (state.get() == HALF_OPEN && state.compareAndSet(HALF_OPEN, CLOSED)) {
+            Logger.info("Remote cache recovered, circuit closed");
+            replayDirty();
+        }
+    }
+
+    private void onFailure(final Exception e) {
+        failures.increment();
+        if (state.get() == HALF_OPEN) {
+            openedAt = System.nanoTime();
+            state.set(OPEN);
+            return;
+        }
+        if (consecutiveFailures.incrementAndGet() >= failureThreshold && state.compareAndSet(CLOSED, OPEN)) {
+            openedAt = System.nanoTime();
+            opened.increment();
+            Logger.warn(e, "Remote cache failing (%s consecutive failures), circuit open for %ss",
+                    failureThreshold, TimeUnit.NANOSECONDS.toSeconds(openNanos));
+        }
+    }
+
+    /**
+     * Delete from the remote cache the keys written while it wasn't called.
+     */
+    private void replayDirty() {
+        final List<String> keys = new ArrayList<String>(dirty);
+        dirty.removeAll(keys);
+        if (dirtyOverflow) {
+            dirtyOverflow = false;
+            Logger.warn("More than %s keys written while the remote cache was failing: some may be stale", maxEntries);
+        }
+        if (!keys.isEmpty()) {
+            remote.deleteAll(keys);
+        }
+    }
+
+    private void markDirty(final String key) {
+        if (dirty.size() < maxEntries) {
+            dirty.add(key);
+        } else {
+            dirtyOverflow = true;
+        }
+    }
+
+    private Object shadow(final String key) {
+        final Object value = segmentFor(key).get(key, System.nanoTime() - maxStaleNanos);
+        if (value != null) {
+            shadowHits.increment();
+        }
+        return value;
+    }
+
+    private Object remoteGet(final String key) throws Exception {
+        return remote instanceof MemcachedImpl ? ((MemcachedImpl) remote).getOrFail(key) : remote.get(key);
+    }
+
+    private Map<String, Object> remoteGet(final String[] keys) throws Exception {
+        return remote instanceof MemcachedImpl ? ((MemcachedImpl) remote).getOrFail(keys) : remote.get(keys);
+    }
+
+    @Override
+    public Object get(final String key) {
+        if (!allowRemote()) {
+            return shadow(key);
+        }
+        final Object value;
+        try {
+            value = remoteGet(key);
+        } catch (final Exception e) {
+            onFailure(e);
+            return shadow(key);
+        }
+        onSuccess();
+        if (value == null) {
+            segmentFor(key).remove(key);
+        } else {
+            segmentFor(key).put(key, value);
+        }
+        return value;
+    }
+
+    @Override
+    public Map<String, Object> get(final String[] keys) {
+        if (allowRemote()) {
+            try {
+                final Map<String, Object> values = remoteGet(keys);
+                onSuccess();
+                for (final String key : keys) {
+                    final Object value = values.get(key);
+                    if (value == null) {
+                        segmentFor(key).remove(key);
+                    } else {
+                        segmentFor(key).put(key, value);
+                    }
+                }
+                return values;
+            } catch (final Exception e) {
+                onFailure(e);
+            }
+        }
+        final Map<String, Object> values = new HashMap<String, Object>(keys.length);
+        for (final String key : keys) {
+            final Object value = shadow(key);
+            if (value != null) {
+                values.put(key, value);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Run a write on the remote cache. It doesn't change the state of the circuit.
+     * @return false when it wasn't called or failed
+     */
+    private boolean write(final String key, final Runnable operation) {
+        if (!closed()) {
+            markDirty(key);
+            return false;
+        }
+        try {
+            operation.run();
+        } catch (final RuntimeException e) {
+            failures.increment();
+            markDirty(key);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void add(final String key, final Object value, final int expiration) {
+        safeAdd(key, value, expiration);
+    }
+
+    @Override
+    public boolean safeAdd(final String key, final Object value, final int expiration) {
+        final boolean[] added = new boolean[1];
+        final boolean called = write(key, new Runnable() {
+
+            @Override
+            public void run() {
+                added[0] = remote.safeAdd(key, value, expiration);
+            }
+        });
+        if (called ? added[0] : segmentFor(key).get(key, System.nanoTime() - maxStaleNanos) == null) {
+            segmentFor(key).put(key, value);
+        }
+        return called && added[0];
+    }
+
+    @Override
+    public void set(final String key, final Object value, final int expiration) {
+        segmentFor(key).put(key, value);
+        write(key, new Runnable() {
+
+            @Override
+            public void run() {
+                remote.set(key, value, expiration);
+            }
+        });
+    }
+
+    @Override
+    public boolean safeSet(final String key, final Object value, final int expiration) {
+        segmentFor(key).put(key, value);
+        final boolean[] stored = new boolean[1];
+        return write(key, new Runnable() {
+
+            @Override
+            public void run() {
+                stored[0] = remote.safeSet(key, value, expiration);
+            }
+        }) && stored[0];
+    }
+
+    @Override
+    public void replace(final String key, final Object value, final int expiration) {
+        safeReplace(key, value, expiration);
+    }
+
+    @Override
+    public boolean safeReplace(final String key, final Object value, final int expiration) {
+        final boolean[] replaced = new boolean[1];
+        final boolean called = write(key, new Runnable() {
+
+            @Override
+            public void run() {
+                replaced[0] = remote.safeReplace(key, value, expiration);
+            }
+        });
+        if (called && !replaced[0]) {
+            segmentFor(key).remove(key);
+        } else if (called || segmentFor(key).get(key, System.nanoTime() - maxStaleNanos) != null) {
+            segmentFor(key).put(key, value);
+        }
+        return called && replaced[0];
+    }
+
+    @Override
+    public void delete(final String key) {
+        safeDelete(key);
+    }
+
+    @Override
+    public boolean safeDelete(final String key) {
+        segmentFor(key).remove(key);
+        final boolean[] deleted = new boolean[1];
+        return write(key, new Runnable() {
+
+            @Override
+            public void run() {
+                deleted[0] = remote.safeDelete(key);
+            }
+        }) && deleted[0];
+    }
+
+    @Override
+    public long incr(final String key, final int by) {
+        return counter(key, by);
+    }
+
+    @Override
+    public long decr(final String key, final int by) {
+        return counter(key, -by);
+    }
+
+    /**
+     * Counters aren't kept in the shadow copy: while failing, they are missing (-1).
+     */
+    private long counter(final String key, final int by) {
+        segmentFor(key).remove(key);
+        final long[] result = {-1};
+        write(key, new Runnable() {
+
+            @Override
+            public void run() {
+                result[0] = by >= 0 ? remote.incr(key, by) : remote.decr(key, -by);
+            }
+        });
+        return result[0];
+    }
+
+    @Override
+    public void clear() {
+        for (final Segment segment : segments) {
+            segment.clear();
+        }
+        dirty.clear();
+        dirtyOverflow = false;
+        remote.clear();
+    }
+
+    @Override
+    public F.Promise<Boolean> setAll(final Map<String, Object> values, final int expiration) {
+        for (final Map.Entry<String, Object> entry : values.entrySet()) {
+            segmentFor(entry.getKey()).put(entry.getKey(), entry.getValue());
+        }
+        if (!closed()) {
+            for (final String key : values.keySet()) {
+                markDirty(key);
+            }
+            return BlockingAsyncCacheImpl.redeemed(Boolean.FALSE);
+        }
+        return remote.setAll(values, expiration);
+    }
+
+    @Override
+    public F.Promise<Boolean> deleteAll(final Collection<String> keys) {
+        for (final String key : keys) {
+            segmentFor(key).remove(key);
+        }
+        if (!closed()) {
+            for (final String key : keys) {
+                markDirty(key);
+            }
+            return BlockingAsyncCacheImpl.redeemed(Boolean.FALSE);
+        }
+        return remote.deleteAll(keys);
+    }
+
+    @Override
+    public F.Promise<Boolean> addAsync(final String key, final Object value, final int expiration) {
+        segmentFor(key).remove(key);
+        if (!closed()) {
+            markDirty(key);
+            return BlockingAsyncCacheImpl.redeemed(Boolean.FALSE);
+        }
+        return BlockingAsyncCacheImpl.of(remote).addAsync(key, value, expiration);
+    }
+
+    @Override
+    public F.Promise<Boolean> setAsync(final String key, final Object value, final int expiration) {
+        segmentFor(key).put(key, value);
+        if (!closed()) {
+            markDirty(key);
+            return BlockingAsyncCacheImpl.redeemed(Boolean.FALSE);
+        }
+        return BlockingAsyncCacheImpl.of(remote).setAsync(key, value, expiration);
+    }
+
+    @Override
+    public F.Promise<Boolean> replaceAsync(final String key, final Object value, final int expiration) {
+        segmentFor(key).remove(key);
+        if (!closed()) {
+            markDirty(key);
+            return BlockingAsyncCacheImpl.redeemed(Boolean.FALSE);
+        }
+        return BlockingAsyncCacheImpl.of(remote).replaceAsync(key, value, expiration);
+    }
+
+    @Override
+    public F.Promise<Object> getAsync(final String key) {
+        if (!closed()) {
+            return BlockingAsyncCacheImpl.redeemed(shadow(key));
+        }
+        final F.Promise<Object> promise = BlockingAsyncCacheImpl.of(remote).getAsync(key);
+        promise.onRedeem(new F.Action<F.Promise<Object>>() {
+
+            @Override
+            public void invoke(final F.Promise<Object> result) {
+                final Object value = result.getOrNull();
+                if (value != null) {
+                    segmentFor(key).put(key, value);
+                }
+            }
+        });
+        return promise;
+    }
+
+    @Override
+    public F.Promise<Map<String, Object>> getAsync(final String[] keys) {
+        if (!closed()) {
+            final Map<String, Object> values = new HashMap<String, Object>(keys.length);
+            for (final String key : keys) {
+                final Object value = shadow(key);
+                if (value != null) {
+                    values.put(key, value);
+                }
+            }
+            return BlockingAsyncCacheImpl.redeemed(values);
+        }
+        final F.Promise<Map<String, Object>> promise = BlockingAsyncCacheImpl.of(remote).getAsync(keys);
+        promise.onRedeem(new F.Action<F.Promise<Map<String, Object>>>() {
+
+            @Override
+            public void invoke(final F.Promise<Map<String, Object>> result) {
+                final Map<String, Object> values = result.getOrNull();
+                if (values != null) {
+                    for (final Map.Entry<String, Object> entry : values.entrySet()) {
+                        if (entry.getValue() != null) {
+                            segmentFor(entry.getKey()).put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                }
+            }
+        });
+        return promise;
+    }
+
+    @Override
+    public F.Promise<Long> incrAsync(final String key, final int by) {
+        segmentFor(key).remove(key);
+        if (!closed()) {
+            markDirty(key);
+            return BlockingAsyncCacheImpl.redeemed(Long.valueOf(-1));
+        }
+        return BlockingAsyncCacheImpl.of(remote).incrAsync(key, by);
+    }
+
+    @Override
+    public F.Promise<Long> decrAsync(final String key, final int by) {
+        segmentFor(key).remove(key);
+        if (!closed()) {
+            markDirty(key);
+            return BlockingAsyncCacheImpl.redeemed(Long.valueOf(-1));
+        }
+        return BlockingAsyncCacheImpl.of(remote).decrAsync(key, by);
+    }
+
+    @Override
+    public F.Promise<Boolean> deleteAsync(final String key) {
+        segmentFor(key).remove(key);
+        if (!closed()) {
+            markDirty(key);
+            return BlockingAsyncCacheImpl.redeemed(Boolean.FALSE);
+        }
+        return BlockingAsyncCacheImpl.of(remote).deleteAsync(key);
+    }
+
+    @Override
+    public void stop() {
+        remote.stop();
+    }
+
+    /** @return Remote calls which failed or timed out */
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    /** @return Reads served by the shadow copy */
+    public long getShadowHits() {
+        return shadowHits.sum();
+    }
+
+    /** @return Calls not sent to the remote cache, the circuit being open */
+    public long getShortCircuited() {
+        return shortCircuited.sum();
+    }
+
+    /** @return Number of times the circuit opened */
+    public long getOpened() {
+        return opened.sum();
+    }
+
+    @Override
+    public String toString() {
+        final int current = state.get();
+        return String.format("circuit %s, %d failure(s), opened %d time(s), %d short-circuited, %d shadow hit(s)",
+                current == CLOSED ? "closed" : current == OPEN ? "open" : "half-open",
+                getFailures(), getOpened(), getShortCircuited(), getShadowHits());
+    }
+
+    /**
+     * A part of the shadow copy, with its own lock and LRU order.
+     */
+    private static final class Segment {
+
+        private final LinkedHashMap<String, ShadowEntry> entries;
+
+        Segment(final int maxEntries) {
+            this.entries = new LinkedHashMap<String, ShadowEntry>(16, 0.75f, true) {
+
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, ShadowEntry> eldest) {
+                    return size() > maxEntries;
+                }
+            };
+        }
+
+        /**
+         * @param storedAfter Oldest storage date served, in nanoseconds
+         */
+        synchronized Object get(final String key, final long storedAfter) {
+            final ShadowEntry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.storedAt - storedAfter < 0) {
+                entries.remove(key);
+                return null;
+            }
+            return entry.value;
+        }
+
+        synchronized void put(final String key, final Object value) {
+            entries.put(key, new ShadowEntry(value, System.nanoTime()));
+        }
+
+        synchronized void remove(final String key) {
+            entries.remove(key);
+        }
+
+        synchronized void clear() {
+            entries.clear();
+        }
+    }
+
+    /**
+     * A shadow value.
+     */
+    private static final class ShadowEntry {
+        final Object value;
+        final long storedAt;
+
+        ShadowEntry(final Object value, final long storedAt) {
+            this.value = value;
+            this.storedAt = storedAt;
+        }
+    }
+}
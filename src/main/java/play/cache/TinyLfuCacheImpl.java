@@ -0,0 +1,594 @@
+package play.cache;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Local cache bounded by the serialized size of its values, with a frequency based admission.
+ *
+ * <p>W-TinyLFU: a new entry first goes to a small LRU window (1% of the size). When it
+ * leaves the window, it only enters the main space (a segmented LRU: probation and protected)
+ * if it was requested more often than the entry it would evict. The request frequencies of
+ * the keys, hits and misses, are estimated by a count-min sketch of 4-bit counters, halved
+ * periodically so that the past popularity fades. One-hit wonders (crawlers, scans) can't
+ * evict the hot entries.</p>
+ *
+ * <p>Values stay on the heap as objects; their weight estimates their encoded size without
+ * encoding them for strings, byte arrays, boxed primitives, dates and the collections, maps
+ * and arrays of those. Other values are measured by encoding them with the cache codec.
+ * As EhCacheImpl, incr and decr return -1 on a missing key, and an expiration of 0
+ * second or less means no expiration.</p>
+ *
+ * expiration is specified in seconds
+ */
+public class TinyLfuCacheImpl implements CacheImpl {
+
+    /** Number of independently locked segments. */
+    private static final int SEGMENTS = 16;
+
+    private final CacheCodec codec;
+
+    private final Segment[] segments;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    private final LongAdder rejections = new LongAdder();
+
+    /**
+     * @param maxWeight Total size of the encoded values, in bytes
+     * @param expectedEntries Expected number of entries, sizes the frequency sketch
+     * @param codec Measures the values
+     */
+    public TinyLfuCacheImpl(final long maxWeight, final int expectedEntries, final CacheCodec codec) {
+        this.codec = codec;
+        this.segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(Math.max(1, maxWeight / SEGMENTS), Math.max(1, expectedEntries / SEGMENTS));
+        }
+    }
+
+    private static int spread(final String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private Segment segmentFor(final int hash) {
+        return segments[hash >>> 28];
+    }
+
+    /**
+     * @return The weight of a value, estimated when possible, else its encoded size
+     */
+    int weigh(final Object value) {
+        final long estimate = estimate(value, 0);
+        if (estimate >= 0) {
+            return (int) Math.min(Integer.MAX_VALUE, estimate);
+        }
+        try {
+            return codec.encode(value).length;
+        } catch (final IOException e) {
+            throw new IllegalArgumentException("Could not serialize with codec " + codec.getName(), e);
+        }
+    }
+
+    /**
+     * @param depth Nesting level, the estimate gives up past 8 (and on cycles)
+     * @return The approximate encoded size in bytes, -1 when the type isn't known
+     */
+    static long estimate(final Object value, final int depth) {
+        if (value == null) {
+            return 1;
+        }
+        if (value instanceof String) {
+            return 5 + ((String) value).length();
+        }
+        if (value instanceof byte[]) {
+            return 5 + ((byte[]) value).length;
+        }
+        if (value instanceof Number || value instanceof Boolean || value instanceof Character
+                || value instanceof Date) {
+            return 9;
+        }
+        if (value instanceof Enum) {
+            return 5 + ((Enum<?>) value).name().length();
+        }
+        if (depth >= 8) {
+            return -1;
+        }
+        final Iterable<?> elements;
+        if (value instanceof Collection) {
+            elements = (Collection<?>) value;
+        } else if (value instanceof Object[]) {
+            elements = Arrays.asList((Object[]) value);
+        } else if (value instanceof Map) {
+            long size = 5;
+            for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                final long key = estimate(entry.getKey(), depth + 1);
+                final long mapped = estimate(entry.getValue(), depth + 1);
+                if (key < 0 || mapped < 0) {
+                    return -1;
+                }
+                size += key + mapped;
+            }
+            return size;
+        } else {
+            return -1;
+        }
+        long size = 5;
+        for (final Object element : elements) {
+            final long weight = estimate(element, depth + 1);
+            if (weight < 0) {
+                return -1;
+            }
+            size += weight;
+        }
+        return size;
+    }
+
+    private static long expiresAt(final int expiration) {
+        return expiration <= 0 ? Long.MAX_VALUE : System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(expiration);
+    }
+
+    @Override
+    public void add(final String key, final Object value, final int expiration) {
+        safeAdd(key, value, expiration);
+    }
+
+    @Override
+    public boolean safeAdd(final String key, final Object value, final int expiration) {
+        final int hash = spread(key);
+        return segmentFor(hash).put(key, hash, value, weigh(value), expiresAt(expiration), Segment.IF_ABSENT);
+    }
+
+    @Override
+    public void set(final String key, final Object value, final int expiration) {
+        safeSet(key, value, expiration);
+    }
+
+    @Override
+    public boolean safeSet(final String key, final Object value, final int expiration) {
+        final int hash = spread(key);
+        return segmentFor(hash).put(key, hash, value, weigh(value), expiresAt(expiration), Segment.ALWAYS);
+    }
+
+    @Override
+    public void replace(final String key, final Object value, final int expiration) {
+        safeReplace(key, value, expiration);
+    }
+
+    @Override
+    public boolean safeReplace(final String key, final Object value, final int expiration) {
+        final int hash = spread(key);
+        return segmentFor(hash).put(key, hash, value, weigh(value), expiresAt(expiration), Segment.IF_PRESENT);
+    }
+
+    @Override
+    public Object get(final String key) {
+        final int hash = spread(key);
+        final Object value = segmentFor(hash).get(key, hash);
+        (value == null ? misses : hits).increment();
+        return value;
+    }
+
+    @Override
+    public Map<String, Object> get(final String[] keys) {
+        final Map<String, Object> result = new HashMap<String, Object>(keys.length);
+        for (final String key : keys) {
+            result.put(key, get(key));
+        }
+        return result;
+    }
+
+    @Override
+    public long incr(final String key, final int by) {
+        final int hash = spread(key);
+        return segmentFor(hash).add(key, hash, by);
+    }
+
+    @Override
+    public long decr(final String key, final int by) {
+        final int hash = spread(key);
+        return segmentFor(hash).add(key, hash, -(long) by);
+    }
+
+    @Override
+    public void clear() {
+        for (final Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    @Override
+    public void delete(final String key) {
+        safeDelete(key);
+    }
+
+    @Override
+    public boolean safeDelete(final String key) {
+        final int hash = spread(key);
+        return segmentFor(hash).remove(key);
+    }
+
+    @Override
+    public void stop() {
+        clear();
+    }
+
+    /**
+     * @return The number of entries (expired ones included)
+     */
+    public int size() {
+        int size = 0;
+        for (final Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return The total weight of the entries, in bytes
+     */
+    public long weight() {
+        long weight = 0;
+        for (final Segment segment : segments) {
+            weight += segment.weight();
+        }
+        return weight;
+    }
+
+    /** @return Reads which found a value */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /** @return Reads which found nothing */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /** @return Entries evicted to make room, for a more frequent one in the main space */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /** @return New entries not admitted, less frequent than the entry they would evict */
+    public long getRejections() {
+        return rejections.sum();
+    }
+
+    /**
+     * A part of the cache, with its own lock, queues and sketch.
+     */
+    private final class Segment {
+
+        static final int ALWAYS = 0;
+        static final int IF_ABSENT = 1;
+        static final int IF_PRESENT = 2;
+
+        private final Map<String, Node> data = new HashMap<String, Node>();
+
+        private final long maxWeight;
+
+        private final long maxWindowWeight;
+
+        private final long maxProtectedWeight;
+
+        private final Queue window = new Queue();
+
+        private final Queue probation = new Queue();
+
+        private final Queue protectedQueue = new Queue();
+
+        private final FrequencySketch sketch;
+
+        Segment(final long maxWeight, final int expectedEntries) {
+            this.maxWeight = maxWeight;
+            this.maxWindowWeight = Math.max(1, maxWeight / 100);
+            this.maxProtectedWeight = (maxWeight - maxWindowWeight) * 8 / 10;
+            this.sketch = new FrequencySketch(expectedEntries);
+        }
+
+        synchronized int size() {
+            return data.size();
+        }
+
+        synchronized long weight() {
+            return window.weight + probation.weight + protectedQueue.weight;
+        }
+
+        synchronized void clear() {
+            data.clear();
+            window.clear();
+            probation.clear();
+            protectedQueue.clear();
+        }
+
+        /**
+         * @return The live node, null when missing or expired
+         */
+        private Node live(final String key) {
+            final Node node = data.get(key);
+            if (node != null && node.expiresAt <= System.currentTimeMillis()) {
+                unlink(node);
+                return null;
+            }
+            return node;
+        }
+
+        synchronized Object get(final String key, final int hash) {
+            sketch.increment(hash);
+            final Node node = live(key);
+            if (node == null) {
+                return null;
+            }
+            onAccess(node);
+            return node.value;
+        }
+
+        synchronized boolean put(final String key, final int hash, final Object value, final int weight,
+                final long expiresAt, final int condition) {
+            final Node existing = live(key);
+            if (condition == IF_ABSENT && existing != null || condition == IF_PRESENT && existing == null) {
+                return false;
+            }
+            if (weight > maxWeight) {
+                if (existing != null) {
+                    unlink(existing);
+                }
+                return false;
+            }
+            sketch.increment(hash);
+            if (existing != null) {
+                existing.queue.weight += weight - existing.weight;
+                existing.value = value;
+                existing.weight = weight;
+                existing.expiresAt = expiresAt;
+                onAccess(existing);
+            } else {
+                final Node node = new Node(key, hash, value, weight, expiresAt);
+                data.put(key, node);
+                window.addLast(node);
+            }
+            evict();
+            return true;
+        }
+
+        synchronized long add(final String key, final int hash, final long delta) {
+            final Node node = live(key);
+            if (node == null) {
+                return -1;
+            }
+            final long value = ((Number) node.value).longValue() + delta;
+            node.value = value;
+            onAccess(node);
+            return value;
+        }
+
+        synchronized boolean remove(final String key) {
+            final Node node = data.get(key);
+            if (node == null) {
+                return false;
+            }
+            unlink(node);
+            return true;
+        }
+
+        private void onAccess(final Node node) {
+            if (node.queue == protectedQueue) {
+                protectedQueue.moveToLast(node);
+            } else if (node.queue == probation) {
+                // promoted, the least recently used protected entries go back on probation
+                probation.remove(node);
+                protectedQueue.addLast(node);
+                while (protectedQueue.weight > maxProtectedWeight && protectedQueue.first != node) {
+                    final Node demoted = protectedQueue.first;
+                    protectedQueue.remove(demoted);
+                    probation.addLast(demoted);
+                }
+            } else {
+                window.moveToLast(node);
+            }
+        }
+
+        /**
+         * Move the window overflow to probation, then evict from the main space the less
+         * frequent of the oldest entry (victim) and the newest one (candidate).
+         */
+        private void evict() {
+            Node firstCandidate = null;
+            while (window.weight > maxWindowWeight && window.first != null) {
+                final Node node = window.first;
+                window.remove(node);
+                probation.addLast(node);
+                if (firstCandidate == null) {
+                    firstCandidate = node;
+                }
+            }
+            while (window.weight + probation.weight + protectedQueue.weight > maxWeight) {
+                final Node victim = probation.first != null ? probation.first : protectedQueue.first;
+                Node candidate = firstCandidate;
+                if (victim == null) {
+                    unlink(window.first);
+                    evictions.increment();
+                    continue;
+                }
+                if (candidate == null || candidate == victim) {
+                    if (candidate != null) {
+                        firstCandidate = candidate.next;
+                    }
+                    unlink(victim);
+                    evictions.increment();
+                    continue;
+                }
+                firstCandidate = candidate.next;
+                if (victim.expiresAt <= System.currentTimeMillis()
+                        || sketch.frequency(candidate.hash) > sketch.frequency(victim.hash)) {
+                    unlink(victim);
+                    evictions.increment();
+                } else {
+                    unlink(candidate);
+                    rejections.increment();
+                }
+            }
+        }
+
+        private void unlink(final Node node) {
+            data.remove(node.key);
+            node.queue.remove(node);
+        }
+    }
+
+    /**
+     * An entry.
+     */
+    private static final class Node {
+        final String key;
+        final int hash;
+        Object value;
+        int weight;
+        long expiresAt;
+        Queue queue;
+        Node previous;
+        Node next;
+
+        Node(final String key, final int hash, final Object value, final int weight, final long expiresAt) {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Weighted doubly linked LRU list, least recently used first.
+     */
+    private static final class Queue {
+        Node first;
+        Node last;
+        long weight;
+
+        void addLast(final Node node) {
+            node.queue = this;
+            node.previous = last;
+            node.next = null;
+            if (last == null) {
+                first = node;
+            } else {
+                last.next = node;
+            }
+            last = node;
+            weight += node.weight;
+        }
+
+        void remove(final Node node) {
+            if (node.previous == null) {
+                first = node.next;
+            } else {
+                node.previous.next = node.next;
+            }
+            if (node.next == null) {
+                last = node.previous;
+            } else {
+                node.next.previous = node.previous;
+            }
+            node.previous = null;
+            node.next = null;
+            weight -= node.weight;
+        }
+
+        void moveToLast(final Node node) {
+            if (node != last) {
+                remove(node);
+                addLast(node);
+            }
+        }
+
+        void clear() {
+            first = null;
+            last = null;
+            weight = 0;
+        }
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters (16 per long), depth 4. Once the number of increments
+     * reaches 10 times the table size, every counter is halved.
+     */
+    static final class FrequencySketch {
+
+        private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+        };
+
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private final long[] table;
+
+        private final int sampleSize;
+
+        private int size;
+
+        FrequencySketch(final int expectedEntries) {
+            int length = 16;
+            while (length < expectedEntries / 4 && length < (1 << 28)) {
+                length <<= 1;
+            }
+            table = new long[length];
+            sampleSize = 10 * Math.max(16, expectedEntries);
+        }
+
+        private int index(final int hash, final int depth) {
+            long h = (hash + SEEDS[depth]) * SEEDS[depth];
+            h += h >>> 32;
+            return (int) h & (table.length - 1);
+        }
+
+        /**
+         * @return The counter offset (in bits) of a depth in its long
+         */
+        private static int offset(final int hash, final int depth) {
+            return (((hash >>> (depth << 3)) & 3) + (depth << 2)) << 2;
+        }
+
+        void increment(final int hash) {
+            boolean added = false;
+            for (int depth = 0; depth < 4; depth++) {
+                final int i = index(hash, depth);
+                final int offset = offset(hash, depth);
+                if (((table[i] >>> offset) & 0xfL) != 0xfL) {
+                    table[i] += 1L << offset;
+                    added = true;
+                }
+            }
+            if (added && ++size >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(final int hash) {
+            int frequency = Integer.MAX_VALUE;
+            for (int depth = 0; depth < 4; depth++) {
+                frequency = Math.min(frequency, (int) ((table[index(hash, depth)] >>> offset(hash, depth)) & 0xfL));
+            }
+            return frequency;
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+            size /= 2;
+        }
+    }
+}
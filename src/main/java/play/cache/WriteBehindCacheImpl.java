@@ -0,0 +1,643 @@
+package play.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import play.Logger;
+import play.jobs.JobThreadFactory;
+import play.libs.ws.F;
+
+/**
+ * Applies add, set, replace and delete to the underlying implementation on a background thread.
+ *
+ * <p>The mutations wait in a bounded queue, where a new set or delete of a key replaces the
+ * pending one, and are flushed in batches (setAll and deleteAll for the sets and deletes).
+ * When the queue is full, the caller waits up to <code>offerTimeout</code> milliseconds, then
+ * writes synchronously: the queue never drops a mutation. {@link #stop()} flushes the queue
+ * before stopping the underlying implementation.</p>
+ *
+ * <p>Reads see the pending mutations. The safe* operations, incr and decr need the current
+ * state: they flush the pending mutation of their key first, then run synchronously. A key
+ * is written by one thread at a time: a mutation applied synchronously stays visible to the
+ * reads until it's done, and the later mutations of its key wait in the queue.</p>
+ *
+ * <p>Configuration (with <code>cache.writeBehind=enabled</code>):</p>
+ * <pre>
+ * cache.writeBehind.queueSize=10000
+ * cache.writeBehind.batchSize=100
+ * cache.writeBehind.flushInterval=10
+ * cache.writeBehind.offerTimeout=100
+ * </pre>
+ */
+public class WriteBehindCacheImpl implements CacheImpl, CacheDecorator {
+
+    private enum Type {
+        ADD, SET, REPLACE, DELETE
+    }
+
+    private final CacheImpl delegate;
+
+    private final int queueSize;
+
+    private final int batchSize;
+
+    private final long flushIntervalMillis;
+
+    private final long offerTimeoutMillis;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    private final Condition notFull = lock.newCondition();
+
+    /** Pending mutations, in arrival order of their key. */
+    private final LinkedHashMap<String, Mutation> pending = new LinkedHashMap<String, Mutation>();
+
+    /** Mutations being flushed, still visible to the reads. */
+    private final Map<String, Mutation> flushing = new HashMap<String, Mutation>();
+
+    /** Latest mutation of the keys being written synchronously, still visible to the reads. */
+    private final Map<String, Mutation> applying = new HashMap<String, Mutation>();
+
+    private final Thread flusher;
+
+    private volatile boolean stopped;
+
+    /** Set by flush(): don't wait to gather a full batch. */
+    private boolean flushRequested;
+
+    private final Statistics statistics = new Statistics();
+
+    /**
+     * @param delegate The underlying implementation
+     * @param queueSize Maximum number of pending keys
+     * @param batchSize Maximum number of mutations per flush
+     * @param flushIntervalMillis Time to gather a batch, in milliseconds
+     * @param offerTimeoutMillis Time waiting for room in the queue before writing synchronously, in milliseconds
+     */
+    public WriteBehindCacheImpl(final CacheImpl delegate, final int queueSize, final int batchSize,
+            final long flushIntervalMillis, final long offerTimeoutMillis) {
+        this.delegate = delegate;
+        this.queueSize = queueSize;
+        this.batchSize = batchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.offerTimeoutMillis = offerTimeoutMillis;
+        this.flusher = new JobThreadFactory("cache-write-behind").newThread(new Runnable() {
+
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        });
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * @return The underlying implementation
+     */
+    @Override
+    public CacheImpl getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * @return The write-behind counters
+     */
+    public Statistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * @return The number of keys waiting to be flushed
+     */
+    public int pendingSize() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void add(final String key, final Object value, final int expiration) {
+        enqueue(key, new Mutation(Type.ADD, value, expiration));
+    }
+
+    @Override
+    public boolean safeAdd(final String key, final Object value, final int expiration) {
+        flush(key);
+        return delegate.safeAdd(key, value, expiration);
+    }
+
+    @Override
+    public void set(final String key, final Object value, final int expiration) {
+        enqueue(key, new Mutation(Type.SET, value, expiration));
+    }
+
+    @Override
+    public boolean safeSet(final String key, final Object value, final int expiration) {
+        flush(key);
+        return delegate.safeSet(key, value, expiration);
+    }
+
+    @Override
+    public void replace(final String key, final Object value, final int expiration) {
+        enqueue(key, new Mutation(Type.REPLACE, value, expiration));
+    }
+
+    @Override
+    public boolean safeReplace(final String key, final Object value, final int expiration) {
+        flush(key);
+        return delegate.safeReplace(key, value, expiration);
+    }
+
+    @Override
+    public Object get(final String key) {
+        lock.lock();
+        try {
+            final Mutation mutation = visible(key);
+            if (mutation != null && mutation.type == Type.SET) {
+                return mutation.value;
+            }
+            if (mutation != null && mutation.type == Type.DELETE) {
+                return null;
+            }
+        } finally {
+            lock.unlock();
+        }
+        // pending add and replace depend on the current value
+        flush(key);
+        return delegate.get(key);
+    }
+
+    @Override
+    public Map<String, Object> get(final String[] keys) {
+        final Map<String, Object> result = new HashMap<String, Object>(keys.length);
+        final List<String> remoteKeys = new ArrayList<String>(keys.length);
+        lock.lock();
+        try {
+            for (final String key : keys) {
+                final Mutation mutation = visible(key);
+                if (mutation != null && mutation.type == Type.SET) {
+                    result.put(key, mutation.value);
+                } else if (mutation == null || mutation.type != Type.DELETE) {
+                    remoteKeys.add(key);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (!remoteKeys.isEmpty()) {
+            for (final String key : remoteKeys) {
+                flush(key);
+            }
+            result.putAll(delegate.get(remoteKeys.toArray(new String[remoteKeys.size()])));
+        }
+        return result;
+    }
+
+    /**
+     * @return The latest mutation of a key not applied yet, the lock being held
+     */
+    private Mutation visible(final String key) {
+        Mutation mutation = pending.get(key);
+        if (mutation == null) {
+            mutation = applying.get(key);
+        }
+        if (mutation == null) {
+            mutation = flushing.get(key);
+        }
+        return mutation;
+    }
+
+    @Override
+    public long incr(final String key, final int by) {
+        flush(key);
+        return delegate.incr(key, by);
+    }
+
+    @Override
+    public long decr(final String key, final int by) {
+        flush(key);
+        return delegate.decr(key, by);
+    }
+
+    @Override
+    public void clear() {
+        lock.lock();
+        try {
+            pending.clear();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        awaitFlushing();
+        delegate.clear();
+    }
+
+    @Override
+    public void delete(final String key) {
+        enqueue(key, new Mutation(Type.DELETE, null, 0));
+    }
+
+    @Override
+    public boolean safeDelete(final String key) {
+        flush(key);
+        return delegate.safeDelete(key);
+    }
+
+    @Override
+    public F.Promise<Boolean> setAll(final Map<String, Object> values, final int expiration) {
+        for (final Map.Entry<String, Object> entry : values.entrySet()) {
+            set(entry.getKey(), entry.getValue(), expiration);
+        }
+        return BlockingAsyncCacheImpl.redeemed(true);
+    }
+
+    @Override
+    public F.Promise<Boolean> deleteAll(final Collection<String> keys) {
+        for (final String key : keys) {
+            delete(key);
+        }
+        return BlockingAsyncCacheImpl.redeemed(true);
+    }
+
+    /**
+     * Flush every pending mutation, then stop the underlying implementation.
+     */
+    @Override
+    public void stop() {
+        lock.lock();
+        try {
+            stopped = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        boolean interrupted = false;
+        while (flusher.isAlive()) {
+            try {
+                flusher.join();
+            } catch (final InterruptedException e) {
+                // acknowledged writes must not be lost
+                interrupted = true;
+            }
+        }
+        // mutations enqueued while stopping
+        awaitFlushing();
+        while (flushBatch()) {
+            // continue
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        delegate.stop();
+    }
+
+    /**
+     * Wait until every mutation enqueued so far is applied.
+     */
+    public void flush() {
+        lock.lock();
+        try {
+            while (!pending.isEmpty() || !flushing.isEmpty() || !applying.isEmpty()) {
+                if (stopped) {
+                    return;
+                }
+                flushRequested = true;
+                notEmpty.signalAll();
+                notFull.await();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void enqueue(final String key, final Mutation mutation) {
+        lock.lock();
+        try {
+            if (!stopped) {
+                final Mutation previous = pending.get(key);
+                if (previous == null || mutation.isBlind()) {
+                    if (previous != null || awaitRoom()) {
+                        if (previous != null) {
+                            statistics.coalesced.increment();
+                            // keep the arrival order of the latest mutation
+                            pending.remove(key);
+                        }
+                        pending.put(key, mutation);
+                        statistics.enqueued.increment();
+                        notEmpty.signal();
+                        return;
+                    }
+                    statistics.throttled.increment();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        // stopped, queue full or add/replace over a pending mutation: write now, in order
+        applyNow(key, mutation);
+    }
+
+    /**
+     * Wait for room in the queue, the lock being held.
+     * @return false after offerTimeout
+     */
+    private boolean awaitRoom() {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(offerTimeoutMillis);
+        try {
+            while (pending.size() >= queueSize) {
+                if (nanos <= 0 || stopped) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            return true;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Apply now the pending mutation of a key, if any, once the writes in progress of the key are done.
+     */
+    private void flush(final String key) {
+        applyNow(key, null);
+    }
+
+    /**
+     * Apply now the pending mutation of a key, if any, then another mutation, once the writes
+     * in progress of the key are done. Until then, the key is left out of the batches.
+     * @param mutation Applied after the pending one, may be null
+     */
+    private void applyNow(final String key, final Mutation mutation) {
+        final Mutation previous;
+        lock.lock();
+        try {
+            try {
+                while (flushing.containsKey(key) && Thread.currentThread() != flusher || applying.containsKey(key)) {
+                    notFull.await();
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            previous = pending.remove(key);
+            if (previous != null) {
+                notFull.signal();
+            }
+            if (previous == null && mutation == null) {
+                return;
+            }
+            applying.put(key, mutation != null ? mutation : previous);
+        } finally {
+            lock.unlock();
+        }
+        try {
+            if (previous != null) {
+                apply(key, previous);
+            }
+            if (mutation != null) {
+                apply(key, mutation);
+            }
+        } finally {
+            lock.lock();
+            try {
+                applying.remove(key);
+                notFull.signalAll();
+                if (pending.containsKey(key)) {
+                    notEmpty.signal();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Wait for the batch being flushed and the synchronous writes, so that they don't overwrite a later write.
+     */
+    private void awaitFlushing() {
+        if (Thread.currentThread() == flusher) {
+            return;
+        }
+        lock.lock();
+        try {
+            while (!flushing.isEmpty() || !applying.isEmpty()) {
+                notFull.await();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void apply(final String key, final Mutation mutation) {
+        try {
+            switch (mutation.type) {
+            case ADD:
+                delegate.add(key, mutation.value, mutation.expiration);
+                break;
+            case SET:
+                delegate.set(key, mutation.value, mutation.expiration);
+                break;
+            case REPLACE:
+                delegate.replace(key, mutation.value, mutation.expiration);
+                break;
+            default:
+                delegate.delete(key);
+            }
+            statistics.flushed.increment();
+        } catch (final Exception e) {
+            statistics.failures.increment();
+            Logger.error(e, "Could not write %s to the cache", key);
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            lock.lock();
+            try {
+                while (pending.isEmpty() && !stopped) {
+                    notEmpty.await();
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                // gather a batch
+                long nanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+                while (!stopped && !flushRequested && pending.size() < batchSize && nanos > 0) {
+                    nanos = notEmpty.awaitNanos(nanos);
+                }
+                if (pending.size() <= batchSize) {
+                    flushRequested = false;
+                }
+            } catch (final InterruptedException e) {
+                Logger.warn("Cache write-behind interrupted, %s mutation(s) left to the stop", pending.size());
+                return;
+            } finally {
+                lock.unlock();
+            }
+            flushBatch();
+        }
+    }
+
+    /**
+     * Flush up to batchSize pending mutations.
+     * @return false if there was nothing to flush
+     */
+    private boolean flushBatch() {
+        lock.lock();
+        try {
+            final Iterator<Map.Entry<String, Mutation>> iterator = pending.entrySet().iterator();
+            while (iterator.hasNext() && flushing.size() < batchSize) {
+                final Map.Entry<String, Mutation> entry = iterator.next();
+                if (applying.containsKey(entry.getKey())) {
+                    // written after the synchronous write in progress
+                    continue;
+                }
+                flushing.put(entry.getKey(), entry.getValue());
+                iterator.remove();
+            }
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (flushing.isEmpty()) {
+            return false;
+        }
+        try {
+            final Map<Integer, Map<String, Object>> sets = new HashMap<Integer, Map<String, Object>>();
+            final List<String> deletes = new ArrayList<String>();
+            for (final Map.Entry<String, Mutation> entry : flushing.entrySet()) {
+                final Mutation mutation = entry.getValue();
+                if (mutation.type == Type.SET) {
+                    Map<String, Object> values = sets.get(mutation.expiration);
+                    if (values == null) {
+                        values = new HashMap<String, Object>();
+                        sets.put(mutation.expiration, values);
+                    }
+                    values.put(entry.getKey(), mutation.value);
+                } else if (mutation.type == Type.DELETE) {
+                    deletes.add(entry.getKey());
+                } else {
+                    apply(entry.getKey(), mutation);
+                }
+            }
+            final List<F.Promise<Boolean>> results = new ArrayList<F.Promise<Boolean>>();
+            for (final Map.Entry<Integer, Map<String, Object>> entry : sets.entrySet()) {
+                results.add(delegate.setAll(entry.getValue(), entry.getKey()));
+                statistics.flushed.add(entry.getValue().size());
+            }
+            if (!deletes.isEmpty()) {
+                results.add(delegate.deleteAll(deletes));
+                statistics.flushed.add(deletes.size());
+            }
+            for (final F.Promise<Boolean> result : results) {
+                if (!Boolean.TRUE.equals(result.get(1, TimeUnit.MINUTES))) {
+                    statistics.failures.increment();
+                }
+            }
+            statistics.batches.increment();
+        } catch (final Exception e) {
+            statistics.failures.increment();
+            Logger.error(e, "Could not flush %s cache write(s)", flushing.size());
+        } finally {
+            lock.lock();
+            try {
+                flushing.clear();
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A pending mutation.
+     */
+    private static final class Mutation {
+        final Type type;
+        final Object value;
+        final int expiration;
+
+        Mutation(final Type type, final Object value, final int expiration) {
+            this.type = type;
+            this.value = value;
+            this.expiration = expiration;
+        }
+
+        /**
+         * set and delete don't depend on the previous state of the key: they can replace a pending mutation.
+         */
+        boolean isBlind() {
+            return type == Type.SET || type == Type.DELETE;
+        }
+    }
+
+    /**
+     * Write-behind counters.
+     */
+    public static final class Statistics {
+        final LongAdder enqueued = new LongAdder();
+        final LongAdder coalesced = new LongAdder();
+        final LongAdder throttled = new LongAdder();
+        final LongAdder flushed = new LongAdder();
+        final LongAdder batches = new LongAdder();
+        final LongAdder failures = new LongAdder();
+
+        /** @return Mutations accepted in the queue */
+        public long getEnqueued() {
+            return enqueued.sum();
+        }
+
+        /** @return Mutations replacing a pending one of the same key */
+        public long getCoalesced() {
+            return coalesced.sum();
+        }
+
+        /** @return Mutations written synchronously because the queue stayed full */
+        public long getThrottled() {
+            return throttled.sum();
+        }
+
+        /** @return Mutations written to the underlying implementation */
+        public long getFlushed() {
+            return flushed.sum();
+        }
+
+        /** @return Batches flushed */
+        public long getBatches() {
+            return batches.sum();
+        }
+
+        /** @return Writes or batches failed */
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d enqueued, %d coalesced, %d throttled, %d flushed in %d batch(es), %d failure(s)",
+                    getEnqueued(), getCoalesced(), getThrottled(), getFlushed(), getBatches(), getFailures());
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package play.jobs;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * What to do when a job is triggered while it is still running.
+ * Without this annotation, every trigger runs.
+ * <pre>
+ * @Every("1mn")
+ * @Concurrency(Concurrency.Policy.SKIP_IF_RUNNING)
+ * </pre>
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Concurrency {
+    Policy value();
+
+    /**
+     * Maximum concurrent runs of an instance, for ALLOW_N.
+     */
+    int max() default 1;
+
+    /**
+     * Policies.
+     */
+    enum Policy {
+        /** The trigger is skipped. */
+        SKIP_IF_RUNNING,
+        /** One trigger waits and runs after the current run, the others are skipped. */
+        QUEUE_ONE,
+        /** Up to max runs at the same time, the other triggers are skipped. */
+        ALLOW_N,
+        /**
+         * The triggers and the cron fire times missed during a run are merged into one run,
+         * right after it.
+         */
+        COALESCE
+    }
+}
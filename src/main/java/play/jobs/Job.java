@@ -5,6 +5,8 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
 
 import play.libs.Time;
 
@@ -20,10 +22,35 @@ import com.jamonapi.MonitorFactory;
  * @param <V>
  */
 public abstract class Job<V> implements Callable<V>, Runnable {
+    // Job.class は Class<Job> なので、以下の updater は raw type の Job でしか作れない
+    /** running の更新. */
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<Job> RUNNING
+            = AtomicIntegerFieldUpdater.newUpdater(Job.class, "running");
+    /** pending の更新. */
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<Job> PENDING
+            = AtomicIntegerFieldUpdater.newUpdater(Job.class, "pending");
+    /** everyScheduled の更新. */
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<Job> EVERY_SCHEDULED
+            = AtomicIntegerFieldUpdater.newUpdater(Job.class, "everyScheduled");
     protected ExecutorService executor;
     protected long lastRun = 0;
     protected boolean wasError = false;
     public Date nextPlannedExecution;
+    /** 実行中の数 (@Concurrency の Job). */
+    private volatile int running;
+    /** 実行中に受けて、後で実行する呼び出しがあるか (QUEUE_ONE, COALESCE). */
+    private volatile int pending;
+    /** every で登録済みか. */
+    private volatile int everyScheduled;
+    /** 実行中のため実行しなかった回数. */
+    private final LongAdder skipped = new LongAdder();
+    /** 1 回の実行にまとめた呼び出しと CRON の実行時刻の数. */
+    private final LongAdder coalesced = new LongAdder();
+    /** この Job クラスの計測. */
+    private JobMetrics metrics;
 
     /**
      * Here you do the job
@@ -49,44 +76,185 @@ public abstract class Job<V> implements Callable<V>, Runnable {
 
     /**
      * Run this job every n seconds.
+     * Only the first call schedules the job.
      * @param seconds seconds
      */
     public void every(int seconds) {
-        JobScheduler.executor.scheduleWithFixedDelay(this, seconds, seconds, TimeUnit.SECONDS);
+        JobScheduler.every(this, seconds);
     }
 
     @Override
     public void run() {
         call();
     }
+    /**
+     * Run the job, following the policy of its @Concurrency annotation.
+     */
     @Override
     public V call() {
+        final Concurrency concurrency = getClass().getAnnotation(Concurrency.class);
+        if (concurrency == null) {
+            try {
+                return execute(true);
+            } finally {
+                _finally();
+            }
+        }
+        final int max = concurrency.value() == Concurrency.Policy.ALLOW_N ? concurrency.max() : 1;
+        V result = null;
+        boolean ran = false;
+        try {
+            if (tryStart(max)) {
+                ran = true;
+                try {
+                    result = execute(true);
+                } finally {
+                    RUNNING.decrementAndGet(this);
+                }
+            } else if (!defer(concurrency.value())) {
+                skipped.increment();
+                return null;
+            }
+            // 実行中に受けた呼び出し. 終わった直後に defer した場合はこちらで実行する
+            ran |= runPending(max);
+        } finally {
+            if (ran) {
+                _finally();
+            }
+        }
+        return result;
+    }
+    /**
+     * 実行する.
+     * @param planned 予定時刻の実行か (予定時刻からの遅れを計測する)
+     * @return doJobWithResult() の結果
+     */
+    private V execute(final boolean planned) {
+        final JobMetrics metric = metrics();
         Monitor monitor = null;
+        final long start = System.nanoTime();
+        boolean failed = true;
         try {
             V result = null;
             lastRun = System.currentTimeMillis();
+            final Date plannedExecution = nextPlannedExecution;
+            if (planned && plannedExecution != null) {
+                metric.recordLag(TimeUnit.MILLISECONDS.toNanos(lastRun - plannedExecution.getTime()));
+            }
             monitor = MonitorFactory.start(getClass().getName()+".doJob()");
             result = doJobWithResult();
             monitor.stop();
             monitor = null;
             wasError = false;
+            failed = false;
             return result;
         } catch (Exception e) {
+            wasError = true;
             System.err.println(e);;
         } finally {
             if(monitor != null) {
                 monitor.stop();
             }
-            _finally();
+            metric.recordRun(System.nanoTime() - start, failed);
         }
         return null;
     }
+    /**
+     * @return この Job クラスの計測
+     */
+    private JobMetrics metrics() {
+        JobMetrics metric = metrics;
+        if (metric == null) {
+            metric = JobMetrics.of(getClass());
+            metrics = metric;
+        }
+        return metric;
+    }
+    /**
+     * 実行中の数が max 未満なら 1 増やす.
+     * @param max 同時実行数
+     * @return 実行してよいか
+     */
+    private boolean tryStart(final int max) {
+        int current;
+        while ((current = running) < max) {
+            if (RUNNING.compareAndSet(this, current, current + 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    /**
+     * 実行中に受けた呼び出しを、後で実行するように記録する.
+     * @param policy
+     * @return 記録したか, まとめたか
+     */
+    private boolean defer(final Concurrency.Policy policy) {
+        if (policy != Concurrency.Policy.QUEUE_ONE && policy != Concurrency.Policy.COALESCE) {
+            return false;
+        }
+        if (PENDING.compareAndSet(this, 0, 1)) {
+            return true;
+        }
+        if (policy == Concurrency.Policy.COALESCE) {
+            coalesced.increment();
+            return true;
+        }
+        return false;
+    }
+    /**
+     * 記録された呼び出しを実行する.
+     * @param max 同時実行数
+     * @return 実行したか
+     */
+    private boolean runPending(final int max) {
+        boolean ran = false;
+        while (pending == 1 && tryStart(max)) {
+            if (!PENDING.compareAndSet(this, 1, 0)) {
+                RUNNING.decrementAndGet(this);
+                break;
+            }
+            ran = true;
+            try {
+                execute(false);
+            } finally {
+                RUNNING.decrementAndGet(this);
+            }
+        }
+        return ran;
+    }
+    /**
+     * every で登録する前に呼ぶ.
+     * @return 初めての登録か
+     */
+    boolean markEveryScheduled() {
+        return EVERY_SCHEDULED.compareAndSet(this, 0, 1);
+    }
+    /**
+     * 実行中に過ぎた CRON の実行時刻を、次の実行にまとめたことを記録する.
+     * @param count 過ぎた実行時刻の数
+     */
+    void coalesced(final int count) {
+        coalesced.add(count);
+    }
+    /**
+     * @return 実行中のため実行しなかった回数
+     */
+    public long getSkipped() {
+        return skipped.sum();
+    }
+    /**
+     * @return 1 回の実行にまとめた呼び出しと CRON の実行時刻の数
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
     /**
      * 次のCRON実行Jobをセットする.
-     * set cron to JobScheduler.executor.
+     * set cron to JobScheduler.scheduler.
      */
     public void _finally() {
-        if (executor == JobScheduler.executor) {
+        if (executor == JobScheduler.scheduler) {
             JobScheduler.scheduleForCRON(this);
         }
     }
@@ -0,0 +1,351 @@
+package play.jobs;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Job クラスごとの実行の計測.
+ * <p>
+ * Job.call から記録する. 記録は LongAdder の更新だけ (ロックも割り当てもない) なので、
+ * 本番でも毎回の実行で計測できる.
+ * </p>
+ * <ul>
+ * <li>遅れ: 予定時刻 (nextPlannedExecution) から実行開始まで. 予定時刻のある CRON の Job だけ.</li>
+ * <li>実行時間.</li>
+ * <li>成功と失敗 (doJob が例外を投げた) の回数.</li>
+ * <li>クラスタの他のノードが実行時刻の権利を取ったため、実行しなかった回数.</li>
+ * </ul>
+ * 遅れと実行時間は 2 のべき乗 (ns) のバケットのヒストグラム.
+ * @author Toast kid
+ *
+ */
+public final class JobMetrics {
+    /** Job クラス名ごとの計測. */
+    private static final ConcurrentMap<String, JobMetrics> metrics = new ConcurrentHashMap<String, JobMetrics>();
+    /** Job クラス. */
+    private final Class<?> jobClass;
+    /** 遅れ. */
+    private final Histogram lag = new Histogram();
+    /** 実行時間. */
+    private final Histogram duration = new Histogram();
+    /** 成功した回数. */
+    private final LongAdder successes = new LongAdder();
+    /** 失敗した回数. */
+    private final LongAdder failures = new LongAdder();
+    /** 他のノードが実行した回数. */
+    private final LongAdder claimedElsewhere = new LongAdder();
+
+    /**
+     * @param jobClass Job クラス
+     */
+    private JobMetrics(final Class<?> jobClass) {
+        this.jobClass = jobClass;
+    }
+
+    /**
+     * Job クラスの計測を取得する. なければ作る.
+     * @param jobClass Job クラス
+     * @return 計測
+     */
+    public static JobMetrics of(final Class<?> jobClass) {
+        final String name = jobClass.getName();
+        JobMetrics metric = metrics.get(name);
+        if (metric == null) {
+            metric = new JobMetrics(jobClass);
+            final JobMetrics previous = metrics.putIfAbsent(name, metric);
+            if (previous != null) {
+                metric = previous;
+            }
+        }
+        return metric;
+    }
+
+    /**
+     * @return Job クラス名ごとの現在の値
+     */
+    public static Map<String, Snapshot> snapshots() {
+        final Map<String, Snapshot> snapshots = new TreeMap<String, Snapshot>();
+        for (final JobMetrics metric : metrics.values()) {
+            snapshots.put(metric.jobClass.getName(), metric.snapshot());
+        }
+        return Collections.unmodifiableMap(snapshots);
+    }
+
+    /**
+     * @return スケジューラに登録されて、実行を待っているタスク数
+     */
+    public static int getQueueDepth() {
+        final ScheduledExecutorService scheduler = JobScheduler.scheduler;
+        if (scheduler instanceof TimingWheelScheduler) {
+            final TimingWheelScheduler wheel = (TimingWheelScheduler) scheduler;
+            return wheel.getScheduledCount() + wheel.getQueueSize();
+        }
+        if (scheduler instanceof ScheduledThreadPoolExecutor) {
+            return ((ScheduledThreadPoolExecutor) scheduler).getQueue().size();
+        }
+        return 0;
+    }
+
+    /**
+     * すべての計測を 0 に戻す.
+     */
+    public static void resetAll() {
+        for (final JobMetrics metric : metrics.values()) {
+            metric.reset();
+        }
+    }
+
+    /**
+     * 計測を 0 に戻す.
+     */
+    public void reset() {
+        lag.reset();
+        duration.reset();
+        successes.reset();
+        failures.reset();
+        claimedElsewhere.reset();
+    }
+
+    /**
+     * 実行の開始を記録する.
+     * @param lagNanos 予定時刻からの遅れ (ns)
+     */
+    void recordLag(final long lagNanos) {
+        lag.record(lagNanos);
+    }
+
+    /**
+     * 実行の終了を記録する.
+     * @param nanos 実行時間 (ns)
+     * @param failed 失敗したか
+     */
+    void recordRun(final long nanos, final boolean failed) {
+        duration.record(nanos);
+        (failed ? failures : successes).increment();
+    }
+
+    /**
+     * 他のノードが実行時刻の権利を取ったことを記録する.
+     */
+    void recordClaimedElsewhere() {
+        claimedElsewhere.increment();
+    }
+
+    /**
+     * @return 現在の値
+     */
+    public Snapshot snapshot() {
+        final JobRunner runner = JobScheduler.runner;
+        return new Snapshot(
+                successes.sum(),
+                failures.sum(),
+                claimedElsewhere.sum(),
+                lag.snapshot(),
+                duration.snapshot(),
+                runner == null ? 0 : runner.getWaiting(jobClass)
+                );
+    }
+
+    /**
+     * 2 のべき乗 (ns) のバケットのヒストグラム.
+     */
+    private static final class Histogram {
+        /** バケット数. */
+        private static final int BUCKETS = 64;
+        /** 記録数. */
+        private final LongAdder count = new LongAdder();
+        /** 合計 (ns). */
+        private final LongAdder totalNanos = new LongAdder();
+        /** 最大 (ns). */
+        private final LongAccumulator maxNanos = new LongAccumulator(new LongBinaryOperator() {
+            @Override
+            public long applyAsLong(final long left, final long right) {
+                return Math.max(left, right);
+            }
+        }, 0L);
+        /** バケット. */
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+        Histogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(final long nanos) {
+            final long value = Math.max(nanos, 0L);
+            count.increment();
+            totalNanos.add(value);
+            maxNanos.accumulate(value);
+            buckets[BUCKETS - Long.numberOfLeadingZeros(Math.max(value, 1L))].increment();
+        }
+
+        void reset() {
+            count.reset();
+            totalNanos.reset();
+            maxNanos.reset();
+            for (final LongAdder bucket : buckets) {
+                bucket.reset();
+            }
+        }
+
+        HistogramSnapshot snapshot() {
+            final long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            return new HistogramSnapshot(
+                    count.sum(),
+                    totalNanos.sum(),
+                    percentile(counts, total, 0.5d),
+                    percentile(counts, total, 0.99d),
+                    maxNanos.get()
+                    );
+        }
+
+        /**
+         * @return パーセンタイルを含むバケットの上限
+         */
+        private static long percentile(final long[] counts, final long total, final double percentile) {
+            if (total == 0) {
+                return 0;
+            }
+            final long rank = (long) Math.ceil(total * percentile);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return i >= 63 ? Long.MAX_VALUE : (1L << i) - 1;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * ある時点の Job クラスの計測.
+     */
+    public static final class Snapshot {
+        private final long successes;
+        private final long failures;
+        private final long claimedElsewhere;
+        private final HistogramSnapshot lag;
+        private final HistogramSnapshot duration;
+        private final int waiting;
+
+        Snapshot(final long successes, final long failures, final long claimedElsewhere,
+                final HistogramSnapshot lag, final HistogramSnapshot duration, final int waiting) {
+            this.successes = successes;
+            this.failures = failures;
+            this.claimedElsewhere = claimedElsewhere;
+            this.lag = lag;
+            this.duration = duration;
+            this.waiting = waiting;
+        }
+
+        /** @return 成功した回数 */
+        public long getSuccesses() {
+            return successes;
+        }
+
+        /** @return 失敗した回数 */
+        public long getFailures() {
+            return failures;
+        }
+
+        /** @return 他のノードが実行時刻の権利を取ったため、実行しなかった回数 */
+        public long getClaimedElsewhere() {
+            return claimedElsewhere;
+        }
+
+        /** @return 予定時刻から実行開始までの遅れ */
+        public HistogramSnapshot getLag() {
+            return lag;
+        }
+
+        /** @return 実行時間 */
+        public HistogramSnapshot getDuration() {
+            return duration;
+        }
+
+        /** @return JobRunner で同時実行数の空きを待っている数 */
+        public int getWaiting() {
+            return waiting;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "%d succeeded, %d failed, %d run elsewhere, run %s, lag %s, %d waiting",
+                    successes, failures, claimedElsewhere, duration, lag, waiting
+                    );
+        }
+    }
+
+    /**
+     * ある時点のヒストグラム.
+     */
+    public static final class HistogramSnapshot {
+        private final long count;
+        private final long totalNanos;
+        private final long p50Nanos;
+        private final long p99Nanos;
+        private final long maxNanos;
+
+        HistogramSnapshot(final long count, final long totalNanos, final long p50Nanos, final long p99Nanos,
+                final long maxNanos) {
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.p50Nanos = p50Nanos;
+            this.p99Nanos = p99Nanos;
+            this.maxNanos = maxNanos;
+        }
+
+        /** @return 記録数 */
+        public long getCount() {
+            return count;
+        }
+
+        /** @return 平均 (ns) */
+        public long getMeanNanos() {
+            return count == 0 ? 0 : totalNanos / count;
+        }
+
+        /** @return 中央値 (ns). 2 のべき乗のバケットの上限 */
+        public long getP50Nanos() {
+            return p50Nanos;
+        }
+
+        /** @return 99 パーセンタイル (ns). 2 のべき乗のバケットの上限 */
+        public long getP99Nanos() {
+            return p99Nanos;
+        }
+
+        /** @return 最大 (ns) */
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "mean %d ms, p50 < %d ms, p99 < %d ms, max %d ms",
+                    TimeUnit.NANOSECONDS.toMillis(getMeanNanos()),
+                    TimeUnit.NANOSECONDS.toMillis(p50Nanos) + 1,
+                    TimeUnit.NANOSECONDS.toMillis(p99Nanos) + 1,
+                    TimeUnit.NANOSECONDS.toMillis(maxNanos)
+                    );
+        }
+    }
+}
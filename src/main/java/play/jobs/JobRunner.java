@@ -0,0 +1,364 @@
+package play.jobs;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * スケジューラから切り離して Job を実行する.
+ * <p>
+ * スケジューラは時刻の管理だけを行い、満期になった Job をここに渡す.
+ * Job は virtual thread (Java 21 以降) か、必要なだけ伸びるスレッドプールで動くので、
+ * I/O 待ちの長い Job が他の Job のスレッドを塞がない.
+ * Job クラスごとに同時実行数を制限し、上限を超えた実行は空きを待つ.
+ * 実行を渡してから始まるまでの待ち時間と、実行時間を Job クラスごとに計測する.
+ * </p>
+ * @author Toast kid
+ *
+ */
+public final class JobRunner {
+    /** Job を実行する ExecutorService. */
+    private final ExecutorService executor;
+    /** 実行方式の説明. */
+    private final String description;
+    /** Job クラスごとの同時実行数の既定値. */
+    private final int defaultLimit;
+    /** Job クラス名ごとの同時実行数. */
+    private final ConcurrentMap<String, Integer> limits = new ConcurrentHashMap<String, Integer>();
+    /** Job クラス名ごとの実行状況. */
+    private final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+
+    /**
+     * 与えられた ExecutorService で初期化する.
+     * @param executor Job を実行する ExecutorService
+     * @param description 実行方式の説明
+     * @param defaultLimit Job クラスごとの同時実行数の既定値
+     */
+    public JobRunner(final ExecutorService executor, final String description, final int defaultLimit) {
+        if (defaultLimit <= 0) {
+            throw new IllegalArgumentException("defaultLimit must be positive");
+        }
+        this.executor = executor;
+        this.description = description;
+        this.defaultLimit = defaultLimit;
+    }
+
+    /**
+     * virtual thread で Job を実行する JobRunner を作る.
+     * virtual thread を使えない JDK では伸縮するスレッドプールを使う.
+     * @param maxThreads スレッドプールを使う場合の最大スレッド数
+     * @param defaultLimit Job クラスごとの同時実行数の既定値
+     * @return JobRunner
+     */
+    public static JobRunner virtualThreads(final int maxThreads, final int defaultLimit) {
+        final ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+        if (virtual == null) {
+            return elastic(maxThreads, defaultLimit);
+        }
+        return new JobRunner(virtual, "virtual threads", defaultLimit);
+    }
+
+    /**
+     * 伸縮するスレッドプールで Job を実行する JobRunner を作る.
+     * @param maxThreads 最大スレッド数
+     * @param defaultLimit Job クラスごとの同時実行数の既定値
+     * @return JobRunner
+     */
+    public static JobRunner elastic(final int maxThreads, final int defaultLimit) {
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                0,
+                maxThreads,
+                60L,
+                TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(),
+                new JobThreadFactory("jobs-elastic"),
+                new ThreadPoolExecutor.AbortPolicy()
+                );
+        return new JobRunner(pool, "elastic pool (max " + maxThreads + " threads)", defaultLimit);
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() をリフレクションで呼ぶ.
+     * @return virtual thread の ExecutorService, 使えない場合は null
+     */
+    static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            final Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (final ReflectiveOperationException e) {
+            // Java 21 より前, または preview のままの JDK
+            return null;
+        }
+    }
+
+    /**
+     * Job クラスの同時実行数を設定する.
+     * @param jobClassName Job クラスの完全修飾名
+     * @param limit 同時実行数
+     */
+    public void setLimit(final String jobClassName, final int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive");
+        }
+        limits.put(jobClassName, limit);
+    }
+
+    /**
+     * Job を 1 回実行する.
+     * スレッドが足りずに実行できない場合は、then を呼ぶか CRON の次の実行時刻を登録する.
+     * @param job Job
+     * @param then 実行後に呼ぶ処理. null 可
+     */
+    public void dispatch(final Job<?> job, final Runnable then) {
+        final Stats stat = stats(job.getClass().getName());
+        final long queued = System.nanoTime();
+        stat.waiting.incrementAndGet();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        stat.permits.acquire();
+                    } catch (final InterruptedException e) {
+                        stat.waiting.decrementAndGet();
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    final long started = System.nanoTime();
+                    stat.waiting.decrementAndGet();
+                    stat.running.incrementAndGet();
+                    stat.waitNanos.add(started - queued);
+                    try {
+                        job.call();
+                    } finally {
+                        stat.runNanos.add(System.nanoTime() - started);
+                        stat.runs.increment();
+                        stat.running.decrementAndGet();
+                        stat.permits.release();
+                        if (then != null) {
+                            then.run();
+                        }
+                    }
+                }
+
+                @Override
+                public String toString() {
+                    return job.toString();
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            stat.waiting.decrementAndGet();
+            stat.rejected.increment();
+            System.err.println("Cannot run job " + job.getClass().getName() + ": " + e);
+            // 実行できなくても次の実行は登録する. then がなければ CRON の Job
+            if (then != null) {
+                then.run();
+            } else {
+                JobScheduler.scheduleForCRON(job);
+            }
+        }
+    }
+
+    /**
+     * 満期になったら Job を渡す Runnable を作る. スケジューラに登録する.
+     * @param job Job
+     * @return Runnable
+     */
+    public Runnable dispatcher(final Job<?> job) {
+        return dispatcher(job, null);
+    }
+
+    /**
+     * Job を一定間隔で実行する. 間隔は実行が終わってから数える.
+     * @param scheduler 時刻を管理するスケジューラ
+     * @param job Job
+     * @param initialDelay 最初の実行までの時間
+     * @param delay 実行の間隔
+     * @param unit 時間の単位
+     */
+    public void every(
+            final ScheduledExecutorService scheduler,
+            final Job<?> job,
+            final long initialDelay,
+            final long delay,
+            final TimeUnit unit
+            ) {
+        final Runnable rearm = new Runnable() {
+            @Override
+            public void run() {
+                if (!scheduler.isShutdown()) {
+                    scheduler.schedule(dispatcher(job, this), delay, unit);
+                }
+            }
+        };
+        scheduler.schedule(dispatcher(job, rearm), initialDelay, unit);
+    }
+
+    /**
+     * @param job Job
+     * @param then 実行後に呼ぶ処理
+     * @return 満期になったら Job を渡す Runnable
+     */
+    private Runnable dispatcher(final Job<?> job, final Runnable then) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                dispatch(job, then);
+            }
+
+            @Override
+            public String toString() {
+                return job.toString();
+            }
+        };
+    }
+
+    /**
+     * @param jobClassName
+     * @return Job クラスの実行状況
+     */
+    private Stats stats(final String jobClassName) {
+        Stats stat = stats.get(jobClassName);
+        if (stat == null) {
+            final Integer limit = limits.get(jobClassName);
+            stat = new Stats(limit == null ? defaultLimit : limit);
+            final Stats previous = stats.putIfAbsent(jobClassName, stat);
+            if (previous != null) {
+                stat = previous;
+            }
+        }
+        return stat;
+    }
+
+    /**
+     * 実行を止める. 実行中の Job は最後まで動く.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * @return 実行方式の説明
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * @param jobClass Job クラス
+     * @return 実行中の数
+     */
+    public int getRunning(final Class<?> jobClass) {
+        final Stats stat = stats.get(jobClass.getName());
+        return stat == null ? 0 : stat.running.get();
+    }
+
+    /**
+     * @param jobClass Job クラス
+     * @return 空きを待っている数
+     */
+    public int getWaiting(final Class<?> jobClass) {
+        final Stats stat = stats.get(jobClass.getName());
+        return stat == null ? 0 : stat.waiting.get();
+    }
+
+    /**
+     * @param jobClass Job クラス
+     * @return 実行回数
+     */
+    public long getRuns(final Class<?> jobClass) {
+        final Stats stat = stats.get(jobClass.getName());
+        return stat == null ? 0 : stat.runs.sum();
+    }
+
+    /**
+     * @param jobClass Job クラス
+     * @return 待ち時間の平均 (ms)
+     */
+    public double getAverageWait(final Class<?> jobClass) {
+        final Stats stat = stats.get(jobClass.getName());
+        return stat == null ? 0 : stat.averageWait();
+    }
+
+    /**
+     * @param jobClass Job クラス
+     * @return 実行時間の平均 (ms)
+     */
+    public double getAverageRun(final Class<?> jobClass) {
+        final Stats stat = stats.get(jobClass.getName());
+        return stat == null ? 0 : stat.averageRun();
+    }
+
+    /**
+     * @return Job クラス名ごとの実行状況
+     */
+    public Map<String, String> getStatus() {
+        final Map<String, String> status = new TreeMap<String, String>();
+        for (final Map.Entry<String, Stats> entry : stats.entrySet()) {
+            status.put(entry.getKey(), entry.getValue().toString());
+        }
+        return status;
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+
+    /**
+     * Job クラスごとの同時実行数と実行状況.
+     */
+    private static final class Stats {
+        /** 同時実行数の空き. */
+        final Semaphore permits;
+        /** 同時実行数. */
+        final int limit;
+        /** 実行中の数. */
+        final AtomicInteger running = new AtomicInteger();
+        /** 空きを待っている数. */
+        final AtomicInteger waiting = new AtomicInteger();
+        /** 実行回数. */
+        final LongAdder runs = new LongAdder();
+        /** 実行できなかった回数. */
+        final LongAdder rejected = new LongAdder();
+        /** 待ち時間の合計 (ns). */
+        final LongAdder waitNanos = new LongAdder();
+        /** 実行時間の合計 (ns). */
+        final LongAdder runNanos = new LongAdder();
+
+        Stats(final int limit) {
+            this.limit = limit;
+            this.permits = new Semaphore(limit, true);
+        }
+
+        double averageWait() {
+            final long count = runs.sum();
+            return count == 0 ? 0 : waitNanos.sum() / 1000000.0 / count;
+        }
+
+        double averageRun() {
+            final long count = runs.sum();
+            return count == 0 ? 0 : runNanos.sum() / 1000000.0 / count;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "running %d/%d, waiting %d, %d runs, wait %.1fms, run %.1fms, %d rejected",
+                    running.get(), limit, waiting.get(), runs.sum(), averageWait(), averageRun(), rejected.sum()
+                    );
+        }
+    }
+}
@@ -2,14 +2,17 @@ package play.jobs;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Field;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -17,8 +20,10 @@ import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import play.Play;
+import play.cache.Cache;
+import play.libs.CompiledCron;
 import play.libs.Time;
-import play.libs.Time.CronExpression;
 
 
 /**
@@ -29,12 +34,34 @@ import play.libs.Time.CronExpression;
 public final class JobScheduler {
     /** ScheduledThreadPoolExecutor. */
     public static ScheduledThreadPoolExecutor executor = null;
+    /**
+     * Job を登録するスケジューラ.
+     * jobs.scheduler=wheel なら TimingWheelScheduler, それ以外は executor.
+     */
+    public static ScheduledExecutorService scheduler = null;
+    /**
+     * Job を実行する JobRunner.
+     * jobs.execution=virtual または elastic の場合に使い、scheduler は時刻の管理だけを行う.
+     * null ならば scheduler のスレッドで Job を実行する.
+     */
+    public static JobRunner runner = null;
+    /**
+     * CRON の Job の実行時刻ごとに、クラスタの 1 ノードだけが実行するか.
+     * jobs.cluster=true で有効. 実行時刻の権利は Cache.safeAdd で取る (memcached が必要, なければ実行しない).
+     */
+    static volatile boolean cluster = false;
+    /** 実行時刻の権利を Cache に残す時間. ノード間の時計のずれより長くする. */
+    static volatile String clusterLease = "10mn";
+    /** このノードの名前 (pid@host). 実行時刻の権利の値. */
+    private static final String node = ManagementFactory.getRuntimeMXBean().getName();
     /** 登録されている Job.*/
     private static List<Job> scheduledJobs = null;
     /** ${....}を探す正規表現. */
     private static Pattern expression = Pattern.compile("^\\$\\{(.*)\\}$");
     /** 同時に動作させる Job 数. */
     private static int core = 10;
+    /** COALESCE の Job で、まとめる実行時刻の最大数. */
+    private static final int MAX_COALESCED = 10000;
     static {
         scheduledJobs = new ArrayList<Job>();
         executor = new ScheduledThreadPoolExecutor(
@@ -42,6 +69,35 @@ public final class JobScheduler {
                 new JobThreadFactory("jobs"),
                 new ThreadPoolExecutor.AbortPolicy()
                 );
+        if ("wheel".equals(configuration("jobs.scheduler", "executor"))) {
+            scheduler = new TimingWheelScheduler(
+                    Long.parseLong(configuration("jobs.wheel.tick", "10")),
+                    TimeUnit.MILLISECONDS,
+                    core
+                    );
+        } else {
+            scheduler = executor;
+        }
+        cluster = Boolean.parseBoolean(configuration("jobs.cluster", "false"));
+        clusterLease = configuration("jobs.cluster.lease", "10mn");
+        final String execution = configuration("jobs.execution", "scheduler");
+        if ("virtual".equals(execution) || "elastic".equals(execution)) {
+            final int maxThreads = Integer.parseInt(configuration("jobs.execution.maxThreads", "256"));
+            final int limit = Integer.parseInt(configuration("jobs.concurrency", "1"));
+            runner = "virtual".equals(execution)
+                    ? JobRunner.virtualThreads(maxThreads, limit)
+                    : JobRunner.elastic(maxThreads, limit);
+            if (Play.configuration != null) {
+                for (final String key : Play.configuration.stringPropertyNames()) {
+                    if (key.startsWith("jobs.concurrency.")) {
+                        runner.setLimit(
+                                key.substring("jobs.concurrency.".length()),
+                                Integer.parseInt(Play.configuration.getProperty(key))
+                                );
+                    }
+                }
+            }
+        }
         /*
         // Job の自動登録機能.
         List<Class<?>> jobs = new ArrayList<Class<?>>();
@@ -61,6 +117,18 @@ public final class JobScheduler {
         }
         //*/
     }
+    /**
+     * 設定値を取得する.
+     * @param key 設定のキー
+     * @param defaultValue 未設定の場合の値
+     * @return 設定値
+     */
+    private static String configuration(final String key, final String defaultValue) {
+        if (Play.configuration == null) {
+            return defaultValue;
+        }
+        return Play.configuration.getProperty(key, defaultValue);
+    }
     /**
      * 登録されているジョブのステータスを表示する.
      * @return
@@ -76,10 +144,28 @@ public final class JobScheduler {
         }
         out.println("Jobs execution pool:");
         out.println("~~~~~~~~~~~~~~~~~~~");
-        out.println("Pool size: " + executor.getPoolSize());
-        out.println("Active count: " + executor.getActiveCount());
-        out.println("Scheduled task count: " + executor.getTaskCount());
-        out.println("Queue size: " + executor.getQueue().size());
+        if (scheduler instanceof TimingWheelScheduler) {
+            final TimingWheelScheduler wheel = (TimingWheelScheduler) scheduler;
+            out.println("Timing wheel: " + wheel);
+            out.println("Pool size: " + wheel.getPoolSize());
+            out.println("Active count: " + wheel.getActiveCount());
+            out.println("Scheduled task count: " + wheel.getScheduledCount());
+            out.println("Queue size: " + wheel.getQueueSize());
+        } else {
+            out.println("Pool size: " + executor.getPoolSize());
+            out.println("Active count: " + executor.getActiveCount());
+            out.println("Scheduled task count: " + executor.getTaskCount());
+            out.println("Queue size: " + executor.getQueue().size());
+        }
+        if (runner != null) {
+            out.println("Execution: " + runner);
+        }
+        if (cluster) {
+            out.println("Cluster: cron jobs run on one node, leases of " + clusterLease + " held by " + node);
+            if (!Cache.isShared()) {
+                out.println("Cluster: the cache isn't shared by the nodes, cron jobs are skipped");
+            }
+        }
         final SimpleDateFormat df = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss");
         if (!scheduledJobs.isEmpty()) {
             out.println();
@@ -107,10 +193,29 @@ public final class JobScheduler {
                 } else {
                     out.print(" (has never run)");
                 }
+                final Concurrency concurrency = job.getClass().getAnnotation(Concurrency.class);
+                if (concurrency != null) {
+                    out.print(
+                            " " + concurrency.value() + ": " + job.getSkipped() + " skipped, "
+                            + job.getCoalesced() + " coalesced."
+                            );
+                }
+                if (runner != null) {
+                    out.print(" " + runner.getStatus().get(job.getClass().getName()));
+                }
                 out.println();
             }
         }
-        if (!executor.getQueue().isEmpty()) {
+        final Map<String, JobMetrics.Snapshot> metrics = JobMetrics.snapshots();
+        if (!metrics.isEmpty()) {
+            out.println();
+            out.println("Job metrics (queue depth " + JobMetrics.getQueueDepth() + "):");
+            out.println("~~~~~~~~~~~~~~~~~~~~~~~~~~");
+            for (final Map.Entry<String, JobMetrics.Snapshot> entry : metrics.entrySet()) {
+                out.println(entry.getKey() + ": " + entry.getValue());
+            }
+        }
+        if (scheduler == executor && !executor.getQueue().isEmpty()) {
             out.println();
             out.println("Waiting jobs:");
             out.println("~~~~~~~~~~~~~~~~~~~~~~~~~~~");
@@ -147,7 +252,7 @@ public final class JobScheduler {
         try {
             final Date now = new Date();
             cron = evaluate(cron, cron).toString();
-            final CronExpression cronExp = new CronExpression(cron);
+            final CompiledCron cronExp = CompiledCron.compile(cron);
             Date nextDate = cronExp.getNextValidTimeAfter(now);
             if (nextDate == null) {
                 System.err.printf(
@@ -157,6 +262,24 @@ public final class JobScheduler {
                         );
                 return;
             }
+            final Concurrency concurrency = job.getClass().getAnnotation(Concurrency.class);
+            if (concurrency != null
+                    && concurrency.value() == Concurrency.Policy.COALESCE
+                    && job.nextPlannedExecution != null) {
+                // 実行中に過ぎた実行時刻を 1 回にまとめて、すぐに実行する
+                int missed = 0;
+                Date missedDate = null;
+                Date date = cronExp.getNextValidTimeAfter(job.nextPlannedExecution);
+                while (date != null && date.before(now) && missed < MAX_COALESCED) {
+                    missed++;
+                    missedDate = date;
+                    date = cronExp.getNextValidTimeAfter(date);
+                }
+                if (missedDate != null) {
+                    job.coalesced(missed);
+                    nextDate = missedDate;
+                }
+            }
             if (nextDate.equals(job.nextPlannedExecution)) {
                 // Bug #13: avoid running the job twice for the same time
                 // (happens when we end up running the job a few minutes before the planned time)
@@ -164,16 +287,80 @@ public final class JobScheduler {
                 nextDate = cronExp.getNextValidTimeAfter(nextInvalid);
             }
             job.nextPlannedExecution = nextDate;
-            executor.schedule(
-                    (Callable<V>)job,
-                    nextDate.getTime() - now.getTime(),
-                    TimeUnit.MILLISECONDS
-                    );
-            job.executor = executor;
+            final long delay = Math.max(nextDate.getTime() - now.getTime(), 0L);
+            if (cluster) {
+                scheduler.schedule(leased(job, nextDate), delay, TimeUnit.MILLISECONDS);
+            } else if (runner != null) {
+                scheduler.schedule(runner.dispatcher(job), delay, TimeUnit.MILLISECONDS);
+            } else {
+                scheduler.schedule((Callable<V>)job, delay, TimeUnit.MILLISECONDS);
+            }
+            job.executor = scheduler;
         } catch (final Exception e) {
             e.printStackTrace();
         }
     }
+    /**
+     * 実行時刻の権利を取ったノードだけが Job を実行する Runnable.
+     * 権利を取れなかったノードは実行せずに、次の実行時刻を登録する.
+     * @param job Job オブジェクト.
+     * @param planned 実行時刻
+     * @return 満期になったら権利を取る Runnable
+     */
+    private static Runnable leased(final Job<?> job, final Date planned) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                if (!claim(job, planned)) {
+                    JobMetrics.of(job.getClass()).recordClaimedElsewhere();
+                    scheduleForCRON(job);
+                } else if (runner != null) {
+                    runner.dispatch(job, null);
+                } else {
+                    job.call();
+                }
+            }
+
+            @Override
+            public String toString() {
+                return job.toString();
+            }
+        };
+    }
+    /**
+     * Job の実行時刻の権利を取る.
+     * 同じ Job クラスと実行時刻のキーを、最初に safeAdd できたノードが権利を持つ.
+     * Cache がノード間で共有されていなければ (初期化前や、memcached に繋がらずにローカルの
+     * Cache で動いている場合) どのノードも権利を取れてしまうので実行しない.
+     * Cache に書けなければ (memcached の停止など) 誰が実行するかわからないので実行しない.
+     * @param job Job オブジェクト.
+     * @param planned 実行時刻
+     * @return このノードが実行するか
+     */
+    static boolean claim(final Job<?> job, final Date planned) {
+        if (!Cache.isShared()) {
+            System.err.printf(
+                    "Job %s skipped at %s: the cache isn't shared by the cluster nodes%n",
+                    job.getClass().getName(),
+                    planned
+                    );
+            return false;
+        }
+        try {
+            return Cache.safeAdd(leaseKey(job, planned), node, clusterLease);
+        } catch (final RuntimeException e) {
+            System.err.println(e);
+            return false;
+        }
+    }
+    /**
+     * @param job Job オブジェクト.
+     * @param planned 実行時刻
+     * @return 実行時刻の権利のキー
+     */
+    static String leaseKey(final Job<?> job, final Date planned) {
+        return "jobs.lease." + job.getClass().getName() + "." + planned.getTime();
+    }
     /**
      * Try to discover what is hidden under a FutureTask (hack).
      * @param futureTask
@@ -236,13 +423,27 @@ public final class JobScheduler {
             //*/
             value = evaluate(value, value).toString();
             if(!"never".equalsIgnoreCase(value)){
-                executor.scheduleWithFixedDelay(
-                        job,
-                        Time.parseDuration(value),
-                        Time.parseDuration(value),
-                        TimeUnit.SECONDS
-                        );
+                every(job, Time.parseDuration(value));
             }
         }
     }
+    /**
+     * Job を一定間隔で実行する.
+     * @param job Job オブジェクト.
+     * @param seconds 間隔 (秒).
+     */
+    static void every(final Job<?> job, final int seconds) {
+        if (!job.markEveryScheduled()) {
+            System.err.printf(
+                    "Job %s is already scheduled to run at an interval, ignored%n",
+                    job.getClass().getName()
+                    );
+            return;
+        }
+        if (runner != null) {
+            runner.every(scheduler, job, seconds, seconds, TimeUnit.SECONDS);
+        } else {
+            scheduler.scheduleWithFixedDelay(job, seconds, seconds, TimeUnit.SECONDS);
+        }
+    }
 }
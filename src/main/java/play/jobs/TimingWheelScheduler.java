@@ -0,0 +1,491 @@
+package play.jobs;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 階層型タイミングホイールによるスケジューラ.
+ * <p>
+ * 256 スロットのホイールを 4 段重ねて、実行予定を tick 単位で管理する.
+ * 登録と取消は O(1) で、キューに積むだけ. tick スレッドが tick ごとに登録と取消を
+ * まとめて反映し、満期になったスロットのタスクを一括でワーカープールに渡す.
+ * 上の段のタスクは、下の段が一周するたびに下の段へ移される.
+ * </p>
+ * <p>
+ * ScheduledThreadPoolExecutor のヒープと違い、登録数が増えても登録・取消のコストは
+ * 変わらない. 実行時刻の精度は tick 単位. shutdown 後は登録済みのタスクを実行しない.
+ * </p>
+ * @author Toast kid
+ *
+ */
+public final class TimingWheelScheduler extends AbstractExecutorService implements ScheduledExecutorService {
+    /** 1 段のスロット数の bit 数. */
+    private static final int SLOT_BITS = 8;
+    /** 1 段のスロット数. */
+    private static final int SLOTS = 1 << SLOT_BITS;
+    /** スロット番号のマスク. */
+    private static final int SLOT_MASK = SLOTS - 1;
+    /** 段数. */
+    private static final int LEVELS = 4;
+    /** ホイールに置ける最大の tick 数. これより先のタスクは最上段で待つ. */
+    private static final long MAX_TICKS = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    /** tick の長さ (ns). */
+    private final long tickNanos;
+    /** tick 0 の時刻 (ns). */
+    private final long startNanos;
+    /** [段][スロット]. tick スレッドだけが触る. */
+    private final Bucket[][] wheels;
+    /** 次に処理する tick. tick スレッドだけが更新する. */
+    private long currentTick;
+    /** 登録されてまだホイールに入っていないタスク. */
+    private final Queue<Task<?>> pending = new ConcurrentLinkedQueue<Task<?>>();
+    /** 取り消されてまだホイールから外していないタスク. */
+    private final Queue<Task<?>> cancelled = new ConcurrentLinkedQueue<Task<?>>();
+    /** 実行待ちのタスク数. */
+    private final AtomicInteger size = new AtomicInteger();
+    /** ワーカープール. */
+    private final ThreadPoolExecutor workers;
+    /** tick スレッド. */
+    private final Thread ticker;
+    /** shutdown 済みか. */
+    private volatile boolean shutdown;
+    /** 最後に処理した tick の遅れ (ns). */
+    private volatile long tickLag;
+    /** タスクの登録順. */
+    private final AtomicInteger sequencer = new AtomicInteger();
+
+    /**
+     * 与えられた tick とワーカー数で初期化する.
+     * @param tick tick の長さ
+     * @param unit tick の単位
+     * @param poolSize ワーカー数
+     */
+    public TimingWheelScheduler(final long tick, final TimeUnit unit, final int poolSize) {
+        if (tick <= 0 || poolSize <= 0) {
+            throw new IllegalArgumentException("tick and poolSize must be positive");
+        }
+        this.tickNanos = unit.toNanos(tick);
+        this.wheels = new Bucket[LEVELS][SLOTS];
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                wheels[level][slot] = new Bucket();
+            }
+        }
+        this.workers = new ThreadPoolExecutor(
+                poolSize,
+                poolSize,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new JobThreadFactory("jobs"),
+                new ThreadPoolExecutor.AbortPolicy()
+                );
+        this.ticker = new JobThreadFactory("jobs-wheel").newThread(new Runnable() {
+            @Override
+            public void run() {
+                tickLoop();
+            }
+        });
+        this.ticker.setDaemon(true);
+        this.startNanos = System.nanoTime();
+        this.ticker.start();
+    }
+
+    /**
+     * tick ごとに登録・取消を反映し、満期のタスクを実行する.
+     */
+    private void tickLoop() {
+        while (!shutdown) {
+            final long wait = startNanos + currentTick * tickNanos - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+            tickLag = -wait;
+            transferPending();
+            removeCancelled();
+            cascade();
+            expire();
+            currentTick++;
+        }
+    }
+
+    /**
+     * 登録されたタスクをホイールに入れる.
+     */
+    private void transferPending() {
+        Task<?> task;
+        while ((task = pending.poll()) != null) {
+            if (task.isCancelled()) {
+                size.decrementAndGet();
+            } else {
+                insert(task);
+            }
+        }
+    }
+
+    /**
+     * 取り消されたタスクをホイールから外す.
+     */
+    private void removeCancelled() {
+        Task<?> task;
+        while ((task = cancelled.poll()) != null) {
+            if (task.bucket != null) {
+                task.bucket.remove(task);
+                size.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * 下の段が一周したら、上の段の現在のスロットを下の段へ移す.
+     */
+    private void cascade() {
+        for (int level = 1; level < LEVELS; level++) {
+            if (((currentTick >>> (SLOT_BITS * (level - 1))) & SLOT_MASK) != 0) {
+                return;
+            }
+            Task<?> task = wheels[level][slot(currentTick, level)].detach();
+            while (task != null) {
+                final Task<?> next = task.next;
+                insert(task);
+                task = next;
+            }
+        }
+    }
+
+    /**
+     * 現在の tick のスロットのタスクをまとめてワーカーに渡す.
+     */
+    private void expire() {
+        Task<?> task = wheels[0][slot(currentTick, 0)].detach();
+        while (task != null) {
+            final Task<?> next = task.next;
+            if (task.isCancelled()) {
+                size.decrementAndGet();
+            } else if (expiryTick(task) > currentTick) {
+                // MAX_TICKS より先のタスク
+                insert(task);
+            } else {
+                size.decrementAndGet();
+                try {
+                    workers.execute(task);
+                } catch (final RejectedExecutionException e) {
+                    task.cancel(false);
+                }
+            }
+            task = next;
+        }
+    }
+
+    /**
+     * 満期の tick に応じた段とスロットにタスクを入れる.
+     * @param task
+     */
+    private void insert(final Task<?> task) {
+        long expiry = Math.max(expiryTick(task), currentTick);
+        final long delta = Math.min(expiry - currentTick, MAX_TICKS);
+        expiry = currentTick + delta;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        wheels[level][slot(expiry, level)].add(task);
+    }
+
+    /**
+     * @param task
+     * @return タスクの時刻以降で最初の tick
+     */
+    private long expiryTick(final Task<?> task) {
+        final long elapsed = task.deadline - startNanos;
+        return elapsed <= 0 ? 0 : (elapsed + tickNanos - 1) / tickNanos;
+    }
+
+    /**
+     * @param tick
+     * @param level
+     * @return tick の level 段目のスロット
+     */
+    private static int slot(final long tick, final int level) {
+        return (int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK);
+    }
+
+    /**
+     * タスクを登録する.
+     * @param task
+     * @return task
+     */
+    private <V> Task<V> enqueue(final Task<V> task) {
+        if (shutdown) {
+            throw new RejectedExecutionException("TimingWheelScheduler has been shut down");
+        }
+        size.incrementAndGet();
+        pending.offer(task);
+        return task;
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(final Runnable command, final long delay, final TimeUnit unit) {
+        return enqueue(new Task<Object>(Executors.callable(command), deadline(delay, unit), 0L));
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(final Callable<V> callable, final long delay, final TimeUnit unit) {
+        return enqueue(new Task<V>(callable, deadline(delay, unit), 0L));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(
+            final Runnable command,
+            final long initialDelay,
+            final long period,
+            final TimeUnit unit
+            ) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("period must be positive");
+        }
+        return enqueue(new Task<Object>(Executors.callable(command), deadline(initialDelay, unit), unit.toNanos(period)));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(
+            final Runnable command,
+            final long initialDelay,
+            final long delay,
+            final TimeUnit unit
+            ) {
+        if (delay <= 0) {
+            throw new IllegalArgumentException("delay must be positive");
+        }
+        return enqueue(new Task<Object>(Executors.callable(command), deadline(initialDelay, unit), -unit.toNanos(delay)));
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        schedule(command, 0L, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param delay
+     * @param unit
+     * @return 現在から delay 後の時刻 (ns)
+     */
+    private static long deadline(final long delay, final TimeUnit unit) {
+        return System.nanoTime() + unit.toNanos(Math.max(delay, 0L));
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        LockSupport.unpark(ticker);
+        workers.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown = true;
+        LockSupport.unpark(ticker);
+        return workers.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return shutdown && workers.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+        return workers.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * @return 実行待ちのタスク数
+     */
+    public int getScheduledCount() {
+        return size.get();
+    }
+
+    /**
+     * @return ワーカー数
+     */
+    public int getPoolSize() {
+        return workers.getPoolSize();
+    }
+
+    /**
+     * @return 実行中のタスク数
+     */
+    public int getActiveCount() {
+        return workers.getActiveCount();
+    }
+
+    /**
+     * @return 満期になってワーカーを待っているタスク数
+     */
+    public int getQueueSize() {
+        return workers.getQueue().size();
+    }
+
+    /**
+     * @return 最後に処理した tick の遅れ (ms)
+     */
+    public long getTickLag() {
+        return TimeUnit.NANOSECONDS.toMillis(tickLag);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "tick %dms, %d scheduled, %d waiting for a worker, tick lag %dms",
+                TimeUnit.NANOSECONDS.toMillis(tickNanos),
+                getScheduledCount(),
+                getQueueSize(),
+                getTickLag()
+                );
+    }
+
+    /**
+     * スロット. タスクの双方向リスト.
+     */
+    private static final class Bucket {
+        /** 先頭. */
+        private Task<?> head;
+
+        /**
+         * @param task 先頭に追加するタスク
+         */
+        void add(final Task<?> task) {
+            task.bucket = this;
+            task.prev = null;
+            task.next = head;
+            if (head != null) {
+                head.prev = task;
+            }
+            head = task;
+        }
+
+        /**
+         * @param task 外すタスク
+         */
+        void remove(final Task<?> task) {
+            if (task.prev == null) {
+                head = task.next;
+            } else {
+                task.prev.next = task.next;
+            }
+            if (task.next != null) {
+                task.next.prev = task.prev;
+            }
+            task.bucket = null;
+            task.prev = null;
+            task.next = null;
+        }
+
+        /**
+         * @return すべてのタスク. next でたどる
+         */
+        Task<?> detach() {
+            final Task<?> first = head;
+            head = null;
+            for (Task<?> task = first; task != null; task = task.next) {
+                task.bucket = null;
+                task.prev = null;
+            }
+            return first;
+        }
+    }
+
+    /**
+     * ホイールに入るタスク.
+     * @param <V>
+     */
+    private final class Task<V> extends FutureTask<V> implements RunnableScheduledFuture<V> {
+        /** 実行時刻 (ns). */
+        private volatile long deadline;
+        /** 0: 1 回だけ, 正: 固定間隔, 負: 実行後の固定遅延 (ns). */
+        private final long period;
+        /** 同時刻のタスクの順序. */
+        private final int sequence;
+        /** 入っているスロット. */
+        private Bucket bucket;
+        /** 前のタスク. */
+        private Task<?> prev;
+        /** 次のタスク. */
+        private Task<?> next;
+
+        Task(final Callable<V> callable, final long deadline, final long period) {
+            super(callable);
+            this.deadline = deadline;
+            this.period = period;
+            this.sequence = sequencer.getAndIncrement();
+        }
+
+        @Override
+        public boolean isPeriodic() {
+            return period != 0;
+        }
+
+        @Override
+        public long getDelay(final TimeUnit unit) {
+            return unit.convert(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(final Delayed other) {
+            if (other == this) {
+                return 0;
+            }
+            if (other instanceof Task) {
+                final Task<?> task = (Task<?>) other;
+                final long diff = deadline - task.deadline;
+                if (diff != 0) {
+                    return diff < 0 ? -1 : 1;
+                }
+                return Integer.compare(sequence, task.sequence);
+            }
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+
+        @Override
+        public void run() {
+            if (!isPeriodic()) {
+                super.run();
+            } else if (super.runAndReset() && !shutdown) {
+                deadline = period > 0 ? deadline + period : System.nanoTime() - period;
+                size.incrementAndGet();
+                pending.offer(this);
+            }
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            final boolean result = super.cancel(mayInterruptIfRunning);
+            if (result) {
+                cancelled.offer(this);
+            }
+            return result;
+        }
+    }
+}
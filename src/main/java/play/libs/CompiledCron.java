@@ -0,0 +1,356 @@
+package play.libs;
+
+import java.text.ParseException;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import play.libs.Time.CronExpression;
+
+/**
+ * A cron expression compiled once, for the job scheduler.
+ *
+ * <p>{@link CronExpression} walks the fields with a Calendar. Here every field is a bit mask
+ * and the next fire time is computed on the local date fields with integer arithmetic, the
+ * time zone offset being applied at the end. Compiled expressions are cached by time zone and
+ * expression: the scheduler gets the same instance after every run.</p>
+ *
+ * <p>The same syntax and results as CronExpression, which parses the expression. The special
+ * day characters (L, W, #) are evaluated by the parsed CronExpression. One difference: a day
+ * of month missing in a month (ex: 31 in february) does not overflow into the next month, so
+ * that <code>1/5</code> fires on march 1st where CronExpression fires on march 6th.</p>
+ */
+public final class CompiledCron {
+
+    /** Last year CronExpression accepts. */
+    private static final int MAX_YEAR = 2099;
+
+    private static final long MILLIS_PER_DAY = 86400000L;
+
+    /** Offsets before and after a local time, around a daylight saving time transition. */
+    private static final long TRANSITION_MARGIN = 6 * 3600000L;
+
+    private static final ConcurrentMap<String, CompiledCron> compiled = new ConcurrentHashMap<String, CompiledCron>();
+
+    private final String expression;
+
+    private final TimeZone timeZone;
+
+    /** Evaluates the expressions with special day characters, null otherwise. */
+    private final CronExpression fallback;
+
+    private final long seconds;
+
+    private final long minutes;
+
+    private final long hours;
+
+    /** Days of month, bits 1 to 31; 0 when unspecified ('?'). */
+    private final long daysOfMonth;
+
+    /** Days of week, bits 1 (sunday) to 7; 0 when unspecified ('?'). */
+    private final long daysOfWeek;
+
+    /** Months, bits 1 to 12. */
+    private final long months;
+
+    private final BitSet years;
+
+    private CompiledCron(final String expression, final TimeZone timeZone) throws ParseException {
+        final CronExpression parsed = new CronExpression(expression);
+        parsed.setTimeZone(timeZone);
+        this.expression = expression;
+        this.timeZone = timeZone;
+        this.seconds = mask(parsed.seconds, 59);
+        this.minutes = mask(parsed.minutes, 59);
+        this.hours = mask(parsed.hours, 23);
+        this.daysOfMonth = parsed.daysOfMonth.contains(CronExpression.NO_SPEC) ? 0 : mask(parsed.daysOfMonth, 31);
+        this.daysOfWeek = parsed.daysOfWeek.contains(CronExpression.NO_SPEC) ? 0 : mask(parsed.daysOfWeek, 7);
+        this.months = mask(parsed.months, 12);
+        this.years = new BitSet(MAX_YEAR + 1);
+        for (final Integer year : parsed.years) {
+            if (year <= MAX_YEAR) {
+                years.set(year);
+            }
+        }
+        final boolean special = parsed.lastdayOfMonth || parsed.nearestWeekday || parsed.lastdayOfWeek
+                || parsed.nthdayOfWeek != 0;
+        // exactly one of day of month and day of week is specified, as CronExpression requires
+        this.fallback = special || (daysOfMonth == 0) == (daysOfWeek == 0) ? parsed : null;
+    }
+
+    private static long mask(final Set<Integer> values, final int max) {
+        long mask = 0;
+        for (final Integer value : values) {
+            // skips the '*' and '?' markers
+            if (value >= 0 && value <= max) {
+                mask |= 1L << value;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Compile an expression in the default time zone, or get it from the cache.
+     * @param expression A cron expression, ex: 0 0 12 * * ?
+     * @return The compiled expression
+     * @throws ParseException When the expression is invalid
+     */
+    public static CompiledCron compile(final String expression) throws ParseException {
+        return compile(expression, TimeZone.getDefault());
+    }
+
+    /**
+     * Compile an expression, or get it from the cache.
+     * @param expression A cron expression, ex: 0 0 12 * * ?
+     * @param timeZone The time zone of the expression
+     * @return The compiled expression
+     * @throws ParseException When the expression is invalid
+     */
+    public static CompiledCron compile(final String expression, final TimeZone timeZone) throws ParseException {
+        final String key = timeZone.getID() + '|' + expression;
+        CompiledCron cron = compiled.get(key);
+        if (cron == null) {
+            cron = new CompiledCron(expression, timeZone);
+            final CompiledCron previous = compiled.putIfAbsent(key, cron);
+            if (previous != null) {
+                cron = previous;
+            }
+        }
+        return cron;
+    }
+
+    /**
+     * @return The expression
+     */
+    public String getExpression() {
+        return expression;
+    }
+
+    /**
+     * @param date The date after which to search
+     * @return The next date satisfying the expression, null if none
+     */
+    public Date getNextValidTimeAfter(final Date date) {
+        final long next = nextValidTimeAfter(date.getTime());
+        return next < 0 ? null : new Date(next);
+    }
+
+    /**
+     * @param date The date after which to search
+     * @return The next date not satisfying the expression
+     */
+    public Date getNextInvalidTimeAfter(final Date date) {
+        long last = Math.floorDiv(date.getTime(), 1000) * 1000;
+        long next;
+        while ((next = nextValidTimeAfter(last)) == last + 1000) {
+            last = next;
+        }
+        return new Date(last + 1000);
+    }
+
+    /**
+     * @param date The date from which to search
+     * @return The number of milliseconds between the next valid date and the one after
+     */
+    public long getNextInterval(final Date date) {
+        final Date nextValid = getNextValidTimeAfter(date);
+        return getNextValidTimeAfter(getNextInvalidTimeAfter(nextValid)).getTime() - nextValid.getTime();
+    }
+
+    /**
+     * @param after A time in milliseconds
+     * @return The next time satisfying the expression, strictly after, -1 if none
+     */
+    public long nextValidTimeAfter(final long after) {
+        if (fallback != null) {
+            final Date next = fallback.getNextValidTimeAfter(new Date(after));
+            return next == null ? -1 : next.getTime();
+        }
+        // the next second, in local time
+        final long from = (Math.floorDiv(after, 1000) + 1) * 1000;
+        final long local = from + timeZone.getOffset(from);
+        final long day = Math.floorDiv(local, MILLIS_PER_DAY);
+        final int secondOfDay = (int) (Math.floorMod(local, MILLIS_PER_DAY) / 1000);
+        final long civil = civilFromDays(day);
+        int year = (int) (civil >> 16);
+        int month = (int) (civil >> 8) & 0xff;
+        int dayOfMonth = (int) civil & 0xff;
+        int hour = secondOfDay / 3600;
+        int minute = secondOfDay / 60 % 60;
+        int second = secondOfDay % 60;
+
+        while (true) {
+            if (year > MAX_YEAR) {
+                return -1;
+            }
+            if (!years.get(year)) {
+                year = years.nextSetBit(year);
+                if (year < 0) {
+                    return -1;
+                }
+                month = 1;
+                dayOfMonth = 1;
+                hour = minute = second = 0;
+                continue;
+            }
+            if ((months & (1L << month)) == 0) {
+                final int next = nextBit(months, month, 12);
+                if (next < 0) {
+                    year++;
+                    month = 1;
+                } else {
+                    month = next;
+                }
+                dayOfMonth = 1;
+                hour = minute = second = 0;
+                continue;
+            }
+            if (dayOfMonth > lastDayOfMonth(year, month)) {
+                month++;
+                if (month > 12) {
+                    year++;
+                    month = 1;
+                }
+                dayOfMonth = 1;
+                hour = minute = second = 0;
+                continue;
+            }
+            if (!dayMatches(year, month, dayOfMonth)) {
+                dayOfMonth++;
+                hour = minute = second = 0;
+                continue;
+            }
+            final int nextHour = nextBit(hours, hour, 23);
+            if (nextHour < 0) {
+                dayOfMonth++;
+                hour = minute = second = 0;
+                continue;
+            }
+            if (nextHour != hour) {
+                hour = nextHour;
+                minute = second = 0;
+            }
+            final int nextMinute = nextBit(minutes, minute, 59);
+            if (nextMinute < 0) {
+                hour++;
+                minute = second = 0;
+                continue;
+            }
+            if (nextMinute != minute) {
+                minute = nextMinute;
+                second = 0;
+            }
+            final int nextSecond = nextBit(seconds, second, 59);
+            if (nextSecond < 0) {
+                minute++;
+                second = 0;
+                continue;
+            }
+            second = nextSecond;
+
+            final long localTime = (daysFromCivil(year, month, dayOfMonth) * 86400L
+                    + hour * 3600 + minute * 60 + second) * 1000;
+            final long time = toUtc(localTime, from);
+            if (time >= 0) {
+                return time;
+            }
+            // skipped by the daylight saving time, or the first occurrence of a repeated time
+            second++;
+        }
+    }
+
+    private boolean dayMatches(final int year, final int month, final int dayOfMonth) {
+        if (daysOfMonth != 0) {
+            return (daysOfMonth & (1L << dayOfMonth)) != 0;
+        }
+        // 1970-01-01 was a thursday (5)
+        final int dayOfWeek = (int) Math.floorMod(daysFromCivil(year, month, dayOfMonth) + 4, 7) + 1;
+        return (daysOfWeek & (1L << dayOfWeek)) != 0;
+    }
+
+    /**
+     * Local time to UTC, as CronExpression resolves it with a Calendar: a local time repeated
+     * at the end of the daylight saving time is the second occurrence, a local time skipped at
+     * the start never happens.
+     * @return The time, -1 if skipped or before from
+     */
+    private long toUtc(final long localTime, final long from) {
+        final long utc = localTime - timeZone.getRawOffset();
+        final int after = timeZone.getOffset(utc + TRANSITION_MARGIN);
+        long time = localTime - after;
+        if (timeZone.getOffset(time) != after) {
+            final int before = timeZone.getOffset(utc - TRANSITION_MARGIN);
+            time = localTime - before;
+            if (timeZone.getOffset(time) != before) {
+                return -1;
+            }
+        }
+        return time >= from ? time : -1;
+    }
+
+    /**
+     * @return The first bit set at from or after, -1 if none up to max
+     */
+    private static int nextBit(final long mask, final int from, final int max) {
+        if (from > max) {
+            return -1;
+        }
+        final long remaining = mask & (-1L << from);
+        if (remaining == 0) {
+            return -1;
+        }
+        final int bit = Long.numberOfTrailingZeros(remaining);
+        return bit > max ? -1 : bit;
+    }
+
+    private static int lastDayOfMonth(final int year, final int month) {
+        switch (month) {
+        case 2:
+            return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0 ? 29 : 28;
+        case 4:
+        case 6:
+        case 9:
+        case 11:
+            return 30;
+        default:
+            return 31;
+        }
+    }
+
+    /**
+     * @return Days since 1970-01-01 of a date of the proleptic gregorian calendar
+     */
+    static long daysFromCivil(final int year, final int month, final int day) {
+        final int y = month <= 2 ? year - 1 : year;
+        final long era = Math.floorDiv(y, 400);
+        final long yearOfEra = y - era * 400;
+        final long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        final long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * @return The date of days since 1970-01-01: year &lt;&lt; 16 | month &lt;&lt; 8 | day
+     */
+    static long civilFromDays(final long days) {
+        final long z = days + 719468;
+        final long era = Math.floorDiv(z, 146097);
+        final long dayOfEra = z - era * 146097;
+        final long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        final long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        final long mp = (5 * dayOfYear + 2) / 153;
+        final long day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        final long month = mp < 10 ? mp + 3 : mp - 9;
+        final long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        return year << 16 | month << 8 | day;
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+}
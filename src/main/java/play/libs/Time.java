@@ -68,7 +68,7 @@ public class Time {
      */
     public static Date parseCRONExpression(final String cron) {
         try {
-            return new CronExpression(cron).getNextValidTimeAfter(new Date());
+            return CompiledCron.compile(cron).getNextValidTimeAfter(new Date());
         } catch (final Exception e) {
             throw new IllegalArgumentException("Invalid CRON pattern : " + cron, e);
         }
@@ -93,7 +93,7 @@ public class Time {
      */
     public static long cronInterval(final String cron, final Date date) {
         try {
-            return new CronExpression(cron).getNextInterval(date);
+            return CompiledCron.compile(cron).getNextInterval(date);
         } catch (final Exception e) {
             throw new IllegalArgumentException("Invalid CRON pattern : " + cron, e);
         }
@@ -0,0 +1,192 @@
+package play.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import play.Play;
+
+/**
+ * BinaryCodec's behavior test.
+ * @author Toast kid
+ *
+ */
+public class BinaryCodecTest {
+
+    /** tested codec. */
+    private final CacheCodec codec = CacheCodecs.forName(BinaryCodec.NAME, 1024);
+
+    /**
+     * check values come back equal.
+     * @throws Exception
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        final Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("string", "日本語");
+        map.put("int", -42);
+        map.put("long", Long.MIN_VALUE);
+        map.put("double", 3.14d);
+        map.put("float", 1.5f);
+        map.put("boolean", true);
+        map.put("char", 'x');
+        map.put("short", (short) -3);
+        map.put("byte", (byte) 7);
+        map.put("date", new Date(1234567890L));
+        map.put("decimal", new BigDecimal("12.50"));
+        map.put("null", null);
+        final List<Object> list = new ArrayList<Object>();
+        list.add(1);
+        list.add(new HashMap<String, Object>());
+        list.add(new LinkedHashSet<String>());
+        map.put("list", list);
+
+        assertEquals(map, codec.decode(codec.encode(map)));
+        assertEquals(null, codec.decode(codec.encode(null)));
+        assertArrayEquals(new byte[]{1, 2, 3}, (byte[]) codec.decode(codec.encode(new byte[]{1, 2, 3})));
+    }
+
+    /**
+     * check large payloads are deflated and smaller than the java serialization.
+     * @throws Exception
+     */
+    @Test
+    public void testCompression() throws Exception {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append("repeated ");
+        }
+        final String value = sb.toString();
+        final byte[] encoded = codec.encode(value);
+        assertTrue(encoded.length < 1024);
+        assertEquals(value, codec.decode(encoded));
+
+        final ArrayList<Long> small = new ArrayList<Long>();
+        small.add(1L);
+        small.add(2L);
+        assertTrue(codec.encode(small).length < new JavaSerializationCodec().encode(small).length);
+        assertTrue(CacheCodecs.statistics(BinaryCodec.NAME).getEncodeCount() > 0);
+    }
+
+    /**
+     * check a registered class is encoded by its serializer.
+     * @throws Exception
+     */
+    @Test
+    public void testRegisteredSerializer() throws Exception {
+        BinaryCodec.register(1, Item.class, new BinaryCodec.Serializer<Item>() {
+            @Override
+            public void write(final BinaryCodec.Writer out, final Item value) throws IOException {
+                out.writeString(value.name);
+                out.writeLong(value.price);
+                out.writeObject(value.tags);
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public Item read(final BinaryCodec.Reader in) throws IOException {
+                return new Item(in.readString(), in.readLong(), (ArrayList<String>) in.readObject());
+            }
+        });
+        try {
+            final ArrayList<String> tags = new ArrayList<String>();
+            tags.add("new");
+            final Item item = new Item("pen", 120L, tags);
+            final byte[] encoded = codec.encode(item);
+            assertTrue(encoded.length < 20);
+            final Item decoded = (Item) codec.decode(encoded);
+            assertEquals("pen", decoded.name);
+            assertEquals(120L, decoded.price);
+            assertEquals(tags, decoded.tags);
+        } finally {
+            BinaryCodec.unregister(Item.class);
+        }
+    }
+
+    /**
+     * check a registered class which isn't Serializable can be cached.
+     */
+    @Test
+    public void testRegisteredNotSerializable() {
+        BinaryCodec.register(2, Point.class, new BinaryCodec.Serializer<Point>() {
+            @Override
+            public void write(final BinaryCodec.Writer out, final Point value) throws IOException {
+                out.writeInt(value.x);
+                out.writeInt(value.y);
+            }
+
+            @Override
+            public Point read(final BinaryCodec.Reader in) throws IOException {
+                return new Point(in.readInt(), in.readInt());
+            }
+        });
+        Play.configuration = new Properties();
+        Play.configuration.setProperty("cache.codec", BinaryCodec.NAME);
+        Cache.forcedCacheImpl = new TinyLfuCacheImpl(1024 * 1024, 100, new BinaryCodec());
+        try {
+            Cache.init();
+            assertTrue(CacheCodecs.current().canEncode(new Point(1, 2)));
+            Cache.set("point", new Point(1, 2), "1mn");
+            assertEquals(2, Cache.get("point", Point.class).y);
+        } finally {
+            BinaryCodec.unregister(Point.class);
+            Cache.forcedCacheImpl = null;
+            Play.configuration = null;
+            CacheCodecs.init();
+        }
+        assertFalse(codec.canEncode(new Point(1, 2)));
+    }
+
+    /**
+     * check a deflated payload announcing an impossible length is refused before allocating it.
+     */
+    @Test(expected = IOException.class)
+    public void testDeflatedLength() throws IOException {
+        // DEFLATED header, then a raw length of 2GB - 1 for 4 bytes of data
+        codec.decode(new byte[] {1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07, 0, 0, 0, 0});
+    }
+
+    /**
+     * An application value.
+     */
+    private static final class Item implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final String name;
+        final long price;
+        final ArrayList<String> tags;
+
+        Item(final String name, final long price, final ArrayList<String> tags) {
+            this.name = name;
+            this.price = price;
+            this.tags = tags;
+        }
+    }
+
+    /**
+     * An application value which isn't Serializable.
+     */
+    private static final class Point {
+        final int x;
+        final int y;
+
+        Point(final int x, final int y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package play.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import play.Play;
+
+/**
+ * CacheMetrics' behavior test.
+ * @author Toast kid
+ *
+ */
+public class CacheMetricsTest {
+
+    /** recorded metrics. */
+    private CacheMetrics metrics;
+
+    /** measured cache. */
+    private InstrumentedCacheImpl cache;
+
+    @Before
+    public void setUp() throws IOException {
+        Play.configuration = new Properties();
+        Play.configuration.setProperty("cache.metrics.prefixDelimiter", ":");
+        Play.configuration.setProperty("cache.metrics.maxPrefixes", "2");
+        metrics = new CacheMetrics();
+        metrics.init();
+        cache = new InstrumentedCacheImpl(
+                new OffHeapCacheImpl(1024 * 1024, 64, new JavaSerializationCodec(), null), metrics);
+    }
+
+    @After
+    public void tearDown() {
+        Play.configuration = null;
+    }
+
+    /**
+     * check counts, hit ratio and latencies.
+     */
+    @Test
+    public void testOperations() {
+        cache.set("user:1", "a", 60);
+        cache.set("user:2", "b", 60);
+        cache.get("user:1");
+        cache.get("user:3");
+        cache.get(new String[] {"user:1", "user:2", "user:4"});
+        cache.incr("counter", 1);
+        assertTrue(cache.getAsync("user:2").getOrNull() != null);
+
+        final CacheMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(2, snapshot.getOperation(CacheMetrics.Operation.SET).getCount());
+        assertEquals(3, snapshot.getOperation(CacheMetrics.Operation.GET).getCount());
+        assertEquals(1, snapshot.getOperation(CacheMetrics.Operation.GET_MULTI).getCount());
+        assertEquals(1, snapshot.getOperation(CacheMetrics.Operation.INCR).getCount());
+        assertEquals(4, snapshot.getHits());
+        assertEquals(2, snapshot.getMisses());
+        assertEquals(4d / 6d, snapshot.getHitRatio(), 0.001d);
+        final CacheMetrics.OperationSnapshot set = snapshot.getOperation(CacheMetrics.Operation.SET);
+        assertTrue(set.getP50Nanos() > 0 && set.getP50Nanos() <= set.getP99Nanos());
+        assertTrue(set.getMeanNanos() > 0);
+    }
+
+    /**
+     * check the per prefix breakdown and its bound.
+     */
+    @Test
+    public void testPrefixes() {
+        cache.set("user:1", "a", 60);
+        cache.get("user:1");
+        cache.get("session:1");
+        cache.get("product:1");
+        cache.deleteAll(Arrays.asList("nodelimiter"));
+
+        final CacheMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(3, snapshot.getPrefixes().size());
+        assertEquals(1, snapshot.getPrefixes().get("user").getHits());
+        assertEquals(1, snapshot.getPrefixes().get("user").getWrites());
+        assertEquals(1, snapshot.getPrefixes().get("session").getMisses());
+        // over maxPrefixes: counted with the keys without delimiter
+        assertEquals(1, snapshot.getPrefixes().get(CacheMetrics.OTHER_PREFIX).getMisses());
+        assertEquals(1, snapshot.getPrefixes().get(CacheMetrics.OTHER_PREFIX).getWrites());
+    }
+
+    /**
+     * check errors are counted and rethrown.
+     */
+    @Test
+    public void testErrors() {
+        cache.set("text", "value", 60);
+        try {
+            cache.incr("text", 1);
+        } catch (final ClassCastException e) {
+            // expected
+        }
+        assertEquals(1, metrics.snapshot().getOperation(CacheMetrics.Operation.INCR).getErrors());
+    }
+}
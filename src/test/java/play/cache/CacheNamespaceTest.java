@@ -0,0 +1,141 @@
+package play.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Properties;
+import java.util.concurrent.Callable;
+
+import org.junit.After;
+import org.junit.Test;
+
+import play.Play;
+
+/**
+ * Namespace and prefix invalidation test, on EhCache and memcached.
+ * @author Toast kid
+ *
+ */
+public class CacheNamespaceTest {
+
+    @After
+    public void tearDown() {
+        CacheNamespace.generationTtl = 0L;
+        CacheNamespace.clearGenerations();
+        Cache.forcedCacheImpl = null;
+        Play.configuration = null;
+    }
+
+    /**
+     * check the prefix index of EhCache.
+     */
+    @Test
+    public void testPrefixIndex() {
+        Cache.forcedCacheImpl = EhCacheImpl.getInstance() != null ? EhCacheImpl.getInstance() : EhCacheImpl.newInstance();
+        Cache.init();
+        Cache.clear();
+
+        final CacheNamespace tenant1 = Cache.namespace("tenant:1");
+        final CacheNamespace tenant10 = Cache.namespace("tenant:10");
+        for (int i = 0; i < 100; i++) {
+            tenant1.set("key" + i, i, "1mn");
+            tenant10.set("key" + i, i, "1mn");
+        }
+        Cache.set("tenant:1|plain", "value", "1mn");
+        assertEquals(5, tenant1.get("key5"));
+
+        tenant1.invalidate();
+        assertNull(tenant1.get("key5"));
+        assertEquals(5, tenant10.get("key5"));
+        assertEquals("value", Cache.get("tenant:1|plain"));
+        tenant1.set("key5", "new", "1mn");
+        assertEquals("new", tenant1.get("key5"));
+
+        Cache.set("user.1", 1, "1mn");
+        Cache.set("user.2", 2, "1mn");
+        Cache.set("userx", 3, "1mn");
+        assertEquals(2, Cache.deleteByPrefix("user."));
+        assertNull(Cache.get("user.1"));
+        assertEquals(3, Cache.get("userx"));
+    }
+
+    /**
+     * check generation counters on memcached.
+     * @throws Exception
+     */
+    @Test
+    public void testGenerations() throws Exception {
+        Play.configuration = new Properties();
+        Play.configuration.setProperty("memcached.local.nodes", "2");
+        final MemcachedImpl memcached = MemcachedImpl.getInstance(true);
+        MemcachedImplTest.awaitConnected(memcached);
+        Cache.forcedCacheImpl = memcached;
+        Cache.init();
+        try {
+            final CacheNamespace tenant = Cache.namespace("tenant:2");
+            final String before = tenant.key("settings");
+            tenant.set("settings", "old", "1mn");
+            assertEquals("old", tenant.get("settings"));
+
+            tenant.invalidate();
+            assertTrue(!before.equals(tenant.key("settings")));
+            assertNull(tenant.get("settings"));
+            assertEquals("computed", tenant.getOrCompute("settings", "1mn", new Callable<String>() {
+
+                @Override
+                public String call() {
+                    return "computed";
+                }
+            }));
+            assertEquals("computed", tenant.get("settings"));
+
+            // the counter is evicted: the invalidated generations must not come back
+            final String generationKey = CacheNamespace.KEY_PREFIX + "generation|tenant:2";
+            final String current = tenant.key("settings");
+            memcached.delete(generationKey);
+            Thread.sleep(5);
+            assertTrue(!before.equals(tenant.key("settings")));
+            assertTrue(!current.equals(tenant.key("settings")));
+            assertTrue(memcached.incr(generationKey, 0) > 1000000000L);
+
+            try {
+                Cache.deleteByPrefix("tenant");
+                fail();
+            } catch (final UnsupportedOperationException e) {
+                // memcached can't enumerate its keys
+            }
+        } finally {
+            memcached.stop();
+        }
+    }
+
+    /**
+     * check the generation kept locally is used until it expires, and updated by a local invalidation.
+     * @throws Exception
+     */
+    @Test
+    public void testLocalGeneration() throws Exception {
+        Play.configuration = new Properties();
+        Play.configuration.setProperty("memcached.local.nodes", "1");
+        Play.configuration.setProperty("cache.namespace.generationTtl", "1mn");
+        final MemcachedImpl memcached = MemcachedImpl.getInstance(true);
+        MemcachedImplTest.awaitConnected(memcached);
+        Cache.forcedCacheImpl = memcached;
+        Cache.init();
+        try {
+            final CacheNamespace tenant = Cache.namespace("tenant:3");
+            final String first = tenant.key("settings");
+            // invalidated by another node: not seen before the generation expires locally
+            memcached.incr(CacheNamespace.KEY_PREFIX + "generation|tenant:3", 1);
+            assertEquals(first, tenant.key("settings"));
+            tenant.invalidate();
+            final String invalidated = tenant.key("settings");
+            assertTrue(!first.equals(invalidated));
+            assertEquals(invalidated, Cache.namespace("tenant:3").key("settings"));
+        } finally {
+            memcached.stop();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package play.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import play.Play;
+
+/**
+ * CacheSnapshot's behavior test.
+ * @author Toast kid
+ *
+ */
+public class CacheSnapshotTest {
+
+    /** snapshot file. */
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("cache", ".snapshot");
+        file.deleteOnExit();
+    }
+
+    @After
+    public void tearDown() {
+        Cache.forcedCacheImpl = null;
+        Play.configuration = null;
+        file.delete();
+    }
+
+    /**
+     * check values and expirations survive a write and a load.
+     * @throws IOException
+     */
+    @Test
+    public void testRoundTrip() throws IOException {
+        final OffHeapCacheImpl source = newCache();
+        source.set("list", new ArrayList<String>(Arrays.asList("a", "b")), 60);
+        source.set("eternal", 1L, 0);
+        source.set("short", "value", 1);
+        final char[] large = new char[3 * 1024 * 1024];
+        Arrays.fill(large, 'x');
+        final EhCacheImpl ehcache = EhCacheImpl.getInstance() != null ? EhCacheImpl.getInstance() : EhCacheImpl.newInstance();
+        ehcache.clear();
+        ehcache.set("large", new String(large), 60);
+        ehcache.set("counter", 1L, 60);
+        ehcache.incr("counter", 2);
+
+        assertEquals(3, CacheSnapshot.write(source, file));
+        final OffHeapCacheImpl target = newCache();
+        target.set("list", "newer", 60);
+        assertEquals(2, CacheSnapshot.load(file, target));
+        assertEquals("newer", target.get("list"));
+        assertEquals(1L, target.get("eternal"));
+        assertEquals("value", target.get("short"));
+
+        assertEquals(2, CacheSnapshot.write(ehcache, file));
+        assertEquals(2, CacheSnapshot.load(file, target));
+        assertEquals(new String(large), target.get("large"));
+        assertEquals(3L, target.get("counter"));
+    }
+
+    /**
+     * check a value with a nested field the codec can't encode is skipped and counted.
+     * @throws IOException
+     */
+    @Test
+    public void testNestedNotSerializable() throws IOException {
+        final EhCacheImpl ehcache = EhCacheImpl.getInstance() != null ? EhCacheImpl.getInstance() : EhCacheImpl.newInstance();
+        ehcache.clear();
+        ehcache.set("holder", new Holder(new Object()), 60);
+        ehcache.set("key", "value", 60);
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        final CacheSnapshot.Writer writer = new CacheSnapshot.Writer(raf.getChannel());
+        try {
+            writer.header(ehcache.getSnapshotCodec());
+            ehcache.writeSnapshot(writer);
+            writer.end();
+        } finally {
+            raf.close();
+        }
+        assertEquals(1, writer.count);
+        assertEquals(1, writer.skipped);
+
+        assertEquals(1, CacheSnapshot.write(ehcache, file));
+        final OffHeapCacheImpl target = newCache();
+        assertEquals(1, CacheSnapshot.load(file, target));
+        assertEquals("value", target.get("key"));
+    }
+
+    /**
+     * check expired entries are skipped.
+     * @throws Exception
+     */
+    @Test
+    public void testExpired() throws Exception {
+        final OffHeapCacheImpl source = newCache();
+        source.set("short", "value", 1);
+        source.set("long", "value", 60);
+        CacheSnapshot.write(source, file);
+        Thread.sleep(1100);
+        final OffHeapCacheImpl target = newCache();
+        assertEquals(1, CacheSnapshot.load(file, target));
+        assertNull(target.get("short"));
+    }
+
+    /**
+     * check Cache.stop writes the snapshot and Cache.init loads it, in background.
+     * @throws Exception
+     */
+    @Test
+    public void testStopAndInit() throws Exception {
+        Play.configuration = new Properties();
+        Play.configuration.setProperty("cache.snapshot.file", file.getAbsolutePath());
+        Play.configuration.setProperty("cache.snapshot.warmup", "background");
+        file.delete();
+        Cache.forcedCacheImpl = newCache();
+        Cache.init();
+        Cache.set("key", "value", "1mn");
+        Cache.stop();
+        assertTrue(file.exists());
+
+        Cache.forcedCacheImpl = newCache();
+        Cache.init();
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (Cache.get("key") == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("value", Cache.get("key"));
+    }
+
+    /**
+     * check a file which isn't a snapshot is refused.
+     * @throws IOException
+     */
+    @Test(expected = IOException.class)
+    public void testNotSnapshot() throws IOException {
+        Files.write(file.toPath(), new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+        CacheSnapshot.load(file, newCache());
+    }
+
+    private static OffHeapCacheImpl newCache() throws IOException {
+        return new OffHeapCacheImpl(16 * 1024 * 1024, 256, new BinaryCodec(16384), null);
+    }
+
+    /**
+     * Serializable, but not its field.
+     */
+    private static final class Holder implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Object value;
+
+        Holder(final Object value) {
+            this.value = value;
+        }
+    }
+}
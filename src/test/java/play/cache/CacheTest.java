@@ -0,0 +1,183 @@
+package play.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Cache facade's behavior test, on the local cache.
+ * @author Toast kid
+ *
+ */
+public class CacheTest {
+
+    @Before
+    public void setUp() {
+        Cache.forcedCacheImpl = EhCacheImpl.getInstance() != null ? EhCacheImpl.getInstance() : EhCacheImpl.newInstance();
+        Cache.init();
+        Cache.clear();
+    }
+
+    /**
+     * check the asynchronous API falls back to blocking calls.
+     * @throws Exception
+     */
+    @Test
+    public void testAsyncFallback() throws Exception {
+        assertTrue(Cache.setAsync("async", "value", "1mn").get());
+        assertEquals("value", Cache.getAsync("async").get());
+        assertEquals("value", Cache.getAsync("async", "other").get().get("async"));
+        Cache.set("counter", 1L);
+        assertEquals(Long.valueOf(3), Cache.incrAsync("counter", 2).get());
+        assertTrue(Cache.deleteAsync("async").get());
+        assertNull(Cache.getAsync("async").get());
+    }
+
+    /**
+     * check concurrent misses wait for a single computation.
+     * @throws Exception
+     */
+    @Test
+    public void testGetOrComputeCoalesces() throws Exception {
+        final AtomicInteger computations = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(8);
+        final Callable<String> loader = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                computations.incrementAndGet();
+                Thread.sleep(200);
+                return "computed";
+            }
+        };
+        for (int i = 0; i < 8; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        assertEquals("computed", Cache.getOrCompute("expensive", "1mn", loader));
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        done.await();
+        assertEquals(1, computations.get());
+        assertEquals("computed", Cache.get("expensive"));
+        assertEquals(0, Cache.loads.size());
+    }
+
+    /**
+     * check the distributed lock path computes and releases the lock.
+     */
+    @Test
+    public void testGetOrComputeWithLock() {
+        Cache.loads.distributedLock = true;
+        try {
+            assertEquals("locked", Cache.getOrCompute("withLock", "1mn", new Callable<String>() {
+                @Override
+                public String call() {
+                    return "locked";
+                }
+            }));
+            assertNull(Cache.get("withLock" + InFlightLoads.LOCK_SUFFIX));
+        } finally {
+            Cache.loads.distributedLock = false;
+        }
+    }
+
+    /**
+     * check a value read close to its expiration is refreshed in background.
+     * @throws Exception
+     */
+    @Test
+    public void testRefreshAhead() throws Exception {
+        Cache.refreshAhead.enabled = true;
+        Cache.refreshAhead.beta = 1e9d;
+        try {
+            final AtomicInteger computations = new AtomicInteger();
+            final Callable<Integer> loader = new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    Thread.sleep(5);
+                    return computations.incrementAndGet();
+                }
+            };
+            assertEquals(Integer.valueOf(1), Cache.getOrCompute("refreshed", "1mn", loader));
+            // the stale value is served while the refresh runs
+            assertEquals(Integer.valueOf(1), Cache.getOrCompute("refreshed", "1mn", loader));
+            for (int i = 0; i < 100 && Cache.refreshAhead.getStatistics().getRefreshes() == 0; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(Integer.valueOf(2), Cache.get("refreshed"));
+            assertEquals(1, Cache.refreshAhead.getStatistics().getMisses());
+        } finally {
+            Cache.refreshAhead.init();
+        }
+    }
+
+    /**
+     * check the expirations already past are forgotten when the map is full.
+     * @throws Exception
+     */
+    @Test
+    public void testRefreshAheadForgetsExpired() throws Exception {
+        final RefreshAhead refreshAhead = new RefreshAhead();
+        refreshAhead.enabled = true;
+        refreshAhead.maxEntries = 2;
+        refreshAhead.recordSet("first", 0);
+        refreshAhead.recordSet("second", 0);
+        Thread.sleep(5);
+        refreshAhead.recordSet("third", 60);
+        assertEquals(1, refreshAhead.size());
+        assertEquals(0, refreshAhead.getStatistics().getUntracked());
+        refreshAhead.stop();
+    }
+
+    /**
+     * check batched set and delete.
+     * @throws Exception
+     */
+    @Test
+    public void testBatch() throws Exception {
+        final Map<String, Object> values = new HashMap<String, Object>();
+        for (int i = 0; i < 100; i++) {
+            values.put("batch" + i, i);
+        }
+        assertTrue(Cache.setAll(values, "1mn").get());
+        assertEquals(42, Cache.get("batch42"));
+        assertTrue(Cache.deleteAll("batch1", "batch42").get());
+        assertNull(Cache.get("batch42"));
+        assertEquals(2, Cache.get("batch2"));
+    }
+
+    /**
+     * check the implementation is found under every decorator, but prefix deletion isn't offered over local copies.
+     */
+    @Test
+    public void testUnwrapDecorators() {
+        final EhCacheImpl ehCache = EhCacheImpl.getInstance();
+        final ResilientCacheImpl resilient = new ResilientCacheImpl(ehCache, 100, 3, 1, 3600);
+        final CacheImpl near = new NearCacheImpl(resilient, 100, 1);
+        assertSame(ehCache, Cache.unwrap(near, EhCacheImpl.class, false));
+        assertSame(resilient, Cache.unwrap(near, ResilientCacheImpl.class, false));
+        assertTrue(CacheMetrics.evictions(near) >= 0);
+        assertNull(Cache.prefixDeletion(near, false));
+        assertSame(ehCache, Cache.prefixDeletion(new InstrumentedCacheImpl(ehCache, new CacheMetrics()), false));
+    }
+}
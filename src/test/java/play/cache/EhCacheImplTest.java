@@ -0,0 +1,87 @@
+package play.cache;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * EhCacheImpl's behavior test.
+ * @author Toast kid
+ *
+ */
+public class EhCacheImplTest {
+
+    /** number of concurrent updaters. */
+    private static final int THREADS = 8;
+
+    /** number of updates per thread. */
+    private static final int COUNT = 10000;
+
+    /** tested cache. */
+    private EhCacheImpl cache;
+
+    @Before
+    public void setUp() {
+        cache = EhCacheImpl.getInstance() != null ? EhCacheImpl.getInstance() : EhCacheImpl.newInstance();
+        cache.clear();
+    }
+
+    @After
+    public void tearDown() {
+        cache.setCounterMode(EhCacheImpl.CounterMode.ATOMIC);
+    }
+
+    /**
+     * check incr/decr on a missing key.
+     */
+    @Test
+    public void testMissingCounter() {
+        assertEquals(-1, cache.incr("missing", 1));
+        assertEquals(-1, cache.decr("missing", 1));
+    }
+
+    /**
+     * check concurrent incr in ATOMIC mode.
+     * @throws InterruptedException
+     */
+    @Test
+    public void testAtomicCounter() throws InterruptedException {
+        cache.set("counter", 0L, 60);
+        hammer("counter");
+        assertEquals(Long.valueOf(THREADS * COUNT), cache.get("counter"));
+        assertEquals(THREADS * COUNT - 2, cache.decr("counter", 2));
+    }
+
+    /**
+     * check concurrent incr in ADDER mode.
+     * @throws InterruptedException
+     */
+    @Test
+    public void testAdderCounter() throws InterruptedException {
+        cache.setCounterMode(EhCacheImpl.CounterMode.ADDER);
+        cache.set("counter", 5, 60);
+        hammer("counter");
+        assertEquals(Long.valueOf(THREADS * COUNT + 5), cache.get("counter"));
+        assertEquals(THREADS * COUNT + 3, cache.decr("counter", 2));
+    }
+
+    private void hammer(final String key) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        for (int i = 0; i < THREADS; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < COUNT; j++) {
+                        cache.incr(key, 1);
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+    }
+}
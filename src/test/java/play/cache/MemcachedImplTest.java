@@ -0,0 +1,149 @@
+package play.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.MemcachedNode;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import play.Play;
+
+/**
+ * MemcachedImpl's behavior test, against in-JVM memcached nodes.
+ * @author Toast kid
+ *
+ */
+public class MemcachedImplTest {
+
+    /** tested cache. */
+    private static MemcachedImpl cache;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        Play.configuration = new Properties();
+        Play.configuration.setProperty("memcached.local.nodes", "2");
+        Play.configuration.setProperty("memcached.locator", "ketama");
+        Play.configuration.setProperty("memcached.pool.size", "3");
+        Play.configuration.setProperty("memcached.queueSize", "1024");
+        cache = MemcachedImpl.getInstance(true);
+        awaitConnected(cache);
+    }
+
+    /**
+     * Wait for the connections to every node: until then, the operations of an
+     * inactive node are redistributed.
+     * @param cache A freshly initialized client
+     * @throws InterruptedException
+     */
+    static void awaitConnected(final MemcachedImpl cache) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        for (final MemcachedClient client : cache.clients) {
+            for (final MemcachedNode node : client.getNodeLocator().getAll()) {
+                while (!node.isActive() && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+            }
+        }
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        cache.stop();
+        Play.configuration = null;
+    }
+
+    /**
+     * check the basic operations.
+     */
+    @Test
+    public void testOperations() {
+        assertTrue(cache.safeSet("key", "value", 60));
+        assertEquals("value", cache.get("key"));
+        assertFalse(cache.safeAdd("key", "other", 60));
+        assertTrue(cache.safeReplace("key", new ArrayList<String>(Arrays.asList("a", "b")), 60));
+        assertEquals(Arrays.asList("a", "b"), cache.get("key"));
+        assertTrue(cache.safeDelete("key"));
+        assertNull(cache.get("key"));
+
+        assertEquals(0, cache.incr("counter", 1));
+        assertEquals(5, cache.incr("counter", 5));
+        assertEquals(3, cache.decr("counter", 2));
+
+        assertEquals(0, cache.getEvictions());
+    }
+
+    /**
+     * check the asynchronous and batched operations.
+     * @throws Exception
+     */
+    @Test
+    public void testAsyncAndBatch() throws Exception {
+        final Map<String, Object> values = new HashMap<String, Object>();
+        for (int i = 0; i < 50; i++) {
+            values.put("batch" + i, i);
+        }
+        assertTrue(cache.setAll(values, 60).get());
+        assertEquals(7, cache.getAsync("batch7").get());
+        assertEquals(50, cache.getAsync(values.keySet().toArray(new String[0])).get().size());
+        assertEquals(values, cache.get(values.keySet().toArray(new String[0])));
+        assertTrue(cache.deleteAll(values.keySet()).get());
+        assertNull(cache.getAsync("batch7").get());
+        // already absent: deleted as well, as with the local caches
+        assertTrue(cache.deleteAll(values.keySet()).get());
+        assertTrue(cache.setAsync("async", 1L, 60).get());
+        assertEquals(Long.valueOf(1L), cache.get("async"));
+    }
+
+    /**
+     * check the keys are striped over the pool and the queues are measured.
+     */
+    @Test
+    public void testPool() {
+        assertEquals(3, cache.clients.length);
+        final Set<MemcachedClient> used = new HashSet<MemcachedClient>();
+        for (int i = 0; i < 30; i++) {
+            cache.set("pool" + i, i, 60);
+            used.add(cache.client("pool" + i));
+        }
+        assertEquals(3, used.size());
+        for (int i = 0; i < 30; i++) {
+            assertEquals(i, cache.get("pool" + i));
+        }
+
+        final MemcachedImpl.QueueDepth depth = cache.getQueueDepth();
+        assertEquals(1024, depth.getCapacity());
+        assertEquals(0, depth.getInput());
+        assertTrue(depth.getSaturation() < 1);
+    }
+
+    /**
+     * check values written with the binary codec are read back.
+     */
+    @Test
+    public void testBinaryCodec() {
+        final CacheCodec codec = CacheCodecs.current();
+        cache.tc = new CodecTranscoder(CacheCodecs.forName(BinaryCodec.NAME, 16));
+        try {
+            final Map<String, Object> value = new HashMap<String, Object>();
+            value.put("name", "a rather long value to trigger the compression");
+            assertTrue(cache.safeSet("binary", value, 60));
+            assertEquals(value, cache.get("binary"));
+        } finally {
+            cache.tc = new CodecTranscoder(codec);
+        }
+    }
+}
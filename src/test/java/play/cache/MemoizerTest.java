@@ -0,0 +1,160 @@
+package play.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Memoizer's behavior test, on the local cache.
+ * @author Toast kid
+ *
+ */
+public class MemoizerTest {
+
+    /** memoized service. */
+    public interface Service {
+
+        @CacheFor("1mn")
+        String echo(String value, int times);
+
+        @CacheFor(value = "1mn", id = "failing")
+        String failing(String value) throws IOException;
+
+        int notCached();
+    }
+
+    /** counts the calls of each method. */
+    private static final class CountingService implements Service {
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public String echo(final String value, final int times) {
+            calls.incrementAndGet();
+            try {
+                Thread.sleep(50);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            final StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < times; i++) {
+                sb.append(value);
+            }
+            return sb.toString();
+        }
+
+        @Override
+        public String failing(final String value) throws IOException {
+            calls.incrementAndGet();
+            throw new IOException(value);
+        }
+
+        @Override
+        public int notCached() {
+            return calls.incrementAndGet();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        Cache.forcedCacheImpl = EhCacheImpl.getInstance() != null ? EhCacheImpl.getInstance() : EhCacheImpl.newInstance();
+        Cache.init();
+        Cache.clear();
+    }
+
+    /**
+     * check results are cached by arguments.
+     */
+    @Test
+    public void testMemoize() {
+        final CountingService target = new CountingService();
+        final Service service = Memoizer.memoize(Service.class, target);
+        assertEquals("abab", service.echo("ab", 2));
+        assertEquals("abab", service.echo("ab", 2));
+        assertEquals("ababab", service.echo("ab", 3));
+        assertEquals(2, target.calls.get());
+
+        final Memoizer.Statistics stats = Memoizer.statistics(MemoizerTest.Service.class.getName() + ".echo(java.lang.String,int)");
+        assertTrue(stats.getHits() >= 1);
+        assertTrue(stats.getMisses() >= 2);
+
+        service.notCached();
+        service.notCached();
+        assertEquals(4, target.calls.get());
+    }
+
+    /**
+     * check concurrent misses call the method once.
+     * @throws InterruptedException
+     */
+    @Test
+    public void testConcurrentMisses() throws InterruptedException {
+        final CountingService target = new CountingService();
+        final Service service = Memoizer.memoize(Service.class, target);
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                    service.echo("concurrent", 1);
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1, target.calls.get());
+    }
+
+    /**
+     * check declared exceptions are thrown as is.
+     */
+    @Test
+    public void testDeclaredException() {
+        final Service service = Memoizer.memoize(Service.class, new CountingService());
+        try {
+            service.failing("boom");
+            fail();
+        } catch (final IOException e) {
+            assertEquals("boom", e.getMessage());
+        }
+    }
+
+    /**
+     * check the keys are unambiguous and valid for memcached.
+     * @throws IOException
+     */
+    @Test
+    public void testKeys() throws IOException {
+        assertNotEquals(Memoizer.key("id", "a|s1:b"), Memoizer.key("id", "a", "b"));
+        assertNotEquals(Memoizer.key("id", 1), Memoizer.key("id", 1L));
+        assertNotEquals(Memoizer.key("id", (Object) null), Memoizer.key("id", "n"));
+        final CacheCodecs.Statistics codec = CacheCodecs.statistics(CacheCodecs.current().getName());
+        final long encodes = codec.getEncodeCount();
+        assertEquals(Memoizer.key("id", Arrays.asList("a", "b")), Memoizer.key("id", Arrays.asList("a", "b")));
+        assertEquals(encodes, codec.getEncodeCount());
+        final String spaces = Memoizer.key("id", "with spaces");
+        assertTrue(spaces.startsWith("id#") && !spaces.contains(" "));
+        final char[] longValue = new char[300];
+        Arrays.fill(longValue, 'x');
+        assertTrue(Memoizer.key("id", new String(longValue)).length() < 250);
+    }
+}
@@ -0,0 +1,236 @@
+package play.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import play.libs.ws.F;
+
+/**
+ * Live migration between two implementations through Cache.migrate.
+ * @author Toast kid
+ *
+ */
+public class MigratingCacheImplTest {
+
+    @After
+    public void tearDown() {
+        Cache.forcedCacheImpl = null;
+    }
+
+    /**
+     * check the entries of a listable source are copied and the target replaces it.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    @Test
+    public void testMigrateListableSource() throws IOException, InterruptedException {
+        final OffHeapCacheImpl source = new OffHeapCacheImpl(1024 * 1024, 64, CacheCodecs.current(), null);
+        for (int i = 0; i < 100; i++) {
+            source.set("key" + i, "value" + i, 60);
+        }
+        Cache.forcedCacheImpl = source;
+        Cache.init();
+        final TinyLfuCacheImpl target = new TinyLfuCacheImpl(1024 * 1024, 1000, new BinaryCodec(Integer.MAX_VALUE));
+
+        final MigratingCacheImpl migration = Cache.migrate(target, 1);
+        assertEquals("value5", Cache.get("key5"));
+        Cache.set("written", "both", "1mn");
+        assertEquals("both", source.get("written"));
+        assertEquals("both", target.get("written"));
+        Cache.delete("key6");
+
+        awaitCompletion(target);
+        assertTrue(migration.getCopiedEntries() >= 98);
+        for (int i = 0; i < 100; i++) {
+            if (i != 6) {
+                assertEquals("value" + i, target.get("key" + i));
+            }
+        }
+        assertNull(target.get("key6"));
+        assertEquals("both", target.get("written"));
+        assertEquals("value5", Cache.get("key5"));
+    }
+
+    /**
+     * check the keys read from the source are copied, counters carried over.
+     * @throws InterruptedException
+     */
+    @Test
+    public void testMigrateReadKeys() throws InterruptedException {
+        final TinyLfuCacheImpl source = new TinyLfuCacheImpl(1024 * 1024, 1000, new BinaryCodec(Integer.MAX_VALUE));
+        source.set("hot", "value", 60);
+        source.set("cold", "value", 60);
+        source.set("counter", 10L, 60);
+        Cache.forcedCacheImpl = source;
+        Cache.init();
+        final TinyLfuCacheImpl target = new TinyLfuCacheImpl(1024 * 1024, 1000, new BinaryCodec(Integer.MAX_VALUE));
+
+        final MigratingCacheImpl migration = Cache.migrate(target, 1);
+        assertEquals("value", Cache.get("hot"));
+        assertEquals(11, Cache.incr("counter"));
+        assertEquals(11, source.incr("counter", 0));
+        assertEquals("value", Cache.get("hot", "missing").get("hot"));
+        assertEquals("value", Cache.get("cold", "missing").get("cold"));
+
+        awaitCompletion(target);
+        assertEquals(2, migration.getCopied());
+        assertEquals("value", target.get("hot"));
+        assertEquals(11L, target.get("counter"));
+        assertEquals(0, migration.getCopiedEntries());
+    }
+
+    /**
+     * check a key deleted while it is copied after a read isn't left on the target.
+     * @throws InterruptedException
+     */
+    @Test
+    public void testDeleteDuringCopy() throws InterruptedException {
+        final CountDownLatch read = new CountDownLatch(1);
+        final CountDownLatch deleted = new CountDownLatch(1);
+        final AtomicInteger reads = new AtomicInteger();
+        final TinyLfuCacheImpl source = new TinyLfuCacheImpl(1024 * 1024, 1000, new BinaryCodec(Integer.MAX_VALUE)) {
+
+            @Override
+            public Object get(final String key) {
+                final Object value = super.get(key);
+                // the second read is the copy's
+                if (reads.incrementAndGet() == 2) {
+                    read.countDown();
+                    try {
+                        deleted.await(5, TimeUnit.SECONDS);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return value;
+            }
+        };
+        source.set("key", "value", 60);
+        final TinyLfuCacheImpl target = new TinyLfuCacheImpl(1024 * 1024, 1000, new BinaryCodec(Integer.MAX_VALUE));
+        final CountDownLatch complete = new CountDownLatch(1);
+        final MigratingCacheImpl migration = new MigratingCacheImpl(source, target, 1, 60, new Runnable() {
+
+            @Override
+            public void run() {
+                complete.countDown();
+            }
+        });
+        migration.start();
+
+        assertEquals("value", migration.get("key"));
+        assertTrue(read.await(5, TimeUnit.SECONDS));
+        migration.delete("key");
+        deleted.countDown();
+        assertTrue(complete.await(5, TimeUnit.SECONDS));
+        assertNull(target.get("key"));
+        assertNull(migration.get("key"));
+        assertEquals(0, migration.getCopied());
+    }
+
+    /**
+     * check deleteAll waits for an asynchronous source, so that a copy can't read the keys afterwards.
+     * @throws Exception
+     */
+    @Test
+    public void testDeleteAllAsynchronousSource() throws Exception {
+        final TinyLfuCacheImpl source = new TinyLfuCacheImpl(1024 * 1024, 1000, new BinaryCodec(Integer.MAX_VALUE)) {
+
+            @Override
+            public F.Promise<Boolean> deleteAll(final Collection<String> keys) {
+                final F.Promise<Boolean> promise = new F.Promise<Boolean>();
+                new Thread() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            Thread.sleep(200);
+                        } catch (final InterruptedException e) {
+                            return;
+                        }
+                        for (final String key : keys) {
+                            delete(key);
+                        }
+                        promise.invoke(Boolean.TRUE);
+                    }
+                }.start();
+                return promise;
+            }
+        };
+        source.set("a", "value", 60);
+        source.set("b", "value", 60);
+        final TinyLfuCacheImpl target = new TinyLfuCacheImpl(1024 * 1024, 1000, new BinaryCodec(Integer.MAX_VALUE));
+        final MigratingCacheImpl migration = new MigratingCacheImpl(source, target, 60, 60, new Runnable() {
+
+            @Override
+            public void run() {
+            }
+        });
+        migration.start();
+        try {
+            assertTrue(migration.deleteAll(Arrays.asList("a", "b")).get(5, TimeUnit.SECONDS));
+            assertNull(source.get("a"));
+            assertNull(source.get("b"));
+            assertNull(migration.get("a"));
+        } finally {
+            migration.stop();
+        }
+    }
+
+    /**
+     * check a deletion by prefix during the window reaches both implementations.
+     * @throws IOException
+     */
+    @Test
+    public void testDeleteByPrefixDuringMigration() throws IOException {
+        final OffHeapCacheImpl source = new OffHeapCacheImpl(1024 * 1024, 64, CacheCodecs.current(), null);
+        source.set("tenant:a", "value", 60);
+        source.set("other", "value", 60);
+        Cache.forcedCacheImpl = source;
+        Cache.init();
+        final OffHeapCacheImpl target = new OffHeapCacheImpl(1024 * 1024, 64, CacheCodecs.current(), null);
+        target.set("tenant:b", "value", 60);
+
+        final MigratingCacheImpl migration = Cache.migrate(target, 60);
+        try {
+            Cache.deleteByPrefix("tenant:");
+            assertNull(source.get("tenant:a"));
+            assertNull(target.get("tenant:b"));
+            assertNull(Cache.get("tenant:a"));
+            assertEquals("value", Cache.get("other"));
+        } finally {
+            migration.stop();
+        }
+    }
+
+    /**
+     * check only one migration runs at a time.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testConcurrentMigration() {
+        Cache.forcedCacheImpl = new TinyLfuCacheImpl(1024, 10, new BinaryCodec(Integer.MAX_VALUE));
+        Cache.init();
+        Cache.migrate(new TinyLfuCacheImpl(1024, 10, new BinaryCodec(Integer.MAX_VALUE)), 60);
+        Cache.migrate(new TinyLfuCacheImpl(1024, 10, new BinaryCodec(Integer.MAX_VALUE)), 60);
+    }
+
+    private static void awaitCompletion(final CacheImpl target) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (((InstrumentedCacheImpl) Cache.cacheImpl).getDelegate() != target
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertSame(target, ((InstrumentedCacheImpl) Cache.cacheImpl).getDelegate());
+    }
+}
@@ -0,0 +1,179 @@
+package play.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import play.libs.ws.F;
+
+/**
+ * NearCacheImpl's behavior test.
+ * @author Toast kid
+ *
+ */
+public class NearCacheImplTest {
+
+    /** remote tier. */
+    private EhCacheImpl remote;
+
+    /** tested cache. */
+    private NearCacheImpl cache;
+
+    @Before
+    public void setUp() {
+        remote = EhCacheImpl.getInstance() != null ? EhCacheImpl.getInstance() : EhCacheImpl.newInstance();
+        remote.clear();
+        cache = new NearCacheImpl(remote, 100, 60);
+    }
+
+    /**
+     * check local copy is served until invalidated by a write.
+     */
+    @Test
+    public void testInvalidationOnWrite() {
+        remote.set("near", "v1", 60);
+        assertEquals("v1", cache.get("near"));
+        // not visible through the local tier until staleness is reached
+        remote.set("near", "v2", 60);
+        assertEquals("v1", cache.get("near"));
+
+        cache.set("near", "v3", 60);
+        assertEquals("v3", cache.get("near"));
+        cache.replace("near", "v4", 60);
+        assertEquals("v4", cache.get("near"));
+        cache.delete("near");
+        assertNull(cache.get("near"));
+    }
+
+    /**
+     * check bulk get merges local and remote values.
+     */
+    @Test
+    public void testBulkGet() {
+        remote.set("a", "1", 60);
+        remote.set("b", "2", 60);
+        assertEquals("1", cache.get("a"));
+        final Map<String, Object> values = cache.get(new String[]{"a", "b", "c"});
+        assertEquals("1", values.get("a"));
+        assertEquals("2", values.get("b"));
+        assertNull(values.get("c"));
+    }
+
+    /**
+     * check the local tier is bounded.
+     */
+    @Test
+    public void testBounded() {
+        for (int i = 0; i < 1000; i++) {
+            remote.set("k" + i, i, 60);
+            cache.get("k" + i);
+        }
+        assertEquals(true, cache.localSize() <= 16 * 7);
+    }
+
+    /**
+     * check a read made while a remote write is in flight doesn't keep the former value.
+     */
+    @Test
+    public void testReadDuringWrite() {
+        final DelayedRemote delayed = new DelayedRemote();
+        final NearCacheImpl near = new NearCacheImpl(delayed, 100, 60);
+        delayed.write("near", "v1", 60);
+
+        near.set("near", "v2", 60);
+        assertEquals("v1", near.get("near"));
+        delayed.complete();
+        assertEquals("v2", near.get("near"));
+
+        final F.Promise<Boolean> written = near.setAsync("near", "v3", 60);
+        assertEquals("v2", near.get("near"));
+        delayed.complete();
+        assertEquals(Boolean.TRUE, written.getOrNull());
+        assertEquals("v3", near.get("near"));
+    }
+
+    /**
+     * Remote tier applying its writes only when told to, as a memcached write in flight.
+     */
+    private static class DelayedRemote extends TinyLfuCacheImpl implements AsyncCacheImpl {
+
+        private final List<Runnable> pending = new ArrayList<Runnable>();
+
+        private final AsyncCacheImpl blocking = new BlockingAsyncCacheImpl(this);
+
+        DelayedRemote() {
+            super(1024 * 1024, 1000, new BinaryCodec(Integer.MAX_VALUE));
+        }
+
+        void complete() {
+            for (final Runnable write : pending) {
+                write.run();
+            }
+            pending.clear();
+        }
+
+        void write(final String key, final Object value, final int expiration) {
+            super.set(key, value, expiration);
+        }
+
+        @Override
+        public void set(final String key, final Object value, final int expiration) {
+            setAsync(key, value, expiration);
+        }
+
+        @Override
+        public F.Promise<Boolean> setAsync(final String key, final Object value, final int expiration) {
+            final F.Promise<Boolean> promise = new F.Promise<Boolean>();
+            pending.add(new Runnable() {
+
+                @Override
+                public void run() {
+                    write(key, value, expiration);
+                    promise.invoke(Boolean.TRUE);
+                }
+            });
+            return promise;
+        }
+
+        @Override
+        public F.Promise<Boolean> addAsync(final String key, final Object value, final int expiration) {
+            return blocking.addAsync(key, value, expiration);
+        }
+
+        @Override
+        public F.Promise<Boolean> replaceAsync(final String key, final Object value, final int expiration) {
+            return blocking.replaceAsync(key, value, expiration);
+        }
+
+        @Override
+        public F.Promise<Object> getAsync(final String key) {
+            return blocking.getAsync(key);
+        }
+
+        @Override
+        public F.Promise<Map<String, Object>> getAsync(final String[] keys) {
+            return blocking.getAsync(keys);
+        }
+
+        @Override
+        public F.Promise<Long> incrAsync(final String key, final int by) {
+            return blocking.incrAsync(key, by);
+        }
+
+        @Override
+        public F.Promise<Long> decrAsync(final String key, final int by) {
+            return blocking.decrAsync(key, by);
+        }
+
+        @Override
+        public F.Promise<Boolean> deleteAsync(final String key) {
+            return blocking.deleteAsync(key);
+        }
+    }
+}
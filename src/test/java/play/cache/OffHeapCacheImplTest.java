@@ -0,0 +1,186 @@
+package play.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * OffHeapCacheImpl's behavior test.
+ * @author Toast kid
+ *
+ */
+public class OffHeapCacheImplTest {
+
+    /** tested cache: 16 segments of 4 blocks of 64 bytes. */
+    private OffHeapCacheImpl cache;
+
+    @Before
+    public void setUp() throws IOException {
+        cache = new OffHeapCacheImpl(16 * 4 * 64, 64, new BinaryCodec(Integer.MAX_VALUE), null);
+    }
+
+    /**
+     * check basic operations.
+     */
+    @Test
+    public void testOperations() {
+        final List<Object> list = new ArrayList<Object>(Arrays.asList("a", 1L, "large value spanning blocks."));
+        cache.set("list", list, 60);
+        assertEquals(list, cache.get("list"));
+        assertFalse(cache.safeAdd("list", "other", 60));
+        assertTrue(cache.safeReplace("list", "replaced", 60));
+        assertEquals("replaced", cache.get("list"));
+        assertFalse(cache.safeReplace("missing", "value", 60));
+        assertNull(cache.get("missing"));
+        assertTrue(cache.safeDelete("list"));
+        assertNull(cache.get("list"));
+        assertFalse(cache.safeDelete("list"));
+    }
+
+    /**
+     * check counters.
+     */
+    @Test
+    public void testCounters() {
+        assertEquals(-1, cache.incr("counter", 1));
+        cache.set("counter", 10L, 60);
+        assertEquals(15, cache.incr("counter", 5));
+        assertEquals(12, cache.decr("counter", 3));
+        assertEquals(12L, cache.get("counter"));
+    }
+
+    /**
+     * check per-entry expiration.
+     * @throws InterruptedException
+     */
+    @Test
+    public void testExpiration() throws InterruptedException {
+        cache.set("short", "value", 1);
+        cache.set("eternal", "value", 0);
+        Thread.sleep(1100);
+        assertNull(cache.get("short"));
+        assertEquals("value", cache.get("eternal"));
+    }
+
+    /**
+     * check a full cache evicts instead of growing, and values too large are refused.
+     */
+    @Test
+    public void testEviction() {
+        for (int i = 0; i < 1000; i++) {
+            cache.set("key" + i, "value" + i, 60);
+        }
+        assertTrue(cache.size() <= 16 * 4);
+        assertTrue(cache.getEvictions() > 0);
+        assertEquals("value999", cache.get("key999"));
+
+        final char[] large = new char[1024];
+        Arrays.fill(large, 'x');
+        assertFalse(cache.safeSet("large", new String(large), 60));
+    }
+
+    /**
+     * check recently read entries get a second chance.
+     * @throws IOException
+     */
+    @Test
+    public void testSecondChance() throws IOException {
+        // 16 segments of 2 blocks
+        final OffHeapCacheImpl small = new OffHeapCacheImpl(16 * 2 * 64, 64, new BinaryCodec(Integer.MAX_VALUE), null);
+        final List<String> keys = sameSegmentKeys(3);
+        small.set(keys.get(0), "v", 60);
+        small.set(keys.get(1), "v", 60);
+        small.get(keys.get(0));
+        small.set(keys.get(2), "v", 60);
+        assertEquals("v", small.get(keys.get(0)));
+        assertNull(small.get(keys.get(1)));
+        assertEquals("v", small.get(keys.get(2)));
+    }
+
+    /**
+     * check expired entries are dropped before the live ones, even recently written.
+     * @throws Exception
+     */
+    @Test
+    public void testExpiredFirst() throws Exception {
+        // 16 segments of 2 blocks
+        final OffHeapCacheImpl small = new OffHeapCacheImpl(16 * 2 * 64, 64, new BinaryCodec(Integer.MAX_VALUE), null);
+        final List<String> keys = sameSegmentKeys(3);
+        small.set(keys.get(0), "v", 60);
+        small.set(keys.get(1), "v", 1);
+        Thread.sleep(1100);
+        small.set(keys.get(2), "v", 60);
+        assertEquals("v", small.get(keys.get(0)));
+        assertEquals("v", small.get(keys.get(2)));
+        assertEquals(0, small.getEvictions());
+    }
+
+    /**
+     * check a stopped cache frees its storage and refuses the writes.
+     * @throws IOException
+     */
+    @Test
+    public void testStop() throws IOException {
+        final File file = File.createTempFile("offheap", ".cache");
+        file.deleteOnExit();
+        final OffHeapCacheImpl mapped = new OffHeapCacheImpl(1024 * 1024, 128, new JavaSerializationCodec(), file);
+        mapped.set("key", "value", 60);
+        cache.set("key", "value", 60);
+        mapped.stop();
+        cache.stop();
+        assertNull(mapped.get("key"));
+        assertNull(cache.get("key"));
+        assertFalse(cache.safeSet("key", "value", 60));
+        assertEquals(-1, cache.incr("key", 1));
+    }
+
+    /**
+     * check batch operations and mapped storage.
+     */
+    @Test
+    public void testBatchOnMappedFile() throws IOException {
+        final File file = File.createTempFile("offheap", ".cache");
+        file.deleteOnExit();
+        final OffHeapCacheImpl mapped = new OffHeapCacheImpl(1024 * 1024, 128, new JavaSerializationCodec(), file);
+        final Map<String, Object> values = new HashMap<String, Object>();
+        for (int i = 0; i < 100; i++) {
+            values.put("key" + i, i);
+        }
+        assertTrue(mapped.setAll(values, 60).getOrNull());
+        assertEquals(values, mapped.get(values.keySet().toArray(new String[values.size()])));
+        assertTrue(mapped.deleteAll(values.keySet()).getOrNull());
+        assertEquals(0, mapped.size());
+    }
+
+    /**
+     * @return keys stored in the same segment
+     */
+    private static List<String> sameSegmentKeys(final int count) {
+        final List<String> keys = new ArrayList<String>();
+        for (int i = 0; keys.size() < count; i++) {
+            final String key = "key" + i;
+            if (segment(key) == 0) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    private static int segment(final String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return h & 15;
+    }
+}
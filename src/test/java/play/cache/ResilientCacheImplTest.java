@@ -0,0 +1,171 @@
+package play.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * ResilientCacheImpl's behavior test.
+ * @author Toast kid
+ *
+ */
+public class ResilientCacheImplTest {
+
+    /** remote cache failing on demand. */
+    private FlakyCacheImpl remote;
+
+    /** tested cache: opens after 3 failures, for 1 second. */
+    private ResilientCacheImpl cache;
+
+    @Before
+    public void setUp() {
+        remote = new FlakyCacheImpl();
+        cache = new ResilientCacheImpl(remote, 100, 3, 1, 3600);
+    }
+
+    /**
+     * check the shadow copy is served when a read fails.
+     */
+    @Test
+    public void testStaleWhileError() {
+        cache.set("key", "value", 60);
+        assertEquals("value", cache.get("key"));
+        remote.failing = true;
+        assertEquals("value", cache.get("key"));
+        assertNull(cache.get("missing"));
+        assertEquals(2, cache.getFailures());
+        assertEquals(1, cache.getShadowHits());
+        assertFalse(cache.isOpen());
+
+        remote.failing = false;
+        remote.delete("key");
+        assertNull(cache.get("key"));
+        remote.failing = true;
+        // a miss of the remote cache removed the shadow copy
+        assertNull(cache.get("key"));
+    }
+
+    /**
+     * check the circuit opens, short-circuits the remote cache and recovers.
+     * @throws InterruptedException
+     */
+    @Test
+    public void testCircuit() throws InterruptedException {
+        cache.set("key", "before", 60);
+        remote.failing = true;
+        for (int i = 0; i < 3; i++) {
+            assertEquals("before", cache.get("key"));
+        }
+        assertTrue(cache.isOpen());
+        final int calls = remote.calls.get();
+        assertEquals("before", cache.get("key"));
+        assertFalse(cache.safeSet("key", "during", 60));
+        assertEquals("during", cache.get("key"));
+        assertEquals(-1, cache.incr("counter", 1));
+        assertEquals(calls, remote.calls.get());
+        assertEquals(4, cache.getShortCircuited());
+
+        // the probe fails: open again
+        Thread.sleep(1100);
+        assertEquals("during", cache.get("key"));
+        assertTrue(cache.isOpen());
+        assertEquals(calls + 1, remote.calls.get());
+
+        // the probe succeeds: closed, and the value written meanwhile isn't shadowed by the former one
+        remote.failing = false;
+        Thread.sleep(1100);
+        assertNull(cache.get("other"));
+        assertFalse(cache.isOpen());
+        assertNull(remote.get("key"));
+        assertEquals(1, cache.getOpened());
+    }
+
+    /**
+     * check a failing write leaves the shadow copy updated and doesn't reset the failure count.
+     */
+    @Test
+    public void testFailingWrite() {
+        remote.failing = true;
+        cache.set("key", "value", 60);
+        assertEquals("value", cache.get("key"));
+        assertEquals(1, cache.getFailures());
+        for (int i = 0; i < 2; i++) {
+            assertFalse(cache.safeSet("key", "value" + i, 60));
+            cache.get("key");
+        }
+        assertTrue(cache.isOpen());
+    }
+
+    /**
+     * check a write doesn't probe the remote cache once the circuit was open: only a read closes it.
+     * @throws InterruptedException
+     */
+    @Test
+    public void testWriteIsNotProbe() throws InterruptedException {
+        remote.failing = true;
+        for (int i = 0; i < 3; i++) {
+            cache.get("key");
+        }
+        assertTrue(cache.isOpen());
+        Thread.sleep(1100);
+        final int calls = remote.calls.get();
+        cache.set("key", "value", 60);
+        assertTrue(cache.isOpen());
+        assertEquals(calls, remote.calls.get());
+
+        remote.failing = false;
+        assertNull(cache.get("missing"));
+        assertFalse(cache.isOpen());
+    }
+
+    /**
+     * Local cache failing on demand as memcached: reads throw on a timeout, writes are lost
+     * without throwing (safeSet returns false).
+     */
+    private static final class FlakyCacheImpl extends TinyLfuCacheImpl {
+
+        volatile boolean failing;
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        FlakyCacheImpl() {
+            super(1024 * 1024, 1000, new BinaryCodec(Integer.MAX_VALUE));
+        }
+
+        private void call() {
+            calls.incrementAndGet();
+            if (failing) {
+                throw new IllegalStateException("Timed out");
+            }
+        }
+
+        @Override
+        public Object get(final String key) {
+            call();
+            return super.get(key);
+        }
+
+        @Override
+        public void set(final String key, final Object value, final int expiration) {
+            safeSet(key, value, expiration);
+        }
+
+        @Override
+        public boolean safeSet(final String key, final Object value, final int expiration) {
+            calls.incrementAndGet();
+            return !failing && super.safeSet(key, value, expiration);
+        }
+
+        @Override
+        public long incr(final String key, final int by) {
+            calls.incrementAndGet();
+            return failing ? -1 : super.incr(key, by);
+        }
+    }
+}
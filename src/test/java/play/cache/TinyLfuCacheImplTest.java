@@ -0,0 +1,191 @@
+package play.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * TinyLfuCacheImpl's behavior test.
+ * @author Toast kid
+ *
+ */
+public class TinyLfuCacheImplTest {
+
+    /** values codec. */
+    private final CacheCodec codec = new BinaryCodec(Integer.MAX_VALUE);
+
+    /** tested cache: 16 segments of 4KB. */
+    private TinyLfuCacheImpl cache;
+
+    @Before
+    public void setUp() {
+        cache = new TinyLfuCacheImpl(16 * 4096, 1000, codec);
+    }
+
+    /**
+     * check basic operations.
+     */
+    @Test
+    public void testOperations() {
+        final List<Object> list = new ArrayList<Object>(Arrays.asList("a", 1L));
+        cache.set("list", list, 60);
+        assertEquals(list, cache.get("list"));
+        assertFalse(cache.safeAdd("list", "other", 60));
+        assertTrue(cache.safeReplace("list", "replaced", 60));
+        assertEquals("replaced", cache.get("list"));
+        assertFalse(cache.safeReplace("missing", "value", 60));
+        assertNull(cache.get("missing"));
+        assertTrue(cache.safeDelete("list"));
+        assertNull(cache.get("list"));
+        assertFalse(cache.safeDelete("list"));
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    /**
+     * check counters.
+     */
+    @Test
+    public void testCounters() {
+        assertEquals(-1, cache.incr("counter", 1));
+        cache.set("counter", 10L, 60);
+        assertEquals(15, cache.incr("counter", 5));
+        assertEquals(12, cache.decr("counter", 3));
+        assertEquals(12L, cache.get("counter"));
+    }
+
+    /**
+     * check expiration.
+     * @throws InterruptedException
+     */
+    @Test
+    public void testExpiration() throws InterruptedException {
+        cache.set("short", "value", 1);
+        cache.set("forever", "value", 0);
+        Thread.sleep(1100);
+        assertNull(cache.get("short"));
+        assertTrue(cache.safeAdd("short", "again", 60));
+        assertEquals("value", cache.get("forever"));
+    }
+
+    /**
+     * check the weight stays under the maximum and the evictions are reported.
+     */
+    @Test
+    public void testWeight() {
+        final String value = "0123456789012345678901234567890123456789";
+        cache.set("key", value, 60);
+        assertEquals(cache.weigh(value), cache.weight());
+        for (int i = 0; i < 10000; i++) {
+            cache.set("key" + i, value, 60);
+        }
+        assertTrue(cache.weight() <= 16 * 4096);
+        assertTrue(cache.size() < 10000);
+        assertTrue(cache.getEvictions() + cache.getRejections() > 0);
+        assertEquals(cache.getEvictions() + cache.getRejections(), CacheMetrics.evictions(cache));
+
+        final Map<String, Object> values = new HashMap<String, Object>();
+        values.put("a", "1");
+        values.put("b", "2");
+        assertTrue(cache.setAll(values, 60).getOrNull());
+        assertEquals(values, cache.get(new String[] {"a", "b"}));
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.weight());
+    }
+
+    /**
+     * check the weight of the common values is estimated close to their encoded size, without
+     * encoding them.
+     * @throws IOException
+     */
+    @Test
+    public void testEstimate() throws IOException {
+        final Map<String, Object> map = new HashMap<String, Object>();
+        map.put("list", new ArrayList<Object>(Arrays.asList("a", 1L, 2.5d, null)));
+        map.put("bytes", new byte[100]);
+        map.put("text", "0123456789012345678901234567890123456789");
+        final Object[] values = {"0123456789", new byte[1000], map};
+        for (final Object value : values) {
+            final int encoded = codec.encode(value).length;
+            final int weight = cache.weigh(value);
+            assertTrue(value + ": " + weight + " for " + encoded, weight >= encoded / 2 && weight <= encoded * 2);
+        }
+
+        final CacheCodecs.Statistics stats = CacheCodecs.statistics(CacheCodecs.current().getName());
+        final TinyLfuCacheImpl measured = new TinyLfuCacheImpl(16 * 4096, 1000, CacheCodecs.current());
+        final long encodes = stats.getEncodeCount();
+        for (final Object value : values) {
+            measured.set("key", value, 60);
+        }
+        measured.set("number", 42L, 60);
+        assertEquals(encodes, stats.getEncodeCount());
+    }
+
+    /**
+     * check a value larger than the cache isn't stored.
+     */
+    @Test
+    public void testTooLarge() {
+        cache.set("large", new byte[8192], 60);
+        assertNull(cache.get("large"));
+    }
+
+    /**
+     * check frequently read entries survive a scan of keys read once.
+     */
+    @Test
+    public void testScanResistance() {
+        final String value = "0123456789012345678901234567890123456789";
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 100; i++) {
+                if (cache.get("hot" + i) == null) {
+                    cache.set("hot" + i, value, 60);
+                }
+            }
+        }
+        for (int i = 0; i < 20000; i++) {
+            cache.set("scan" + i, value, 60);
+        }
+        int found = 0;
+        for (int i = 0; i < 100; i++) {
+            if (cache.get("hot" + i) != null) {
+                found++;
+            }
+        }
+        assertEquals(100, found);
+        assertTrue(cache.getRejections() > 0);
+    }
+
+    /**
+     * check the sketch counts and ages.
+     */
+    @Test
+    public void testFrequencySketch() {
+        final TinyLfuCacheImpl.FrequencySketch sketch = new TinyLfuCacheImpl.FrequencySketch(64);
+        for (int i = 0; i < 5; i++) {
+            sketch.increment(42);
+        }
+        assertEquals(5, sketch.frequency(42));
+        for (int i = 0; i < 20; i++) {
+            sketch.increment(7);
+        }
+        assertEquals(15, sketch.frequency(7));
+        // 640 increments halve the counters
+        for (int i = 0; i < 700; i++) {
+            sketch.increment(1000 + i);
+        }
+        assertTrue(sketch.frequency(7) < 15);
+    }
+}
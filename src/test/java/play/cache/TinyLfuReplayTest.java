@@ -0,0 +1,127 @@
+package play.cache;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Replays a key trace through EhCacheImpl (LRU) and TinyLfuCacheImpl of the same capacity
+ * and checks TinyLFU hits at least as often. A recorded trace, one key per line, is read from
+ * the file given by the system property <code>cache.trace</code>; the default synthetic trace
+ * mixes Zipf distributed reads of a hot set with keys read only once (crawlers, scans).
+ * The timings are measured by the TinyLfuReplayBenchmark of src/jmh.
+ * @author Toast kid
+ *
+ */
+public class TinyLfuReplayTest {
+
+    /** capacity of both caches, in entries. */
+    private static final int CAPACITY = 2000;
+
+    /** length of the synthetic trace. */
+    private static final int REQUESTS = 200000;
+
+    /** keys of the hot set. */
+    private static final int HOT_KEYS = 20000;
+
+    /** cached value, the same for every key so that weight and count match. */
+    private static final String VALUE = "0123456789012345678901234567890123456789";
+
+    /**
+     * Compare both caches.
+     * @throws IOException
+     */
+    @Test
+    public void testReplay() throws IOException {
+        final String traceFile = System.getProperty("cache.trace");
+        final List<String> trace = traceFile == null ? syntheticTrace() : readTrace(new File(traceFile));
+
+        final EhCacheImpl ehCache = EhCacheImpl.getInstance() != null ? EhCacheImpl.getInstance() : EhCacheImpl.newInstance();
+        final long maxEntries = ehCache.cache.getCacheConfiguration().getMaxEntriesLocalHeap();
+        final double lru;
+        try {
+            ehCache.clear();
+            ehCache.cache.getCacheConfiguration().setMaxEntriesLocalHeap(CAPACITY);
+            lru = replay(ehCache, trace);
+        } finally {
+            ehCache.clear();
+            ehCache.cache.getCacheConfiguration().setMaxEntriesLocalHeap(maxEntries);
+        }
+
+        final TinyLfuCacheImpl tinyLfu = new TinyLfuCacheImpl(CAPACITY * TinyLfuCacheImpl.estimate(VALUE, 0), CAPACITY,
+                new BinaryCodec(Integer.MAX_VALUE));
+        final double lfu = replay(tinyLfu, trace);
+        assertTrue(lfu >= lru);
+    }
+
+    /**
+     * Read through the cache, setting the value on a miss.
+     * @return The hit ratio
+     */
+    private static double replay(final CacheImpl cache, final List<String> trace) {
+        int hits = 0;
+        for (final String key : trace) {
+            if (cache.get(key) != null) {
+                hits++;
+            } else {
+                cache.set(key, VALUE, 0);
+            }
+        }
+        return (double) hits / trace.size();
+    }
+
+    /**
+     * @return 70% of Zipf distributed hot keys, 30% of keys read once
+     */
+    private static List<String> syntheticTrace() {
+        final Random random = new Random(42);
+        final double[] cumulative = new double[HOT_KEYS];
+        double sum = 0;
+        for (int i = 0; i < HOT_KEYS; i++) {
+            sum += 1d / Math.pow(i + 1, 0.9);
+            cumulative[i] = sum;
+        }
+        final List<String> trace = new ArrayList<String>(REQUESTS);
+        int scan = 0;
+        for (int i = 0; i < REQUESTS; i++) {
+            if (random.nextDouble() < 0.3) {
+                trace.add("scan" + scan++);
+                continue;
+            }
+            int rank = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+            if (rank < 0) {
+                rank = -rank - 1;
+            }
+            trace.add("hot" + Math.min(rank, HOT_KEYS - 1));
+        }
+        return trace;
+    }
+
+    private static List<String> readTrace(final File file) throws IOException {
+        final List<String> trace = new ArrayList<String>();
+        final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    trace.add(line.trim());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return trace;
+    }
+}
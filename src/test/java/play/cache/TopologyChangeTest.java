@@ -0,0 +1,96 @@
+package play.cache;
+
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.transcoders.Transcoder;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks the share of keys still found when a memcached node is added, with the
+ * default (array) and the consistent (ketama) key distribution.
+ * The timings are measured by the TopologyChangeBenchmark of src/jmh.
+ * @author Toast kid
+ *
+ */
+public class TopologyChangeTest {
+
+    /** number of keys. */
+    private static final int KEYS = 5000;
+
+    /** nodes before the change. */
+    private static final int NODES = 4;
+
+    /** in-JVM memcached nodes. */
+    private static final List<LocalMemcachedServer> servers = new ArrayList<LocalMemcachedServer>();
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        for (int i = 0; i <= NODES; i++) {
+            servers.add(LocalMemcachedServer.start(0));
+        }
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        for (final LocalMemcachedServer server : servers) {
+            server.stop();
+        }
+    }
+
+    /**
+     * Compare both key distributions.
+     * @throws Exception
+     */
+    @Test
+    public void testAddNode() throws Exception {
+        final double array = hitRateAfterAddingNode("array");
+        final double ketama = hitRateAfterAddingNode("ketama");
+        // ketama only moves the keys taken over by the new node (about 1/5)
+        assertTrue(ketama > 0.7);
+        assertTrue(ketama > array);
+    }
+
+    private double hitRateAfterAddingNode(final String locator) throws Exception {
+        final Properties configuration = new Properties();
+        configuration.setProperty("memcached.locator", locator);
+        final Transcoder<Object> tc = new CodecTranscoder(CacheCodecs.current());
+
+        final MemcachedClient before = new MemcachedClient(
+                MemcachedImpl.connectionFactory(configuration), addresses(NODES));
+        before.flush().get();
+        final String[] keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = locator + i;
+            before.set(keys[i], 0, i, tc);
+        }
+        // wait for the pipelined writes
+        before.set("done", 0, "", tc).get(10, TimeUnit.SECONDS);
+        before.shutdown();
+
+        final MemcachedClient after = new MemcachedClient(
+                MemcachedImpl.connectionFactory(configuration), addresses(NODES + 1));
+        try {
+            return after.getBulk(tc, keys).size() / (double) KEYS;
+        } finally {
+            after.shutdown();
+        }
+    }
+
+    private static List<InetSocketAddress> addresses(final int count) {
+        final List<InetSocketAddress> addrs = new ArrayList<InetSocketAddress>(count);
+        for (int i = 0; i < count; i++) {
+            addrs.add(servers.get(i).getAddress());
+        }
+        return addrs;
+    }
+}
@@ -0,0 +1,211 @@
+package play.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * WriteBehindCacheImpl's behavior test.
+ * @author Toast kid
+ *
+ */
+public class WriteBehindCacheImplTest {
+
+    /** underlying cache. */
+    private OffHeapCacheImpl delegate;
+
+    /** set when the underlying cache is stopped. */
+    private final AtomicBoolean delegateStopped = new AtomicBoolean();
+
+    /** tested cache. */
+    private WriteBehindCacheImpl cache;
+
+    @Before
+    public void setUp() throws IOException {
+        delegate = new OffHeapCacheImpl(1024 * 1024, 64, new JavaSerializationCodec(), null) {
+
+            @Override
+            public void stop() {
+                delegateStopped.set(true);
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        if (cache != null && !delegateStopped.get()) {
+            cache.stop();
+        }
+    }
+
+    /**
+     * check writes are coalesced, visible before the flush, and flushed.
+     */
+    @Test
+    public void testCoalesce() {
+        cache = new WriteBehindCacheImpl(delegate, 100, 100, 60000, 0);
+        for (int i = 0; i < 10; i++) {
+            cache.set("key", i, 60);
+        }
+        cache.set("other", "value", 60);
+        cache.delete("other");
+        assertEquals(9, cache.get("key"));
+        assertNull(cache.get("other"));
+        assertNull(delegate.get("key"));
+        assertEquals(2, cache.pendingSize());
+        assertEquals(10, cache.getStatistics().getCoalesced());
+
+        cache.flush();
+        assertEquals(9, delegate.get("key"));
+        assertEquals(0, cache.pendingSize());
+        assertEquals(2, cache.getStatistics().getFlushed());
+    }
+
+    /**
+     * check stop flushes every pending write before stopping the underlying cache.
+     */
+    @Test
+    public void testStopFlushes() {
+        cache = new WriteBehindCacheImpl(delegate, 1000, 1000, 60000, 0);
+        for (int i = 0; i < 500; i++) {
+            cache.set("key" + i, i, 60);
+        }
+        cache.stop();
+        assertTrue(delegateStopped.get());
+        for (int i = 0; i < 500; i++) {
+            assertEquals(i, delegate.get("key" + i));
+        }
+        // writes after stop are synchronous
+        cache.set("late", "value", 60);
+        assertEquals("value", delegate.get("late"));
+    }
+
+    /**
+     * check a full queue makes the caller write synchronously.
+     */
+    @Test
+    public void testBackpressure() {
+        cache = new WriteBehindCacheImpl(delegate, 2, 100, 60000, 0);
+        cache.set("a", 1, 60);
+        cache.set("b", 2, 60);
+        cache.set("c", 3, 60);
+        assertEquals(1, cache.getStatistics().getThrottled());
+        assertEquals(3, delegate.get("c"));
+        assertNull(delegate.get("a"));
+    }
+
+    /**
+     * check operations depending on the current state see the pending writes.
+     */
+    @Test
+    public void testConditionalOperations() {
+        cache = new WriteBehindCacheImpl(delegate, 100, 100, 60000, 0);
+        cache.set("key", 1L, 60);
+        assertFalse(cache.safeAdd("key", 2L, 60));
+        assertEquals(3, cache.incr("key", 2));
+        cache.replace("missing", "value", 60);
+        assertNull(cache.get("missing"));
+        cache.set("added", "first", 60);
+        cache.add("added", "second", 60);
+        assertEquals("first", cache.get("added"));
+    }
+
+    /**
+     * check a write applied synchronously isn't overwritten by an older one, and stays visible.
+     * @throws Exception
+     */
+    @Test
+    public void testSynchronousWriteRace() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final OffHeapCacheImpl slow = new OffHeapCacheImpl(1024 * 1024, 64, new JavaSerializationCodec(), null) {
+
+            @Override
+            public void set(final String key, final Object value, final int expiration) {
+                if ("old".equals(value)) {
+                    writing.countDown();
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                super.set(key, value, expiration);
+            }
+        };
+        // a batch is flushed as soon as 2 keys are pending
+        cache = new WriteBehindCacheImpl(slow, 100, 2, 60000, 0);
+        cache.set("key", "old", 60);
+        // add over a pending set: the set is applied synchronously first
+        final Thread adding = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                cache.add("key", "added", 60);
+            }
+        });
+        adding.start();
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+        cache.set("key", "new", 60);
+        cache.set("other", "value", 60);
+        // the flusher must not write "new" before "old" is done
+        for (int i = 0; i < 100 && slow.get("other") == null; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals("value", slow.get("other"));
+        assertNull(slow.get("key"));
+        release.countDown();
+        adding.join();
+        cache.flush();
+        assertEquals("new", slow.get("key"));
+        assertEquals("new", cache.get("key"));
+    }
+
+    /**
+     * check a value being written by a safe operation is visible to the reads.
+     * @throws Exception
+     */
+    @Test
+    public void testReadDuringSafeWrite() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final OffHeapCacheImpl slow = new OffHeapCacheImpl(1024 * 1024, 64, new JavaSerializationCodec(), null) {
+
+            @Override
+            public void set(final String key, final Object value, final int expiration) {
+                writing.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.set(key, value, expiration);
+            }
+        };
+        cache = new WriteBehindCacheImpl(slow, 100, 100, 60000, 0);
+        cache.set("key", "pending", 60);
+        final Thread safeSetting = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                cache.safeSet("key", "safe", 60);
+            }
+        });
+        safeSetting.start();
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+        assertEquals("pending", cache.get("key"));
+        release.countDown();
+        safeSetting.join();
+        assertEquals("safe", cache.get("key"));
+    }
+}
@@ -0,0 +1,128 @@
+package play.jobs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import play.Play;
+import play.cache.BinaryCodec;
+import play.cache.Cache;
+import play.cache.CacheImpl;
+import play.cache.MemcachedImpl;
+import play.cache.TinyLfuCacheImpl;
+
+/**
+ * クラスタでの CRON の Job の実行の動作検証. memcached は JVM 内のノードを使う.
+ * @author Toast kid
+ *
+ */
+public final class ClusterTest {
+
+    /** 元の Cache の実装. */
+    private static CacheImpl previous;
+    /** 検証用の memcached. */
+    private static MemcachedImpl cache;
+
+    /**
+     * 実行した実行時刻を記録する検証用 Job.
+     */
+    @On("*/1 * * * * ?")
+    public static final class ClusterJob extends Job<Void> {
+        /** 実行した実行時刻. */
+        static final List<Date> runs = Collections.synchronizedList(new ArrayList<Date>());
+        /** 次の実行時刻を登録しない. */
+        static volatile boolean stopped;
+
+        @Override
+        public void doJob() {
+            runs.add(nextPlannedExecution);
+        }
+
+        @Override
+        public void _finally() {
+            if (!stopped) {
+                super._finally();
+            }
+        }
+    }
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        Play.configuration = new Properties();
+        Play.configuration.setProperty("memcached.local.nodes", "1");
+        cache = MemcachedImpl.getInstance(true);
+        previous = Cache.cacheImpl;
+        Cache.cacheImpl = cache;
+        JobScheduler.cluster = true;
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        ClusterJob.stopped = true;
+        JobScheduler.cluster = false;
+        Cache.cacheImpl = previous;
+        cache.stop();
+        Play.configuration = null;
+    }
+
+    /**
+     * 実行時刻ごとに 1 回だけ権利を取れることを確認する.
+     */
+    @Test
+    public void testClaim() {
+        final ClusterJob job = new ClusterJob();
+        final Date planned = new Date(System.currentTimeMillis() / 1000 * 1000 + 3600000);
+        assertTrue(JobScheduler.claim(job, planned));
+        assertFalse(JobScheduler.claim(new ClusterJob(), planned));
+        assertTrue(cache.get(JobScheduler.leaseKey(job, planned)) != null);
+        assertTrue(JobScheduler.claim(job, new Date(planned.getTime() + 1000)));
+    }
+
+    /**
+     * Cache がノード間で共有されていなければ権利を取れないことを確認する.
+     */
+    @Test
+    public void testNotShared() {
+        final Date planned = new Date(System.currentTimeMillis() / 1000 * 1000 + 7200000);
+        Cache.cacheImpl = new TinyLfuCacheImpl(1024 * 1024, 100, new BinaryCodec(Integer.MAX_VALUE));
+        try {
+            assertFalse(Cache.isShared());
+            assertFalse(JobScheduler.claim(new ClusterJob(), planned));
+            Cache.cacheImpl = null;
+            assertFalse(JobScheduler.claim(new ClusterJob(), planned));
+        } finally {
+            Cache.cacheImpl = cache;
+        }
+        assertTrue(Cache.isShared());
+        assertTrue(JobScheduler.claim(new ClusterJob(), planned));
+    }
+
+    /**
+     * 2 つのノードに登録した Job が、実行時刻ごとに 1 回だけ実行されることを確認する.
+     * @throws InterruptedException
+     */
+    @Test
+    public void testOneNodePerFiring() throws InterruptedException {
+        final JobMetrics metrics = JobMetrics.of(ClusterJob.class);
+        metrics.reset();
+        JobScheduler.scheduleForCRON(new ClusterJob());
+        JobScheduler.scheduleForCRON(new ClusterJob());
+        Thread.sleep(3500);
+
+        final List<Date> runs = new ArrayList<Date>(ClusterJob.runs);
+        assertTrue(runs.size() >= 2);
+        assertEquals(runs.size(), new HashSet<Date>(runs).size());
+        assertTrue(metrics.snapshot().getClaimedElsewhere() >= 2);
+    }
+}
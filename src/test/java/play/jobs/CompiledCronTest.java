@@ -0,0 +1,145 @@
+package play.jobs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.text.ParseException;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+import play.libs.CompiledCron;
+import play.libs.Time.CronExpression;
+
+/**
+ * CompiledCron's behavior test.
+ * @author Toast kid
+ *
+ */
+public class CompiledCronTest {
+
+    private static final String[] EXPRESSIONS = {
+        "0 0 12 * * ?",
+        "0 15 10 ? * *",
+        "0 * 14 * * ?",
+        "0 0/5 14,18 * * ?",
+        "0 0-5 14 * * ?",
+        "0 10,44 14 ? 3 WED",
+        "0 15 10 ? * MON-FRI",
+        "0 15 10 15 * ?",
+        "0 0 0 29 2 ?",
+        "0 0 0 31 * ?",
+        "*/7 * * * * ?",
+        "30 30 2 * * ?",
+        "0 0 2,3 ? * SUN",
+        "0 0 12 5/5 * ?",
+        "0 11 11 11 11 ?",
+        "0 0 8 ? * 2,4,6 2030-2032",
+        "0 15 10 L * ?",
+        "0 15 10 ? * 6L",
+        "0 15 10 ? * 6#3",
+        "0 0 12 15W * ?",
+    };
+
+    private static final String[] ZONES = {"UTC", "Asia/Tokyo", "Europe/Paris", "America/New_York"};
+
+    /**
+     * check the fire times are the ones of CronExpression, daylight saving time included.
+     * @throws ParseException
+     */
+    @Test
+    public void testSameAsCronExpression() throws ParseException {
+        final Random random = new Random(42);
+        final long start = 946684800000L; // 2000-01-01
+        final long range = 40L * 365 * 86400000L;
+        for (final String zone : ZONES) {
+            final TimeZone timeZone = TimeZone.getTimeZone(zone);
+            for (final String expression : EXPRESSIONS) {
+                final CronExpression reference = new CronExpression(expression);
+                reference.setTimeZone(timeZone);
+                final CompiledCron compiled = CompiledCron.compile(expression, timeZone);
+                for (int i = 0; i < 200; i++) {
+                    Date date = new Date(start + (long) (random.nextDouble() * range));
+                    for (int j = 0; j < 5 && date != null; j++) {
+                        final Date expected = reference.getNextValidTimeAfter(date);
+                        assertEquals(expression + " " + zone + " after " + date,
+                                expected, compiled.getNextValidTimeAfter(date));
+                        date = expected;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * check the fire times around the daylight saving time transitions.
+     * @throws ParseException
+     */
+    @Test
+    public void testDaylightSavingTime() throws ParseException {
+        final TimeZone timeZone = TimeZone.getTimeZone("Europe/Paris");
+        for (final String expression : new String[] {"0 0/30 * * * ?", "0 30 2 * * ?", "0 0 * * * ?"}) {
+            final CronExpression reference = new CronExpression(expression);
+            reference.setTimeZone(timeZone);
+            final CompiledCron compiled = CompiledCron.compile(expression, timeZone);
+            // 2021-03-27 and 2021-10-30, the days before the transitions
+            for (final long day : new long[] {1616803200000L, 1635552000000L}) {
+                Date date = new Date(day);
+                for (int i = 0; i < 100; i++) {
+                    final Date expected = reference.getNextValidTimeAfter(date);
+                    assertEquals(expression + " after " + date, expected, compiled.getNextValidTimeAfter(date));
+                    date = expected;
+                }
+            }
+        }
+    }
+
+    /**
+     * check the intervals.
+     * @throws ParseException
+     */
+    @Test
+    public void testNextInterval() throws ParseException {
+        final Date date = new Date(1500000000000L);
+        for (final String expression : new String[] {"* 0/5 * * * ?", "0 0 12 * * ?", "0 15 10 ? * MON-FRI"}) {
+            final CronExpression reference = new CronExpression(expression);
+            final CompiledCron compiled = CompiledCron.compile(expression);
+            assertEquals(reference.getNextInvalidTimeAfter(date), compiled.getNextInvalidTimeAfter(date));
+            assertEquals(reference.getNextInterval(date), compiled.getNextInterval(date));
+        }
+    }
+
+    /**
+     * check the compiled expressions are cached, and the end of the years.
+     * @throws ParseException
+     */
+    @Test
+    public void testCompile() throws ParseException {
+        assertSame(CompiledCron.compile("0 0 12 * * ?"), CompiledCron.compile("0 0 12 * * ?"));
+        assertNull(CompiledCron.compile("0 0 12 * * ? 2010").getNextValidTimeAfter(new Date()));
+    }
+
+    /**
+     * check a day missing in a month does not overflow into the next one.
+     * @throws ParseException
+     */
+    @Test
+    public void testMissingDayOfMonth() throws ParseException {
+        final TimeZone utc = TimeZone.getTimeZone("UTC");
+        // 2004-02-26 12:00 and 2004-03-01 12:00
+        assertEquals(new Date(1078142400000L),
+                CompiledCron.compile("0 0 12 1/5 * ?", utc).getNextValidTimeAfter(new Date(1077796800000L)));
+    }
+
+    /**
+     * check an invalid expression.
+     * @throws ParseException
+     */
+    @Test(expected = ParseException.class)
+    public void testInvalid() throws ParseException {
+        CompiledCron.compile("0 0 25 * * ?");
+    }
+}
@@ -0,0 +1,171 @@
+package play.jobs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Concurrency の動作検証.
+ * @author Toast kid
+ *
+ */
+public final class ConcurrencyTest {
+
+    /**
+     * release まで止まる検証用 Job.
+     */
+    public abstract static class BlockingJob extends Job<Void> {
+        /** 実行回数. */
+        final AtomicInteger runs = new AtomicInteger();
+        /** 実行の開始. */
+        final CountDownLatch started = new CountDownLatch(1);
+        /** 実行の再開. */
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public void doJob() throws Exception {
+            runs.incrementAndGet();
+            started.countDown();
+            release.await(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Concurrency(Concurrency.Policy.SKIP_IF_RUNNING)
+    public static final class SkipJob extends BlockingJob {
+    }
+
+    @Concurrency(Concurrency.Policy.QUEUE_ONE)
+    public static final class QueueOneJob extends BlockingJob {
+    }
+
+    @Concurrency(value = Concurrency.Policy.ALLOW_N, max = 2)
+    public static final class AllowTwoJob extends BlockingJob {
+    }
+
+    @Concurrency(Concurrency.Policy.COALESCE)
+    public static final class CoalesceJob extends BlockingJob {
+    }
+
+    @On("*/1 * * * * ?")
+    @Concurrency(Concurrency.Policy.COALESCE)
+    public static final class CoalesceCronJob extends Job<Void> {
+    }
+
+    /**
+     * 実行中の呼び出しが実行されないことを確認する.
+     * @throws InterruptedException
+     */
+    @Test
+    public void testSkipIfRunning() throws InterruptedException {
+        final SkipJob job = new SkipJob();
+        final Thread first = start(job);
+        job.call();
+        job.call();
+        job.release.countDown();
+        first.join();
+        assertEquals(1, job.runs.get());
+        assertEquals(2, job.getSkipped());
+    }
+
+    /**
+     * 実行中の呼び出しが 1 つだけ後で実行されることを確認する.
+     * @throws InterruptedException
+     */
+    @Test
+    public void testQueueOne() throws InterruptedException {
+        final QueueOneJob job = new QueueOneJob();
+        final Thread first = start(job);
+        job.call();
+        job.call();
+        job.release.countDown();
+        first.join();
+        assertEquals(2, job.runs.get());
+        assertEquals(1, job.getSkipped());
+    }
+
+    /**
+     * 同時に 2 つまで実行されることを確認する.
+     * @throws InterruptedException
+     */
+    @Test
+    public void testAllowN() throws InterruptedException {
+        final AllowTwoJob job = new AllowTwoJob();
+        final Thread first = start(job);
+        final Thread second = new Thread(job);
+        second.start();
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (job.runs.get() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        job.call();
+        job.release.countDown();
+        first.join();
+        second.join();
+        assertEquals(2, job.runs.get());
+        assertEquals(1, job.getSkipped());
+    }
+
+    /**
+     * 実行中の呼び出しが 1 回の実行にまとめられることを確認する.
+     * @throws InterruptedException
+     */
+    @Test
+    public void testCoalesce() throws InterruptedException {
+        final CoalesceJob job = new CoalesceJob();
+        final Thread first = start(job);
+        job.call();
+        job.call();
+        job.call();
+        job.release.countDown();
+        first.join();
+        assertEquals(2, job.runs.get());
+        assertEquals(2, job.getCoalesced());
+        assertEquals(0, job.getSkipped());
+    }
+
+    /**
+     * 実行中に過ぎた CRON の実行時刻が 1 回の実行にまとめられることを確認する.
+     */
+    @Test
+    public void testCoalesceCron() {
+        final CoalesceCronJob job = new CoalesceCronJob();
+        final Date now = new Date();
+        job.nextPlannedExecution = new Date(now.getTime() - 5000);
+        JobScheduler.scheduleForCRON(job);
+        assertTrue(job.getCoalesced() >= 4);
+        assertTrue(job.nextPlannedExecution.before(now));
+    }
+
+    /**
+     * every を何度呼んでも 1 回だけ登録されることを確認する.
+     * @throws InterruptedException
+     */
+    @Test
+    public void testEveryOnce() throws InterruptedException {
+        final VerificationEveryJob job = new VerificationEveryJob();
+        job.every(1);
+        job.every(1);
+        job.every("1s");
+        Thread.sleep(1500);
+        assertEquals(1, job.i);
+    }
+
+    /**
+     * 別スレッドで実行を始める.
+     * @param job
+     * @return 実行しているスレッド
+     * @throws InterruptedException
+     */
+    private static Thread start(final BlockingJob job) throws InterruptedException {
+        final Thread thread = new Thread(job);
+        thread.start();
+        assertTrue(job.started.await(5, TimeUnit.SECONDS));
+        return thread;
+    }
+}
@@ -0,0 +1,73 @@
+package play.jobs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * JobMetrics の動作検証.
+ * @author Toast kid
+ *
+ */
+public final class JobMetricsTest {
+
+    /**
+     * 1 回目だけ失敗する検証用 Job.
+     */
+    public static final class FailingOnceJob extends Job<Void> {
+        /** 実行回数. */
+        int runs;
+
+        @Override
+        public void doJob() throws Exception {
+            runs++;
+            Thread.sleep(20);
+            if (runs == 1) {
+                throw new IllegalStateException("first run");
+            }
+        }
+    }
+
+    /**
+     * 成功と失敗の回数, 実行時間を確認する.
+     */
+    @Test
+    public void testRuns() {
+        JobMetrics.of(FailingOnceJob.class).reset();
+        final FailingOnceJob job = new FailingOnceJob();
+        job.call();
+        assertTrue(job.wasError);
+        job.call();
+
+        final JobMetrics.Snapshot snapshot = JobMetrics.snapshots().get(FailingOnceJob.class.getName());
+        assertEquals(1, snapshot.getSuccesses());
+        assertEquals(1, snapshot.getFailures());
+        assertEquals(2, snapshot.getDuration().getCount());
+        assertTrue(snapshot.getDuration().getMeanNanos() >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertTrue(snapshot.getDuration().getP99Nanos() >= snapshot.getDuration().getP50Nanos());
+        assertTrue(snapshot.getDuration().getMaxNanos() >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(0, snapshot.getLag().getCount());
+    }
+
+    /**
+     * 予定時刻からの遅れを確認する.
+     */
+    @Test
+    public void testLag() {
+        final JobMetrics metrics = JobMetrics.of(VerificationEveryJob.class);
+        metrics.reset();
+        final VerificationEveryJob job = new VerificationEveryJob();
+        job.nextPlannedExecution = new Date(System.currentTimeMillis() - 200);
+        job.call();
+
+        final JobMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(1, snapshot.getLag().getCount());
+        assertTrue(snapshot.getLag().getMeanNanos() >= TimeUnit.MILLISECONDS.toNanos(200));
+        assertTrue(snapshot.getLag().getP50Nanos() >= TimeUnit.MILLISECONDS.toNanos(200));
+        assertTrue(JobMetrics.getQueueDepth() >= 0);
+    }
+}
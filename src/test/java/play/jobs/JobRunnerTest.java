@@ -0,0 +1,153 @@
+package play.jobs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * JobRunner の動作検証.
+ * @author Toast kid
+ *
+ */
+public final class JobRunnerTest {
+
+    /**
+     * 同時実行数を数える検証用 Job.
+     */
+    public static final class SlowJob extends Job<Void> {
+        /** 実行中の数. */
+        static final AtomicInteger running = new AtomicInteger();
+        /** 最大の同時実行数. */
+        static final AtomicInteger max = new AtomicInteger();
+        /** 実行の終了. */
+        static CountDownLatch done;
+
+        @Override
+        public void doJob() throws Exception {
+            final int current = running.incrementAndGet();
+            int previous;
+            while (current > (previous = max.get()) && !max.compareAndSet(previous, current)) {
+                // retry
+            }
+            Thread.sleep(100);
+            running.decrementAndGet();
+            done.countDown();
+        }
+    }
+
+    /**
+     * 同時実行数の既定値 (1) を超えて実行されないことを確認する.
+     * @throws InterruptedException
+     */
+    @Test
+    public void testLimit() throws InterruptedException {
+        final JobRunner runner = JobRunner.elastic(16, 1);
+        runJobs(runner, 3);
+        assertEquals(1, SlowJob.max.get());
+        assertEquals(3, runner.getRuns(SlowJob.class));
+        assertTrue(runner.getAverageWait(SlowJob.class) >= 50);
+        assertTrue(runner.getAverageRun(SlowJob.class) >= 100);
+        assertEquals(0, runner.getRunning(SlowJob.class));
+        assertEquals(0, runner.getWaiting(SlowJob.class));
+        runner.shutdown();
+    }
+
+    /**
+     * Job クラスごとの同時実行数を確認する.
+     * @throws InterruptedException
+     */
+    @Test
+    public void testClassLimit() throws InterruptedException {
+        final JobRunner runner = JobRunner.virtualThreads(16, 1);
+        runner.setLimit(SlowJob.class.getName(), 2);
+        runJobs(runner, 4);
+        assertEquals(2, SlowJob.max.get());
+        assertEquals(4, runner.getRuns(SlowJob.class));
+        runner.shutdown();
+    }
+
+    /**
+     * 一定間隔の実行が重ならないことを確認する.
+     * @throws InterruptedException
+     */
+    @Test
+    public void testEvery() throws InterruptedException {
+        final JobRunner runner = JobRunner.elastic(16, 4);
+        final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+        SlowJob.max.set(0);
+        SlowJob.done = new CountDownLatch(3);
+        runner.every(scheduler, new SlowJob(), 0, 10, TimeUnit.MILLISECONDS);
+        assertTrue(SlowJob.done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, SlowJob.max.get());
+        scheduler.shutdownNow();
+        runner.shutdown();
+    }
+
+    /**
+     * 年に 1 回の CRON の検証用 Job.
+     */
+    @On("0 0 0 1 1 ?")
+    public static final class YearlyJob extends Job<Void> {
+        @Override
+        public void doJob() {
+            // 何もしない
+        }
+    }
+
+    /**
+     * スレッドが足りずに実行できなかった Job も、次の実行が登録されることを確認する.
+     * @throws InterruptedException
+     */
+    @Test
+    public void testRejected() throws InterruptedException {
+        final JobRunner runner = JobRunner.elastic(1, 4);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        runner.dispatch(new Job<Void>() {
+            @Override
+            public void doJob() throws Exception {
+                started.countDown();
+                release.await(5, TimeUnit.SECONDS);
+            }
+        }, null);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        final AtomicInteger then = new AtomicInteger();
+        runner.dispatch(new SlowJob(), new Runnable() {
+            @Override
+            public void run() {
+                then.incrementAndGet();
+            }
+        });
+        assertEquals(1, then.get());
+        assertEquals(0, runner.getRuns(SlowJob.class));
+        assertTrue(runner.getStatus().get(SlowJob.class.getName()).endsWith("1 rejected"));
+
+        final YearlyJob yearly = new YearlyJob();
+        runner.dispatch(yearly, null);
+        assertNotNull(yearly.nextPlannedExecution);
+        assertTrue(yearly.nextPlannedExecution.after(new Date()));
+
+        release.countDown();
+        runner.shutdown();
+    }
+
+    private static void runJobs(final JobRunner runner, final int count) throws InterruptedException {
+        SlowJob.max.set(0);
+        SlowJob.done = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            runner.dispatch(new SlowJob(), null);
+        }
+        assertTrue(SlowJob.done.await(5, TimeUnit.SECONDS));
+        // 最後の実行の後始末
+        Thread.sleep(50);
+    }
+}
@@ -0,0 +1,149 @@
+package play.jobs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * TimingWheelScheduler の動作検証.
+ * @author Toast kid
+ *
+ */
+public final class TimingWheelSchedulerTest {
+    /** 検証対象. */
+    private TimingWheelScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = new TimingWheelScheduler(1, TimeUnit.MILLISECONDS, 4);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * 指定した遅延の後に実行されることを確認する.
+     * @throws Exception
+     */
+    @Test
+    public void testSchedule() throws Exception {
+        final long start = System.nanoTime();
+        final ScheduledFuture<String> future = scheduler.schedule(new Callable<String>() {
+            @Override
+            public String call() {
+                return "done";
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+        assertEquals("done", future.get(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(0, scheduler.getScheduledCount());
+    }
+
+    /**
+     * 下の段へ移されるタスク (256 tick 以上先) の実行時刻を確認する.
+     * @throws Exception
+     */
+    @Test
+    public void testCascade() throws Exception {
+        final int[] delays = {3, 255, 256, 300, 700, 1200};
+        final long[] runAt = new long[delays.length];
+        final CountDownLatch latch = new CountDownLatch(delays.length);
+        final long start = System.nanoTime();
+        for (int i = 0; i < delays.length; i++) {
+            final int index = i;
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    runAt[index] = System.nanoTime();
+                    latch.countDown();
+                }
+            }, delays[i], TimeUnit.MILLISECONDS);
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < delays.length; i++) {
+            final long elapsed = TimeUnit.NANOSECONDS.toMillis(runAt[i] - start);
+            assertTrue(delays[i] + "ms ran after " + elapsed + "ms", elapsed >= delays[i]);
+            assertTrue(delays[i] + "ms ran after " + elapsed + "ms", elapsed < delays[i] + 500);
+        }
+    }
+
+    /**
+     * 取り消したタスクが実行されないことを確認する.
+     * @throws InterruptedException
+     */
+    @Test
+    public void testCancel() throws InterruptedException {
+        final AtomicInteger count = new AtomicInteger();
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                count.incrementAndGet();
+            }
+        };
+        final ScheduledFuture<?> near = scheduler.schedule(task, 30, TimeUnit.MILLISECONDS);
+        final ScheduledFuture<?> far = scheduler.schedule(task, 500, TimeUnit.MILLISECONDS);
+        scheduler.schedule(task, 30, TimeUnit.MILLISECONDS);
+        assertTrue(near.cancel(false));
+        Thread.sleep(10);
+        assertTrue(far.cancel(false));
+        Thread.sleep(600);
+        assertEquals(1, count.get());
+        assertEquals(0, scheduler.getScheduledCount());
+    }
+
+    /**
+     * 繰り返しのタスクを確認する.
+     * @throws InterruptedException
+     */
+    @Test
+    public void testPeriodic() throws InterruptedException {
+        final CountDownLatch rate = new CountDownLatch(5);
+        final CountDownLatch delay = new CountDownLatch(5);
+        final ScheduledFuture<?> fixedRate = scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                rate.countDown();
+            }
+        }, 0, 20, TimeUnit.MILLISECONDS);
+        final ScheduledFuture<?> fixedDelay = scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                delay.countDown();
+            }
+        }, 0, 20, TimeUnit.MILLISECONDS);
+        assertTrue(rate.await(5, TimeUnit.SECONDS));
+        assertTrue(delay.await(5, TimeUnit.SECONDS));
+        fixedRate.cancel(false);
+        fixedDelay.cancel(false);
+        assertTrue(fixedRate.isCancelled());
+        assertTrue(fixedDelay.isCancelled());
+        Thread.sleep(50);
+        assertEquals(0, scheduler.getScheduledCount());
+    }
+
+    /**
+     * Every Job が動作することを確認する.
+     * @throws InterruptedException
+     */
+    @Test
+    public void testJob() throws InterruptedException {
+        final VerificationEveryJob job = new VerificationEveryJob();
+        scheduler.scheduleWithFixedDelay(job, 0, 10, TimeUnit.MILLISECONDS);
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (job.i < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(job.i >= 3);
+    }
+}